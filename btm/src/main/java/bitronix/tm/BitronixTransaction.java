@@ -49,30 +49,35 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
     private final static Logger log = LoggerFactory.getLogger(BitronixTransaction.class);
 
     private final XAResourceManager resourceManager;
-    private final Scheduler<Synchronization> synchronizationScheduler = new Scheduler<Synchronization>();
-    private final List<TransactionStatusChangeListener> transactionStatusListeners = new ArrayList<TransactionStatusChangeListener>();
+    private volatile TransactionHelpers helpers;
 
     private volatile int status = Status.STATUS_NO_TRANSACTION;
     private volatile boolean timeout = false;
-    private volatile Date timeoutDate;
+    private volatile long timeoutTime;
 
-    private final Executor executor = TransactionManagerServices.getExecutor();
     private final TaskScheduler taskScheduler = TransactionManagerServices.getTaskScheduler();
 
-    private final Preparer preparer = new Preparer(executor);
-    private final Committer committer = new Committer(executor);
-    private final Rollbacker rollbacker = new Rollbacker(executor);
-
     /* management */
     private volatile String threadName;
-    private volatile Date startDate;
+    private volatile long startTime;
     private volatile StackTrace activationStackTrace;
 
 
     public BitronixTransaction() {
         Uid gtrid = UidGenerator.generateUid();
         if (log.isDebugEnabled()) log.debug("creating new transaction with GTRID [" + gtrid + "]");
-        this.resourceManager = new XAResourceManager(gtrid);
+
+        Executor executor = TransactionManagerServices.getExecutor();
+        TransactionHelpers recycledHelpers = null;
+        if (TransactionManagerServices.getConfiguration().isRecycleTransactionHelpers())
+            recycledHelpers = ThreadContext.getThreadContext().takeRecycledHelpers(executor);
+        if (recycledHelpers != null) {
+            if (log.isDebugEnabled()) log.debug("reusing recycled " + recycledHelpers);
+            this.helpers = recycledHelpers;
+        } else {
+            this.helpers = new TransactionHelpers(executor);
+        }
+        this.resourceManager = new XAResourceManager(gtrid, helpers.getResourceScheduler());
 
         this.threadName = Thread.currentThread().getName();
     }
@@ -96,7 +101,7 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
         XAResourceHolderState resourceHolderState = new XAResourceHolderState(resourceHolder, resourceHolder.getResourceBean());
 
         // resource timeout must be set here so manually enlisted resources can receive it
-        resourceHolderState.setTransactionTimeoutDate(timeoutDate);
+        resourceHolderState.setTransactionTimeoutTime(timeoutTime);
 
         try {
             resourceManager.enlist(resourceHolderState);
@@ -190,11 +195,16 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
             throw new IllegalStateException("transaction is done, cannot register any more synchronization");
 
         if (log.isDebugEnabled()) log.debug("registering synchronization " + synchronization);
-        synchronizationScheduler.add(synchronization, Scheduler.DEFAULT_POSITION);
+        getSynchronizationScheduler().add(synchronization, Scheduler.DEFAULT_POSITION);
     }
 
     public Scheduler<Synchronization> getSynchronizationScheduler() {
-        return synchronizationScheduler;
+        TransactionHelpers helpers = this.helpers;
+        if (helpers == null) {
+            // the helpers have been recycled, this transaction is over
+            return Scheduler.emptyScheduler();
+        }
+        return helpers.getSynchronizationScheduler();
     }
 
     public void commit() throws RollbackException, HeuristicMixedException, HeuristicRollbackException, SecurityException, SystemException {
@@ -248,7 +258,7 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
             try {
                 if (log.isDebugEnabled()) log.debug("committing, " + resourceManager.size() + " enlisted resource(s)");
 
-                interestedResources = preparer.prepare(this);
+                interestedResources = helpers.getPreparer().prepare(this);
             }
             catch (RollbackException ex) {
                 if (log.isDebugEnabled()) log.debug("caught rollback exception during prepare, trying to rollback");
@@ -262,7 +272,7 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
             // commit phase
             if (log.isDebugEnabled()) log.debug(interestedResources.size() + " interested resource(s)");
 
-            committer.commit(this, interestedResources);
+            helpers.getCommitter().commit(this, interestedResources);
 
             if (resourceManager.size() == 0 && TransactionManagerServices.getConfiguration().isDebugZeroResourceTransaction()) {
                 log.warn(buildZeroTransactionDebugMessage(activationStackTrace, new StackTrace()));
@@ -293,7 +303,7 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
             try {
                 if (log.isDebugEnabled()) log.debug("rolling back, " + resourceManager.size() + " enlisted resource(s)");
 
-                rollbacker.rollback(this, resourceManager.getAllResources());
+                helpers.getRollbacker().rollback(this, resourceManager.getAllResources());
 
                 if (log.isDebugEnabled()) log.debug("successfully rolled back using m2 patch " + this);
             } catch (HeuristicMixedException ex) {
@@ -334,13 +344,14 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
             throw new IllegalStateException("transaction has already started");
 
         setStatus(Status.STATUS_ACTIVE);
-        this.startDate = new Date(MonotonicClock.currentTimeMillis());
-        this.timeoutDate = new Date(MonotonicClock.currentTimeMillis() + (timeout * 1000L));
+        long now = MonotonicClock.coarseTimeMillis();
+        this.startTime = now;
+        this.timeoutTime = now + (timeout * 1000L);
         if (TransactionManagerServices.getConfiguration().isDebugZeroResourceTransaction()) {
             this.activationStackTrace = new StackTrace();
         }
 
-        taskScheduler.scheduleTransactionTimeout(this, timeoutDate);
+        taskScheduler.scheduleTransactionTimeout(this, timeoutTime);
     }
 
 
@@ -372,6 +383,14 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
     }
 
     private void fireTransactionStatusChangedEvent(int oldStatus, int newStatus) {
+        TransactionHelpers helpers = this.helpers;
+        if (helpers == null) {
+            if (log.isDebugEnabled()) log.debug("transaction status is changing from " + Decoder.decodeStatus(oldStatus) + " to " +
+                    Decoder.decodeStatus(newStatus) + " after its helpers got recycled, not executing any listener");
+            return;
+        }
+        List<TransactionStatusChangeListener> transactionStatusListeners = helpers.getTransactionStatusListeners();
+
         if (log.isDebugEnabled()) log.debug("transaction status is changing from " + Decoder.decodeStatus(oldStatus) + " to " +
                 Decoder.decodeStatus(newStatus) + " - executing " + transactionStatusListeners.size() + " listener(s)");
         
@@ -383,7 +402,13 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
     }
 
     public void addTransactionStatusChangeListener(TransactionStatusChangeListener listener) {
-        transactionStatusListeners.add(listener);
+        TransactionHelpers helpers = this.helpers;
+        if (helpers == null) {
+            // the transaction is over, the listener would never get executed anyway
+            if (log.isDebugEnabled()) log.debug("transaction helpers got recycled, ignoring TransactionStatusChangeListener " + listener);
+            return;
+        }
+        helpers.getTransactionStatusListeners().add(listener);
     }
 
     public int hashCode() {
@@ -399,7 +424,7 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
     }
 
     public String toString() {
-        return "a Bitronix Transaction with GTRID [" + resourceManager.getGtrid() + "], status=" + Decoder.decodeStatus(status) + ", " + resourceManager.size() + " resource(s) enlisted (started " + startDate + ")";
+        return "a Bitronix Transaction with GTRID [" + resourceManager.getGtrid() + "], status=" + Decoder.decodeStatus(status) + ", " + resourceManager.size() + " resource(s) enlisted (started " + getStartDate() + ")";
     }
 
 
@@ -466,7 +491,7 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
     private void rollbackPrepareFailure(RollbackException rbEx) throws BitronixSystemException {
         List<XAResourceHolderState> interestedResources = resourceManager.getAllResources();
         try {
-            rollbacker.rollback(this, interestedResources);
+            helpers.getRollbacker().rollback(this, interestedResources);
             if (log.isDebugEnabled()) log.debug("rollback after prepare failure succeeded");
         } catch (Exception ex) {
             // let's merge both exceptions' PhaseException to report a complete error message
@@ -492,6 +517,7 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
      *         exception fails.
      */
     private void fireBeforeCompletionEvent() throws BitronixSystemException {
+        Scheduler<Synchronization> synchronizationScheduler = getSynchronizationScheduler();
         if (log.isDebugEnabled()) log.debug("before completion, " + synchronizationScheduler.size() + " synchronization(s) to execute");
         Iterator<Synchronization> it = synchronizationScheduler.reverseIterator();
         while (it.hasNext()) {
@@ -511,6 +537,7 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
         // this TX is no longer in-flight -> remove this transaction's state from all XAResourceHolders
         getResourceManager().clearXAResourceHolderStates();
 
+        Scheduler<Synchronization> synchronizationScheduler = getSynchronizationScheduler();
         if (log.isDebugEnabled()) log.debug("after completion, " + synchronizationScheduler.size() + " synchronization(s) to execute");
         for (Synchronization synchronization : synchronizationScheduler) {
             try {
@@ -522,6 +549,28 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
         }
 
         ManagementRegistrar.unregister("bitronix.tm:type=Transaction,Gtrid=" + resourceManager.getGtrid());
+
+        if (TransactionManagerServices.getConfiguration().isRecycleTransactionHelpers())
+            recycleHelpers();
+    }
+
+    /**
+     * Hand this transaction's helpers over to the current thread's context so that the next transaction begun on
+     * this thread can reuse them. Helpers of transactions which did not cleanly commit or roll back are never recycled
+     * as they might still be referenced by exceptions or in-doubt resources.
+     */
+    private void recycleHelpers() {
+        if (status != Status.STATUS_COMMITTED && status != Status.STATUS_ROLLEDBACK) {
+            if (log.isDebugEnabled()) log.debug("not recycling helpers of transaction completed with status " + Decoder.decodeStatus(status));
+            return;
+        }
+
+        TransactionHelpers recycledHelpers = helpers;
+        helpers = null;
+        resourceManager.release();
+        recycledHelpers.reset();
+        if (log.isDebugEnabled()) log.debug("recycling helpers of " + this);
+        ThreadContext.getThreadContext().recycleHelpers(recycledHelpers);
     }
 
     static String buildZeroTransactionDebugMessage(StackTrace activationStackTrace, StackTrace commitStackTrace) {
@@ -578,7 +627,10 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
     }
 
     public Date getStartDate() {
-        return startDate;
+        long startTime = this.startTime;
+        if (startTime == 0L)
+            return null;
+        return MonotonicClock.toDate(startTime);
     }
 
     /**
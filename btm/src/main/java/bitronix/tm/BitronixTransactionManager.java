@@ -60,6 +60,7 @@ public class BitronixTransactionManager implements TransactionManager, UserTrans
             configuration.buildServerIdArray(); // first call will initialize the ServerId
 
             if (log.isDebugEnabled()) { log.debug("starting BitronixTransactionManager using " + configuration); }
+            MonotonicClock.startCoarseClock(configuration.getCoarseClockResolution());
             TransactionManagerServices.getJournal().open();
             TransactionManagerServices.getResourceLoader().init();
             TransactionManagerServices.getRecoverer().run();
@@ -72,13 +73,15 @@ public class BitronixTransactionManager implements TransactionManager, UserTrans
             inFlightTransactions = createInFlightTransactionsMap();
 
             if (log.isDebugEnabled()) { log.debug("recovery will run in the background every " + backgroundRecoveryInterval + " second(s)"); }
-            Date nextExecutionDate = new Date(MonotonicClock.currentTimeMillis() + (backgroundRecoveryInterval * 1000L));
-            TransactionManagerServices.getTaskScheduler().scheduleRecovery(TransactionManagerServices.getRecoverer(), nextExecutionDate);
+            long nextExecutionTime = MonotonicClock.currentTimeMillis() + (backgroundRecoveryInterval * 1000L);
+            TransactionManagerServices.getTaskScheduler().scheduleRecovery(TransactionManagerServices.getRecoverer(), nextExecutionTime);
         } catch (IOException ex) {
+            MonotonicClock.stopCoarseClock();
             throw new InitializationException("cannot open disk journal", ex);
         } catch (Exception ex) {
             TransactionManagerServices.getJournal().shutdown();
             TransactionManagerServices.getResourceLoader().shutdown();
+            MonotonicClock.stopCoarseClock();
             throw new InitializationException("initialization failed, cannot safely start the transaction manager", ex);
         }
     }
@@ -349,6 +352,9 @@ public class BitronixTransactionManager implements TransactionManager, UserTrans
         if (log.isDebugEnabled()) { log.debug("shutting down recoverer"); }
         TransactionManagerServices.getRecoverer().shutdown();
 
+        if (log.isDebugEnabled()) { log.debug("shutting down coarse clock"); }
+        MonotonicClock.stopCoarseClock();
+
         if (log.isDebugEnabled()) { log.debug("shutting down configuration"); }
         TransactionManagerServices.getConfiguration().shutdown();
 
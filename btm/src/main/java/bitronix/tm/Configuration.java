@@ -76,8 +76,14 @@ public class Configuration implements Service {
     private volatile boolean currentNodeOnlyRecovery;
     private volatile boolean allowMultipleLrc;
     private volatile String resourceConfigurationFilename;
+    private volatile int resourceInitializationConcurrency;
+    private volatile int recoveryConcurrency;
+    private volatile int recoveryResourceTimeout;
+    private volatile boolean recoveryStreaming;
     private volatile boolean conservativeJournaling;
     private volatile String jdbcProxyFactoryClass;
+    private volatile boolean recycleTransactionHelpers;
+    private volatile int coarseClockResolution;
 
     protected Configuration() {
         try {
@@ -124,8 +130,14 @@ public class Configuration implements Service {
             currentNodeOnlyRecovery = getBoolean(properties, "bitronix.tm.currentNodeOnlyRecovery", true);
             allowMultipleLrc = getBoolean(properties, "bitronix.tm.allowMultipleLrc", false);
             resourceConfigurationFilename = getString(properties, "bitronix.tm.resource.configuration", null);
+            resourceInitializationConcurrency = getInt(properties, "bitronix.tm.resource.initializationConcurrency", 1);
+            recoveryConcurrency = getInt(properties, "bitronix.tm.recovery.concurrency", 1);
+            recoveryResourceTimeout = getInt(properties, "bitronix.tm.recovery.resourceTimeout", 0);
+            recoveryStreaming = getBoolean(properties, "bitronix.tm.recovery.streaming", false);
             conservativeJournaling = getBoolean(properties, "bitronix.tm.conservativeJournaling", false);
             jdbcProxyFactoryClass = getString(properties, "bitronix.tm.jdbcProxyFactoryClass", "auto");
+            recycleTransactionHelpers = getBoolean(properties, "bitronix.tm.recycleTransactionHelpers", false);
+            coarseClockResolution = getInt(properties, "bitronix.tm.timer.coarseClockResolution", 0);
         } catch (IOException ex) {
             throw new InitializationException("error loading configuration", ex);
         }
@@ -686,6 +698,54 @@ public class Configuration implements Service {
         this.jdbcProxyFactoryClass = jdbcProxyFactoryClass;
     }
 
+    /**
+     * Should the per-transaction helpers (synchronization and resource schedulers, 2PC engines, status listeners list)
+     * be recycled through the thread context once a transaction completed? Enabling this makes the steady-state
+     * begin/commit path allocate much less garbage.
+     * <p>Property name:<br/><b>bitronix.tm.recycleTransactionHelpers -</b> <i>(defaults to false)</i></p>
+     * @return true if the per-transaction helpers should be recycled, false otherwise.
+     */
+    public boolean isRecycleTransactionHelpers() {
+        return recycleTransactionHelpers;
+    }
+
+    /**
+     * Set to true if the per-transaction helpers should be recycled through the thread context once a transaction
+     * completed.
+     * @see #isRecycleTransactionHelpers()
+     * @param recycleTransactionHelpers true if the per-transaction helpers should be recycled, false otherwise.
+     * @return this.
+     */
+    public Configuration setRecycleTransactionHelpers(boolean recycleTransactionHelpers) {
+        checkNotStarted();
+        this.recycleTransactionHelpers = recycleTransactionHelpers;
+        return this;
+    }
+
+    /**
+     * Resolution in milliseconds of the coarse clock used to timestamp transactions, journal records and pooled
+     * connections. The coarse clock is refreshed by a background thread which makes reading it much cheaper than
+     * reading the precise clock, especially under heavy contention. The timestamps it returns can lag behind the
+     * precise clock by up to this amount of milliseconds. A value of 0 disables the coarse clock.
+     * <p>Property name:<br/><b>bitronix.tm.timer.coarseClockResolution -</b> <i>(defaults to 0)</i></p>
+     * @return the resolution in milliseconds of the coarse clock or 0 if it is disabled.
+     */
+    public int getCoarseClockResolution() {
+        return coarseClockResolution;
+    }
+
+    /**
+     * Set the resolution in milliseconds of the coarse clock. A value of 0 disables the coarse clock.
+     * @see #getCoarseClockResolution()
+     * @param coarseClockResolution the resolution in milliseconds of the coarse clock or 0 to disable it.
+     * @return this.
+     */
+    public Configuration setCoarseClockResolution(int coarseClockResolution) {
+        checkNotStarted();
+        this.coarseClockResolution = coarseClockResolution;
+        return this;
+    }
+
 
     /**
      * {@link bitronix.tm.resource.ResourceLoader} configuration file name. {@link bitronix.tm.resource.ResourceLoader}
@@ -710,6 +770,100 @@ public class Configuration implements Service {
         return this;
     }
 
+    /**
+     * Maximum amount of resources the {@link bitronix.tm.resource.ResourceLoader} initializes concurrently at startup.
+     * Initializing a resource creates its pool's initial connections, which can take a while with remote databases or
+     * message brokers.
+     * <p>Property name:<br/><b>bitronix.tm.resource.initializationConcurrency -</b> <i>(defaults to 1)</i></p>
+     * @return the maximum amount of resources initialized concurrently.
+     */
+    public int getResourceInitializationConcurrency() {
+        return resourceInitializationConcurrency;
+    }
+
+    /**
+     * Set the maximum amount of resources the {@link bitronix.tm.resource.ResourceLoader} initializes concurrently.
+     * @see #getResourceInitializationConcurrency()
+     * @param resourceInitializationConcurrency the maximum amount of resources initialized concurrently.
+     * @return this.
+     */
+    public Configuration setResourceInitializationConcurrency(int resourceInitializationConcurrency) {
+        checkNotStarted();
+        this.resourceInitializationConcurrency = resourceInitializationConcurrency;
+        return this;
+    }
+
+    /**
+     * Maximum amount of resources the {@link bitronix.tm.recovery.Recoverer} recovers concurrently. This applies to
+     * the scanning of the resources' in-doubt transactions as well as to the commit and rollback calls made on them,
+     * which are issued sequentially on each resource.
+     * <p>Property name:<br/><b>bitronix.tm.recovery.concurrency -</b> <i>(defaults to 1)</i></p>
+     * @return the maximum amount of resources recovered concurrently.
+     */
+    public int getRecoveryConcurrency() {
+        return recoveryConcurrency;
+    }
+
+    /**
+     * Set the maximum amount of resources the {@link bitronix.tm.recovery.Recoverer} recovers concurrently.
+     * @see #getRecoveryConcurrency()
+     * @param recoveryConcurrency the maximum amount of resources recovered concurrently.
+     * @return this.
+     */
+    public Configuration setRecoveryConcurrency(int recoveryConcurrency) {
+        checkNotStarted();
+        this.recoveryConcurrency = recoveryConcurrency;
+        return this;
+    }
+
+    /**
+     * Amount of time in seconds the {@link bitronix.tm.recovery.Recoverer} waits for a resource to be scanned or to
+     * have its in-doubt transactions committed or rolled back. A resource failing to be scanned in time is marked as
+     * failed and left for the next recovery run. Resources can take as long as they need when set to 0.
+     * <p>Property name:<br/><b>bitronix.tm.recovery.resourceTimeout -</b> <i>(defaults to 0)</i></p>
+     * @return the amount of seconds a resource is given to recover.
+     */
+    public int getRecoveryResourceTimeout() {
+        return recoveryResourceTimeout;
+    }
+
+    /**
+     * Set the amount of time in seconds the {@link bitronix.tm.recovery.Recoverer} waits for a resource to recover.
+     * @see #getRecoveryResourceTimeout()
+     * @param recoveryResourceTimeout the amount of seconds a resource is given to recover.
+     * @return this.
+     */
+    public Configuration setRecoveryResourceTimeout(int recoveryResourceTimeout) {
+        checkNotStarted();
+        this.recoveryResourceTimeout = recoveryResourceTimeout;
+        return this;
+    }
+
+    /**
+     * Should the {@link bitronix.tm.recovery.Recoverer} commit or roll back the XIDs returned by each
+     * {@link javax.transaction.xa.XAResource#recover(int)} call as soon as it receives them instead of collecting all
+     * of them first? Only the XIDs left on the resources then need to be kept in memory, which bounds the memory used
+     * to recover very large backlogs. Resources must not return XIDs which have been committed or rolled back during
+     * the scan in their following recover() calls.
+     * <p>Property name:<br/><b>bitronix.tm.recovery.streaming -</b> <i>(defaults to false)</i></p>
+     * @return true if recovered XIDs are resolved while resources are being scanned, false otherwise.
+     */
+    public boolean isRecoveryStreaming() {
+        return recoveryStreaming;
+    }
+
+    /**
+     * Set if the {@link bitronix.tm.recovery.Recoverer} should resolve recovered XIDs while resources are being scanned.
+     * @see #isRecoveryStreaming()
+     * @param recoveryStreaming true if recovered XIDs should be resolved while resources are being scanned.
+     * @return this.
+     */
+    public Configuration setRecoveryStreaming(boolean recoveryStreaming) {
+        checkNotStarted();
+        this.recoveryStreaming = recoveryStreaming;
+        return this;
+    }
+
     /**
      * Build the server ID byte array that will be prepended in generated UIDs. Once built, the value is cached for the duration of the JVM lifespan.
      * @return the server ID.
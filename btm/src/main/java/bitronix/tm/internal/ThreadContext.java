@@ -22,6 +22,7 @@ package bitronix.tm.internal;
 
 import bitronix.tm.BitronixTransaction;
 import bitronix.tm.TransactionManagerServices;
+import bitronix.tm.twopc.executor.Executor;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,6 +39,8 @@ public class ThreadContext {
 
     private volatile BitronixTransaction transaction;
     private volatile int timeout = TransactionManagerServices.getConfiguration().getDefaultTransactionTimeout();;
+    // only ever accessed by the thread this context is bound to, no need for it to be volatile
+    private TransactionHelpers recycledHelpers;
 
     private static ThreadLocal<ThreadContext> threadContext = new ThreadLocal<ThreadContext>() {
         protected ThreadContext initialValue() {
@@ -120,6 +123,33 @@ public class ThreadContext {
         }
     }
 
+    /**
+     * Take the transaction helpers that have been recycled by the last completed transaction of this thread, if any.
+     * The helpers are discarded if they have been created for another executor, ie: if the transaction manager has
+     * been restarted in the meantime.
+     *
+     * @param executor the executor the helpers must have been created for.
+     * @return the recycled helpers or null if there is none.
+     */
+    public TransactionHelpers takeRecycledHelpers(Executor executor) {
+        TransactionHelpers helpers = recycledHelpers;
+        recycledHelpers = null;
+        if (helpers != null && helpers.getExecutor() != executor) {
+            if (log.isDebugEnabled()) log.debug("discarding recycled transaction helpers created for another executor");
+            return null;
+        }
+        return helpers;
+    }
+
+    /**
+     * Keep transaction helpers for the next transaction begun by this thread. The helpers must have been reset.
+     *
+     * @param helpers the helpers to recycle.
+     */
+    public void recycleHelpers(TransactionHelpers helpers) {
+        this.recycledHelpers = helpers;
+    }
+
     /**
      * Return a human-readable representation.
      * 
@@ -0,0 +1,101 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.internal;
+
+import bitronix.tm.twopc.Committer;
+import bitronix.tm.twopc.Preparer;
+import bitronix.tm.twopc.Rollbacker;
+import bitronix.tm.twopc.executor.Executor;
+import bitronix.tm.utils.Scheduler;
+
+import javax.transaction.Synchronization;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holder of the objects a {@link bitronix.tm.BitronixTransaction} needs during its lifetime which do not depend on
+ * its identity: the synchronization and resource schedulers, the 2PC engines and the status listeners list.
+ * <p>When {@link bitronix.tm.Configuration#isRecycleTransactionHelpers()} is enabled, a completed transaction hands
+ * its helpers back to the {@link ThreadContext} so that the next transaction begun on the same thread can reuse
+ * them.</p>
+ */
+public final class TransactionHelpers {
+
+    private final Executor executor;
+    private final Scheduler<Synchronization> synchronizationScheduler = new Scheduler<Synchronization>();
+    private final Scheduler<XAResourceHolderState> resourceScheduler = new Scheduler<XAResourceHolderState>();
+    private final List<TransactionStatusChangeListener> transactionStatusListeners = new ArrayList<TransactionStatusChangeListener>();
+    private final Preparer preparer;
+    private final Committer committer;
+    private final Rollbacker rollbacker;
+
+    public TransactionHelpers(Executor executor) {
+        this.executor = executor;
+        this.preparer = new Preparer(executor);
+        this.committer = new Committer(executor);
+        this.rollbacker = new Rollbacker(executor);
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public Scheduler<Synchronization> getSynchronizationScheduler() {
+        return synchronizationScheduler;
+    }
+
+    public Scheduler<XAResourceHolderState> getResourceScheduler() {
+        return resourceScheduler;
+    }
+
+    public List<TransactionStatusChangeListener> getTransactionStatusListeners() {
+        return transactionStatusListeners;
+    }
+
+    public Preparer getPreparer() {
+        return preparer;
+    }
+
+    public Committer getCommitter() {
+        return committer;
+    }
+
+    public Rollbacker getRollbacker() {
+        return rollbacker;
+    }
+
+    /**
+     * Drop all the state accumulated by the transaction that used these helpers.
+     */
+    public void reset() {
+        synchronizationScheduler.clear();
+        resourceScheduler.clear();
+        transactionStatusListeners.clear();
+        preparer.reset();
+        committer.reset();
+        rollbacker.reset();
+    }
+
+    public String toString() {
+        return "a TransactionHelpers with " + synchronizationScheduler.size() + " synchronization(s), " +
+                resourceScheduler.size() + " resource(s) and " + transactionStatusListeners.size() + " status listener(s)";
+    }
+}
@@ -30,7 +30,6 @@ import org.slf4j.Logger;
 
 import javax.transaction.xa.XAException;
 import javax.transaction.xa.XAResource;
-import java.util.Date;
 
 /**
  * {@link XAResourceHolder} state container.
@@ -56,7 +55,7 @@ public class XAResourceHolderState {
     private volatile boolean started;
     private volatile boolean ended;
     private volatile boolean suspended;
-    private volatile Date transactionTimeoutDate;
+    private volatile long transactionTimeoutTime;
     private volatile boolean isTimeoutAlreadySet;
     private volatile boolean failed;
     private volatile int hashCode;
@@ -105,12 +104,16 @@ public class XAResourceHolderState {
         return xaResourceHolder;
     }
 
-    public Date getTransactionTimeoutDate() {
-        return transactionTimeoutDate;
+    /**
+     * @return the {@link bitronix.tm.utils.MonotonicClock} time at which the transaction times out or 0 if it has
+     * not been set.
+     */
+    public long getTransactionTimeoutTime() {
+        return transactionTimeoutTime;
     }
 
-    public void setTransactionTimeoutDate(Date transactionTimeoutDate) {
-        this.transactionTimeoutDate = transactionTimeoutDate;
+    public void setTransactionTimeoutTime(long transactionTimeoutTime) {
+        this.transactionTimeoutTime = transactionTimeoutTime;
     }
 
     public String getUniqueName() {
@@ -213,8 +216,8 @@ public class XAResourceHolderState {
             started = true;
         }
 
-        if (!isTimeoutAlreadySet && transactionTimeoutDate != null && bean.getApplyTransactionTimeout()) {
-            int timeoutInSeconds = (int) ((transactionTimeoutDate.getTime() - MonotonicClock.currentTimeMillis() + 999L) / 1000L);
+        if (!isTimeoutAlreadySet && transactionTimeoutTime != 0L && bean.getApplyTransactionTimeout()) {
+            int timeoutInSeconds = (int) ((transactionTimeoutTime - MonotonicClock.currentTimeMillis() + 999L) / 1000L);
             timeoutInSeconds = Math.max(1, timeoutInSeconds); // setting a timeout of 0 means resetting -> set it to at least 1
             if (log.isDebugEnabled()) log.debug("applying resource timeout of " + timeoutInSeconds + "s on " + this);
             getXAResource().setTransactionTimeout(timeoutInSeconds);
@@ -44,14 +44,32 @@ public class XAResourceManager {
     private final static Logger log = LoggerFactory.getLogger(XAResourceManager.class);
 
     private final Uid gtrid;
-    private final Scheduler<XAResourceHolderState> resources = new Scheduler<XAResourceHolderState>();
+    private volatile Scheduler<XAResourceHolderState> resources;
+
+    // indexes of the enlisted resources, lazily created on first enlistment. Like the scheduler, they are confined
+    // to the transaction's thread.
+    private Map<XAResource, XAResourceHolderState> statesByXAResource;
+    private Map<String, List<XAResourceHolderState>> statesByUniqueName;
+    // XAResource.isSameRM() results per pair of resource unique names
+    private Map<String, Map<String, Boolean>> sameRMCache;
 
     /**
      * Create a resource manager for the specified GTRID.
      * @param gtrid the transaction's GTRID this XAResourceManager will be assigned to.
      */
     public XAResourceManager(Uid gtrid) {
+        this(gtrid, new Scheduler<XAResourceHolderState>());
+    }
+
+    /**
+     * Create a resource manager for the specified GTRID that keeps track of the enlisted resources in the specified
+     * scheduler.
+     * @param gtrid the transaction's GTRID this XAResourceManager will be assigned to.
+     * @param resources the empty scheduler in which the enlisted resources will be kept.
+     */
+    public XAResourceManager(Uid gtrid, Scheduler<XAResourceHolderState> resources) {
         this.gtrid = gtrid;
+        this.resources = resources;
     }
 
     /**
@@ -114,9 +132,11 @@ public class XAResourceManager {
         // in case of a JOIN, the resource holder is already in the scheduler -> do not add it twice
         if (toBeJoinedHolderState != null) {
             resources.remove(toBeJoinedHolderState);
+            unindex(toBeJoinedHolderState);
         }
         // this must be done only after start() successfully returned
         resources.add(xaResourceHolderState, xaResourceHolderState.getTwoPcOrderingPosition());
+        index(xaResourceHolderState);
     }
 
     /**
@@ -184,17 +204,14 @@ public class XAResourceManager {
     /**
      * Look if an {@link XAResource} has already been enlisted.
      * @param xaResource the {@link XAResource} to look for.
-     * @return the {@link XAResourceHolderState} of the enlisted resource or null if the {@link XAResource} has not
-     *         been enlisted in this {@link XAResourceManager}.
+     * @return the most recently enlisted {@link XAResourceHolderState} of the resource or null if the
+     *         {@link XAResource} has not been enlisted in this {@link XAResourceManager}.
      * @throws BitronixSystemException if an internal error happens.
      */
     public XAResourceHolderState findXAResourceHolderState(XAResource xaResource) throws BitronixSystemException {
-        for (XAResourceHolderState xaResourceHolderState : resources) {
-            if (xaResourceHolderState.getXAResource() == xaResource)
-                return xaResourceHolderState;
-        }
-        
-        return null;
+        if (statesByXAResource == null)
+            return null;
+        return statesByXAResource.get(xaResource);
     }
 
     /**
@@ -211,22 +228,127 @@ public class XAResourceManager {
             return null;
         }
 
-        for (XAResourceHolderState alreadyEnlistedHolderState : resources) {
+        // try the previous enlistment of the same XAResource first, asking a XAResource if it is the same RM as itself
+        // is answered locally so the result of this call is not cached
+        XAResource xaResource = xaResourceHolderState.getXAResource();
+        XAResourceHolderState joinable = statesByXAResource.get(xaResource);
+        if (joinable != null && joinable.isEnded() && !joinable.isSuspended()) {
+            if (log.isDebugEnabled()) log.debug("checking joinability of " + xaResourceHolderState + " with " + joinable);
+            if (xaResource.isSameRM(joinable.getXAResource())) {
+                if (log.isDebugEnabled()) log.debug("resources are joinable");
+                return joinable;
+            }
+        }
+
+        // the resources of the same producer are the most likely to be joinable, try them next
+        joinable = findJoinable(xaResourceHolderState, xaResourceHolderState.getUniqueName());
+        if (joinable != null)
+            return joinable;
+
+        for (String uniqueName : statesByUniqueName.keySet()) {
+            if (uniqueName.equals(xaResourceHolderState.getUniqueName()))
+                continue;
+            joinable = findJoinable(xaResourceHolderState, uniqueName);
+            if (joinable != null)
+                return joinable;
+        }
+
+        if (log.isDebugEnabled()) log.debug("no joinable resource found for " + xaResourceHolderState);
+        return null;
+    }
+
+    /**
+     * Search for an already enlisted {@link XAResourceHolderState} of the specified producer that could be joined with
+     * the {@link XAResourceHolderState} passed as parameter. The result of XAResource.isSameRM() is cached per pair
+     * of producers so that it is called at most once per pair and transaction.
+     * @param xaResourceHolderState a {@link XAResourceHolderState} looking to be joined.
+     * @param uniqueName the unique name of the producer whose enlisted resources are candidates for joining.
+     * @return an enlisted {@link XAResourceHolderState} that can be joined with the one passed in or null if none is found.
+     * @throws XAException if call to XAResource.isSameRM() fails.
+     */
+    private XAResourceHolderState findJoinable(XAResourceHolderState xaResourceHolderState, String uniqueName) throws XAException {
+        List<XAResourceHolderState> candidates = statesByUniqueName.get(uniqueName);
+        if (candidates == null)
+            return null;
+
+        XAResource xaResource = xaResourceHolderState.getXAResource();
+        for (XAResourceHolderState alreadyEnlistedHolderState : candidates) {
             if (log.isDebugEnabled())
                 log.debug("checking joinability of " + xaResourceHolderState + " with " + alreadyEnlistedHolderState);
-            if (alreadyEnlistedHolderState.isEnded() &&
-                    !alreadyEnlistedHolderState.isSuspended() &&
-                    xaResourceHolderState.getXAResource().isSameRM(alreadyEnlistedHolderState.getXAResource())) {
+            // enlistments of the same XAResource have already been checked
+            if (!alreadyEnlistedHolderState.isEnded() || alreadyEnlistedHolderState.isSuspended() ||
+                    alreadyEnlistedHolderState.getXAResource() == xaResource)
+                continue;
+
+            if (isSameRM(xaResourceHolderState, alreadyEnlistedHolderState)) {
                 if (log.isDebugEnabled()) log.debug("resources are joinable");
                 return alreadyEnlistedHolderState;
             }
             if (log.isDebugEnabled()) log.debug("resources are not joinable");
+            // all the other candidates of this producer share the same answer
+            return null;
         }
-        
-        if (log.isDebugEnabled()) log.debug("no joinable resource found for " + xaResourceHolderState);
         return null;
     }
 
+    private boolean isSameRM(XAResourceHolderState xaResourceHolderState, XAResourceHolderState alreadyEnlistedHolderState) throws XAException {
+        if (sameRMCache == null)
+            sameRMCache = new HashMap<String, Map<String, Boolean>>();
+
+        Map<String, Boolean> producerCache = sameRMCache.get(xaResourceHolderState.getUniqueName());
+        if (producerCache == null) {
+            producerCache = new HashMap<String, Boolean>();
+            sameRMCache.put(xaResourceHolderState.getUniqueName(), producerCache);
+        }
+
+        Boolean sameRM = producerCache.get(alreadyEnlistedHolderState.getUniqueName());
+        if (sameRM == null) {
+            sameRM = xaResourceHolderState.getXAResource().isSameRM(alreadyEnlistedHolderState.getXAResource());
+            producerCache.put(alreadyEnlistedHolderState.getUniqueName(), sameRM);
+        }
+        else if (log.isDebugEnabled()) log.debug("using cached isSameRM result (" + sameRM + ") for " + xaResourceHolderState.getUniqueName() + " and " + alreadyEnlistedHolderState.getUniqueName());
+        return sameRM;
+    }
+
+    private void index(XAResourceHolderState xaResourceHolderState) {
+        if (statesByXAResource == null) {
+            statesByXAResource = new IdentityHashMap<XAResource, XAResourceHolderState>();
+            statesByUniqueName = new LinkedHashMap<String, List<XAResourceHolderState>>();
+        }
+
+        statesByXAResource.put(xaResourceHolderState.getXAResource(), xaResourceHolderState);
+
+        List<XAResourceHolderState> states = statesByUniqueName.get(xaResourceHolderState.getUniqueName());
+        if (states == null) {
+            states = new ArrayList<XAResourceHolderState>();
+            statesByUniqueName.put(xaResourceHolderState.getUniqueName(), states);
+        }
+        states.add(xaResourceHolderState);
+    }
+
+    private void unindex(XAResourceHolderState xaResourceHolderState) {
+        List<XAResourceHolderState> states = statesByUniqueName.get(xaResourceHolderState.getUniqueName());
+        states.remove(xaResourceHolderState);
+        if (states.isEmpty())
+            statesByUniqueName.remove(xaResourceHolderState.getUniqueName());
+
+        XAResource xaResource = xaResourceHolderState.getXAResource();
+        if (statesByXAResource.get(xaResource) == xaResourceHolderState) {
+            // fall back to the most recently enlisted remaining state of the same XAResource, if any
+            statesByXAResource.remove(xaResource);
+            for (XAResourceHolderState remainingState : resources) {
+                if (remainingState.getXAResource() == xaResource)
+                    statesByXAResource.put(xaResource, remainingState);
+            }
+        }
+    }
+
+    private void clearIndexes() {
+        statesByXAResource = null;
+        statesByUniqueName = null;
+        sameRMCache = null;
+    }
+
     /**
      * Remove this transaction's {@link XAResourceHolderState} from all enlisted
      * {@link bitronix.tm.resource.common.XAResourceHolder}s.
@@ -247,6 +369,7 @@ public class XAResourceManager {
 
             it.remove();
         }
+        clearIndexes();
     }
 
     /**
@@ -254,19 +377,21 @@ public class XAResourceManager {
      * @return a {@link Set} of unique names of all the enlisted {@link XAResourceHolderState}s.
      */
     public Set<String> collectUniqueNames() {
-        Set<String> names = new HashSet<String>(resources.size());
-        for (XAResourceHolderState xaResourceHolderState : resources) {
+        // this is also called by the transaction timeout task and management clients: iterate over a snapshot
+        List<XAResourceHolderState> snapshot = resources.snapshot();
+        Set<String> names = new HashSet<String>(snapshot.size());
+        for (XAResourceHolderState xaResourceHolderState : snapshot) {
             names.add(xaResourceHolderState.getUniqueName());
         }
         return Collections.unmodifiableSet(names);
     }
 
     public SortedSet<Integer> getNaturalOrderPositions() {
-        return Collections.unmodifiableSortedSet(resources.getNaturalOrderPositions());
+        return resources.getNaturalOrderPositions();
     }
 
     public SortedSet<Integer> getReverseOrderPositions() {
-        return Collections.unmodifiableSortedSet(resources.getReverseOrderPositions());
+        return resources.getReverseOrderPositions();
     }
 
     public List<XAResourceHolderState> getNaturalOrderResourcesForPosition(Integer position) {
@@ -278,11 +403,17 @@ public class XAResourceManager {
     }
 
     public List<XAResourceHolderState> getAllResources() {
-        List<XAResourceHolderState> result = new ArrayList<XAResourceHolderState>(resources.size());
-        for (Integer positionKey : resources.getNaturalOrderPositions()) {
-            result.addAll(resources.getByNaturalOrderForPosition(positionKey));
-        }
-        return Collections.unmodifiableList(result);
+        return Collections.unmodifiableList(resources.snapshot());
+    }
+
+    /**
+     * Stop using the scheduler this resource manager has been created with so that it can be reused by another
+     * transaction. This resource manager will appear as having no enlisted resource afterwards.
+     */
+    public void release() {
+        if (log.isDebugEnabled()) log.debug("releasing resources scheduler of " + this);
+        resources = Scheduler.emptyScheduler();
+        clearIndexes();
     }
 
     /**
@@ -128,7 +128,7 @@ public class TransactionLogRecord implements JournalRecord {
      */
     public TransactionLogRecord(int status, Uid gtrid, Set<String> uniqueNames) {
         this.status = status;
-        this.time = MonotonicClock.currentTimeMillis();
+        this.time = MonotonicClock.coarseTimeMillis();
         this.sequenceNumber = sequenceGenerator.incrementAndGet();
         this.gtrid = gtrid;
         this.uniqueNames = new TreeSet<String>(uniqueNames);
@@ -64,6 +64,8 @@ public class IncrementalRecoverer {
             if (log.isDebugEnabled()) log.debug(xids.size() + " dangling transaction(s) found on resource");
             Map<?, ?> danglingRecords = TransactionManagerServices.getJournal().collectDanglingRecords();
             if (log.isDebugEnabled()) log.debug(danglingRecords.size() + " dangling transaction(s) found in journal");
+            RecoveryMetrics.danglingRecordsCollected(danglingRecords.size());
+            ResourceRecoveryMetrics metrics = RecoveryMetrics.getResourceMetrics(uniqueName);
 
             int commitCount = 0;
             int rollbackCount = 0;
@@ -73,11 +75,13 @@ public class IncrementalRecoverer {
                 JournalRecord tlog = (JournalRecord) danglingRecords.get(gtrid);
                 if (tlog != null) {
                     if (log.isDebugEnabled()) log.debug("committing " + xid);
+                    metrics.matched(1);
                     success &= RecoveryHelper.commit(xaResourceHolderState, xid);
                     updateJournal(xid.getGlobalTransactionIdUid(), uniqueName, Status.STATUS_COMMITTED);
                     commitCount++;
                 } else {
                     if (log.isDebugEnabled()) log.debug("rolling back " + xid);
+                    metrics.unmatched(1);
                     success &= RecoveryHelper.rollback(xaResourceHolderState, xid);
                     updateJournal(xid.getGlobalTransactionIdUid(), uniqueName, Status.STATUS_ROLLEDBACK);
                     rollbackCount++;
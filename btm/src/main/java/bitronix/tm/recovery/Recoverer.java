@@ -25,6 +25,7 @@ import bitronix.tm.TransactionManagerServices;
 import bitronix.tm.journal.JournalRecord;
 import bitronix.tm.utils.Decoder;
 import bitronix.tm.utils.ManagementRegistrar;
+import bitronix.tm.utils.MonotonicClock;
 import bitronix.tm.utils.Uid;
 import bitronix.tm.utils.Service;
 import bitronix.tm.internal.*;
@@ -42,7 +43,16 @@ import javax.transaction.xa.Xid;
 import java.io.IOException;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Recovery process implementation. Here is Mike Spille's description of XA recovery:
@@ -82,6 +92,13 @@ import java.util.concurrent.atomic.AtomicBoolean;
  *   <li>commit dangling COMMITTING transactions (Mike's step 6)</li>
  *   <li>rollback any remaining recovered transaction (Mike's step 7)</li>
  * </ul></p>
+ * <p>Up to {@link bitronix.tm.Configuration#getRecoveryConcurrency()} resources are worked on concurrently during each
+ * step, each of them being given at most {@link bitronix.tm.Configuration#getRecoveryResourceTimeout()} seconds so
+ * that a slow resource does not hold back the recovery of the others. The oldest in-flight transaction timestamp is
+ * still taken before any resource is scanned.</p>
+ * <p>When {@link bitronix.tm.Configuration#isRecoveryStreaming()} is enabled, the three steps are merged: the XIDs
+ * returned by each <code>recover()</code> call are committed or rolled back as soon as they are received and only the
+ * ones left on the resources are kept in memory.</p>
  *
  * @author lorban
  */
@@ -90,7 +107,16 @@ public class Recoverer implements Runnable, Service, RecovererMBean {
     private final static Logger log = LoggerFactory.getLogger(Recoverer.class);
 
     private final Map<String, XAResourceProducer> registeredResources = new HashMap<String, XAResourceProducer>();
-    private final Map<String, Set<BitronixXid>> recoveredXidSets = new HashMap<String, Set<BitronixXid>>();
+    private final Map<String, Map<Uid, List<BitronixXid>>> recoveredXidsByGtrid = new HashMap<String, Map<Uid, List<BitronixXid>>>();
+    /**
+     * Tasks which timed out but may still be running, by resource. A driver blocked in I/O may ignore the interrupt,
+     * the resource is left out of recovery until its task completes so that they do not both use its recovery state.
+     */
+    private final Map<XAResourceProducer, TimedTask<?>> abandonedTasks = new HashMap<XAResourceProducer, TimedTask<?>>();
+    /**
+     * Runs the resource tasks of the current recovery, created when first needed and shut down at the end of the run.
+     */
+    private ThreadPoolExecutor executor;
 
     private volatile Exception completionException;
     private volatile int committedCount;
@@ -109,6 +135,7 @@ public class Recoverer implements Runnable, Service, RecovererMBean {
 
     public void shutdown() {
         ManagementRegistrar.unregister(jmxName);
+        RecoveryMetrics.clear();
     }
 
     /**
@@ -128,11 +155,18 @@ public class Recoverer implements Runnable, Service, RecovererMBean {
 
             // Collect dangling records from journal, must run before oldestTransactionTimestamp is calculated
             Map<Uid, JournalRecord> danglingRecords = TransactionManagerServices.getJournal().collectDanglingRecords();
+            RecoveryMetrics.danglingRecordsCollected(danglingRecords.size());
 
             // Query resources from ResourceRegistrar
+            forgetCompletedAbandonedTasks();
             synchronized (ResourceRegistrar.class) {
                 for (String name : ResourceRegistrar.getResourcesUniqueNames()) {
-                    registeredResources.put(name, ResourceRegistrar.get(name));
+                    XAResourceProducer producer = ResourceRegistrar.get(name);
+                    if (abandonedTasks.containsKey(producer)) {
+                        log.warn("skipping recovery of resource '" + name + "' as a previous recovery task which timed out still is running on it");
+                        continue;
+                    }
+                    registeredResources.put(name, producer);
                 }
 
                 if (TransactionManagerServices.isTransactionManagerRunning()) {
@@ -140,15 +174,23 @@ public class Recoverer implements Runnable, Service, RecovererMBean {
                 }
             }
 
-            // 1. call recover on all known resources
-            recoverAllResources();
+            if (TransactionManagerServices.getConfiguration().isRecoveryStreaming()) {
+                // 1 to 3. call recover on all known resources, committing and rolling back XIDs as they are received
+                Set<Uid> committedGtrids = new HashSet<Uid>();
+                rolledbackCount = recoverAndResolveAllResources(oldestTransactionTimestamp, danglingRecords, committedGtrids);
+                logCommittedTransactions(oldestTransactionTimestamp, danglingRecords);
+                committedCount = committedGtrids.size();
+            } else {
+                // 1. call recover on all known resources
+                recoverAllResources();
 
-            // 2. commit dangling COMMITTING transactions
-            Set<Uid> committedGtrids = commitDanglingTransactions(oldestTransactionTimestamp, danglingRecords);
-            committedCount = committedGtrids.size();
+                // 2. commit dangling COMMITTING transactions
+                Set<Uid> committedGtrids = commitDanglingTransactions(oldestTransactionTimestamp, danglingRecords);
+                committedCount = committedGtrids.size();
 
-            // 3. rollback any remaining recovered transaction
-            rolledbackCount = rollbackAbortedTransactions(oldestTransactionTimestamp, committedGtrids);
+                // 3. rollback any remaining recovered transaction
+                rolledbackCount = rollbackAbortedTransactions(oldestTransactionTimestamp, committedGtrids);
+            }
 
             if (executionsCount == 0 || committedCount > 0 || rolledbackCount > 0) {
                 log.info("recovery committed " + committedCount + " dangling transaction(s) and rolled back " + rolledbackCount +
@@ -166,7 +208,12 @@ public class Recoverer implements Runnable, Service, RecovererMBean {
             log.warn("recovery failed, registered resource(s): " + getRegisteredResourcesUniqueNames(), ex);
         }
         finally {
-            recoveredXidSets.clear();
+            if (executor != null) {
+                // only abandoned tasks can still be running, their thread terminates once they complete
+                executor.shutdown();
+                executor = null;
+            }
+            recoveredXidsByGtrid.clear();
             registeredResources.clear();
             executionsCount++;
             isRunning.set(false);
@@ -214,33 +261,184 @@ public class Recoverer implements Runnable, Service, RecovererMBean {
     }
 
     /**
-     * Recover all configured resources and fill the <code>recoveredXidSets</code> with all recovered XIDs.
+     * Get the size of the dangling records set collected from the journal by the last recovery.
+     * @return the amount of dangling records.
+     * @see RecoveryMetrics#getLastDanglingRecordsCount()
+     */
+    public int getDanglingRecordsCount() {
+        return RecoveryMetrics.getLastDanglingRecordsCount();
+    }
+
+    /**
+     * Get the largest size of the dangling records set collected from the journal by a recovery.
+     * @return the largest amount of dangling records.
+     * @see RecoveryMetrics#getMaxDanglingRecordsCount()
+     */
+    public int getMaxDanglingRecordsCount() {
+        return RecoveryMetrics.getMaxDanglingRecordsCount();
+    }
+
+    /**
+     * Recover all configured resources and fill the <code>recoveredXidsByGtrid</code> index with all recovered XIDs.
      * Step 1.
      */
     private void recoverAllResources() {
-        // a cloned registeredResources Map must be iterated as the original one can be modified in the loop
-        for (Map.Entry<String, XAResourceProducer> entry : new HashMap<String, XAResourceProducer>(registeredResources).entrySet()) {
+        Map<String, Callable<Set<BitronixXid>>> tasks = new LinkedHashMap<String, Callable<Set<BitronixXid>>>();
+        for (Map.Entry<String, XAResourceProducer> entry : registeredResources.entrySet()) {
+            final String uniqueName = entry.getKey();
+            final XAResourceProducer producer = entry.getValue();
+
+            tasks.put(uniqueName, new Callable<Set<BitronixXid>>() {
+                public Set<BitronixXid> call() throws Exception {
+                    if (log.isDebugEnabled()) log.debug("performing recovery on " + uniqueName);
+                    return recover(producer);
+                }
+            });
+        }
+
+        for (Map.Entry<String, Set<BitronixXid>> entry : runRecoveryTasks(tasks).entrySet()) {
             String uniqueName = entry.getKey();
-            XAResourceProducer producer = entry.getValue();
+            Set<BitronixXid> xids = entry.getValue();
+            if (log.isDebugEnabled()) log.debug("recovered " + xids.size() + " XID(s) from resource " + uniqueName);
+            recoveredXidsByGtrid.put(uniqueName, indexByGtrid(xids));
+        }
+    }
 
-            try {
-                if (log.isDebugEnabled()) log.debug("performing recovery on " + uniqueName);
-                Set<BitronixXid> xids = recover(producer);
-                if (log.isDebugEnabled()) log.debug("recovered " + xids.size() + " XID(s) from resource " + uniqueName);
-                recoveredXidSets.put(uniqueName, xids);
+    /**
+     * Recover all configured resources, committing or rolling back the XIDs returned by each
+     * {@link XAResource#recover(int)} call as soon as they are received.
+     * Steps 1 to 3.
+     * @param oldestTransactionTimestamp the timestamp of the oldest transaction still in-flight.
+     * @param danglingRecords a Map using Uid objects GTRID as key and {@link TransactionLogRecord} as value.
+     * @param committedGtrids a Set filled with the GTRIDs of the transactions having had branches committed.
+     * @return the rolled back branches count.
+     */
+    private int recoverAndResolveAllResources(final long oldestTransactionTimestamp, final Map<Uid, JournalRecord> danglingRecords, Set<Uid> committedGtrids) {
+        Map<String, Callable<StreamingResolver>> tasks = new LinkedHashMap<String, Callable<StreamingResolver>>();
+        for (Map.Entry<String, XAResourceProducer> entry : registeredResources.entrySet()) {
+            final String uniqueName = entry.getKey();
+            final XAResourceProducer producer = entry.getValue();
+
+            tasks.put(uniqueName, new Callable<StreamingResolver>() {
+                public StreamingResolver call() throws Exception {
+                    if (log.isDebugEnabled()) log.debug("performing streaming recovery on " + uniqueName);
+                    return recoverAndResolve(producer, oldestTransactionTimestamp, danglingRecords);
+                }
+            });
+        }
+
+        int rollbackCount = 0;
+        for (StreamingResolver resolver : runRecoveryTasks(tasks).values()) {
+            rollbackCount += resolver.rolledbackCount;
+            committedGtrids.addAll(resolver.committedGtrids);
+        }
+        if (log.isDebugEnabled()) log.debug("committed " + committedGtrids.size() + " dangling transaction(s) and rolled back " + rollbackCount + " aborted branch(es)");
+        return rollbackCount;
+    }
+
+    /**
+     * Run the streaming recovery process on the target resource.
+     * Steps 1 to 3.
+     * @param producer the {@link XAResourceProducer} to recover.
+     * @param oldestTransactionTimestamp the timestamp of the oldest transaction still in-flight.
+     * @param danglingRecords a Map using Uid objects GTRID as key and {@link TransactionLogRecord} as value.
+     * @return the {@link StreamingResolver} holding what has been committed and rolled back.
+     * @throws javax.transaction.xa.XAException if {@link XAResource#recover(int)} call fails.
+     * @throws RecoveryException if an error preventing recovery happened.
+     */
+    private StreamingResolver recoverAndResolve(XAResourceProducer producer, long oldestTransactionTimestamp, Map<Uid, JournalRecord> danglingRecords) throws XAException, RecoveryException {
+        try {
+            if (log.isDebugEnabled()) log.debug("running streaming recovery on " + producer);
+            XAResourceHolderState xaResourceHolderState = producer.startRecovery();
+            StreamingResolver resolver = new StreamingResolver(xaResourceHolderState, oldestTransactionTimestamp, danglingRecords);
+            int xidCount = RecoveryHelper.recover(xaResourceHolderState, resolver);
+            if (log.isDebugEnabled()) log.debug("recovered " + xidCount + " XID(s) from resource " + producer.getUniqueName() + ", committed " +
+                    resolver.committedCount + " and rolled back " + resolver.rolledbackCount + " of them");
+            return resolver;
+        } finally {
+            producer.endRecovery();
+        }
+    }
+
+    /**
+     * Run one recovery task per resource and mark the resources as failed or not depending on the outcome of their
+     * task. Failed resources are left out of the rest of the recovery.
+     * @param tasks the tasks by resource unique name.
+     * @return the result of the successful tasks by resource unique name.
+     */
+    private <T> Map<String, T> runRecoveryTasks(Map<String, Callable<T>> tasks) {
+        Map<String, T> results = new LinkedHashMap<String, T>();
+        for (Map.Entry<String, ResourceTaskOutcome<T>> entry : runResourceTasks(tasks).entrySet()) {
+            String uniqueName = entry.getKey();
+            XAResourceProducer producer = registeredResources.get(uniqueName);
+            ResourceTaskOutcome<T> outcome = entry.getValue();
+            Exception ex = outcome.failure;
+
+            if (ex == null) {
+                results.put(uniqueName, outcome.result);
                 producer.setFailed(false);
-            } catch (XAException ex) {
-                producer.setFailed(true);
-                registeredResources.remove(uniqueName);
-                String extraErrorDetails = TransactionManagerServices.getExceptionAnalyzer().extractExtraXAExceptionDetails(ex);
+                continue;
+            }
+
+            if (ex instanceof TimeoutException) {
+                markTimedOut(uniqueName, "its recovery");
+                continue;
+            }
+
+            producer.setFailed(true);
+            registeredResources.remove(uniqueName);
+            if (ex instanceof XAException) {
+                String extraErrorDetails = TransactionManagerServices.getExceptionAnalyzer().extractExtraXAExceptionDetails((XAException) ex);
                 log.warn("error running recovery on resource '" + uniqueName + "', resource marked as failed (background recoverer will retry recovery)" +
-                        " (error=" + Decoder.decodeXAExceptionErrorCode(ex) + ")" + (extraErrorDetails == null ? "" : ", extra error=" + extraErrorDetails), ex);
-            } catch (Exception ex) {
-                producer.setFailed(true);
-                registeredResources.remove(uniqueName);
+                        " (error=" + Decoder.decodeXAExceptionErrorCode((XAException) ex) + ")" + (extraErrorDetails == null ? "" : ", extra error=" + extraErrorDetails), ex);
+            } else {
                 log.warn("error running recovery on resource '" + uniqueName + "', resource marked as failed (background recoverer will retry recovery)", ex);
             }
         }
+        return results;
+    }
+
+    /**
+     * Mark a resource whose task timed out as failed and leave it out of the rest of the recovery.
+     * @param uniqueName the unique name of the resource.
+     * @param step the description of the recovery step which timed out.
+     */
+    private void markTimedOut(String uniqueName, String step) {
+        XAResourceProducer producer = registeredResources.remove(uniqueName);
+        producer.setFailed(true);
+        log.warn("resource '" + uniqueName + "' did not complete " + step + " within " + TransactionManagerServices.getConfiguration().getRecoveryResourceTimeout() +
+                "s, resource marked as failed (background recoverer will retry recovery)");
+    }
+
+    /**
+     * Forget the abandoned tasks which completed since the last recovery, their resource can be recovered again.
+     */
+    private void forgetCompletedAbandonedTasks() {
+        Iterator<TimedTask<?>> it = abandonedTasks.values().iterator();
+        while (it.hasNext()) {
+            if (!it.next().isRunning())
+                it.remove();
+        }
+    }
+
+    /**
+     * Group recovered XIDs by GTRID so that journal records can be matched against them in constant time.
+     * Step 1.
+     * @param xids the XIDs recovered on a resource.
+     * @return a Map using GTRIDs as key and the XIDs of their branches as value.
+     */
+    private static Map<Uid, List<BitronixXid>> indexByGtrid(Set<BitronixXid> xids) {
+        Map<Uid, List<BitronixXid>> xidsByGtrid = new HashMap<Uid, List<BitronixXid>>(xids.size() * 4 / 3 + 1);
+        for (BitronixXid xid : xids) {
+            Uid gtrid = xid.getGlobalTransactionIdUid();
+            List<BitronixXid> branches = xidsByGtrid.get(gtrid);
+            if (branches == null) {
+                branches = new ArrayList<BitronixXid>(1);
+                xidsByGtrid.put(gtrid, branches);
+            }
+            branches.add(xid);
+        }
+        return xidsByGtrid;
     }
 
     /**
@@ -275,7 +473,7 @@ public class Recoverer implements Runnable, Service, RecovererMBean {
      * @throws RecoveryException if an error preventing recovery happened.
      */
     private Set<Uid> commitDanglingTransactions(long oldestTransactionTimestamp, Map<Uid, JournalRecord> danglingRecords) throws IOException, RecoveryException {
-        Set<Uid> committedGtrids = new HashSet<Uid>();
+        Map<String, List<Xid>> xidsToCommit = new LinkedHashMap<String, List<Xid>>();
 
         if (log.isDebugEnabled()) { log.debug("found " + danglingRecords.size() + " dangling record(s) in journal"); }
         Iterator<Map.Entry<Uid, JournalRecord>> it = danglingRecords.entrySet().iterator();
@@ -292,27 +490,56 @@ public class Recoverer implements Runnable, Service, RecovererMBean {
 
             if (txTimestamp < oldestTransactionTimestamp) {
                 if (log.isDebugEnabled()) log.debug("committing dangling transaction with GTRID " + gtrid);
-                commit(danglingTransactions);
-                if (log.isDebugEnabled()) log.debug("committed dangling transaction with GTRID " + gtrid);
-                committedGtrids.add(gtrid);
-
-                Set<String> participatingUniqueNames = filterParticipatingUniqueNamesInRecoveredXids(uniqueNames);
-
-                if (participatingUniqueNames.size() > 0) {
-                    if (log.isDebugEnabled()) log.debug("updating journal's transaction with GTRID " + gtrid + " status to COMMITTED for names [" + buildUniqueNamesString(participatingUniqueNames) + "]");
-                    TransactionManagerServices.getJournal().log(Status.STATUS_COMMITTED, tlog.getGtrid(), participatingUniqueNames);
-                } else {
-                    if (log.isDebugEnabled()) log.debug("not updating journal's transaction with GTRID " + gtrid + " status to COMMITTED as no resource could be found (incremental recovery will need to clean this)");
-                    committedGtrids.remove(gtrid);
+                for (DanglingTransaction danglingTransaction : danglingTransactions) {
+                    List<Xid> xids = xidsToCommit.get(danglingTransaction.getUniqueName());
+                    if (xids == null) {
+                        xids = new ArrayList<Xid>();
+                        xidsToCommit.put(danglingTransaction.getUniqueName(), xids);
+                    }
+                    xids.add(danglingTransaction.getXid());
                 }
             } else {
                 if (log.isDebugEnabled()) log.debug("skipping in-flight transaction with GTRID " + gtrid);
             }
         }
+
+        // the journal must only be updated once all branches have been committed
+        commit(xidsToCommit);
+
+        Set<Uid> committedGtrids = logCommittedTransactions(oldestTransactionTimestamp, danglingRecords);
         if (log.isDebugEnabled()) log.debug("committed " + committedGtrids.size() + " dangling transaction(s)");
         return committedGtrids;
     }
 
+    /**
+     * Log a COMMITTED record in the journal for the dangling transactions whose branches have been committed on all
+     * the recovered resources.
+     * Step 2.
+     * @param oldestTransactionTimestamp the timestamp of the oldest transaction still in-flight.
+     * @param danglingRecords a Map using Uid objects GTRID as key and {@link TransactionLogRecord} as value.
+     * @return a Set of all committed GTRIDs.
+     * @throws java.io.IOException if there is an I/O error writing the journal.
+     */
+    private Set<Uid> logCommittedTransactions(long oldestTransactionTimestamp, Map<Uid, JournalRecord> danglingRecords) throws IOException {
+        Set<Uid> committedGtrids = new HashSet<Uid>();
+
+        for (JournalRecord tlog : danglingRecords.values()) {
+            Uid gtrid = tlog.getGtrid();
+            if (gtrid.extractTimestamp() >= oldestTransactionTimestamp)
+                continue;
+
+            Set<String> participatingUniqueNames = filterParticipatingUniqueNamesInRecoveredXids(tlog.getUniqueNames());
+            if (participatingUniqueNames.size() > 0) {
+                committedGtrids.add(gtrid);
+                if (log.isDebugEnabled()) log.debug("updating journal's transaction with GTRID " + gtrid + " status to COMMITTED for names [" + buildUniqueNamesString(participatingUniqueNames) + "]");
+                TransactionManagerServices.getJournal().log(Status.STATUS_COMMITTED, gtrid, participatingUniqueNames);
+            } else {
+                if (log.isDebugEnabled()) log.debug("not updating journal's transaction with GTRID " + gtrid + " status to COMMITTED as no resource could be found (incremental recovery will need to clean this)");
+            }
+        }
+        return committedGtrids;
+    }
+
     /**
      * Return {@link DanglingTransaction}s with {@link Xid}s corresponding to the GTRID parameter found in resources
      * specified by their <code>uniqueName</code>s.
@@ -327,17 +554,18 @@ public class Recoverer implements Runnable, Service, RecovererMBean {
 
         for (String uniqueName : uniqueNames) {
             if (log.isDebugEnabled()) log.debug("finding dangling transaction(s) in recovered XID(s) of resource " + uniqueName);
-            Set<BitronixXid> recoveredXids = recoveredXidSets.get(uniqueName);
+            Map<Uid, List<BitronixXid>> recoveredXids = recoveredXidsByGtrid.get(uniqueName);
             if (recoveredXids == null) {
                 if (log.isDebugEnabled()) log.debug("resource " + uniqueName + " did not recover, skipping commit");
                 continue;
             }
 
-            for (BitronixXid recoveredXid : recoveredXids) {
-                if (gtrid.equals(recoveredXid.getGlobalTransactionIdUid())) {
-                    if (log.isDebugEnabled()) log.debug("found a recovered XID matching dangling log's GTRID " + gtrid + " in resource " + uniqueName);
-                    danglingTransactions.add(new DanglingTransaction(uniqueName, recoveredXid));
-                }
+            List<BitronixXid> branches = recoveredXids.get(gtrid);
+            if (branches == null)
+                continue;
+            for (BitronixXid recoveredXid : branches) {
+                if (log.isDebugEnabled()) log.debug("found a recovered XID matching dangling log's GTRID " + gtrid + " in resource " + uniqueName);
+                danglingTransactions.add(new DanglingTransaction(uniqueName, recoveredXid));
             }
         }
 
@@ -349,8 +577,7 @@ public class Recoverer implements Runnable, Service, RecovererMBean {
 
         for (String uniqueName : uniqueNames) {
             if (log.isDebugEnabled()) log.debug("finding dangling transaction(s) in recovered XID(s) of resource " + uniqueName);
-            Set<BitronixXid> recoveredXids = recoveredXidSets.get(uniqueName);
-            if (recoveredXids == null) {
+            if (!registeredResources.containsKey(uniqueName)) {
                 if (log.isDebugEnabled()) log.debug("cannot find resource '" + uniqueName + "' present in the journal, leaving it for incremental recovery");
             } else {
                 recoveredUniqueNames.add(uniqueName);
@@ -361,36 +588,48 @@ public class Recoverer implements Runnable, Service, RecovererMBean {
     }
 
     /**
-     * Commit all branches of a dangling transaction.
+     * Commit the branches of dangling transactions, resources being worked on concurrently.
      * Step 2.
-     * @param danglingTransactions a set of {@link DanglingTransaction}s to commit.
+     * @param xidsToCommit the {@link Xid}s to commit by resource unique name.
      * @throws RecoveryException if an error preventing recovery happened.
      */
-    private void commit(Set<DanglingTransaction> danglingTransactions) throws RecoveryException {
-        if (log.isDebugEnabled()) log.debug(danglingTransactions.size() + " branch(es) to commit");
-
-        for (DanglingTransaction danglingTransaction : danglingTransactions) {
-            Xid xid = danglingTransaction.getXid();
-            String uniqueName = danglingTransaction.getUniqueName();
-
-            if (log.isDebugEnabled()) log.debug("committing branch with XID " + xid + " on " + uniqueName);
-            commit(uniqueName, xid);
+    private void commit(Map<String, List<Xid>> xidsToCommit) throws RecoveryException {
+        Map<String, Callable<Integer>> tasks = new LinkedHashMap<String, Callable<Integer>>();
+        for (Map.Entry<String, List<Xid>> entry : xidsToCommit.entrySet()) {
+            final String uniqueName = entry.getKey();
+            final List<Xid> xids = entry.getValue();
+            if (log.isDebugEnabled()) log.debug(xids.size() + " branch(es) to commit on " + uniqueName);
+
+            tasks.put(uniqueName, new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    return commit(uniqueName, xids);
+                }
+            });
         }
+
+        checkResourceTasks(runResourceTasks(tasks), "committing dangling branches");
     }
 
     /**
-     * Commit the specified branch of a dangling transaction.
+     * Commit the specified branches of dangling transactions.
      * Step 2.
-     * @param uniqueName the unique name of the resource on which the commit should be done.
-     * @param xid the {@link Xid} to commit.
-     * @return true when commit was successful.
+     * @param uniqueName the unique name of the resource on which the commits should be done.
+     * @param xids the {@link Xid}s to commit.
+     * @return the amount of successfully committed branches.
      * @throws RecoveryException if an error preventing recovery happened.
      */
-    private boolean commit(String uniqueName, Xid xid) throws RecoveryException {
+    private int commit(String uniqueName, List<Xid> xids) throws RecoveryException {
         XAResourceProducer producer = registeredResources.get(uniqueName);
+        RecoveryMetrics.getResourceMetrics(uniqueName).matched(xids.size());
+        int committed = 0;
         try {
             XAResourceHolderState xaResourceHolderState = producer.startRecovery();
-            return RecoveryHelper.commit(xaResourceHolderState, xid);
+            for (Xid xid : xids) {
+                if (log.isDebugEnabled()) log.debug("committing branch with XID " + xid + " on " + uniqueName);
+                if (RecoveryHelper.commit(xaResourceHolderState, xid))
+                    committed++;
+            }
+            return committed;
         } finally {
             producer.endRecovery();
         }
@@ -407,14 +646,30 @@ public class Recoverer implements Runnable, Service, RecovererMBean {
      */
     private int rollbackAbortedTransactions(long oldestTransactionTimestamp, Set<Uid> committedGtrids) throws RecoveryException {
         if (log.isDebugEnabled()) log.debug("rolling back aborted branch(es)");
-        int rollbackCount = 0;
-        for (Map.Entry<String, Set<BitronixXid>> entry : recoveredXidSets.entrySet()) {
-            String uniqueName = entry.getKey();
-            Set<BitronixXid> recoveredXids = entry.getValue();
+        Map<String, Callable<Integer>> tasks = new LinkedHashMap<String, Callable<Integer>>();
+        for (Map.Entry<String, Map<Uid, List<BitronixXid>>> entry : recoveredXidsByGtrid.entrySet()) {
+            final String uniqueName = entry.getKey();
+            Map<Uid, List<BitronixXid>> recoveredXids = entry.getValue();
+            if (!registeredResources.containsKey(uniqueName)) {
+                if (log.isDebugEnabled()) log.debug("resource " + uniqueName + " failed during recovery, skipping rollback");
+                continue;
+            }
+
+            if (log.isDebugEnabled()) log.debug("checking " + recoveredXids.size() + " transaction(s) on " + uniqueName + " for rollback");
+            final List<BitronixXid> abortedXids = getAbortedBranchesOfResource(oldestTransactionTimestamp, uniqueName, recoveredXids, committedGtrids);
+            if (log.isDebugEnabled()) log.debug("found " + abortedXids.size() + " branch(es) to roll back on " + uniqueName);
+            if (abortedXids.isEmpty())
+                continue;
 
-            if (log.isDebugEnabled()) log.debug("checking " + recoveredXids.size() + " branch(es) on " + uniqueName + " for rollback");
-            int count = rollbackAbortedBranchesOfResource(oldestTransactionTimestamp, uniqueName, recoveredXids, committedGtrids);
-            if (log.isDebugEnabled()) log.debug("checked " + recoveredXids.size() + " branch(es) on " + uniqueName + " for rollback");
+            tasks.put(uniqueName, new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    return rollback(uniqueName, abortedXids);
+                }
+            });
+        }
+
+        int rollbackCount = 0;
+        for (Integer count : checkResourceTasks(runResourceTasks(tasks), "rolling back aborted branches")) {
             rollbackCount += count;
         }
 
@@ -423,61 +678,144 @@ public class Recoverer implements Runnable, Service, RecovererMBean {
     }
 
     /**
-     * Rollback aborted branches of the resource specified by uniqueName.
+     * Select the aborted branches of the resource specified by uniqueName.
      * Step 3.
      * @param oldestTransactionTimestamp the timestamp of the oldest transaction still in-flight.
      * @param uniqueName the unique name of the resource on which to rollback branches.
-     * @param recoveredXids a set of {@link BitronixXid} recovered on the reource.
+     * @param recoveredXids the {@link BitronixXid}s recovered on the resource, grouped by GTRID.
      * @param committedGtrids a set of {@link Uid}s already committed on the resource.
-     * @return the rolled back branches count.
-     * @throws RecoveryException if an error preventing recovery happened.
+     * @return the branches to roll back.
      */
-    private int rollbackAbortedBranchesOfResource(long oldestTransactionTimestamp, String uniqueName, Set<BitronixXid> recoveredXids, Set<Uid> committedGtrids) throws RecoveryException {
-        int abortedCount = 0;
-        for (BitronixXid recoveredXid : recoveredXids) {
-            if (committedGtrids.contains(recoveredXid.getGlobalTransactionIdUid())) {
-                if (log.isDebugEnabled()) log.debug("XID has been committed, skipping rollback: " + recoveredXid + " on " + uniqueName);
+    private List<BitronixXid> getAbortedBranchesOfResource(long oldestTransactionTimestamp, String uniqueName, Map<Uid, List<BitronixXid>> recoveredXids, Set<Uid> committedGtrids) {
+        List<BitronixXid> abortedXids = new ArrayList<BitronixXid>();
+        for (Map.Entry<Uid, List<BitronixXid>> entry : recoveredXids.entrySet()) {
+            Uid gtrid = entry.getKey();
+            List<BitronixXid> branches = entry.getValue();
+
+            if (committedGtrids.contains(gtrid)) {
+                if (log.isDebugEnabled()) log.debug("XID(s) have been committed, skipping rollback: " + branches + " on " + uniqueName);
                 continue;
             }
 
-            long txTimestamp = recoveredXid.getGlobalTransactionIdUid().extractTimestamp();
+            long txTimestamp = gtrid.extractTimestamp();
             if (log.isDebugEnabled()) log.debug("recovered XID timestamp: " + txTimestamp + " - oldest in-flight TX timestamp: " + oldestTransactionTimestamp);
             if (txTimestamp >= oldestTransactionTimestamp) {
-                if (log.isDebugEnabled()) log.debug("skipping XID of in-flight transaction: " + recoveredXid);
+                if (log.isDebugEnabled()) log.debug("skipping XID(s) of in-flight transaction: " + branches);
                 continue;
             }
 
-            if (log.isDebugEnabled()) log.debug("rolling back in-doubt branch with XID " + recoveredXid + " on " + uniqueName);
-            boolean success = rollback(uniqueName, recoveredXid);
-            if (success)
-                abortedCount++;
+            abortedXids.addAll(branches);
         }
-        return abortedCount;
+        return abortedXids;
     }
 
     /**
-     * Rollback the specified branch of a dangling transaction.
+     * Rollback the specified branches of dangling transactions.
      * Step 3.
      * @param uniqueName the unique name of the resource on which to rollback branches.
-     * @param xid the {@link Xid} to rollback.
-     * @return true when rollback was successful.
+     * @param xids the {@link Xid}s to rollback.
+     * @return the amount of successfully rolled back branches.
      * @throws RecoveryException if an error preventing recovery happened.
      */
-    private boolean rollback(String uniqueName, Xid xid) throws RecoveryException {
+    private int rollback(String uniqueName, List<? extends Xid> xids) throws RecoveryException {
         XAResourceProducer producer = registeredResources.get(uniqueName);
         if (producer == null) {
             if (log.isDebugEnabled()) log.debug("resource " + uniqueName + " has not recovered, skipping rollback");
-            return false;
+            return 0;
         }
 
+        RecoveryMetrics.getResourceMetrics(uniqueName).unmatched(xids.size());
+        int rolledBack = 0;
         try {
             XAResourceHolderState xaResourceHolderState = producer.startRecovery();
-            return RecoveryHelper.rollback(xaResourceHolderState, xid);
+            for (Xid xid : xids) {
+                if (log.isDebugEnabled()) log.debug("rolling back in-doubt branch with XID " + xid + " on " + uniqueName);
+                if (RecoveryHelper.rollback(xaResourceHolderState, xid))
+                    rolledBack++;
+            }
+            return rolledBack;
         } finally {
             producer.endRecovery();
         }
     }
 
+    /**
+     * Run one task per resource, up to {@link bitronix.tm.Configuration#getRecoveryConcurrency()} of them
+     * concurrently, and wait for each of them to complete or to time out. Tasks are run by the calling thread when
+     * neither concurrency nor a timeout is configured. Tasks which timed out are remembered as abandoned.
+     * @param tasks the tasks by resource unique name.
+     * @return the outcome of each task by resource unique name, in the tasks order.
+     */
+    private <T> Map<String, ResourceTaskOutcome<T>> runResourceTasks(Map<String, Callable<T>> tasks) {
+        Map<String, ResourceTaskOutcome<T>> outcomes = new LinkedHashMap<String, ResourceTaskOutcome<T>>();
+        int concurrency = Math.min(tasks.size(), TransactionManagerServices.getConfiguration().getRecoveryConcurrency());
+        long timeoutMs = TransactionManagerServices.getConfiguration().getRecoveryResourceTimeout() * 1000L;
+
+        if (tasks.isEmpty() || (concurrency <= 1 && timeoutMs <= 0)) {
+            for (Map.Entry<String, Callable<T>> entry : tasks.entrySet()) {
+                try {
+                    outcomes.put(entry.getKey(), new ResourceTaskOutcome<T>(entry.getValue().call(), null));
+                } catch (Exception ex) {
+                    outcomes.put(entry.getKey(), new ResourceTaskOutcome<T>(null, ex));
+                }
+            }
+            return outcomes;
+        }
+
+        if (executor == null) {
+            int threads = Math.max(TransactionManagerServices.getConfiguration().getRecoveryConcurrency(), 1);
+            executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new RecoveryThreadFactory());
+        }
+        if (log.isDebugEnabled()) log.debug("running recovery on " + tasks.size() + " resource(s) with " + Math.max(concurrency, 1) + " concurrent recoverer(s)");
+
+        Map<String, TimedTask<T>> timedTasks = new LinkedHashMap<String, TimedTask<T>>();
+        for (Map.Entry<String, Callable<T>> entry : tasks.entrySet()) {
+            TimedTask<T> timedTask = new TimedTask<T>(entry.getValue());
+            timedTask.future = executor.submit(timedTask);
+            timedTasks.put(entry.getKey(), timedTask);
+        }
+
+        for (Map.Entry<String, TimedTask<T>> entry : timedTasks.entrySet()) {
+            TimedTask<T> timedTask = entry.getValue();
+            ResourceTaskOutcome<T> outcome = timedTask.await(timeoutMs);
+            if (outcome.failure != null && timedTask.isRunning()) {
+                abandonedTasks.put(registeredResources.get(entry.getKey()), timedTask);
+                // the abandoned task keeps its thread, add one so that the following tasks keep the same concurrency
+                executor.setMaximumPoolSize(executor.getMaximumPoolSize() + 1);
+                executor.setCorePoolSize(executor.getCorePoolSize() + 1);
+            }
+            outcomes.put(entry.getKey(), outcome);
+        }
+        return outcomes;
+    }
+
+    /**
+     * Throw the first failure of the resource tasks. The resources whose task timed out are marked as failed and left
+     * out of the rest of the recovery instead.
+     * @param outcomes the outcomes of the tasks by resource unique name.
+     * @param step the description of the recovery step.
+     * @return the results of the tasks which completed.
+     * @throws RecoveryException if any of the tasks failed.
+     */
+    private <T> List<T> checkResourceTasks(Map<String, ResourceTaskOutcome<T>> outcomes, String step) throws RecoveryException {
+        List<T> results = new ArrayList<T>(outcomes.size());
+        for (Map.Entry<String, ResourceTaskOutcome<T>> entry : outcomes.entrySet()) {
+            Exception ex = entry.getValue().failure;
+            if (ex instanceof TimeoutException) {
+                markTimedOut(entry.getKey(), step);
+                continue;
+            }
+            if (ex instanceof RecoveryException)
+                throw (RecoveryException) ex;
+            if (ex instanceof RuntimeException)
+                throw (RuntimeException) ex;
+            if (ex != null)
+                throw new RecoveryException("error " + step + " on resource '" + entry.getKey() + "'", ex);
+            results.add(entry.getValue().result);
+        }
+        return results;
+    }
+
     /**
      * Build a string with comma-separated resources unique names.
      * @return the string.
@@ -498,4 +836,147 @@ public class Recoverer implements Runnable, Service, RecovererMBean {
         return resourcesUniqueNames.toString();
     }
 
+    /**
+     * {@link RecoveryHelper.RecoveredXidsHandler} of the streaming recovery: commits the branches of dangling
+     * transactions and rolls back the aborted ones of a resource as they are recovered. It counts what it did so that
+     * the recoverer can report it once all resources have been processed.
+     */
+    private static final class StreamingResolver implements RecoveryHelper.RecoveredXidsHandler {
+        private final XAResourceHolderState xaResourceHolderState;
+        private final long oldestTransactionTimestamp;
+        private final Map<Uid, JournalRecord> danglingRecords;
+        private final Set<Uid> committedGtrids = new HashSet<Uid>();
+        private int committedCount;
+        private int rolledbackCount;
+
+        private StreamingResolver(XAResourceHolderState xaResourceHolderState, long oldestTransactionTimestamp, Map<Uid, JournalRecord> danglingRecords) {
+            this.xaResourceHolderState = xaResourceHolderState;
+            this.oldestTransactionTimestamp = oldestTransactionTimestamp;
+            this.danglingRecords = danglingRecords;
+        }
+
+        public Collection<BitronixXid> handle(Set<BitronixXid> xids) {
+            String uniqueName = xaResourceHolderState.getUniqueName();
+            ResourceRecoveryMetrics metrics = RecoveryMetrics.getResourceMetrics(uniqueName);
+            List<BitronixXid> leftXids = new ArrayList<BitronixXid>();
+
+            for (BitronixXid xid : xids) {
+                Uid gtrid = xid.getGlobalTransactionIdUid();
+                long txTimestamp = gtrid.extractTimestamp();
+                if (txTimestamp >= oldestTransactionTimestamp) {
+                    if (log.isDebugEnabled()) log.debug("skipping XID of in-flight transaction: " + xid);
+                    leftXids.add(xid);
+                    continue;
+                }
+
+                JournalRecord tlog = danglingRecords.get(gtrid);
+                if (tlog == null) {
+                    if (log.isDebugEnabled()) log.debug("rolling back in-doubt branch with XID " + xid + " on " + uniqueName);
+                    metrics.unmatched(1);
+                    if (RecoveryHelper.rollback(xaResourceHolderState, xid))
+                        rolledbackCount++;
+                    else
+                        leftXids.add(xid);
+                } else if (tlog.getUniqueNames().contains(uniqueName)) {
+                    if (log.isDebugEnabled()) log.debug("committing branch with XID " + xid + " on " + uniqueName);
+                    metrics.matched(1);
+                    if (RecoveryHelper.commit(xaResourceHolderState, xid)) {
+                        committedGtrids.add(gtrid);
+                        committedCount++;
+                    } else {
+                        leftXids.add(xid);
+                    }
+                } else {
+                    if (log.isDebugEnabled()) log.debug("XID of a committed transaction not logged for resource " + uniqueName + ", leaving it alone: " + xid);
+                    leftXids.add(xid);
+                }
+            }
+            return leftXids;
+        }
+    }
+
+    /**
+     * Result of a task run on a resource: either the value it returned or the exception it threw.
+     */
+    private static final class ResourceTaskOutcome<T> {
+        private final T result;
+        private final Exception failure;
+
+        private ResourceTaskOutcome(T result, Exception failure) {
+            this.result = result;
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * Task remembering when it started so that a resource's timeout does not include the time it spent queued, and
+     * when it completed as a cancelled task is reported done while it may still be running.
+     */
+    private static final class TimedTask<T> implements Callable<T> {
+        private final Callable<T> task;
+        private volatile long startTime;
+        private volatile boolean completed;
+        private Future<T> future;
+
+        private TimedTask(Callable<T> task) {
+            this.task = task;
+        }
+
+        public T call() throws Exception {
+            startTime = MonotonicClock.currentTimeMillis();
+            try {
+                return task.call();
+            } finally {
+                completed = true;
+            }
+        }
+
+        private boolean isRunning() {
+            return startTime != 0L && !completed;
+        }
+
+        private ResourceTaskOutcome<T> await(long timeoutMs) {
+            try {
+                while (true) {
+                    if (timeoutMs <= 0)
+                        return new ResourceTaskOutcome<T>(future.get(), null);
+
+                    if (future.isDone())
+                        return new ResourceTaskOutcome<T>(future.get(), null);
+
+                    long started = startTime;
+                    long waitMs = started == 0L ? timeoutMs : started + timeoutMs - MonotonicClock.currentTimeMillis();
+                    if (waitMs <= 0) {
+                        future.cancel(true);
+                        return new ResourceTaskOutcome<T>(null, new TimeoutException("resource did not complete its recovery task within " + timeoutMs + "ms"));
+                    }
+                    try {
+                        return new ResourceTaskOutcome<T>(future.get(waitMs, TimeUnit.MILLISECONDS), null);
+                    } catch (TimeoutException ex) {
+                        // the task may only have started during the wait, check its own deadline
+                    }
+                }
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                return new ResourceTaskOutcome<T>(null, (Exception) cause);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                future.cancel(true);
+                return new ResourceTaskOutcome<T>(null, ex);
+            }
+        }
+    }
+
+    private static final class RecoveryThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "bitronix-recovery-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
 }
@@ -39,4 +39,8 @@ public interface RecovererMBean {
 
     public boolean isRunning();
 
+    public int getDanglingRecordsCount();
+
+    public int getMaxDanglingRecordsCount();
+
 }
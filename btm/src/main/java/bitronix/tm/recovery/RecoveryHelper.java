@@ -29,10 +29,9 @@ import bitronix.tm.utils.Decoder;
 import javax.transaction.xa.XAException;
 import javax.transaction.xa.XAResource;
 import javax.transaction.xa.Xid;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.Set;
 import java.util.HashSet;
-import java.util.Arrays;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,6 +45,22 @@ public class RecoveryHelper {
 
     private final static Logger log = LoggerFactory.getLogger(RecoveryHelper.class);
 
+    /**
+     * Receives the XIDs returned by each {@link XAResource#recover(int)} call of a streaming recovery.
+     */
+    public interface RecoveredXidsHandler {
+
+        /**
+         * Handle the XIDs freshly returned by a {@link XAResource#recover(int)} call, usually by committing or rolling
+         * them back.
+         * @param xids the recovered {@link BitronixXid}s which have not been handed over before.
+         * @return the XIDs left on the resource, they are remembered so that they won't be handed over again when
+         *         following recover() calls return them.
+         */
+        Collection<BitronixXid> handle(Set<BitronixXid> xids);
+
+    }
+
     /**
      * Run the recovery process on the target resource.
      * @return a Set of BitronixXids.
@@ -53,16 +68,39 @@ public class RecoveryHelper {
      * @throws javax.transaction.xa.XAException if {@link XAResource#recover(int)} calls fail.
      */
     public static Set<BitronixXid> recover(XAResourceHolderState xaResourceHolderState) throws XAException {
+        final Set<BitronixXid> xids = new HashSet<BitronixXid>();
+        recover(xaResourceHolderState, new RecoveredXidsHandler() {
+            public Collection<BitronixXid> handle(Set<BitronixXid> freshlyRecoveredXids) {
+                xids.addAll(freshlyRecoveredXids);
+                return freshlyRecoveredXids;
+            }
+        });
+        return xids;
+    }
+
+    /**
+     * Run the recovery process on the target resource, handing the XIDs returned by each
+     * {@link XAResource#recover(int)} call over to the handler as soon as they are received. Only the XIDs the handler
+     * left on the resource are kept in memory.
+     * @return the amount of XIDs handed over to the handler.
+     * @param xaResourceHolderState the {@link XAResourceHolderState} to recover.
+     * @param handler the {@link RecoveredXidsHandler} receiving the recovered XIDs.
+     * @throws javax.transaction.xa.XAException if {@link XAResource#recover(int)} calls fail.
+     */
+    public static int recover(XAResourceHolderState xaResourceHolderState, RecoveredXidsHandler handler) throws XAException {
         Set<BitronixXid> xids = new HashSet<BitronixXid>();
+        int totalCount = 0;
+        long before = System.nanoTime();
 
         if (log.isDebugEnabled()) log.debug("recovering with STARTRSCAN");
         int xidCount;
         try {
-            xidCount = recover(xaResourceHolderState, xids, XAResource.TMSTARTRSCAN);
+            xidCount = recover(xaResourceHolderState, xids, handler, XAResource.TMSTARTRSCAN);
+            totalCount += xidCount;
         } catch (XAException ex) {
             if (xaResourceHolderState.getIgnoreRecoveryFailures()) {
                 if (log.isDebugEnabled()) log.debug("ignoring recovery failure on resource " + xaResourceHolderState, ex);
-                return Collections.emptySet();
+                return 0;
             }
             throw ex;
         }
@@ -71,7 +109,8 @@ public class RecoveryHelper {
         try {
             while (xidCount > 0) {
                 if (log.isDebugEnabled()) log.debug("recovering with NOFLAGS");
-                xidCount = recover(xaResourceHolderState, xids, XAResource.TMNOFLAGS);
+                xidCount = recover(xaResourceHolderState, xids, handler, XAResource.TMNOFLAGS);
+                totalCount += xidCount;
                 if (log.isDebugEnabled()) log.debug("NOFLAGS recovered " + xidCount + " xid(s) on " + xaResourceHolderState);
             }
         } catch (XAException ex) {
@@ -80,31 +119,41 @@ public class RecoveryHelper {
 
         try {
             if (log.isDebugEnabled()) log.debug("recovering with ENDRSCAN");
-            xidCount = recover(xaResourceHolderState, xids, XAResource.TMENDRSCAN);
+            xidCount = recover(xaResourceHolderState, xids, handler, XAResource.TMENDRSCAN);
+            totalCount += xidCount;
             if (log.isDebugEnabled()) log.debug("ENDRSCAN recovered " + xidCount + " xid(s) on " + xaResourceHolderState);
         } catch (XAException ex) {
             if (log.isDebugEnabled()) log.debug("ENDRSCAN recovery call failed", ex);
         }
 
-        return xids;
+        RecoveryMetrics.getResourceMetrics(xaResourceHolderState.getUniqueName()).scanned(System.nanoTime() - before, totalCount);
+        return totalCount;
     }
 
     /**
-     * Call {@link XAResource#recover(int)} on the resource and fill the <code>alreadyRecoveredXids</code> Set
-     * with recovered {@link BitronixXid}s.
+     * Call {@link XAResource#recover(int)} on the resource, hand the freshly recovered {@link BitronixXid}s over to the
+     * handler and fill the <code>alreadyRecoveredXids</code> Set with the ones it left on the resource.
      * Step 1.
      * @return the amount of recovered {@link Xid}.
      * @param resourceHolderState the {@link XAResourceHolderState} to recover.
      * @param alreadyRecoveredXids a set of {@link Xid}s already recovered from this resource in this recovery session.
+     * @param handler the {@link RecoveredXidsHandler} receiving the recovered XIDs.
      * @param flags any combination of {@link XAResource#TMSTARTRSCAN}, {@link XAResource#TMNOFLAGS} or {@link XAResource#TMENDRSCAN}.
      * @throws javax.transaction.xa.XAException if {@link XAResource#recover(int)} call fails.
      */
-    private static int recover(XAResourceHolderState resourceHolderState, Set<BitronixXid> alreadyRecoveredXids, int flags) throws XAException {
+    private static int recover(XAResourceHolderState resourceHolderState, Set<BitronixXid> alreadyRecoveredXids, RecoveredXidsHandler handler, int flags) throws XAException {
         Xid[] xids = resourceHolderState.getXAResource().recover(flags);
         if (xids == null)
             return 0;
 
         boolean currentNodeOnly = TransactionManagerServices.getConfiguration().isCurrentNodeOnlyRecovery();
+        byte[] jvmUniqueId = currentNodeOnly ? TransactionManagerServices.getConfiguration().buildServerIdArray() : null;
+        if (log.isDebugEnabled()) {
+            if (currentNodeOnly)
+                log.debug("recovering XIDs generated by this node only - recovered XIDs' GTRID must contain this JVM uniqueId");
+            else
+                log.debug("recovering all XIDs regardless of this JVM uniqueId");
+        }
 
         Set<BitronixXid> freshlyRecoveredXids = new HashSet<BitronixXid>();
         for (Xid xid : xids) {
@@ -114,29 +163,19 @@ public class RecoveryHelper {
                 continue;
             }
 
-            BitronixXid bitronixXid = new BitronixXid(xid);
-
-            if (currentNodeOnly) {
-                if (log.isDebugEnabled()) log.debug("recovering XIDs generated by this node only - recovered XIDs' GTRID must contain this JVM uniqueId");
-                byte[] extractedServerId = bitronixXid.getGlobalTransactionIdUid().extractServerId();
-                byte[] jvmUniqueId = TransactionManagerServices.getConfiguration().buildServerIdArray();
-
+            // foreign XIDs are filtered out on the raw GTRID, before anything gets copied
+            if (currentNodeOnly && !Uid.hasServerId(xid.getGlobalTransactionId(), jvmUniqueId)) {
+                byte[] extractedServerId = new Uid(xid.getGlobalTransactionId()).extractServerId();
                 if (extractedServerId == null) {
-                    log.error("skipping XID " + bitronixXid + " as its GTRID's serverId is null. It looks like the disk journal is corrupted!");
-                    continue;
+                    log.error("skipping XID " + new BitronixXid(xid) + " as its GTRID's serverId is null. It looks like the disk journal is corrupted!");
+                } else if (log.isDebugEnabled()) {
+                    log.debug("skipping XID " + new BitronixXid(xid) + " as its GTRID's serverId <" + new String(extractedServerId) + "> does not match this JVM unique ID <" + new String(jvmUniqueId) + ">");
                 }
-
-                if (!Arrays.equals(jvmUniqueId, extractedServerId)) {
-                    String extractedServerIdString = new String(extractedServerId);
-                    String jvmUniqueIdString = new String(jvmUniqueId);
-
-                    if (log.isDebugEnabled()) log.debug("skipping XID " + bitronixXid + " as its GTRID's serverId <" + extractedServerIdString + "> does not match this JVM unique ID <" + jvmUniqueIdString + ">");
-                    continue;
-                }
-            } else {
-                if (log.isDebugEnabled()) log.debug("recovering all XIDs regardless of this JVM uniqueId");
+                continue;
             }
 
+            BitronixXid bitronixXid = new BitronixXid(xid);
+
             if (alreadyRecoveredXids.contains(bitronixXid)) {
                 if (log.isDebugEnabled()) log.debug("already recovered XID " + bitronixXid + ", skipping it");
                 continue;
@@ -151,7 +190,8 @@ public class RecoveryHelper {
             freshlyRecoveredXids.add(bitronixXid);
         } // for i < xids.length
 
-        alreadyRecoveredXids.addAll(freshlyRecoveredXids);
+        if (!freshlyRecoveredXids.isEmpty())
+            alreadyRecoveredXids.addAll(handler.handle(freshlyRecoveredXids));
         return freshlyRecoveredXids.size();
     }
 
@@ -167,6 +207,7 @@ public class RecoveryHelper {
         boolean success = true;
         boolean forget = false;
 
+        long before = System.nanoTime();
         try {
             xaResourceHolderState.getXAResource().commit(xid, false);
         } catch (XAException ex) {
@@ -194,6 +235,7 @@ public class RecoveryHelper {
                 success = false;
             }
         }
+        RecoveryMetrics.getResourceMetrics(uniqueName).committed(System.nanoTime() - before);
         if (forget) {
             try {
                 if (log.isDebugEnabled()) log.debug("forgetting XID " + xid + " on resource " + uniqueName);
@@ -217,6 +259,7 @@ public class RecoveryHelper {
         String uniqueName = xaResourceHolderState.getUniqueName();
         boolean success = true;
         boolean forget = false;
+        long before = System.nanoTime();
         try {
             xaResourceHolderState.getXAResource().rollback(xid);
         } catch (XAException ex) {
@@ -244,6 +287,7 @@ public class RecoveryHelper {
                 success = false;
             }
         }
+        RecoveryMetrics.getResourceMetrics(uniqueName).rolledBack(System.nanoTime() - before);
         if (forget) {
             try {
                 if (log.isDebugEnabled()) log.debug("forgetting XID " + xid + " on resource " + uniqueName);
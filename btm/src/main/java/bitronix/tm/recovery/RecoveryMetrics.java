@@ -0,0 +1,113 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.recovery;
+
+import bitronix.tm.utils.ManagementRegistrar;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Registry of the recovery metrics.
+ * <p>A {@link ResourceRecoveryMetrics} is lazily created and registered in JMX under
+ * <code>bitronix.tm:type=Recovery,UniqueName=&lt;uniqueName&gt;</code> for each recovered resource. The size of the
+ * dangling records set collected from the journal is tracked globally and exposed by the {@link Recoverer}.</p>
+ */
+public final class RecoveryMetrics {
+
+    private final static ConcurrentMap<String, ResourceRecoveryMetrics> resourceMetrics = new ConcurrentHashMap<String, ResourceRecoveryMetrics>();
+    private final static AtomicInteger maxDanglingRecordsCount = new AtomicInteger();
+    private static volatile int lastDanglingRecordsCount;
+
+    private RecoveryMetrics() {
+    }
+
+    /**
+     * Get the recovery metrics of a resource, creating and registering them if needed.
+     * @param uniqueName the resource's unique name.
+     * @return the resource's recovery metrics.
+     */
+    public static ResourceRecoveryMetrics getResourceMetrics(String uniqueName) {
+        ResourceRecoveryMetrics metrics = resourceMetrics.get(uniqueName);
+        if (metrics == null) {
+            ResourceRecoveryMetrics newMetrics = new ResourceRecoveryMetrics(uniqueName);
+            metrics = resourceMetrics.putIfAbsent(uniqueName, newMetrics);
+            if (metrics == null) {
+                metrics = newMetrics;
+                ManagementRegistrar.register(buildJmxName(uniqueName), metrics);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Forget the recovery metrics of a resource and unregister them from JMX. This is done when the resource is
+     * unregistered from the {@link bitronix.tm.resource.ResourceRegistrar}.
+     * @param uniqueName the resource's unique name.
+     */
+    public static void unregister(String uniqueName) {
+        if (resourceMetrics.remove(uniqueName) != null)
+            ManagementRegistrar.unregister(buildJmxName(uniqueName));
+    }
+
+    /**
+     * Get the size of the dangling records set collected from the journal by the last recovery.
+     * @return the amount of dangling records.
+     */
+    public static int getLastDanglingRecordsCount() {
+        return lastDanglingRecordsCount;
+    }
+
+    /**
+     * Get the largest size of the dangling records set collected from the journal by a recovery.
+     * @return the largest amount of dangling records.
+     */
+    public static int getMaxDanglingRecordsCount() {
+        return maxDanglingRecordsCount.get();
+    }
+
+    /**
+     * Forget the metrics of all resources, unregistering them from JMX. This is done when the transaction manager
+     * shuts down.
+     */
+    public static void clear() {
+        for (String uniqueName : resourceMetrics.keySet()) {
+            unregister(uniqueName);
+        }
+        lastDanglingRecordsCount = 0;
+        maxDanglingRecordsCount.set(0);
+    }
+
+    static void danglingRecordsCollected(int count) {
+        lastDanglingRecordsCount = count;
+        while (true) {
+            int currentMax = maxDanglingRecordsCount.get();
+            if (count <= currentMax || maxDanglingRecordsCount.compareAndSet(currentMax, count))
+                break;
+        }
+    }
+
+    private static String buildJmxName(String uniqueName) {
+        return "bitronix.tm:type=Recovery,UniqueName=" + ManagementRegistrar.makeValidName(uniqueName);
+    }
+
+}
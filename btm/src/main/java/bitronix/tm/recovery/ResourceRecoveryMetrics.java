@@ -0,0 +1,189 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.recovery;
+
+import bitronix.tm.utils.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recovery metrics of a single resource, fed by the {@link Recoverer} and the {@link IncrementalRecoverer}.
+ * <p>Recording only increments a few atomic counters, nothing is computed until the metrics are read.</p>
+ */
+public final class ResourceRecoveryMetrics implements ResourceRecoveryMetricsMBean {
+
+    private final String uniqueName;
+    private final LatencyHistogram scanTimes = new LatencyHistogram();
+    private final LatencyHistogram commitTimes = new LatencyHistogram();
+    private final LatencyHistogram rollbackTimes = new LatencyHistogram();
+    private final AtomicLong recoveredXidCount = new AtomicLong();
+    private final AtomicLong matchedXidCount = new AtomicLong();
+    private final AtomicLong unmatchedXidCount = new AtomicLong();
+    private volatile int lastScanRecoveredXidCount;
+
+    ResourceRecoveryMetrics(String uniqueName) {
+        this.uniqueName = uniqueName;
+    }
+
+    void scanned(long nanos, int xidCount) {
+        scanTimes.recordNanos(nanos);
+        recoveredXidCount.addAndGet(xidCount);
+        lastScanRecoveredXidCount = xidCount;
+    }
+
+    void matched(int xidCount) {
+        matchedXidCount.addAndGet(xidCount);
+    }
+
+    void unmatched(int xidCount) {
+        unmatchedXidCount.addAndGet(xidCount);
+    }
+
+    void committed(long nanos) {
+        commitTimes.recordNanos(nanos);
+    }
+
+    void rolledBack(long nanos) {
+        rollbackTimes.recordNanos(nanos);
+    }
+
+    public String getUniqueName() {
+        return uniqueName;
+    }
+
+    /**
+     * Get the distribution of the time it took to scan the resource with {@link javax.transaction.xa.XAResource#recover(int)}
+     * calls, from <code>TMSTARTRSCAN</code> to <code>TMENDRSCAN</code>. With streaming recovery, this includes the
+     * time spent committing and rolling back the recovered branches.
+     * @return the scan times histogram.
+     */
+    public LatencyHistogram getScanTimes() {
+        return scanTimes;
+    }
+
+    /**
+     * Get the distribution of the time it took to commit the branches of dangling transactions.
+     * @return the commit times histogram.
+     */
+    public LatencyHistogram getCommitTimes() {
+        return commitTimes;
+    }
+
+    /**
+     * Get the distribution of the time it took to roll back aborted branches.
+     * @return the rollback times histogram.
+     */
+    public LatencyHistogram getRollbackTimes() {
+        return rollbackTimes;
+    }
+
+    public long getScanCount() {
+        return scanTimes.getCount();
+    }
+
+    public long getScanMicrosMean() {
+        return scanTimes.getMean();
+    }
+
+    public long getScanMicros99thPercentile() {
+        return scanTimes.getPercentile(99);
+    }
+
+    public long getScanMicrosMax() {
+        return scanTimes.getMax();
+    }
+
+    /**
+     * Get the amount of XIDs recovered from the resource over all scans.
+     * @return the amount of recovered XIDs.
+     */
+    public long getRecoveredXidCount() {
+        return recoveredXidCount.get();
+    }
+
+    /**
+     * Get the amount of XIDs recovered from the resource during the last scan.
+     * @return the amount of XIDs recovered during the last scan.
+     */
+    public int getLastScanRecoveredXidCount() {
+        return lastScanRecoveredXidCount;
+    }
+
+    /**
+     * Get the amount of recovered XIDs which matched a dangling COMMITTING record of the journal and had to be
+     * committed.
+     * @return the amount of matched XIDs.
+     */
+    public long getMatchedXidCount() {
+        return matchedXidCount.get();
+    }
+
+    /**
+     * Get the amount of recovered XIDs which did not match any record of the journal and had to be rolled back.
+     * @return the amount of unmatched XIDs.
+     */
+    public long getUnmatchedXidCount() {
+        return unmatchedXidCount.get();
+    }
+
+    public long getCommitMicrosMean() {
+        return commitTimes.getMean();
+    }
+
+    public long getCommitMicros99thPercentile() {
+        return commitTimes.getPercentile(99);
+    }
+
+    public long getCommitMicrosMax() {
+        return commitTimes.getMax();
+    }
+
+    public long getRollbackMicrosMean() {
+        return rollbackTimes.getMean();
+    }
+
+    public long getRollbackMicros99thPercentile() {
+        return rollbackTimes.getPercentile(99);
+    }
+
+    public long getRollbackMicrosMax() {
+        return rollbackTimes.getMax();
+    }
+
+    /**
+     * Forget all the recorded metrics.
+     */
+    public void reset() {
+        scanTimes.reset();
+        commitTimes.reset();
+        rollbackTimes.reset();
+        recoveredXidCount.set(0);
+        matchedXidCount.set(0);
+        unmatchedXidCount.set(0);
+        lastScanRecoveredXidCount = 0;
+    }
+
+    public String toString() {
+        return "a ResourceRecoveryMetrics of " + uniqueName + " with " + getScanCount() + " scan(s), " + getRecoveredXidCount() +
+                " recovered XID(s), " + getMatchedXidCount() + " matched and " + getUnmatchedXidCount() + " unmatched";
+    }
+
+}
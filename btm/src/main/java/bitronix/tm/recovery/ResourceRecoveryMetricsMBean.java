@@ -0,0 +1,45 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.recovery;
+
+/**
+ * {@link ResourceRecoveryMetrics} Management interface.
+ */
+public interface ResourceRecoveryMetricsMBean {
+
+    public String getUniqueName();
+    public long getScanCount();
+    public long getScanMicrosMean();
+    public long getScanMicros99thPercentile();
+    public long getScanMicrosMax();
+    public long getRecoveredXidCount();
+    public int getLastScanRecoveredXidCount();
+    public long getMatchedXidCount();
+    public long getUnmatchedXidCount();
+    public long getCommitMicrosMean();
+    public long getCommitMicros99thPercentile();
+    public long getCommitMicrosMax();
+    public long getRollbackMicrosMean();
+    public long getRollbackMicros99thPercentile();
+    public long getRollbackMicrosMax();
+    public void reset();
+
+}
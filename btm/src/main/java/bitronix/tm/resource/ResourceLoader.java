@@ -24,6 +24,7 @@ import bitronix.tm.TransactionManagerServices;
 import bitronix.tm.resource.common.XAResourceProducer;
 import bitronix.tm.utils.ClassLoaderUtils;
 import bitronix.tm.utils.InitializationException;
+import bitronix.tm.utils.MonotonicClock;
 import bitronix.tm.utils.PropertyUtils;
 import bitronix.tm.utils.Service;
 import org.slf4j.Logger;
@@ -36,9 +37,16 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * XA resources pools configurator & loader.
@@ -57,7 +65,8 @@ public class ResourceLoader implements Service {
     private final static String JDBC_RESOURCE_CLASSNAME = "bitronix.tm.resource.jdbc.PoolingDataSource";
     private final static String JMS_RESOURCE_CLASSNAME = "bitronix.tm.resource.jms.PoolingConnectionFactory";
 
-    private final Map<String, XAResourceProducer> resourcesByUniqueName = new HashMap<String, XAResourceProducer>();
+    private final Map<String, XAResourceProducer> resourcesByUniqueName = new ConcurrentHashMap<String, XAResourceProducer>();
+    private final Map<String, Long> initializationTimes = new ConcurrentHashMap<String, Long>();
 
     public ResourceLoader() {
     }
@@ -70,6 +79,15 @@ public class ResourceLoader implements Service {
         return resourcesByUniqueName;
     }
 
+    /**
+     * Get a Map with the configured uniqueName as key and the time it took to initialize the resource as value.
+     * Resources which failed to initialize are included.
+     * @return a Map using the uniqueName as key and the initialization time in milliseconds as value.
+     */
+    public Map<String, Long> getInitializationTimes() {
+        return initializationTimes;
+    }
+
     /**
      * Initialize the ResourceLoader and load the resources configuration file specified in
      * <code>bitronix.tm.resource.configuration</code> property.
@@ -101,6 +119,7 @@ public class ResourceLoader implements Service {
             }
         }
         resourcesByUniqueName.clear();
+        initializationTimes.clear();
     }
 
     /*
@@ -156,37 +175,92 @@ public class ResourceLoader implements Service {
     }
 
     /**
-     * Initialize {@link XAResourceProducer}s given a set of properties.
+     * Initialize {@link XAResourceProducer}s given a set of properties. All of them are configured first, then up to
+     * {@link bitronix.tm.Configuration#getResourceInitializationConcurrency()} of them are initialized concurrently.
      * @param properties the properties to use for initialization.
      * @return the number of resources which failed to initialize.
      */
     int initXAResourceProducers(Properties properties) {
         Map<String, List<PropertyPair>> entries = buildConfigurationEntriesMap(properties);
-        int errorCount = 0;
+        Queue<XAResourceProducer> producers = new ConcurrentLinkedQueue<XAResourceProducer>();
+        Set<String> uniqueNames = new HashSet<String>();
 
         for (Map.Entry<String, List<PropertyPair>> entry : entries.entrySet()) {
             String uniqueName = entry.getKey();
             List<PropertyPair> propertyPairs = entry.getValue();
             XAResourceProducer producer = buildXAResourceProducer(uniqueName, propertyPairs);
 
-            if (ResourceRegistrar.get(producer.getUniqueName()) != null) {
+            if (ResourceRegistrar.get(producer.getUniqueName()) != null || !uniqueNames.add(producer.getUniqueName())) {
                 if (log.isDebugEnabled()) log.debug("resource already registered, skipping it:" + producer.getUniqueName());
                 continue;
             }
 
+            producers.add(producer);
+        }
+
+        int concurrency = Math.min(producers.size(), TransactionManagerServices.getConfiguration().getResourceInitializationConcurrency());
+        AtomicInteger errorCount = new AtomicInteger();
+        AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+
+        if (concurrency <= 1) {
+            initXAResourceProducers(producers, errorCount, failure);
+        }
+        else {
+            if (log.isDebugEnabled()) log.debug("initializing " + producers.size() + " resource(s) with " + concurrency + " concurrent initializers");
+            Thread[] initializers = new Thread[concurrency];
+            for (int i = 0; i < initializers.length; i++) {
+                initializers[i] = new ResourceInitializer(producers, errorCount, failure);
+                initializers[i].start();
+            }
+            boolean interrupted = false;
+            for (Thread initializer : initializers) {
+                while (true) {
+                    try {
+                        initializer.join();
+                        break;
+                    } catch (InterruptedException ex) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        RuntimeException ex = failure.get();
+        if (ex != null)
+            throw ex;
+        return errorCount.get();
+    }
+
+    /**
+     * Initialize {@link XAResourceProducer}s until none is left in the queue or until one of them failed with an
+     * unexpected exception.
+     * @param producers the queue of {@link XAResourceProducer}s to initialize.
+     * @param errorCount counter of the resources which failed to initialize.
+     * @param failure holder of the first unexpected exception.
+     */
+    private void initXAResourceProducers(Queue<XAResourceProducer> producers, AtomicInteger errorCount, AtomicReference<RuntimeException> failure) {
+        XAResourceProducer producer;
+        while (failure.get() == null && (producer = producers.poll()) != null) {
             if (log.isDebugEnabled()) log.debug("creating resource " + producer);
+            long before = MonotonicClock.currentTimeMillis();
             try {
                 producer.init();
+                log.info("initialized resource " + producer.getUniqueName() + " in " + (MonotonicClock.currentTimeMillis() - before) + "ms");
             } catch (ResourceConfigurationException ex) {
                 log.warn("unable to create resource with unique name " + producer.getUniqueName(), ex);
                 producer.close();
-                errorCount++;
+                errorCount.incrementAndGet();
+            } catch (RuntimeException ex) {
+                failure.compareAndSet(null, ex);
+                return;
             }
+            long initializationTime = MonotonicClock.currentTimeMillis() - before;
 
+            initializationTimes.put(producer.getUniqueName(), initializationTime);
             resourcesByUniqueName.put(producer.getUniqueName(), producer);
         }
-
-        return errorCount;
     }
 
     /**
@@ -280,6 +354,24 @@ public class ResourceLoader implements Service {
     }
 
 
+    private final class ResourceInitializer extends Thread {
+        private final Queue<XAResourceProducer> producers;
+        private final AtomicInteger errorCount;
+        private final AtomicReference<RuntimeException> failure;
+
+        private ResourceInitializer(Queue<XAResourceProducer> producers, AtomicInteger errorCount, AtomicReference<RuntimeException> failure) {
+            this.producers = producers;
+            this.errorCount = errorCount;
+            this.failure = failure;
+            setDaemon(true);
+            setName("bitronix-resource-initializer");
+        }
+
+        public void run() {
+            initXAResourceProducers(producers, errorCount, failure);
+        }
+    }
+
     private final class PropertyPair {
         private final String name;
         private final String value;
@@ -23,6 +23,7 @@ package bitronix.tm.resource;
 import bitronix.tm.TransactionManagerServices;
 import bitronix.tm.recovery.IncrementalRecoverer;
 import bitronix.tm.recovery.RecoveryException;
+import bitronix.tm.recovery.RecoveryMetrics;
 import bitronix.tm.resource.common.XAResourceHolder;
 import bitronix.tm.resource.common.XAResourceProducer;
 
@@ -33,6 +34,8 @@ import javax.transaction.xa.XAResource;
 
 import java.io.UnsupportedEncodingException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 
 /**
@@ -42,6 +45,9 @@ import java.util.concurrent.CopyOnWriteArraySet;
  * Note: The implementation is based on a thread safe, read-optimized list (copy-on-write) assuming that the
  * number of registered resources is around 1 to 16 entries and does not change often. If this assumption is
  * not-true it may be required to re-implement this with a ConcurrentMap instead.
+ * <p/>
+ * The {@link XAResourceHolder}s are indexed by the identity of their {@link XAResource} when the producers register
+ * them so that {@link #findXAResourceHolder(XAResource)} does not have to search all pools.
  *
  * @author lorban, jkellerer
  */
@@ -56,6 +62,8 @@ public final class ResourceRegistrar {
 
     private final static Set<ProducerHolder> resources = new CopyOnWriteArraySet<ProducerHolder>();
 
+    private final static ConcurrentMap<XAResourceKey, XAResourceHolder> xaResourceHolders = new ConcurrentHashMap<XAResourceKey, XAResourceHolder>();
+
     /**
      * Get a registered {@link XAResourceProducer}.
      *
@@ -128,13 +136,17 @@ public final class ResourceRegistrar {
     public static void unregister(XAResourceProducer producer) {
         final ProducerHolder holder = new ProducerHolder(producer);
 
-        if (!resources.remove(holder)) {
+        if (resources.remove(holder)) {
+            RecoveryMetrics.unregister(holder.getUniqueName());
+        } else {
             if (log.isDebugEnabled()) { log.debug("resource with uniqueName '{}' has not been registered", holder.getUniqueName()); }
         }
     }
 
     /**
      * Find in the registered {@link XAResourceProducer}s the {@link XAResourceHolder} from which the specified {@link XAResource} comes from.
+     * The index of registered {@link XAResourceHolder}s is looked up first, then producers which do not register
+     * their {@link XAResourceHolder}s are searched.
      *
      * @param xaResource the {@link XAResource} to look for
      * @return the associated {@link XAResourceHolder} or null if it cannot be found.
@@ -142,6 +154,12 @@ public final class ResourceRegistrar {
     public static XAResourceHolder findXAResourceHolder(XAResource xaResource) {
         final boolean debug = log.isDebugEnabled();
 
+        XAResourceHolder indexedResourceHolder = findRegisteredXAResourceHolder(xaResource);
+        if (indexedResourceHolder != null) {
+            if (debug) { log.debug("XAResource " + xaResource + " belongs to " + indexedResourceHolder + " that itself belongs to " + indexedResourceHolder.getResourceBean()); }
+            return indexedResourceHolder;
+        }
+
         for (ProducerHolder holder : resources) {
             if (!holder.isInitialized())
                 continue;
@@ -158,9 +176,68 @@ public final class ResourceRegistrar {
         return null;
     }
 
+    /**
+     * Index a {@link XAResourceHolder} by its {@link XAResource}. Producers must register their holders once the
+     * {@link XAResource} has been created and unregister them before it is closed.
+     *
+     * @param xaResourceHolder the {@link XAResourceHolder} to index.
+     */
+    public static void registerXAResourceHolder(XAResourceHolder xaResourceHolder) {
+        XAResource xaResource = xaResourceHolder.getXAResource();
+        if (xaResource == null)
+            return;
+        xaResourceHolders.put(new XAResourceKey(xaResource), xaResourceHolder);
+    }
+
+    /**
+     * Remove a {@link XAResourceHolder} from the index.
+     *
+     * @param xaResourceHolder the {@link XAResourceHolder} to remove.
+     */
+    public static void unregisterXAResourceHolder(XAResourceHolder xaResourceHolder) {
+        XAResource xaResource = xaResourceHolder.getXAResource();
+        if (xaResource == null)
+            return;
+        xaResourceHolders.remove(new XAResourceKey(xaResource), xaResourceHolder);
+    }
+
+    /**
+     * Find the registered {@link XAResourceHolder} of a {@link XAResource}.
+     *
+     * @param xaResource the {@link XAResource} to look for
+     * @return the associated {@link XAResourceHolder} or null if none has been registered.
+     */
+    public static XAResourceHolder findRegisteredXAResourceHolder(XAResource xaResource) {
+        if (xaResource == null)
+            return null;
+        return xaResourceHolders.get(new XAResourceKey(xaResource));
+    }
+
     private ResourceRegistrar() {
     }
 
+    /**
+     * Compares {@link XAResource}s by identity as some implementations override equals().
+     */
+    private static final class XAResourceKey {
+
+        private final XAResource xaResource;
+
+        private XAResourceKey(XAResource xaResource) {
+            this.xaResource = xaResource;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof XAResourceKey && ((XAResourceKey) o).xaResource == xaResource;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(xaResource);
+        }
+    }
+
     /**
      * Implements a holder that maintains XAResourceProducers in a set only differentiating them by their unique names.
      */
@@ -28,13 +28,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Implementation of all services required by a {@link XAResourceHolder}. This class keeps a list of all
  * {@link XAResourceHolderState}s of the {@link XAResourceHolder} plus the currently active one. There is
  * one per transaction in which this {@link XAResourceHolder} is enlisted plus all the suspended transactions in which
  * it is enlisted as well.
+ * <p>A holder is rarely enlisted in more than one transaction at a time so the states of the first GTRID are kept in
+ * an inline slot, the ones of the other GTRIDs overflowing to a map. The states of a GTRID are immutable snapshots
+ * replaced on each change: readers never lock while writers serialize on a private lock. A GTRID stays in the slot
+ * or map it was first put in until all its states are removed.</p>
  *
  * @author lorban
  */
@@ -42,81 +47,54 @@ public abstract class AbstractXAResourceHolder extends AbstractXAStatefulHolder
 
     private final static Logger log = LoggerFactory.getLogger(AbstractXAResourceHolder.class);
 
-    private final Map<Uid, Map<Uid, XAResourceHolderState>> xaResourceHolderStates = new HashMap<Uid, Map<Uid, XAResourceHolderState>>();
-    private final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
+    private final Object statesLock = new Object();
+    private volatile GtridStates inlineStates;
+    private volatile ConcurrentMap<Uid, GtridStates> overflowStates;
 
-    // This method is only used by tests.  It is (and always was) potentially thread-unsafe depending on what callers do with the returned map. 
+    // This method is only used by tests. The returned map is an immutable snapshot.
     protected Map<Uid, XAResourceHolderState> getXAResourceHolderStatesForGtrid(Uid gtrid) {
-        rwLock.readLock().lock();
-        try {
-            return xaResourceHolderStates.get(gtrid);
-        } finally {
-            rwLock.readLock().unlock();
-        }
+        GtridStates gtridStates = findGtridStates(gtrid);
+        return gtridStates == null ? null : gtridStates.states;
     }
 
     public boolean isExistXAResourceHolderStatesForGtrid(Uid gtrid) {
-        rwLock.readLock().lock();
-        try {
-            return xaResourceHolderStates.containsKey(gtrid);
-        } finally {
-            rwLock.readLock().unlock();
-        }
+        return findGtridStates(gtrid) != null;
     }
 
     public int getXAResourceHolderStateCountForGtrid(Uid gtrid) {
-        rwLock.readLock().lock();
-        try {
-            Map<Uid, XAResourceHolderState> statesForGtrid = xaResourceHolderStates.get(gtrid);
-            if (statesForGtrid != null) {
-                return statesForGtrid.size();
-            }
-            return 0;
-        } finally {
-            rwLock.readLock().unlock();
+        GtridStates gtridStates = findGtridStates(gtrid);
+        if (gtridStates != null) {
+            return gtridStates.states.size();
         }
+        return 0;
     }
 
     public void acceptVisitorForXAResourceHolderStates(Uid gtrid, XAResourceHolderStateVisitor visitor) {
-        rwLock.readLock().lock();
-        try {
-            Map<Uid, XAResourceHolderState> statesForGtrid = xaResourceHolderStates.get(gtrid);
-            if (statesForGtrid != null) {
-                for (XAResourceHolderState xaResourceHolderState : statesForGtrid.values()) {
-                    if (!visitor.visit(xaResourceHolderState)) {
-                        break;
-                    }
+        GtridStates gtridStates = findGtridStates(gtrid);
+        if (gtridStates != null) {
+            for (XAResourceHolderState xaResourceHolderState : gtridStates.states.values()) {
+                if (!visitor.visit(xaResourceHolderState)) {
+                    break;
                 }
             }
-        } finally {
-            rwLock.readLock().unlock();
         }
     }
 
     public void putXAResourceHolderState(BitronixXid xid, XAResourceHolderState xaResourceHolderState) {
     	Uid gtrid = xid.getGlobalTransactionIdUid();
     	Uid bqual = xid.getBranchQualifierUid();
-    	
-    	rwLock.writeLock().lock();
-        try {
+
+        synchronized (statesLock) {
         	if (log.isDebugEnabled()) { log.debug("putting XAResourceHolderState [" + xaResourceHolderState + "] on " + this); }
-            if (!xaResourceHolderStates.containsKey(gtrid)) {
+            GtridStates gtridStates = findGtridStates(gtrid);
+            if (gtridStates == null) {
                 if (log.isDebugEnabled()) { log.debug("GTRID [" + gtrid + "] previously unknown to " + this + ", adding it to the resource's transactions list"); }
-
-                // use a LinkedHashMap as iteration order must be guaranteed
-                Map<Uid, XAResourceHolderState> statesForGtrid = new LinkedHashMap<Uid, XAResourceHolderState>(4);
-                statesForGtrid.put(bqual, xaResourceHolderState);
-                xaResourceHolderStates.put(gtrid, statesForGtrid);
+                gtridStates = new GtridStates(gtrid, Collections.<Uid, XAResourceHolderState>emptyMap());
             }
             else {
                 if (log.isDebugEnabled()) { log.debug("GTRID [" + gtrid + "] previously known to " + this + ", adding it to the resource's transactions list"); }
-
-                Map<Uid, XAResourceHolderState> statesForGtrid = xaResourceHolderStates.get(gtrid);
-                statesForGtrid.put(bqual, xaResourceHolderState);
             }
-        }
-        finally {
-            rwLock.writeLock().unlock();
+            storeGtridStates(gtrid, gtridStates.with(bqual, xaResourceHolderState));
         }
     }
 
@@ -124,49 +102,49 @@ public abstract class AbstractXAResourceHolder extends AbstractXAStatefulHolder
     	Uid gtrid = xid.getGlobalTransactionIdUid();
     	Uid bqual = xid.getBranchQualifierUid();
 
-        rwLock.writeLock().lock();
-        try {
+        synchronized (statesLock) {
         	if (log.isDebugEnabled()) { log.debug("removing XAResourceHolderState of xid " + xid + " from " + this); }
 
-            Map<Uid, XAResourceHolderState> statesForGtrid = xaResourceHolderStates.get(gtrid);
-            if (statesForGtrid == null) {
+            GtridStates gtridStates = findGtridStates(gtrid);
+            if (gtridStates == null) {
                 log.warn("tried to remove unknown GTRID [" + gtrid + "] from " + this + " - Bug?");
                 return;
             }
 
-            XAResourceHolderState removed = statesForGtrid.remove(bqual);
-            if (removed == null) {
+            if (!gtridStates.states.containsKey(bqual)) {
                 log.warn("tried to remove unknown BQUAL [" + bqual + "] from " + this + " - Bug?");
                 return;
             }
 
-            if (statesForGtrid.isEmpty()) {
-                xaResourceHolderStates.remove(gtrid);
-            }
-        }
-        finally {
-            rwLock.writeLock().unlock();
+            storeGtridStates(gtrid, gtridStates.without(bqual));
         }
     }
 
     public boolean hasStateForXAResource(XAResourceHolder xaResourceHolder) {
-        rwLock.readLock().lock();
-        try {
-            for (Map<Uid, XAResourceHolderState> statesForGtrid : xaResourceHolderStates.values()) {
-                for (XAResourceHolderState otherXaResourceHolderState : statesForGtrid.values()) {
-                    if (otherXaResourceHolderState.getXAResource() == xaResourceHolder.getXAResource()) {
-                        if (log.isDebugEnabled()) { log.debug("resource " + xaResourceHolder + " is enlisted in another transaction with " + otherXaResourceHolderState.getXid().toString()); }
-                        return true;
-                    }
-                }
-            }
+        GtridStates gtridStates = inlineStates;
+        if (gtridStates != null && hasStateForXAResource(gtridStates, xaResourceHolder))
+            return true;
 
-            if (log.isDebugEnabled()) { log.debug("resource not enlisted in any transaction: " + xaResourceHolder); }
-            return false;
+        Map<Uid, GtridStates> overflow = overflowStates;
+        if (overflow != null) {
+            for (GtridStates otherGtridStates : overflow.values()) {
+                if (hasStateForXAResource(otherGtridStates, xaResourceHolder))
+                    return true;
+            }
         }
-        finally {
-            rwLock.readLock().unlock();
+
+        if (log.isDebugEnabled()) { log.debug("resource not enlisted in any transaction: " + xaResourceHolder); }
+        return false;
+    }
+
+    private static boolean hasStateForXAResource(GtridStates gtridStates, XAResourceHolder xaResourceHolder) {
+        for (XAResourceHolderState otherXaResourceHolderState : gtridStates.states.values()) {
+            if (otherXaResourceHolderState.getXAResource() == xaResourceHolder.getXAResource()) {
+                if (log.isDebugEnabled()) { log.debug("resource " + xaResourceHolder + " is enlisted in another transaction with " + otherXaResourceHolderState.getXid().toString()); }
+                return true;
+            }
         }
+        return false;
     }
 
     /**
@@ -174,29 +152,23 @@ public abstract class AbstractXAResourceHolder extends AbstractXAStatefulHolder
      * @return true if start() has been successfully called but not end() yet <i>and</i> the transaction is not suspended.
      */
     public boolean isParticipatingInActiveGlobalTransaction() {
-        rwLock.readLock().lock();
-        try {
-            BitronixTransaction currentTransaction = TransactionContextHelper.currentTransaction();
-            Uid gtrid = currentTransaction == null ? null : currentTransaction.getResourceManager().getGtrid();
-            if (gtrid == null)
-                return false;
-
-            Map<Uid, XAResourceHolderState> statesForGtrid = xaResourceHolderStates.get(gtrid);
-            if (statesForGtrid == null)
-                return false;
-
-            for (XAResourceHolderState xaResourceHolderState : statesForGtrid.values()) {
-                if (xaResourceHolderState != null &&
-                        xaResourceHolderState.isStarted() &&
-                        !xaResourceHolderState.isSuspended() &&
-                        !xaResourceHolderState.isEnded())
-                    return true;
-            }
+        BitronixTransaction currentTransaction = TransactionContextHelper.currentTransaction();
+        Uid gtrid = currentTransaction == null ? null : currentTransaction.getResourceManager().getGtrid();
+        if (gtrid == null)
             return false;
+
+        GtridStates gtridStates = findGtridStates(gtrid);
+        if (gtridStates == null)
+            return false;
+
+        for (XAResourceHolderState xaResourceHolderState : gtridStates.states.values()) {
+            if (xaResourceHolderState != null &&
+                    xaResourceHolderState.isStarted() &&
+                    !xaResourceHolderState.isSuspended() &&
+                    !xaResourceHolderState.isEnded())
+                return true;
         }
-        finally {
-            rwLock.readLock().unlock();
-        }
+        return false;
     }
 
     /**
@@ -205,18 +177,107 @@ public abstract class AbstractXAResourceHolder extends AbstractXAStatefulHolder
      * @return a set of String-encoded GTRIDs of transactions in which this resource is enlisted.
      */
     public Set<String> getXAResourceHolderStateGtrids() {
-        rwLock.readLock().lock();
-        try {
-            HashSet<String> gtridsAsStrings = new HashSet<String>();
+        HashSet<String> gtridsAsStrings = new HashSet<String>();
+
+        GtridStates gtridStates = inlineStates;
+        if (gtridStates != null)
+            gtridsAsStrings.add(gtridStates.gtrid.toString());
 
-            for (Uid uid : xaResourceHolderStates.keySet()) {
+        Map<Uid, GtridStates> overflow = overflowStates;
+        if (overflow != null) {
+            for (Uid uid : overflow.keySet()) {
                 gtridsAsStrings.add(uid.toString());
             }
+        }
 
-            return gtridsAsStrings;
+        return gtridsAsStrings;
+    }
+
+    public Set<Uid> getXAResourceHolderStateGtridUids() {
+        Set<Uid> gtrids = new HashSet<Uid>();
+
+        GtridStates gtridStates = inlineStates;
+        if (gtridStates != null)
+            gtrids.add(gtridStates.gtrid);
+
+        Map<Uid, GtridStates> overflow = overflowStates;
+        if (overflow != null)
+            gtrids.addAll(overflow.keySet());
+
+        return gtrids;
+    }
+
+    private GtridStates findGtridStates(Uid gtrid) {
+        GtridStates gtridStates = inlineStates;
+        if (gtridStates != null && gtridStates.gtrid.equals(gtrid))
+            return gtridStates;
+
+        Map<Uid, GtridStates> overflow = overflowStates;
+        if (overflow != null)
+            return overflow.get(gtrid);
+        return null;
+    }
+
+    /**
+     * Publish the new states of a GTRID, or remove it when null. Must be called while holding the states lock.
+     */
+    private void storeGtridStates(Uid gtrid, GtridStates gtridStates) {
+        GtridStates current = inlineStates;
+        if (current != null && current.gtrid.equals(gtrid)) {
+            inlineStates = gtridStates;
+            return;
+        }
+
+        ConcurrentMap<Uid, GtridStates> overflow = overflowStates;
+        if (overflow != null && overflow.containsKey(gtrid)) {
+            if (gtridStates == null)
+                overflow.remove(gtrid);
+            else
+                overflow.put(gtrid, gtridStates);
+            return;
+        }
+
+        if (gtridStates == null)
+            return;
+        if (current == null) {
+            inlineStates = gtridStates;
+            return;
+        }
+        if (overflow == null) {
+            overflow = new ConcurrentHashMap<Uid, GtridStates>(4);
+            overflowStates = overflow;
         }
-        finally {
-            rwLock.readLock().unlock();
+        overflow.put(gtrid, gtridStates);
+    }
+
+    /**
+     * Immutable states of a GTRID, keyed by BQUAL in insertion order.
+     */
+    private static final class GtridStates {
+        private final Uid gtrid;
+        private final Map<Uid, XAResourceHolderState> states;
+
+        private GtridStates(Uid gtrid, Map<Uid, XAResourceHolderState> states) {
+            this.gtrid = gtrid;
+            this.states = states;
+        }
+
+        private GtridStates with(Uid bqual, XAResourceHolderState xaResourceHolderState) {
+            // use a LinkedHashMap as iteration order must be guaranteed
+            Map<Uid, XAResourceHolderState> newStates = new LinkedHashMap<Uid, XAResourceHolderState>(states);
+            newStates.put(bqual, xaResourceHolderState);
+            return new GtridStates(gtrid, Collections.unmodifiableMap(newStates));
+        }
+
+        /**
+         * @return the states without the one of the BQUAL or null if none is left.
+         */
+        private GtridStates without(Uid bqual) {
+            if (states.size() == 1)
+                return null;
+            Map<Uid, XAResourceHolderState> newStates = new LinkedHashMap<Uid, XAResourceHolderState>(states);
+            newStates.remove(bqual);
+            return new GtridStates(gtrid, Collections.unmodifiableMap(newStates));
         }
     }
 }
@@ -26,6 +26,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import org.slf4j.*;
 
 import bitronix.tm.utils.Decoder;
+import bitronix.tm.utils.MonotonicClock;
 
 /**
  * Implementation of all services required by a {@link XAStatefulHolder}.
@@ -38,10 +39,10 @@ public abstract class AbstractXAStatefulHolder implements XAStatefulHolder {
 
     private volatile int state = STATE_IN_POOL;
     private final List<StateChangeListener> stateChangeEventListeners = new CopyOnWriteArrayList<StateChangeListener>();
-    private final Date creationDate = new Date();
+    private final long creationTime = MonotonicClock.coarseTimeMillis();
 
-    public Date getCreationDate() {
-        return creationDate;
+    public long getCreationTime() {
+        return creationTime;
     }
 
     public int getState() {
@@ -64,6 +65,13 @@ public abstract class AbstractXAStatefulHolder implements XAStatefulHolder {
         fireStateChanged(oldState, state);
     }
 
+    /**
+     * Does nothing by default, resources which can be tested override this method.
+     * @throws Exception a resource-specific exception thrown when the physical connection is not usable anymore.
+     */
+    public void validate() throws Exception {
+    }
+
     public void addStateChangeEventListener(StateChangeListener listener) {
         stateChangeEventListeners.add(listener);
     }
@@ -21,7 +21,6 @@
 package bitronix.tm.resource.common;
 
 import javax.transaction.xa.XAResource;
-import java.util.Date;
 import java.util.List;
 
 /**
@@ -42,8 +41,8 @@ public class RecoveryXAResourceHolder extends AbstractXAResourceHolder {
         xaResourceHolder.setState(STATE_IN_POOL);
     }
 
-    public Date getLastReleaseDate() {
-        return null;
+    public long getLastReleaseTime() {
+        return 0L;
     }
 
     public XAResource getXAResource() {
@@ -41,7 +41,11 @@ public abstract class ResourceBean implements Serializable {
     private volatile int minPoolSize = 0;
     private volatile int maxIdleTime = 60;
     private volatile int maxLifeTime = 0;
+    private volatile boolean testConnectionsOnRelease = false;
+    private volatile int idleConnectionTestInterval = 0;
     private volatile int acquireIncrement = 1;
+    private volatile int prefillWatermark = 0;
+    private volatile int maxConcurrentCreations = 1;
     private volatile int acquisitionTimeout = 30;
     private volatile boolean deferConnectionRelease = true;
     private volatile int acquisitionInterval = 1;
@@ -204,6 +208,38 @@ public abstract class ResourceBean implements Serializable {
         this.maxLifeTime = maxLifeTime;
     }
 
+    /**
+     * @return true if connections are tested in the background when they are released to the pool, false otherwise.
+     */
+    public boolean getTestConnectionsOnRelease() {
+        return testConnectionsOnRelease;
+    }
+
+    /**
+     * Set whether connections should be tested in the background when they are released to the pool. A released
+     * connection only becomes available again once it has been successfully tested, it is closed otherwise.
+     * @param testConnectionsOnRelease true if connections should be tested when released to the pool.
+     */
+    public void setTestConnectionsOnRelease(boolean testConnectionsOnRelease) {
+        this.testConnectionsOnRelease = testConnectionsOnRelease;
+    }
+
+    /**
+     * @return the amount of time (in seconds) a connection can stay unused in the pool before it gets tested.
+     */
+    public int getIdleConnectionTestInterval() {
+        return idleConnectionTestInterval;
+    }
+
+    /**
+     * Define the amount of time (in seconds) a connection can stay unused in the pool before the pool shrinking task
+     * tests it. Connections failing the test are closed. Idle connections are not tested when this is 0, the default.
+     * @param idleConnectionTestInterval the amount of time (in seconds) before an unused connection gets tested.
+     */
+    public void setIdleConnectionTestInterval(int idleConnectionTestInterval) {
+        this.idleConnectionTestInterval = idleConnectionTestInterval;
+    }
+
     /**
      * @return the amount of connections to be created at once when the pool needs to grow.
      */
@@ -219,6 +255,39 @@ public abstract class ResourceBean implements Serializable {
         this.acquireIncrement = acquireIncrement;
     }
 
+    /**
+     * @return the amount of available connections under which the pool starts growing in the background.
+     */
+    public int getPrefillWatermark() {
+        return prefillWatermark;
+    }
+
+    /**
+     * Define the amount of available connections under which the pool starts growing in the background, before it
+     * gets empty. Growth is only triggered by an empty pool when this is 0, the default.
+     * @param prefillWatermark the amount of available connections under which the pool starts growing.
+     */
+    public void setPrefillWatermark(int prefillWatermark) {
+        this.prefillWatermark = prefillWatermark;
+    }
+
+    /**
+     * @return the maximum amount of connections the pool creates concurrently, in the background or when growing
+     *         to its minimum size at startup.
+     */
+    public int getMaxConcurrentCreations() {
+        return maxConcurrentCreations;
+    }
+
+    /**
+     * Define the maximum amount of connections the pool creates concurrently, in the background or when growing to
+     * its minimum size at startup.
+     * @param maxConcurrentCreations the maximum amount of connections created concurrently.
+     */
+    public void setMaxConcurrentCreations(int maxConcurrentCreations) {
+        this.maxConcurrentCreations = maxConcurrentCreations;
+    }
+
     /**
      * @return the amount of time in seconds a call to get a connection from the pool will wait when the pool is empty.
      */
@@ -51,10 +51,12 @@ public final class TransactionContextHelper {
      * Enlist the {@link XAResourceHolder} in the current transaction or do nothing if there is no global transaction
      * context for this thread.
      * @param xaResourceHolder the {@link XAResourceHolder} to enlist.
+     * @return the {@link XAResourceHolderState} of the branch the resource is enlisted in or null if there is no
+     *         global transaction context for this thread.
      * @throws SystemException if an internal error happens.
      * @throws RollbackException if the current transaction has been marked as rollback only.
      */
-    public static void enlistInCurrentTransaction(XAResourceHolder xaResourceHolder) throws SystemException, RollbackException {
+    public static XAResourceHolderState enlistInCurrentTransaction(XAResourceHolder xaResourceHolder) throws SystemException, RollbackException {
         BitronixTransaction currentTransaction = currentTransaction();
         ResourceBean bean = xaResourceHolder.getResourceBean();
         if (log.isDebugEnabled()) log.debug("enlisting " + xaResourceHolder + " into " + currentTransaction);
@@ -68,8 +70,10 @@ public final class TransactionContextHelper {
             XAResourceHolderState alreadyEnlistedXAResourceHolderState = TransactionContextHelper.getLatestAlreadyEnlistedXAResourceHolderState(xaResourceHolder, currentTransaction);
             if (alreadyEnlistedXAResourceHolderState == null || alreadyEnlistedXAResourceHolderState.isEnded()) {
                 currentTransaction.enlistResource(xaResourceHolder.getXAResource());
+                return TransactionContextHelper.getLatestAlreadyEnlistedXAResourceHolderState(xaResourceHolder, currentTransaction);
             }
-            else if (log.isDebugEnabled()) log.debug("avoiding re-enlistment of already enlisted but not ended resource " + alreadyEnlistedXAResourceHolderState);
+            if (log.isDebugEnabled()) log.debug("avoiding re-enlistment of already enlisted but not ended resource " + alreadyEnlistedXAResourceHolderState);
+            return alreadyEnlistedXAResourceHolderState;
         }
         else {
             if (bean.getAllowLocalTransactions()) {
@@ -80,6 +84,7 @@ public final class TransactionContextHelper {
                         "transaction scope. Set allowLocalTransactions to true if you want to allow this and you know " +
                         "your resource supports this.");
         }
+        return null;
     }
 
     /**
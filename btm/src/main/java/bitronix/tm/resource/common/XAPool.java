@@ -20,18 +20,29 @@
  */
 package bitronix.tm.resource.common;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.transaction.Synchronization;
 
@@ -46,6 +57,7 @@ import bitronix.tm.internal.XAResourceHolderState;
 import bitronix.tm.recovery.IncrementalRecoverer;
 import bitronix.tm.recovery.RecoveryException;
 import bitronix.tm.utils.Decoder;
+import bitronix.tm.utils.LatencyHistogram;
 import bitronix.tm.utils.MonotonicClock;
 import bitronix.tm.utils.Uid;
 
@@ -62,18 +74,74 @@ public class XAPool implements StateChangeListener {
     private final static Logger log = LoggerFactory.getLogger(XAPool.class);
 
     /**
-     * The stateTransitionLock makes sure that transitions of XAStatefulHolders from one state to another
-     * (movement from one pool to another) are atomic.  A ReentrantReadWriteLock allows any number of 
-     * readers to access and iterate the accessiblePool and inaccessiblePool without blocking.  Readers 
-     * are blocked only for the instant when a connection is moving between pools.  These locks are 
-     * sufficient to protect the collections, which are left intentionally non-concurrent so that failures
-     * in locking logic will be quickly uncovered.
+     * All the pooled objects of this pool, whatever their state is. Each of them is associated with a
+     * {@link PooledEntry} which atomically tracks if it is available for borrowing so that borrowers can claim pooled
+     * objects and return them without taking any pool-wide lock.
      */
-    private final ReentrantReadWriteLock stateTransitionLock = new ReentrantReadWriteLock();
+    private final ConcurrentMap<XAStatefulHolder, PooledEntry> entries = new ConcurrentHashMap<XAStatefulHolder, PooledEntry>();
 
-    private final BlockingQueue<XAStatefulHolder> availablePool = new LinkedBlockingQueue<XAStatefulHolder>();
-    private final Queue<XAStatefulHolder> accessiblePool = new LinkedList<XAStatefulHolder>();
-    private final Queue<XAStatefulHolder> inaccessiblePool = new LinkedList<XAStatefulHolder>();
+    /**
+     * The available (IN_POOL) objects, in release order. This queue can contain entries which have since been claimed
+     * through the thread-affinity slot or closed, those are skipped when polled.
+     */
+    private final Queue<PooledEntry> availablePool = new ConcurrentLinkedQueue<PooledEntry>();
+    private final AtomicInteger inPoolCount = new AtomicInteger();
+
+    /**
+     * The NOT_ACCESSIBLE objects, each associated with the GTRIDs of the transactions its resources were enlisted in
+     * when it became NOT_ACCESSIBLE. The same objects are also indexed per GTRID in inaccessibleByGtrid so that
+     * recycling them does not scan the whole pool. Both maps are guarded by inaccessibleByGtrid's monitor.
+     */
+    private final Map<XAStatefulHolder, Set<Uid>> inaccessiblePool = new HashMap<XAStatefulHolder, Set<Uid>>();
+    private final Map<Uid, List<XAStatefulHolder>> inaccessibleByGtrid = new HashMap<Uid, List<XAStatefulHolder>>();
+
+    /**
+     * The pooled object last acquired by the current thread, which is tried first as it most likely is still
+     * available and warm. It is weakly referenced so that threads outliving the pooled object, or the pool itself, do
+     * not keep closed physical connections in memory.
+     */
+    private final ThreadLocal<WeakReference<PooledEntry>> lastAcquiredEntry = new ThreadLocal<WeakReference<PooledEntry>>();
+
+    /**
+     * Borrowers only take this lock when the pool is empty and they must wait for an object to be released. Releasing
+     * an object only takes it when there are such waiters to signal. The lock is fair and borrowers do not overtake
+     * the ones already waiting so that the latter are served in FIFO order.
+     */
+    private final ReentrantLock waitLock = new ReentrantLock(true);
+    private final Condition availableCondition = waitLock.newCondition();
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    private final LatencyHistogram acquisitionWaitTimes = new LatencyHistogram();
+    private final LatencyHistogram creationTimes = new LatencyHistogram();
+    private final LatencyHistogram validationTimes = new LatencyHistogram();
+
+    /**
+     * Objects reserved for creation but not created yet. They count in the pool size when deciding if it can grow.
+     */
+    private final AtomicInteger pendingCreations = new AtomicInteger();
+    /**
+     * Objects reserved for creation that no background creator has started creating yet.
+     */
+    private final AtomicInteger queuedCreations = new AtomicInteger();
+    private final AtomicInteger runningCreators = new AtomicInteger();
+    private final AtomicInteger creationFailures = new AtomicInteger();
+    private volatile Throwable lastCreationFailure;
+    /**
+     * Incremented each time the pool is closed so that background creations requested before that are discarded.
+     */
+    private volatile int generation;
+
+    /**
+     * Released objects waiting to be tested by the background validator before they become available again.
+     */
+    private final Queue<PooledEntry> validationQueue = new ConcurrentLinkedQueue<PooledEntry>();
+    private final AtomicBoolean validatorRunning = new AtomicBoolean();
+
+    /**
+     * Runs the pool's background creations and validations. It is created by {@link #init()} and shut down by
+     * {@link #close()}, it is null while the pool is closed.
+     */
+    private volatile ExecutorService backgroundExecutor;
 
     /**
      * This map is used to implement the connection sharing feature of Bitronix.
@@ -94,16 +162,25 @@ public class XAPool implements StateChangeListener {
             throw new IllegalArgumentException("cannot create a pool with a connection acquisition increment less than 1, configured value is " + bean.getAcquireIncrement());
 
         xaFactory = XAFactoryHelper.createXAFactory(bean);
-        init();
+        try {
+            init();
+        } catch (Exception ex) {
+            stopBackgroundExecutor();
+            throw ex;
+        }
 
         if (bean.getIgnoreRecoveryFailures())
             log.warn("resource '" + bean.getUniqueName() + "' is configured to ignore recovery failures, make sure this setting is not enabled on a production system!");
     }
 
     private void init() throws Exception {
+        // one thread per concurrent creation plus one for the validator
+        int threads = Math.max(1, bean.getMaxConcurrentCreations()) + 1;
+        backgroundExecutor = Executors.newFixedThreadPool(threads, new PoolThreadFactory(bean.getUniqueName()));
+
         growUntilMinPoolSize();
 
-        if (bean.getMaxIdleTime() > 0 || bean.getMaxLifeTime() > 0) {
+        if (bean.getMaxIdleTime() > 0 || bean.getMaxLifeTime() > 0 || bean.getIdleConnectionTestInterval() > 0) {
             TransactionManagerServices.getTaskScheduler().schedulePoolShrinking(this);
         }
     }
@@ -113,7 +190,11 @@ public class XAPool implements StateChangeListener {
      */
     public synchronized void close() {
         if (log.isDebugEnabled()) { log.debug("closing all connections of " + this); }
-        
+
+        // stop the background work first so that it cannot add objects to the pool while it is being closed
+        generation++;
+        stopBackgroundExecutor();
+
         for (XAStatefulHolder xaStatefulHolder : getXAResourceHolders()) {
             try {
                 xaStatefulHolder.close();
@@ -125,15 +206,62 @@ public class XAPool implements StateChangeListener {
         if (TransactionManagerServices.isTaskSchedulerRunning())
             TransactionManagerServices.getTaskScheduler().cancelPoolShrinking(this);
 
-        stateTransitionLock.writeLock().lock();
-        try {
-            availablePool.clear();
-            accessiblePool.clear();
+        queuedCreations.set(0);
+        pendingCreations.set(0);
+        runningCreators.set(0);
+        validationQueue.clear();
+        validatorRunning.set(false);
+        lastCreationFailure = null;
+
+        // make sure the objects that failed to close cannot be claimed anymore, even through a thread-affinity slot
+        for (PooledEntry entry : entries.values()) {
+            entry.available.set(false);
+        }
+        entries.clear();
+        availablePool.clear();
+        lastAcquiredEntry.remove();
+        inPoolCount.set(0);
+        synchronized (inaccessibleByGtrid) {
             inaccessiblePool.clear();
-            failed.set(false);
+            inaccessibleByGtrid.clear();
         }
-        finally {
-            stateTransitionLock.writeLock().unlock();
+        failed.set(false);
+    }
+
+    /**
+     * Shut down the background executor and wait up to the acquisition timeout for the running tasks to terminate.
+     */
+    private void stopBackgroundExecutor() {
+        ExecutorService executor = backgroundExecutor;
+        if (executor == null)
+            return;
+        backgroundExecutor = null;
+
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(bean.getAcquisitionTimeout(), TimeUnit.SECONDS))
+                log.warn("background tasks of " + this + " did not terminate after " + bean.getAcquisitionTimeout() + "s, abandoning them");
+        } catch (InterruptedException ex) {
+            log.warn("interrupted while waiting for the background tasks of " + this + " to terminate, abandoning them");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Run a task on the background executor.
+     *
+     * @param task the task to run
+     * @return the task's future or null if the pool is closed
+     */
+    private Future<?> runInBackground(Runnable task) {
+        ExecutorService executor = backgroundExecutor;
+        if (executor == null)
+            return null;
+        try {
+            return executor.submit(task);
+        } catch (RejectedExecutionException ex) {
+            if (log.isDebugEnabled()) { log.debug("pool " + bean.getUniqueName() + " is closed, not running " + task); }
+            return null;
         }
     }
 
@@ -185,12 +313,7 @@ public class XAPool implements StateChangeListener {
                     putSharedXAStatefulHolder(xaStatefulHolder);
                 }
 
-                try {
-                	growUntilMinPoolSize();
-                }
-                catch (Exception e) {
-                	log.warn("exception while trying to fill pool to minimum size");
-                }
+                prefill();
 
                 return connectionHandle;
             } catch (Exception ex) {
@@ -231,54 +354,45 @@ public class XAPool implements StateChangeListener {
     }
 
     public void stateChanging(XAStatefulHolder source, int currentState, int futureState) {
-        stateTransitionLock.writeLock().lock();
-        try {
-            switch (currentState) {
-            case XAStatefulHolder.STATE_IN_POOL:
+        switch (currentState) {
+        case XAStatefulHolder.STATE_IN_POOL:
+            // the object normally has already been claimed by the borrower, unless its state is changed by someone else
+            PooledEntry entry = entries.get(source);
+            if (entry != null && claim(entry)) {
                 if (log.isDebugEnabled()) { log.debug("removed " + source + " from the available pool"); }
-                availablePool.remove(source);
-                break;
-            case XAStatefulHolder.STATE_ACCESSIBLE:
-                if (log.isDebugEnabled()) { log.debug("removed " + source + " from the accessible pool"); }
-                accessiblePool.remove(source);
-                break;
-            case XAStatefulHolder.STATE_NOT_ACCESSIBLE:
-                if (log.isDebugEnabled()) { log.debug("removed " + source + " from the inaccessible pool"); }
-                inaccessiblePool.remove(source);
-                break;
-            case XAStatefulHolder.STATE_CLOSED:
-                source.removeStateChangeEventListener(this);
-                break;
             }
-        }
-        finally {
-            stateTransitionLock.writeLock().unlock();
+            break;
+        case XAStatefulHolder.STATE_NOT_ACCESSIBLE:
+            if (log.isDebugEnabled()) { log.debug("removed " + source + " from the inaccessible pool"); }
+            removeInaccessible(source);
+            break;
+        case XAStatefulHolder.STATE_CLOSED:
+            source.removeStateChangeEventListener(this);
+            break;
         }
     }
 
     public void stateChanged(XAStatefulHolder source, int oldState, int newState) {
-        stateTransitionLock.writeLock().lock();
-        try {
-        	switch (newState) {
-        	case XAStatefulHolder.STATE_IN_POOL:
-        		if (log.isDebugEnabled()) { log.debug("added " + source + " to the available pool"); }
-        		availablePool.add(source);
-        		break;
-        	case XAStatefulHolder.STATE_ACCESSIBLE:
-        		if (log.isDebugEnabled()) { log.debug("added " + source + " to the accessible pool"); }
-        		accessiblePool.add(source);
-        		break;
-        	case XAStatefulHolder.STATE_NOT_ACCESSIBLE:
-        		if (log.isDebugEnabled()) { log.debug("added " + source + " to the inaccessible pool"); }
-        		inaccessiblePool.add(source);
-        		break;
-        	case XAStatefulHolder.STATE_CLOSED:
-                source.removeStateChangeEventListener(this);
-        		break;
-        	}
-        }
-        finally {
-            stateTransitionLock.writeLock().unlock();
+        switch (newState) {
+        case XAStatefulHolder.STATE_IN_POOL:
+            PooledEntry entry = entries.get(source);
+            if (entry != null) {
+                if (bean.getTestConnectionsOnRelease()) {
+                    validateInBackground(entry);
+                }
+                else {
+                    if (log.isDebugEnabled()) { log.debug("added " + source + " to the available pool"); }
+                    release(entry);
+                }
+            }
+            break;
+        case XAStatefulHolder.STATE_NOT_ACCESSIBLE:
+            addInaccessible(source);
+            break;
+        case XAStatefulHolder.STATE_CLOSED:
+            source.removeStateChangeEventListener(this);
+            entries.remove(source);
+            break;
         }
     }
 
@@ -297,19 +411,75 @@ public class XAPool implements StateChangeListener {
         Uid currentTxGtrid = transaction.getResourceManager().getGtrid();
         if (log.isDebugEnabled()) { log.debug("current transaction GTRID is [" + currentTxGtrid + "]"); }
 
-        stateTransitionLock.readLock().lock();
-        try {
-            for (XAStatefulHolder xaStatefulHolder : inaccessiblePool) {
-                if (log.isDebugEnabled()) { log.debug("found a connection in NOT_ACCESSIBLE state: " + xaStatefulHolder); }
-                if (containsXAResourceHolderMatchingGtrid(xaStatefulHolder, currentTxGtrid))
-                    return xaStatefulHolder;
-            } // for
-    
-            if (log.isDebugEnabled()) { log.debug("no NOT_ACCESSIBLE connection enlisted in this transaction"); }
-            return null;
+        XAStatefulHolder[] candidates;
+        synchronized (inaccessibleByGtrid) {
+            List<XAStatefulHolder> holders = inaccessibleByGtrid.get(currentTxGtrid);
+            if (holders == null) {
+                if (log.isDebugEnabled()) { log.debug("no NOT_ACCESSIBLE connection enlisted in this transaction"); }
+                return null;
+            }
+            candidates = holders.toArray(new XAStatefulHolder[holders.size()]);
         }
-        finally {
-            stateTransitionLock.readLock().unlock();
+
+        for (XAStatefulHolder xaStatefulHolder : candidates) {
+            if (log.isDebugEnabled()) { log.debug("found a connection in NOT_ACCESSIBLE state: " + xaStatefulHolder); }
+            if (containsXAResourceHolderMatchingGtrid(xaStatefulHolder, currentTxGtrid))
+                return xaStatefulHolder;
+        } // for
+
+        if (log.isDebugEnabled()) { log.debug("no NOT_ACCESSIBLE connection enlisted in this transaction"); }
+        return null;
+    }
+
+    /**
+     * Index a NOT_ACCESSIBLE object under the GTRIDs of the transactions its resources are enlisted in, which do not
+     * have to be the transaction running on the current thread.
+     *
+     * @param xaStatefulHolder the object which became NOT_ACCESSIBLE
+     */
+    private void addInaccessible(XAStatefulHolder xaStatefulHolder) {
+        Set<Uid> gtrids = new HashSet<Uid>();
+        for (XAResourceHolder xaResourceHolder : xaStatefulHolder.getXAResourceHolders()) {
+            gtrids.addAll(xaResourceHolder.getXAResourceHolderStateGtridUids());
+        }
+        if (gtrids.isEmpty()) {
+            log.warn(xaStatefulHolder + " became NOT_ACCESSIBLE while not enlisted in any transaction, it cannot be recycled");
+            return;
+        }
+        if (log.isDebugEnabled()) { log.debug("added " + xaStatefulHolder + " to the inaccessible pool of GTRID(s) " + gtrids); }
+
+        synchronized (inaccessibleByGtrid) {
+            Set<Uid> previousGtrids = inaccessiblePool.put(xaStatefulHolder, gtrids);
+            if (previousGtrids != null)
+                unindexInaccessible(xaStatefulHolder, previousGtrids);
+
+            for (Uid gtrid : gtrids) {
+                List<XAStatefulHolder> holders = inaccessibleByGtrid.get(gtrid);
+                if (holders == null) {
+                    holders = new ArrayList<XAStatefulHolder>(2);
+                    inaccessibleByGtrid.put(gtrid, holders);
+                }
+                holders.add(xaStatefulHolder);
+            }
+        }
+    }
+
+    private void removeInaccessible(XAStatefulHolder xaStatefulHolder) {
+        synchronized (inaccessibleByGtrid) {
+            Set<Uid> gtrids = inaccessiblePool.remove(xaStatefulHolder);
+            if (gtrids != null)
+                unindexInaccessible(xaStatefulHolder, gtrids);
+        }
+    }
+
+    private void unindexInaccessible(XAStatefulHolder xaStatefulHolder, Set<Uid> gtrids) {
+        for (Uid gtrid : gtrids) {
+            List<XAStatefulHolder> holders = inaccessibleByGtrid.get(gtrid);
+            if (holders == null)
+                continue;
+            holders.remove(xaStatefulHolder);
+            if (holders.isEmpty())
+                inaccessibleByGtrid.remove(gtrid);
         }
     }
 
@@ -353,26 +523,144 @@ public class XAPool implements StateChangeListener {
     private XAStatefulHolder getInPool(long remainingTimeMs) throws Exception {
         if (log.isDebugEnabled()) { log.debug("getting a IN_POOL connection from " + this); }
 
-        if (inPoolSize() == 0) {
+        // do not overtake the borrowers already waiting for an object
+        int waiting = waiters.get();
+        if (waiting == 0) {
+            PooledEntry entry = pollAvailable();
+            if (entry != null) {
+                acquisitionWaitTimes.record(0);
+                return entry.xaStatefulHolder;
+            }
+        }
+
+        long before = System.nanoTime();
+        int failuresBefore = creationFailures.get();
+        boolean growing = pendingCreations.get() > 0;
+        if (inPoolSize() <= waiting) {
             if (log.isDebugEnabled()) { log.debug("no more free connections in " + this + ", trying to grow it"); }
-            grow();
+            growing = requestGrowth(bean.getAcquireIncrement()) > 0 || growing;
         }
 
         if (log.isDebugEnabled()) { log.debug("getting IN_POOL connection, waiting if necessary, current size is " + inPoolSize()); }
 
         try {
-        	XAStatefulHolder xaStatefulHolder = availablePool.poll(remainingTimeMs, TimeUnit.MILLISECONDS);
-        	if (xaStatefulHolder == null) {
-        		if (TransactionManagerServices.isTransactionManagerRunning())
-        			TransactionManagerServices.getTransactionManager().dumpTransactionContexts();
-        		
-        		throw new BitronixRuntimeException("XA pool of resource " + bean.getUniqueName() + " still empty after " + bean.getAcquisitionTimeout() + "s wait time");
-        	}
+            PooledEntry entry = waitForAvailable(remainingTimeMs, growing ? failuresBefore : -1);
+            acquisitionWaitTimes.recordNanos(System.nanoTime() - before);
+            if (entry == null) {
+                if (TransactionManagerServices.isTransactionManagerRunning())
+                    TransactionManagerServices.getTransactionManager().dumpTransactionContexts();
+
+                throw new BitronixRuntimeException("XA pool of resource " + bean.getUniqueName() + " still empty after " + bean.getAcquisitionTimeout() + "s wait time");
+            }
+
+            return entry.xaStatefulHolder;
+        } catch (InterruptedException e) {
+            throw new BitronixRuntimeException("Interrupted while waiting for IN_POOL connection.");
+        }
+    }
+
+    /**
+     * Claim an available object without blocking. The object last acquired by the current thread is tried first, then
+     * the available queue is polled until an object can be claimed.
+     *
+     * @return the claimed entry or null if no object is available
+     */
+    private PooledEntry pollAvailable() {
+        WeakReference<PooledEntry> lastAcquired = lastAcquiredEntry.get();
+        if (lastAcquired != null) {
+            PooledEntry entry = lastAcquired.get();
+            if (entry == null || entries.get(entry.xaStatefulHolder) != entry) {
+                // the object has been removed from the pool, forget it
+                lastAcquiredEntry.remove();
+            }
+            else if (claim(entry)) {
+                if (log.isDebugEnabled()) { log.debug("reusing connection last acquired by this thread " + entry.xaStatefulHolder); }
+                return entry;
+            }
+        }
+
+        PooledEntry entry;
+        while ((entry = availablePool.poll()) != null) {
+            entry.queued.set(false);
+            if (claim(entry)) {
+                lastAcquiredEntry.set(entry.reference);
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Block for up to remainingTimeMs milliseconds until an object is released or created and can be claimed.
+     *
+     * @param remainingTimeMs the maximum time to wait for an object
+     * @param failuresBefore the background creation failures count before the pool was asked to grow for this call,
+     *        or -1 if this call did not make the pool grow.
+     * @return the claimed entry or null if the time expired
+     * @throws InterruptedException if the thread was interrupted while waiting
+     * @throws Exception the exception of the background creation which failed if the pool could not grow
+     */
+    private PooledEntry waitForAvailable(long remainingTimeMs, int failuresBefore) throws Exception {
+        long remainingNanos = TimeUnit.MILLISECONDS.toNanos(remainingTimeMs);
+        waiters.incrementAndGet();
+        waitLock.lock();
+        try {
+            while (true) {
+                PooledEntry entry = pollAvailable();
+                if (entry != null)
+                    return entry;
+                if (failuresBefore != -1 && creationFailures.get() != failuresBefore && pendingCreations.get() == 0) {
+                    Throwable failure = lastCreationFailure;
+                    if (failure != null)
+                        rethrowCreationFailure(failure);
+                }
+                if (remainingNanos <= 0)
+                    return null;
+                remainingNanos = availableCondition.awaitNanos(remainingNanos);
+            }
+        }
+        finally {
+            waitLock.unlock();
+            waiters.decrementAndGet();
+        }
+    }
 
-        	return xaStatefulHolder;
-		} catch (InterruptedException e) {
-			throw new BitronixRuntimeException("Interrupted while waiting for IN_POOL connection.");
-		}
+    /**
+     * Atomically take an available entry out of the pool.
+     *
+     * @param entry the entry to claim
+     * @return true if the entry was available and is now owned by the caller, false otherwise
+     */
+    private boolean claim(PooledEntry entry) {
+        if (entry.available.compareAndSet(true, false)) {
+            inPoolCount.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Make an entry available, queue it unless it already is and wake up a waiting borrower if there is one.
+     *
+     * @param entry the entry to release
+     */
+    private void release(PooledEntry entry) {
+        inPoolCount.incrementAndGet();
+        if (!entry.available.compareAndSet(false, true))
+            inPoolCount.decrementAndGet();
+
+        if (entry.queued.compareAndSet(false, true))
+            availablePool.offer(entry);
+
+        if (waiters.get() > 0) {
+            waitLock.lock();
+            try {
+                availableCondition.signal();
+            }
+            finally {
+                waitLock.unlock();
+            }
+        }
     }
 
     /* ------------------------------------------------------------------------
@@ -380,47 +668,377 @@ public class XAPool implements StateChangeListener {
      * ------------------------------------------------------------------------*/
 
     /**
-     * Grow the pool by "acquire increment" amount up to the max pool size.
+     * Reserve the creation of up to wanted objects without going over the max pool size.
      *
-     * @throws Exception thrown if creating a pooled objects fails
+     * @param wanted the amount of objects to reserve
+     * @return the amount of objects actually reserved
      */
-    private synchronized void grow() throws Exception {
-    	final long totalPoolSize = totalPoolSize();
-        if (totalPoolSize < bean.getMaxPoolSize()) {
-            long increment = bean.getAcquireIncrement();
-            if (totalPoolSize + increment > bean.getMaxPoolSize()) {
-                increment = bean.getMaxPoolSize() - totalPoolSize;
-            }
+    private int reserveCreations(int wanted) {
+        while (true) {
+            int pending = pendingCreations.get();
+            int reserved = Math.min(wanted, bean.getMaxPoolSize() - totalPoolSize() - pending);
+            if (reserved <= 0)
+                return 0;
+            if (pendingCreations.compareAndSet(pending, pending + reserved))
+                return reserved;
+        }
+    }
 
-            if (log.isDebugEnabled()) { log.debug("incrementing " + bean.getUniqueName() + " pool size by " + increment + " unit(s) to reach " + (totalPoolSize() + increment) + " connection(s)"); }
-            for (int i=0; i < increment ;i++) {
-                createPooledObject(xaFactory);
+    /**
+     * Ask the background creators to grow the pool by the specified amount, up to the max pool size.
+     *
+     * @param wanted the amount of objects to create
+     * @return the amount of objects that will be created
+     */
+    private int requestGrowth(int wanted) {
+        int reserved = reserveCreations(wanted);
+        if (reserved == 0) {
+            if (log.isDebugEnabled()) { log.debug("pool " + bean.getUniqueName() + " already at max size of " + totalPoolSize() + " connection(s) with " + pendingCreations.get() + " being created, not growing it"); }
+            return 0;
+        }
+
+        if (log.isDebugEnabled()) { log.debug("incrementing " + bean.getUniqueName() + " pool size by " + reserved + " unit(s) in the background"); }
+        queuedCreations.addAndGet(reserved);
+        startCreators();
+        return reserved;
+    }
+
+    /**
+     * Start background creators until there is one per queued creation, up to the configured max concurrent creations.
+     */
+    private void startCreators() {
+        int maxCreators = Math.max(1, bean.getMaxConcurrentCreations());
+        while (true) {
+            int running = runningCreators.get();
+            if (running >= maxCreators || running >= queuedCreations.get())
+                return;
+            if (runningCreators.compareAndSet(running, running + 1)) {
+                if (runInBackground(new PoolFiller(generation)) == null) {
+                    runningCreators.decrementAndGet();
+                    return;
+                }
             }
         }
-        else {
-            if (log.isDebugEnabled()) { log.debug("pool " + bean.getUniqueName() + " already at max size of " + totalPoolSize() + " connection(s), not growing it"); }
+    }
+
+    /**
+     * Asynchronously grow the pool to its minimum size and, if a prefill watermark is configured, grow it when the
+     * amount of available objects is under the watermark.
+     */
+    private void prefill() {
+        int missing = bean.getMinPoolSize() - totalPoolSize() - pendingCreations.get();
+        if (missing > 0) {
+            if (log.isDebugEnabled()) { log.debug("growing " + this + " to minimum pool size " + bean.getMinPoolSize() + " in the background"); }
+            requestGrowth(missing);
+        }
+
+        int watermark = bean.getPrefillWatermark();
+        if (watermark > 0) {
+            int deficit = watermark - inPoolSize() - pendingCreations.get();
+            if (deficit > 0) {
+                if (log.isDebugEnabled()) { log.debug(this + " is under its prefill watermark of " + watermark + ", growing it in the background"); }
+                requestGrowth(Math.max(deficit, bean.getAcquireIncrement()));
+            }
         }
     }
 
     private synchronized void growUntilMinPoolSize() throws Exception {
         if (log.isDebugEnabled()) { log.debug("growing " + this + " to minimum pool size " + bean.getMinPoolSize()); }
-        for (int i = totalPoolSize(); i < bean.getMinPoolSize(); i++) {
-            createPooledObject(xaFactory);
+        // objects being created in the background may be handed out before this method returns, do not count them
+        int reserved = reserveCreations(bean.getMinPoolSize() - totalPoolSize());
+        int creators = Math.min(reserved, Math.max(1, bean.getMaxConcurrentCreations()));
+        if (creators > 1) {
+            growInParallel(reserved, creators);
+            return;
+        }
+
+        try {
+            while (reserved > 0) {
+                XAStatefulHolder xaStatefulHolder = createPooledObject();
+                reserved--;
+                addPooledObject(xaStatefulHolder);
+            }
+        }
+        finally {
+            pendingCreations.addAndGet(-reserved);
+        }
+    }
+
+    /**
+     * Create reserved objects with multiple threads, the calling one included, and wait for all of them to be created.
+     * Creation stops as soon as one of them fails and the first failure is rethrown.
+     *
+     * @param reserved the amount of objects reserved for creation
+     * @param creators the amount of threads creating objects concurrently
+     * @throws Exception the first creation failure
+     */
+    private void growInParallel(int reserved, int creators) throws Exception {
+        if (log.isDebugEnabled()) { log.debug("creating " + reserved + " connection(s) of " + this + " with " + creators + " concurrent creators"); }
+        final AtomicInteger remaining = new AtomicInteger(reserved);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        List<Future<?>> helpers = new ArrayList<Future<?>>(creators - 1);
+        for (int i = 0; i < creators - 1; i++) {
+            Future<?> helper = runInBackground(new PoolWarmer(remaining, failure));
+            if (helper != null)
+                helpers.add(helper);
+        }
+
+        createReserved(remaining, failure);
+
+        boolean interrupted = false;
+        for (Future<?> helper : helpers) {
+            while (true) {
+                try {
+                    helper.get();
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                } catch (ExecutionException ex) {
+                    if (log.isDebugEnabled()) { log.debug("ignoring unexpected error of a pool warmer", ex.getCause()); }
+                    break;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        // give back the reservations left over after a failure
+        int unused = remaining.get();
+        if (unused > 0)
+            pendingCreations.addAndGet(-unused);
+
+        Throwable ex = failure.get();
+        if (ex != null)
+            rethrowCreationFailure(ex);
+    }
+
+    /**
+     * Rethrow the failure of a pooled object creation, errors thrown by the driver included.
+     *
+     * @param failure the creation failure
+     * @throws Exception the failure itself if it is an exception
+     */
+    private void rethrowCreationFailure(Throwable failure) throws Exception {
+        if (failure instanceof Exception)
+            throw (Exception) failure;
+        if (failure instanceof Error)
+            throw (Error) failure;
+        throw new BitronixRuntimeException("error creating a connection of " + this, failure);
+    }
+
+    private void createReserved(AtomicInteger remaining, AtomicReference<Throwable> failure) {
+        while (failure.get() == null && remaining.getAndDecrement() > 0) {
+            try {
+                addPooledObject(createPooledObject());
+            } catch (Throwable ex) {
+                // errors thrown by the driver must give the reservation back too
+                pendingCreations.decrementAndGet();
+                failure.compareAndSet(null, ex);
+            }
         }
     }
 
-    private void createPooledObject(Object xaFactory) throws Exception {
+    private XAStatefulHolder createPooledObject() throws Exception {
+        long before = System.nanoTime();
         XAStatefulHolder xaStatefulHolder = xaResourceProducer.createPooledConnection(xaFactory, bean);
+        creationTimes.recordNanos(System.nanoTime() - before);
+        return xaStatefulHolder;
+    }
+
+    /**
+     * Create a pooled object reserved by {@link #requestGrowth(int)}. The pool's waiters are woken up if it fails.
+     */
+    private void createPooledObjectInBackground() {
+        int currentGeneration = generation;
+        XAStatefulHolder xaStatefulHolder;
+        try {
+            xaStatefulHolder = createPooledObject();
+        } catch (Throwable ex) {
+            // errors thrown by the driver are caught too: the reservation must be given back and the waiters told
+            // about the failure or they would wait for a creation which never completes
+            if (currentGeneration != generation)
+                return;
+            log.warn("error creating a connection of " + this + " in the background: " + ex.getMessage());
+            if (log.isDebugEnabled()) { log.debug("connection creation error", ex); }
+            lastCreationFailure = ex;
+            pendingCreations.decrementAndGet();
+            creationFailures.incrementAndGet();
+
+            waitLock.lock();
+            try {
+                availableCondition.signalAll();
+            }
+            finally {
+                waitLock.unlock();
+            }
+            return;
+        }
+
+        if (currentGeneration != generation) {
+            if (log.isDebugEnabled()) { log.debug("pool has been closed while creating " + xaStatefulHolder + ", closing it"); }
+            try {
+                xaStatefulHolder.close();
+            } catch (Exception ex) {
+                if (log.isDebugEnabled()) { log.debug("ignoring exception while closing connection " + xaStatefulHolder, ex); }
+            }
+            return;
+        }
+
+        addPooledObject(xaStatefulHolder);
+    }
+
+    /**
+     * Add a freshly created object to the pool and make it available. Its creation reservation is given back before
+     * it can be claimed so that borrowers never wait for a creation which already completed.
+     *
+     * @param xaStatefulHolder the created object
+     */
+    private void addPooledObject(XAStatefulHolder xaStatefulHolder) {
+        PooledEntry entry = new PooledEntry(xaStatefulHolder);
+        entries.put(xaStatefulHolder, entry);
         xaStatefulHolder.addStateChangeEventListener(this);
-        availablePool.add(xaStatefulHolder);
+        pendingCreations.decrementAndGet();
+        release(entry);
+    }
+
+    /**
+     * Helper creating reserved objects alongside the thread growing the pool to its minimum size.
+     */
+    private final class PoolWarmer implements Runnable {
+        private final AtomicInteger remaining;
+        private final AtomicReference<Throwable> failure;
+
+        private PoolWarmer(AtomicInteger remaining, AtomicReference<Throwable> failure) {
+            this.remaining = remaining;
+            this.failure = failure;
+        }
+
+        public void run() {
+            createReserved(remaining, failure);
+        }
+    }
+
+    /**
+     * Background creator of pooled objects. It creates objects as long as some are queued for creation then exits.
+     * It also exits when the pool is closed, leaving the creators count to {@link XAPool#close()}.
+     */
+    private final class PoolFiller implements Runnable {
+        private final int startGeneration;
+
+        private PoolFiller(int startGeneration) {
+            this.startGeneration = startGeneration;
+        }
+
+        public void run() {
+            int maxCreators = Math.max(1, bean.getMaxConcurrentCreations());
+            while (startGeneration == generation) {
+                int queued = queuedCreations.get();
+                if (queued > 0) {
+                    if (queuedCreations.compareAndSet(queued, queued - 1))
+                        createPooledObjectInBackground();
+                    continue;
+                }
+
+                runningCreators.decrementAndGet();
+                // a creation could have been queued while all the creators were busy, make sure it is not left behind
+                while (true) {
+                    if (queuedCreations.get() <= 0)
+                        return;
+                    int running = runningCreators.get();
+                    if (running >= maxCreators)
+                        return;
+                    if (runningCreators.compareAndSet(running, running + 1))
+                        break;
+                }
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------------------
+     * Pooled object validation
+     * ------------------------------------------------------------------------*/
+
+    /**
+     * Queue a released object for testing by the background validator. It is only made available again once it
+     * passed the test.
+     *
+     * @param entry the released entry
+     */
+    private void validateInBackground(PooledEntry entry) {
+        if (log.isDebugEnabled()) { log.debug("queuing " + entry.xaStatefulHolder + " for testing before adding it to the available pool"); }
+        validationQueue.offer(entry);
+        if (validatorRunning.compareAndSet(false, true)) {
+            if (runInBackground(new PoolValidator(generation)) == null)
+                validatorRunning.set(false);
+        }
+    }
+
+    /**
+     * Test an object which is not available in the pool. It is closed if it fails the test.
+     *
+     * @param xaStatefulHolder the object to test
+     * @return true if the object passed the test, false if it has been closed
+     */
+    private boolean validate(XAStatefulHolder xaStatefulHolder) {
+        try {
+            xaStatefulHolder.validate();
+            return true;
+        } catch (Exception ex) {
+            log.warn("closing " + xaStatefulHolder + " of " + bean.getUniqueName() + " as it failed its test: " + ex.getMessage());
+            if (log.isDebugEnabled()) { log.debug("connection test error", ex); }
+            try {
+                xaStatefulHolder.close();
+            } catch (Exception ex2) {
+                if (log.isDebugEnabled()) { log.debug("exception while trying to close invalid connection, ignoring it", ex2); }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Background tester of released objects. It tests objects as long as some are queued then exits. It also exits
+     * when the pool is closed, leaving the running flag to {@link XAPool#close()}.
+     */
+    private final class PoolValidator implements Runnable {
+        private final int startGeneration;
+
+        private PoolValidator(int startGeneration) {
+            this.startGeneration = startGeneration;
+        }
+
+        public void run() {
+            while (startGeneration == generation) {
+                PooledEntry entry;
+                while (startGeneration == generation && (entry = validationQueue.poll()) != null) {
+                    if (entries.get(entry.xaStatefulHolder) != entry)
+                        continue; // closed in the meantime
+                    if (validate(entry.xaStatefulHolder))
+                        release(entry);
+                    else
+                        prefill();
+                }
+                if (startGeneration != generation)
+                    return;
+
+                validatorRunning.set(false);
+                // an object could have been queued after the queue was found empty, make sure it is not left behind
+                if (validationQueue.isEmpty() || !validatorRunning.compareAndSet(false, true))
+                    return;
+            }
+        }
     }
 
     /* ------------------------------------------------------------------------
      * Pool shrinking and pooled object expiration.
      * ------------------------------------------------------------------------*/
 
-    public Date getNextShrinkDate() {
-        return new Date(MonotonicClock.currentTimeMillis() + bean.getMaxIdleTime() * 1000);
+    public long getNextShrinkTime() {
+        int interval = bean.getMaxIdleTime();
+        int testInterval = bean.getIdleConnectionTestInterval();
+        if (testInterval > 0 && (interval <= 0 || testInterval < interval))
+            interval = testInterval;
+        return MonotonicClock.coarseTimeMillis() + interval * 1000L;
     }
     
     public void shrink() throws Exception {
@@ -438,20 +1056,19 @@ public class XAPool implements StateChangeListener {
     private synchronized void expireOrCloseStatefulHolders(boolean forceClose) throws Exception {
         int closed = 0;
         final long now = MonotonicClock.currentTimeMillis();
-        final int availableSize = availablePool.size();
-        for (int i = 0; i < availableSize; i++) {
-            XAStatefulHolder xaStatefulHolder = availablePool.poll();
-            if (xaStatefulHolder == null) {
-                break;
+        for (PooledEntry entry : entries.values()) {
+            if (!claim(entry)) {
+                continue;
             }
+            XAStatefulHolder xaStatefulHolder = entry.xaStatefulHolder;
 
-            long expirationTime = Integer.MAX_VALUE;
+            long expirationTime = Long.MAX_VALUE;
             if (bean.getMaxIdleTime() > 0) {
-                expirationTime = (xaStatefulHolder.getLastReleaseDate().getTime() + (bean.getMaxIdleTime() * 1000));
+                expirationTime = (xaStatefulHolder.getLastReleaseTime() + (bean.getMaxIdleTime() * 1000L));
             }
 
             if (bean.getMaxLifeTime() > 0) {
-                long endOfLife = xaStatefulHolder.getCreationDate().getTime() + (bean.getMaxLifeTime() * 1000);
+                long endOfLife = xaStatefulHolder.getCreationTime() + (bean.getMaxLifeTime() * 1000L);
                 expirationTime = Math.min(expirationTime, endOfLife);
             }
 
@@ -463,8 +1080,14 @@ public class XAPool implements StateChangeListener {
                 } catch (Exception ex) {
                     log.warn("error closing " + xaStatefulHolder, ex);
                 }
+            } else if (bean.getIdleConnectionTestInterval() > 0 && xaStatefulHolder.getLastReleaseTime() + (bean.getIdleConnectionTestInterval() * 1000L) <= now) {
+                if (log.isDebugEnabled()) { log.debug("testing idle connection " + xaStatefulHolder); }
+                if (validate(xaStatefulHolder))
+                    release(entry);
+                else
+                    closed++;
             } else {
-                availablePool.add(xaStatefulHolder);
+                release(entry);
             }
         } // for
 
@@ -529,7 +1152,7 @@ public class XAPool implements StateChangeListener {
      * @return the total size of this pool
      */
     public int totalPoolSize() {
-        return availablePool.size() + accessiblePool.size() + inaccessiblePool.size();
+        return entries.size();
     }
 
     /**
@@ -538,21 +1161,49 @@ public class XAPool implements StateChangeListener {
      * @return the number of available objects
      */
     public int inPoolSize() {
-        return availablePool.size();
+        return Math.max(0, inPoolCount.get());
+    }
+
+    /**
+     * Get the number of borrowers currently waiting for an object to be released or created.
+     *
+     * @return the number of waiting borrowers
+     */
+    public int waitingCount() {
+        return waiters.get();
+    }
+
+    /**
+     * Get the distribution of the time borrowers spent waiting for an available object. Borrowers which did not have
+     * to wait are recorded as well.
+     *
+     * @return the acquisition wait times histogram
+     */
+    public LatencyHistogram getAcquisitionWaitTimes() {
+        return acquisitionWaitTimes;
+    }
+
+    /**
+     * Get the distribution of the time it took to create the pooled objects.
+     *
+     * @return the creation times histogram
+     */
+    public LatencyHistogram getCreationTimes() {
+        return creationTimes;
+    }
+
+    /**
+     * Get the distribution of the time it took to test the pooled objects. The tests are timed and recorded by the
+     * pooled objects themselves.
+     *
+     * @return the validation times histogram
+     */
+    public LatencyHistogram getValidationTimes() {
+        return validationTimes;
     }
 
     public List<XAStatefulHolder> getXAResourceHolders() {
-        stateTransitionLock.readLock().lock();
-        try {
-            List<XAStatefulHolder> holders = new ArrayList<XAStatefulHolder>();
-            holders.addAll(availablePool);
-            holders.addAll(accessiblePool);
-            holders.addAll(inaccessiblePool);
-            return holders;
-        }
-        finally {
-            stateTransitionLock.readLock().unlock();
-        }
+        return new ArrayList<XAStatefulHolder>(entries.keySet());
     }
 
     /* ------------------------------------------------------------------------
@@ -653,6 +1304,21 @@ public class XAPool implements StateChangeListener {
         }
     }
 
+    private static final class PoolThreadFactory implements ThreadFactory {
+        private final String uniqueName;
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        private PoolThreadFactory(String uniqueName) {
+            this.uniqueName = uniqueName;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "bitronix-pool-" + uniqueName + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
     private static final class StatefulHolderThreadLocal extends ThreadLocal<XAStatefulHolder>
     {
     	@Override
@@ -666,6 +1332,23 @@ public class XAPool implements StateChangeListener {
     	}
     }
 
+    /**
+     * The pool-side state of a pooled object.
+     */
+    private static final class PooledEntry {
+        private final XAStatefulHolder xaStatefulHolder;
+        // true when the object is IN_POOL and has not been claimed by a borrower yet
+        private final AtomicBoolean available = new AtomicBoolean();
+        // true when the entry is in the available queue
+        private final AtomicBoolean queued = new AtomicBoolean();
+        // shared by the thread-affinity slots of all the threads which acquired this object last
+        private final WeakReference<PooledEntry> reference = new WeakReference<PooledEntry>(this);
+
+        private PooledEntry(XAStatefulHolder xaStatefulHolder) {
+            this.xaStatefulHolder = xaStatefulHolder;
+        }
+    }
+
     public String toString() {
         return "an XAPool of resource " + bean.getUniqueName() + " with " + totalPoolSize() + " connection(s) (" + inPoolSize() + " still available)" + (isFailed() ? " -failed-" : "");
     }
@@ -24,6 +24,8 @@ import bitronix.tm.BitronixXid;
 import bitronix.tm.internal.XAResourceHolderState;
 import bitronix.tm.utils.Uid;
 
+import java.util.Set;
+
 import javax.transaction.xa.XAResource;
 
 /**
@@ -70,6 +72,12 @@ public interface XAResourceHolder extends XAStatefulHolder {
      */
     public int getXAResourceHolderStateCountForGtrid(Uid gtrid);
 
+    /**
+     * Get the GTRIDs of the transactions for which there are {@link XAResourceHolderState}s.
+     * @return a snapshot of the GTRIDs of the transactions in which this resource is enlisted.
+     */
+    public Set<Uid> getXAResourceHolderStateGtridUids();
+
     /**
      * Add a {@link XAResourceHolderState} of this wrapped resource.
      * @param xid the Xid of the transaction state to add.
@@ -20,7 +20,6 @@
  */
 package bitronix.tm.resource.common;
 
-import java.util.Date;
 import java.util.List;
 
 /**
@@ -97,6 +96,13 @@ public interface XAStatefulHolder {
      */
     public Object getConnectionHandle() throws Exception;
 
+    /**
+     * Test the physical connection that this {@link bitronix.tm.resource.common.XAStatefulHolder} represents while no
+     * handle to it is in use, ie: when it is released to the pool or idling in it.
+     * @throws Exception a resource-specific exception thrown when the physical connection is not usable anymore.
+     */
+    public void validate() throws Exception;
+
     /**
      * Close the physical connection that this {@link bitronix.tm.resource.common.XAStatefulHolder} represents.
      * @throws Exception a resource-specific exception thrown when there is an error closing the physical connection.
@@ -104,15 +110,15 @@ public interface XAStatefulHolder {
     public void close() throws Exception;
 
     /**
-     * Get the date at which this object was last released to the pool. This is required to check if it is eligible
-     * for discard when the containing pool needs to shrink.
-     * @return the date at which this object was last released to the pool or null if it never left the pool.
+     * Get the {@link bitronix.tm.utils.MonotonicClock} time at which this object was last released to the pool.
+     * This is required to check if it is eligible for discard when the containing pool needs to shrink.
+     * @return the time at which this object was last released to the pool or 0 if it never left the pool.
      */
-    public Date getLastReleaseDate();
+    public long getLastReleaseTime();
 
     /**
-     * Get the date at which this object was created in the pool.
-     * @return the date at which this object was created in the pool.
+     * Get the {@link bitronix.tm.utils.MonotonicClock} time at which this object was created in the pool.
+     * @return the time at which this object was created in the pool.
      */
-    public Date getCreationDate();
+    public long getCreationTime();
 }
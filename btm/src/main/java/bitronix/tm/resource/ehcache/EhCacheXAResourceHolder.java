@@ -26,7 +26,6 @@ import bitronix.tm.resource.common.XAResourceHolder;
 
 import javax.transaction.xa.XAResource;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 
 /**
@@ -82,7 +81,7 @@ public class EhCacheXAResourceHolder extends AbstractXAResourceHolder {
     /**
      * {@inheritDoc}
      */
-    public Date getLastReleaseDate() {
+    public long getLastReleaseTime() {
         throw new UnsupportedOperationException("EhCacheXAResourceHolder cannot be used with an XAPool");
     }
 
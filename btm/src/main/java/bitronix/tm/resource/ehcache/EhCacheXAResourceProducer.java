@@ -119,6 +119,7 @@ public final class EhCacheXAResourceProducer extends ResourceBean implements XAR
         int key = xaResourceHolderCounter.incrementAndGet();
 
         xaResourceHolders.put(key, xaResourceHolder);
+        ResourceRegistrar.registerXAResourceHolder(xaResourceHolder);
     }
 
     private boolean removeXAResource(XAResource xaResource) {
@@ -127,6 +128,7 @@ public final class EhCacheXAResourceProducer extends ResourceBean implements XAR
             EhCacheXAResourceHolder xaResourceHolder = entry.getValue();
             if (xaResourceHolder.getXAResource() == xaResource) {
                 xaResourceHolders.remove(key);
+                ResourceRegistrar.unregisterXAResourceHolder(xaResourceHolder);
                 return true;
             }
         }
@@ -167,12 +169,9 @@ public final class EhCacheXAResourceProducer extends ResourceBean implements XAR
      * {@inheritDoc}
      */
     public XAResourceHolder findXAResourceHolder(XAResource xaResource) {
-        for (EhCacheXAResourceHolder xaResourceHolder : xaResourceHolders.values()) {
-            if (xaResource == xaResourceHolder.getXAResource()) {
-                return xaResourceHolder;
-            }
-        }
-
+        XAResourceHolder xaResourceHolder = ResourceRegistrar.findRegisteredXAResourceHolder(xaResource);
+        if (xaResourceHolder != null && xaResourceHolder.getResourceBean() == this)
+            return xaResourceHolder;
         return null;
     }
 
@@ -191,6 +190,9 @@ public final class EhCacheXAResourceProducer extends ResourceBean implements XAR
      * {@inheritDoc}
      */
     public void close() {
+        for (EhCacheXAResourceHolder xaResourceHolder : xaResourceHolders.values()) {
+            ResourceRegistrar.unregisterXAResourceHolder(xaResourceHolder);
+        }
         xaResourceHolders.clear();
         xaResourceHolderCounter.set(0);
         ResourceRegistrar.unregister(this);
@@ -75,8 +75,9 @@ public class JdbcPooledConnection extends AbstractXAResourceHolder implements St
 
     /* management */
     private final String jmxName;
-    private volatile Date acquisitionDate;
-    private volatile Date lastReleaseDate;
+    private volatile long acquisitionTime;
+    private volatile long lastReleaseTime;
+    private volatile long lastTestTime;
 
     private volatile int jdbcVersionDetected;
 
@@ -84,9 +85,9 @@ public class JdbcPooledConnection extends AbstractXAResourceHolder implements St
         this.poolingDataSource = poolingDataSource;
         this.xaConnection = xaConnection;
         this.xaResource = xaConnection.getXAResource();
-        this.statementsCache = new LruStatementCache(poolingDataSource.getPreparedStatementCacheSize());
+        this.statementsCache = new LruStatementCache(initialStatementCacheSize(poolingDataSource));
         this.uncachedStatements = Collections.synchronizedList(new ArrayList<Statement>());
-        this.lastReleaseDate = new Date(MonotonicClock.currentTimeMillis());
+        this.lastReleaseTime = MonotonicClock.coarseTimeMillis();
         statementsCache.addEvictionListener(new LruEvictionListener() {
             public void onEviction(Object value) {
                 PreparedStatement stmt = (PreparedStatement) value;
@@ -115,6 +116,41 @@ public class JdbcPooledConnection extends AbstractXAResourceHolder implements St
         ManagementRegistrar.register(jmxName, this);
 
         poolingDataSource.fireOnAcquire(connection);
+        warmUpStatementCache();
+    }
+
+    private static int initialStatementCacheSize(PoolingDataSource poolingDataSource) {
+        int maxSize = poolingDataSource.getPreparedStatementCacheSize();
+        StatementStatistics statistics = poolingDataSource.getStatementStatistics();
+        if (!poolingDataSource.isAdaptivePreparedStatementCacheSize() || statistics == null)
+            return maxSize;
+
+        // start with room for the pool's working set, the cache grows later on if it turns out to be too small
+        int workingSetSize = Math.max(statistics.getRecurringCount(), poolingDataSource.getPreparedStatementWarmUpCount());
+        return Math.min(maxSize, Math.max(1, workingSetSize));
+    }
+
+    /**
+     * Prepare the statements prepared the most often in the pool and cache them as if they had already been used.
+     */
+    private void warmUpStatementCache() {
+        int warmUpCount = poolingDataSource.getPreparedStatementWarmUpCount();
+        StatementStatistics statistics = poolingDataSource.getStatementStatistics();
+        if (warmUpCount < 1 || statistics == null)
+            return;
+
+        int prepared = 0;
+        for (CacheKey key : statistics.getMostPrepared(warmUpCount)) {
+            try {
+                PreparedStatement stmt = JdbcProxyFactory.INSTANCE.getProxyPreparedStatement(this, key.prepare(connection), key);
+                statementsCache.put(key, stmt);
+                stmt.close();
+                prepared++;
+            } catch (SQLException ex) {
+                if (log.isDebugEnabled()) log.debug("error preparing statement in advance on " + this + ", skipping it", ex);
+            }
+        }
+        if (log.isDebugEnabled()) log.debug("prepared " + prepared + " statement(s) in advance on " + this);
     }
 
     private void applyIsolationLevel() throws SQLException {
@@ -164,7 +200,42 @@ public class JdbcPooledConnection extends AbstractXAResourceHolder implements St
         return new RecoveryXAResourceHolder(this);
     }
 
+    public void validate() throws Exception {
+        testConnection(connection);
+    }
+
+    private void testConnectionIfNeeded(Connection connection) throws SQLException {
+        int skipInterval = poolingDataSource.getTestSkipInterval();
+        if (skipInterval > 0) {
+            long lastUsage = Math.max(lastReleaseTime, lastTestTime);
+            if (MonotonicClock.coarseTimeMillis() - lastUsage < skipInterval) {
+                if (log.isDebugEnabled()) log.debug("connection of " + this + " used or tested less than " + skipInterval + "ms ago, skipping test");
+                poolingDataSource.connectionTestSkipped();
+                return;
+            }
+        }
+        testConnection(connection);
+    }
+
     private void testConnection(Connection connection) throws SQLException {
+        long before = System.nanoTime();
+        boolean tested;
+        try {
+            tested = doTestConnection(connection);
+        } catch (SQLException ex) {
+            poolingDataSource.connectionTested(false, System.nanoTime() - before);
+            throw ex;
+        }
+        if (tested) {
+            lastTestTime = MonotonicClock.coarseTimeMillis();
+            poolingDataSource.connectionTested(true, System.nanoTime() - before);
+        }
+    }
+
+    /**
+     * @return true if the connection has been tested, false if no test is configured.
+     */
+    private boolean doTestConnection(Connection connection) throws SQLException {
         if (poolingDataSource.isEnableJdbc4ConnectionTest() && jdbcVersionDetected >= 4) {
             Boolean isValid = null;
             try {
@@ -179,7 +250,7 @@ public class JdbcPooledConnection extends AbstractXAResourceHolder implements St
             if (isValid != null) {
                 if (isValid.booleanValue()) {
                     if (log.isDebugEnabled()) { log.debug("isValid successfully tested connection of " + this); }
-                    return;
+                    return true;
                 }
                 throw new SQLException("connection is no longer valid");
             }
@@ -188,7 +259,7 @@ public class JdbcPooledConnection extends AbstractXAResourceHolder implements St
         String query = poolingDataSource.getTestQuery();
         if (query == null) {
             if (log.isDebugEnabled()) log.debug("no query to test connection of " + this + ", skipping test");
-            return;
+            return false;
         }
 
         // Throws a SQLException if the connection is dead
@@ -198,6 +269,7 @@ public class JdbcPooledConnection extends AbstractXAResourceHolder implements St
         rs.close();
         stmt.close();
         if (log.isDebugEnabled()) log.debug("testQuery successfully tested connection of " + this);
+        return true;
     }
 
     public boolean release() throws SQLException {
@@ -287,7 +359,7 @@ public class JdbcPooledConnection extends AbstractXAResourceHolder implements St
 
         if (oldState == STATE_IN_POOL) {
             if (log.isDebugEnabled()) log.debug("connection " + xaConnection + " was in state IN_POOL, testing it");
-            testConnection(connection);
+            testConnectionIfNeeded(connection);
             applyIsolationLevel();
             applyCursorHoldabilty();
             if (TransactionContextHelper.currentTransaction() == null) {
@@ -306,10 +378,10 @@ public class JdbcPooledConnection extends AbstractXAResourceHolder implements St
     public void stateChanged(XAStatefulHolder source, int oldState, int newState) {
         if (newState == STATE_IN_POOL) {
             if (log.isDebugEnabled()) log.debug("requeued JDBC connection of " + poolingDataSource);
-            lastReleaseDate = new Date(MonotonicClock.currentTimeMillis());
+            lastReleaseTime = MonotonicClock.coarseTimeMillis();
         }
         if (oldState == STATE_IN_POOL && newState == STATE_ACCESSIBLE) {
-            acquisitionDate = new Date(MonotonicClock.currentTimeMillis());
+            acquisitionTime = MonotonicClock.coarseTimeMillis();
         }
         if (oldState == STATE_NOT_ACCESSIBLE && newState == STATE_ACCESSIBLE) {
             TransactionContextHelper.recycle(this);
@@ -351,7 +423,29 @@ public class JdbcPooledConnection extends AbstractXAResourceHolder implements St
      * @return the cached statement corresponding to the key or null if no statement is cached under that key.
      */
     public PreparedStatement getCachedStatement(CacheKey key) {
-        return statementsCache.get(key);
+        PreparedStatement cachedStatement = statementsCache.get(key);
+        if (cachedStatement == null) {
+            StatementStatistics statistics = poolingDataSource.getStatementStatistics();
+            if (statistics != null && statistics.statementPrepared(key))
+                growStatementCacheIfFull();
+        }
+        return cachedStatement;
+    }
+
+    /**
+     * Grow an adaptively sized statement cache which is full, as it is about to evict a statement which is part of
+     * the pool's working set.
+     */
+    private void growStatementCacheIfFull() {
+        if (!poolingDataSource.isAdaptivePreparedStatementCacheSize())
+            return;
+        int currentMaxSize = statementsCache.getMaxSize();
+        int configuredMaxSize = poolingDataSource.getPreparedStatementCacheSize();
+        if (statementsCache.size() >= currentMaxSize && currentMaxSize < configuredMaxSize) {
+            int newMaxSize = Math.min(configuredMaxSize, currentMaxSize * 2);
+            if (log.isDebugEnabled()) log.debug("growing statement cache of " + this + " from " + currentMaxSize + " to " + newMaxSize);
+            statementsCache.setMaxSize(newMaxSize);
+        }
     }
 
     /**
@@ -432,14 +526,33 @@ public class JdbcPooledConnection extends AbstractXAResourceHolder implements St
     }
 
     public Date getAcquisitionDate() {
-        return acquisitionDate;
+        long acquisitionTime = this.acquisitionTime;
+        if (acquisitionTime == 0L)
+            return null;
+        return MonotonicClock.toDate(acquisitionTime);
     }
 
-    public Date getLastReleaseDate() {
-        return lastReleaseDate;
+    public long getLastReleaseTime() {
+        return lastReleaseTime;
     }
 
     public Collection<String> getTransactionGtridsCurrentlyHoldingThis() {
         return getXAResourceHolderStateGtrids();
     }
+
+    public int getPreparedStatementCacheSize() {
+        return statementsCache.size();
+    }
+
+    public long getPreparedStatementCacheHitCount() {
+        return statementsCache.getHitCount();
+    }
+
+    public long getPreparedStatementCacheMissCount() {
+        return statementsCache.getMissCount();
+    }
+
+    public long getPreparedStatementCacheEvictionCount() {
+        return statementsCache.getEvictionCount();
+    }
 }
@@ -33,5 +33,9 @@ public interface JdbcPooledConnectionMBean {
     String getStateDescription();
     Date getAcquisitionDate();
     Collection<String> getTransactionGtridsCurrentlyHoldingThis();
+    int getPreparedStatementCacheSize();
+    long getPreparedStatementCacheHitCount();
+    long getPreparedStatementCacheMissCount();
+    long getPreparedStatementCacheEvictionCount();
 
 }
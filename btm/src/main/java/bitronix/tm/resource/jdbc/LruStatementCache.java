@@ -20,14 +20,21 @@
  */
 package bitronix.tm.resource.jdbc;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,7 +42,10 @@ import org.slf4j.LoggerFactory;
 /**
  * Last Recently Used PreparedStatement cache with eviction listeners
  * support implementation.
- *
+ * <p>The LRU order is approximated with the CLOCK (second chance) algorithm:
+ * looking up a statement only sets its referenced flag, and eviction
+ * sweeps the statements in insertion order, giving a second chance to the
+ * referenced ones. Lookups are thus lock-free and never reorder anything.</p>
  *
  * @author lorban, brettw
  */
@@ -49,22 +59,15 @@ public class LruStatementCache {
      * in use and therefore nothing can be evicted.  But eventually
      * (probably quickly) the cache will return to maxSize.
      */
-    private int maxSize;
+    private volatile int maxSize;
+
+    private final ConcurrentHashMap<CacheKey, StatementTracker> cache;
 
     /**
-     * We use a LinkedHashMap with _access order_ specified in the
-     * constructor.  According to the LinkedHashMap documentation:
-     * <pre>
-     *   A special constructor is provided to create a linked hash map
-     *   whose order of iteration is the order in which its entries
-     *   were last accessed, from least-recently accessed to most-recently
-     *   (access-order). This kind of map is well-suited to building LRU
-     *   caches. Invoking the put or get method results in an access to
-     *   the corresponding entry (assuming it exists after the invocation
-     *   completes).
-     * </pre>
+     * The clock: the cached statements in insertion order. Statements
+     * given a second chance are moved back to its tail.
      */
-    private final LinkedHashMap<CacheKey, StatementTracker> cache;
+    private final Queue<StatementTracker> clock = new ConcurrentLinkedQueue<StatementTracker>();
 
     /**
      * A list of listeners concerned with prepared statement cache
@@ -73,17 +76,24 @@ public class LruStatementCache {
     private final List<LruEvictionListener> evictionListners;
 
     /**
-     * See the LinkedHashMap documentation.  We maintain our own size
-     * here, rather than calling size(), because size() on a LinkedHashMap
-     * is proportional in time (O(n)) with the size of the collection -- i.e.
-     * calling size() must traverse the entire list and count the elements.
-     * Tracking size ourselves provides O(1) access.
+     * We maintain our own size here as ConcurrentHashMap.size() has to
+     * visit all the segments of the map.
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Only one thread at a time sweeps the clock, the others let the
+     * cache drift over its maxSize instead of waiting.
      */
-    private int size;
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
 
     public LruStatementCache(int maxSize) {
         this.maxSize = maxSize;
-        cache = new LinkedHashMap<CacheKey, StatementTracker>(maxSize, 0.75f, true /* access order */);
+        cache = new ConcurrentHashMap<CacheKey, StatementTracker>(Math.max(16, maxSize * 4 / 3 + 1));
         evictionListners = new CopyOnWriteArrayList<LruEvictionListener>();
     }
 
@@ -102,18 +112,15 @@ public class LruStatementCache {
      * @return the cached JdbcPreparedStatementHandle statement, or null
      */
     public PreparedStatement get(CacheKey key) {
-    	synchronized (cache) {
-            // See LinkedHashMap documentation.  Getting an entry means it is
-	        // updated as the 'youngest' (Most Recently Used) entry.
-	        StatementTracker cached = cache.get(key);
-	        if (cached != null) {
-	            cached.usageCount++;
-	            if (log.isDebugEnabled()) log.debug("delivered from cache with usage count " + cached.usageCount + " statement <" + key + ">");
-	            return cached.statement;
-	        }
-
-	        return null;
-    	}
+        StatementTracker cached = cache.get(key);
+        if (cached != null && cached.acquire()) {
+            if (log.isDebugEnabled()) log.debug("delivered from cache with usage count " + cached.usageCount.get() + " statement <" + key + ">");
+            hitCount.incrementAndGet();
+            return cached.statement;
+        }
+
+        missCount.incrementAndGet();
+        return null;
     }
 
     /**
@@ -126,34 +133,56 @@ public class LruStatementCache {
      * @return a prepared statement
      */
     public PreparedStatement put(CacheKey key, PreparedStatement statement) {
-    	synchronized (cache) {
-            if (maxSize < 1) {
-	            return null;
-	        }
-
-	        // See LinkedHashMap documentation.  Getting an entry means it is
-	        // updated as the 'youngest' (Most Recently Used) entry.
-	        StatementTracker cached = cache.get(key);
-	        if (cached == null) {
-	            if (log.isDebugEnabled()) log.debug("adding to cache statement <" + key + ">");
-	            cache.put(key, new StatementTracker(statement));
-	            size++;
-	        } else {
-	            cached.usageCount--;
-	            statement = cached.statement;
-	            if (log.isDebugEnabled()) log.debug("returning to cache statement <" + key + "> with usage count " + cached.usageCount);
-	        }
-
-	        // If the size is exceeded, we will _try_ to evict one (or more)
-	        // statements until the max level is again reached.  However, if
-	        // every statement in the cache is 'in use', the size of the cache
-	        // is not reduced.  Eventually the cache will be reduced, no worries.
-	        if (size > maxSize) {
-	            tryEviction();
-	        }
-
-	        return statement;
-    	}
+        if (maxSize < 1) {
+            return null;
+        }
+
+        while (true) {
+            StatementTracker cached = cache.get(key);
+            if (cached == null) {
+                StatementTracker tracker = new StatementTracker(key, statement);
+                if (cache.putIfAbsent(key, tracker) != null)
+                    continue;
+                if (log.isDebugEnabled()) log.debug("adding to cache statement <" + key + ">");
+                clock.offer(tracker);
+                break;
+            }
+
+            if (cached.release()) {
+                if (log.isDebugEnabled()) log.debug("returning to cache statement <" + key + "> with usage count " + cached.usageCount.get());
+                return cached.statement;
+            }
+
+            // the cached statement is being evicted, replace it
+            cache.remove(key, cached);
+        }
+
+        // If the size is exceeded, we will _try_ to evict one (or more)
+        // statements until the max level is again reached.  However, if
+        // every statement in the cache is 'in use', the size of the cache
+        // is not reduced.  Eventually the cache will be reduced, no worries.
+        if (size.incrementAndGet() > maxSize) {
+            tryEviction();
+        }
+
+        return statement;
+    }
+
+    /**
+     * @return the target maxSize of the cache.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Change the target maxSize of the cache. Statements are only evicted
+     * if needed the next time one is added to the cache.
+     *
+     * @param maxSize the new target maxSize
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
     }
 
     public void addEvictionListener(LruEvictionListener listener) {
@@ -164,22 +193,49 @@ public class LruStatementCache {
         evictionListners.remove(listener);
     }
 
+    /**
+     * @return the amount of lookups which found a cached statement.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return the amount of lookups which did not find a cached statement.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return the amount of statements evicted because the cache was full.
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * @return the amount of cached statements.
+     */
+    public int size() {
+        return size.get();
+    }
+
     /**
      * Evict all statements from the cache.  This likely happens on
      * connection close.
      */
     protected void clear() {
-    	synchronized (cache) {
-	        Iterator<Entry<CacheKey, StatementTracker>> it = cache.entrySet().iterator();
-	        while (it.hasNext()) {
-	            Entry<CacheKey, StatementTracker> entry = it.next();
-	            StatementTracker tracker = entry.getValue();
-	            it.remove();
-	            fireEvictionEvent(tracker.statement);
-	        }
-	        cache.clear();
-	        size = 0;
-    	}
+        Iterator<Entry<CacheKey, StatementTracker>> it = cache.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry<CacheKey, StatementTracker> entry = it.next();
+            StatementTracker tracker = entry.getValue();
+            it.remove();
+            tracker.usageCount.set(StatementTracker.EVICTED);
+            size.decrementAndGet();
+            fireEvictionEvent(tracker.statement);
+        }
+        clock.clear();
     }
 
     /**
@@ -188,23 +244,38 @@ public class LruStatementCache {
      * evicted until the cache is reduced to maxSize.
      */
     private void tryEviction() {
-        // Iteration order of the LinkedHashMap is from LRU to MRU
-    	Iterator<Entry<CacheKey, StatementTracker>> it = cache.entrySet().iterator();
-        while (it.hasNext()) {
-        	Entry<CacheKey, StatementTracker> entry = it.next();
-            StatementTracker tracker = entry.getValue();
-            if (tracker.usageCount == 0) {
-                it.remove();
-                size--;
-                CacheKey key = entry.getKey();
-                if (log.isDebugEnabled()) { log.debug("evicting from cache statement <" + key + "> " + entry.getValue().statement); }
-                fireEvictionEvent(tracker.statement);
-                // We can stop evicting if we're at maxSize...
-                if (size <= maxSize) {
+        if (!evicting.compareAndSet(false, true))
+            return;
+        try {
+            // every statement gets at most a second chance per sweep
+            int remainingSteps = 2 * clock.size();
+            while (size.get() > maxSize && remainingSteps-- > 0) {
+                StatementTracker tracker = clock.poll();
+                if (tracker == null)
                     break;
+                if (tracker.usageCount.get() == StatementTracker.EVICTED)
+                    continue;
+
+                if (tracker.referenced) {
+                    tracker.referenced = false;
+                    clock.offer(tracker);
+                }
+                else if (tracker.evict()) {
+                    cache.remove(tracker.key, tracker);
+                    size.decrementAndGet();
+                    evictionCount.incrementAndGet();
+                    if (log.isDebugEnabled()) { log.debug("evicting from cache statement " + tracker.statement); }
+                    fireEvictionEvent(tracker.statement);
+                }
+                else {
+                    // in use, cannot be evicted yet
+                    clock.offer(tracker);
                 }
             }
         }
+        finally {
+            evicting.set(false);
+        }
     }
 
     private void fireEvictionEvent(Object value) {
@@ -216,46 +287,92 @@ public class LruStatementCache {
     public static final class CacheKey {
         // All of these attributes must match a proposed statement before the
         // statement can be considered "the same" and delivered from the cache.
-        private String sql;
-        private int resultSetType = ResultSet.TYPE_FORWARD_ONLY;
-        private int resultSetConcurrency = ResultSet.CONCUR_READ_ONLY;
-        private Integer resultSetHoldability;
-        private Integer autoGeneratedKeys;
-        private int[] columnIndexes;
-        private String[] columnNames;
+        private final String sql;
+        private final int resultSetType;
+        private final int resultSetConcurrency;
+        private final Integer resultSetHoldability;
+        private final Integer autoGeneratedKeys;
+        private final int[] columnIndexes;
+        private final String[] columnNames;
+        // keys are built for every prepared statement, hash them only once
+        private final int hashCode;
 
         public CacheKey(String sql) {
-            this.sql = sql;
+            this(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, null, null, null, null);
         }
 
         public CacheKey(String sql, int autoGeneratedKeys) {
-            this.sql = sql;
-            this.autoGeneratedKeys = new Integer(autoGeneratedKeys);
+            this(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, null, new Integer(autoGeneratedKeys), null, null);
         }
 
         public CacheKey(String sql, int resultSetType, int resultSetConcurrency) {
-            this.sql = sql;
-            this.resultSetType = resultSetType;
-            this.resultSetConcurrency = resultSetConcurrency;
+            this(sql, resultSetType, resultSetConcurrency, null, null, null, null);
         }
 
         public CacheKey(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) {
-            this.sql = sql;
-            this.resultSetType = resultSetType;
-            this.resultSetConcurrency = resultSetConcurrency;
-            this.resultSetHoldability = new Integer(resultSetHoldability);
+            this(sql, resultSetType, resultSetConcurrency, new Integer(resultSetHoldability), null, null, null);
         }
 
         public CacheKey(String sql, int[] columnIndexes) {
-            this.sql = sql;
-            this.columnIndexes = new int[columnIndexes.length];
-            System.arraycopy(columnIndexes, 0, this.columnIndexes, 0, columnIndexes.length);
+            this(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, null, null, copy(columnIndexes), null);
         }
 
         public CacheKey(String sql, String[] columnNames) {
+            this(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, null, null, null, copy(columnNames));
+        }
+
+        private CacheKey(String sql, int resultSetType, int resultSetConcurrency, Integer resultSetHoldability,
+                         Integer autoGeneratedKeys, int[] columnIndexes, String[] columnNames) {
             this.sql = sql;
-            this.columnNames = new String[columnNames.length];
-            System.arraycopy(columnNames, 0, this.columnNames, 0, columnNames.length);
+            this.resultSetType = resultSetType;
+            this.resultSetConcurrency = resultSetConcurrency;
+            this.resultSetHoldability = resultSetHoldability;
+            this.autoGeneratedKeys = autoGeneratedKeys;
+            this.columnIndexes = columnIndexes;
+            this.columnNames = columnNames;
+
+            int hash = sql != null ? sql.hashCode() : 0;
+            hash = 31 * hash + resultSetType;
+            hash = 31 * hash + resultSetConcurrency;
+            hash = 31 * hash + (resultSetHoldability != null ? resultSetHoldability.hashCode() : 0);
+            hash = 31 * hash + (autoGeneratedKeys != null ? autoGeneratedKeys.hashCode() : 0);
+            hash = 31 * hash + Arrays.hashCode(columnIndexes);
+            hash = 31 * hash + Arrays.hashCode(columnNames);
+            this.hashCode = hash;
+        }
+
+        /**
+         * Prepare the statement this key describes.
+         *
+         * @param connection the physical connection to prepare the statement with
+         * @return the prepared statement
+         * @throws SQLException if the statement cannot be prepared
+         */
+        PreparedStatement prepare(Connection connection) throws SQLException {
+            if (autoGeneratedKeys != null) {
+                return connection.prepareStatement(sql, autoGeneratedKeys.intValue());
+            } else if (columnIndexes != null) {
+                return connection.prepareStatement(sql, columnIndexes);
+            } else if (columnNames != null) {
+                return connection.prepareStatement(sql, columnNames);
+            } else if (resultSetHoldability != null) {
+                return connection.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability.intValue());
+            } else if (resultSetType != ResultSet.TYPE_FORWARD_ONLY || resultSetConcurrency != ResultSet.CONCUR_READ_ONLY) {
+                return connection.prepareStatement(sql, resultSetType, resultSetConcurrency);
+            }
+            return connection.prepareStatement(sql);
+        }
+
+        private static int[] copy(int[] array) {
+            int[] copy = new int[array.length];
+            System.arraycopy(array, 0, copy, 0, array.length);
+            return copy;
+        }
+
+        private static String[] copy(String[] array) {
+            String[] copy = new String[array.length];
+            System.arraycopy(array, 0, copy, 0, array.length);
+            return copy;
         }
 
         /**
@@ -263,12 +380,17 @@ public class LruStatementCache {
          * account.
          */
         public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
             if (!(obj instanceof CacheKey)) {
                 return false;
             }
 
             CacheKey otherKey = (CacheKey) obj;
-            if (!sql.equals(otherKey.sql)) {
+            if (hashCode != otherKey.hashCode) {
+                return false;
+            } else if (sql == null ? otherKey.sql != null : !sql.equals(otherKey.sql)) {
                 return false;
             } else if (resultSetType != otherKey.resultSetType) {
                 return false;
@@ -290,17 +412,55 @@ public class LruStatementCache {
         }
 
         public int hashCode() {
-            return sql != null ? sql.hashCode() : System.identityHashCode(this);
+            return hashCode;
         }
     }
 
     private static final class StatementTracker {
+        private final static int EVICTED = -1;
+
+        private final CacheKey key;
         private final PreparedStatement statement;
-        private int usageCount;
+        /**
+         * The amount of users of the statement or EVICTED once it has been
+         * evicted and must not be handed out anymore.
+         */
+        private final AtomicInteger usageCount = new AtomicInteger(1);
+        /**
+         * The CLOCK reference bit, set when the statement is looked up and
+         * cleared when the eviction sweep gives it a second chance.
+         */
+        private volatile boolean referenced;
 
-        private StatementTracker(PreparedStatement stmt) {
+        private StatementTracker(CacheKey key, PreparedStatement stmt) {
+            this.key = key;
             this.statement = stmt;
-            this.usageCount = 1;
+        }
+
+        private boolean acquire() {
+            if (!referenced)
+                referenced = true;
+            while (true) {
+                int current = usageCount.get();
+                if (current == EVICTED)
+                    return false;
+                if (usageCount.compareAndSet(current, current + 1))
+                    return true;
+            }
+        }
+
+        private boolean release() {
+            while (true) {
+                int current = usageCount.get();
+                if (current == EVICTED)
+                    return false;
+                if (current == 0 || usageCount.compareAndSet(current, current - 1))
+                    return true;
+            }
+        }
+
+        private boolean evict() {
+            return usageCount.compareAndSet(0, EVICTED);
         }
     }
 }
@@ -25,9 +25,8 @@ import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.naming.NamingException;
 import javax.naming.Reference;
@@ -67,10 +66,16 @@ public class PoolingDataSource extends ResourceBean implements DataSource, XARes
     private volatile transient XADataSource xaDataSource;
     private volatile transient RecoveryXAResourceHolder recoveryXAResourceHolder;
     private volatile transient Connection recoveryConnectionHandle;
-    private volatile transient Map<XAResource, XAResourceHolder> xaResourceHolderMap;
     private volatile String testQuery;
     private volatile boolean enableJdbc4ConnectionTest;
+    private volatile int testSkipInterval = 0;
+    private final AtomicLong connectionTestCount = new AtomicLong();
+    private final AtomicLong skippedConnectionTestCount = new AtomicLong();
+    private final AtomicLong failedConnectionTestCount = new AtomicLong();
     private volatile int preparedStatementCacheSize = 0;
+    private volatile int preparedStatementWarmUpCount = 0;
+    private volatile boolean adaptivePreparedStatementCacheSize = false;
+    private transient volatile StatementStatistics statementStatistics;
     private volatile String isolationLevel;
 	private volatile String cursorHoldability;
 	private volatile String localAutoCommit;
@@ -78,7 +83,6 @@ public class PoolingDataSource extends ResourceBean implements DataSource, XARes
     private final List<ConnectionCustomizer> connectionCustomizers = new CopyOnWriteArrayList<ConnectionCustomizer>();
 
     public PoolingDataSource() {
-        xaResourceHolderMap = new ConcurrentHashMap<XAResource, XAResourceHolder>();
     }
 
     /**
@@ -102,11 +106,14 @@ public class PoolingDataSource extends ResourceBean implements DataSource, XARes
             return;
 
         if (log.isDebugEnabled()) log.debug("building XA pool for " + getUniqueName() + " with " + getMinPoolSize() + " connection(s)");
+        if (preparedStatementCacheSize > 0 && statementStatistics == null)
+            statementStatistics = new StatementStatistics(Math.max(64, preparedStatementCacheSize * 4));
         pool = new XAPool(this, this);
         xaDataSource = (XADataSource) pool.getXAFactory();
         try {
             ResourceRegistrar.register(this);
         } catch (RecoveryException ex) {
+            pool.close();
             pool = null;
             xaDataSource = null;
             throw ex;
@@ -146,6 +153,24 @@ public class PoolingDataSource extends ResourceBean implements DataSource, XARes
         return enableJdbc4ConnectionTest;
     }
 
+    /**
+     * @return the amount of milliseconds after a connection got used or tested during which it is not tested again
+     *         when acquired from the pool.
+     */
+    public int getTestSkipInterval() {
+        return testSkipInterval;
+    }
+
+    /**
+     * When set, connections which were released to the pool or successfully tested less than this amount of
+     * milliseconds ago are not tested when acquired from the pool. Connections are tested on each acquisition when
+     * this is 0, the default.
+     * @param testSkipInterval the amount of milliseconds during which a connection is not tested again.
+     */
+    public void setTestSkipInterval(int testSkipInterval) {
+        this.testSkipInterval = testSkipInterval;
+    }
+
     /**
      * @return the target maximum prepared statement cache size.
      */
@@ -163,6 +188,43 @@ public class PoolingDataSource extends ResourceBean implements DataSource, XARes
         this.preparedStatementCacheSize = preparedStatementCacheSize;
     }
 
+    /**
+     * @return the amount of the statements prepared the most often in the pool which are prepared in advance on
+     *         newly created connections.
+     */
+    public int getPreparedStatementWarmUpCount() {
+        return preparedStatementWarmUpCount;
+    }
+
+    /**
+     * Set the amount of statements prepared in advance on newly created connections. The pool keeps track of how
+     * often each statement had to be prepared and new connections prepare the ones prepared the most often, so that
+     * they are found in the prepared statement cache the first time they are used. Requires the prepared statement
+     * cache to be enabled.
+     * @param preparedStatementWarmUpCount the amount of statements prepared in advance, 0 to disable it.
+     */
+    public void setPreparedStatementWarmUpCount(int preparedStatementWarmUpCount) {
+        this.preparedStatementWarmUpCount = preparedStatementWarmUpCount;
+    }
+
+    /**
+     * @return true if the prepared statement cache of each connection is sized according to the statements prepared
+     *         repeatedly in the pool instead of always being allowed to grow to the configured size.
+     */
+    public boolean isAdaptivePreparedStatementCacheSize() {
+        return adaptivePreparedStatementCacheSize;
+    }
+
+    /**
+     * Set to true if the prepared statement cache of each connection should start with room for the statements
+     * prepared repeatedly in the pool and only grow, up to the configured cache size, when it has to evict some of
+     * them. This avoids all the connections of a large pool each caching statements used only once in a while.
+     * @param adaptivePreparedStatementCacheSize true if the prepared statement caches should be sized adaptively.
+     */
+    public void setAdaptivePreparedStatementCacheSize(boolean adaptivePreparedStatementCacheSize) {
+        this.adaptivePreparedStatementCacheSize = adaptivePreparedStatementCacheSize;
+    }
+
     /**
      * @return the default isolation level.
      */
@@ -333,8 +395,6 @@ public class PoolingDataSource extends ResourceBean implements DataSource, XARes
         pool.close();
         pool = null;
         
-        xaResourceHolderMap.clear();
-
         connectionCustomizers.clear();
 
         ManagementRegistrar.unregister(jmxName);
@@ -348,12 +408,15 @@ public class PoolingDataSource extends ResourceBean implements DataSource, XARes
             throw new IllegalArgumentException("class '" + xaFactory.getClass().getName() + "' does not implement " + XADataSource.class.getName());
         XADataSource xads = (XADataSource) xaFactory;
         JdbcPooledConnection pooledConnection = new JdbcPooledConnection(this, xads.getXAConnection());
-        xaResourceHolderMap.put(pooledConnection.getXAResource(), pooledConnection);
+        ResourceRegistrar.registerXAResourceHolder(pooledConnection);
         return pooledConnection;
     }
 
     public XAResourceHolder findXAResourceHolder(XAResource xaResource) {
-        return xaResourceHolderMap.get(xaResource);
+        XAResourceHolder xaResourceHolder = ResourceRegistrar.findRegisteredXAResourceHolder(xaResource);
+        if (xaResourceHolder != null && xaResourceHolder.getResourceBean() == this)
+            return xaResourceHolder;
+        return null;
     }
 
 
@@ -413,12 +476,87 @@ public class PoolingDataSource extends ResourceBean implements DataSource, XARes
         return pool.totalPoolSize();
     }
 
+    public int getActivePoolSize() {
+        return pool.totalPoolSize() - pool.inPoolSize();
+    }
+
+    public int getWaitingCount() {
+        return pool.waitingCount();
+    }
+
+    public long getAcquisitionWaitMicrosMean() {
+        return pool.getAcquisitionWaitTimes().getMean();
+    }
+
+    public long getAcquisitionWaitMicros99thPercentile() {
+        return pool.getAcquisitionWaitTimes().getPercentile(99);
+    }
+
+    public long getAcquisitionWaitMicrosMax() {
+        return pool.getAcquisitionWaitTimes().getMax();
+    }
+
+    public long getCreationMicrosMean() {
+        return pool.getCreationTimes().getMean();
+    }
+
+    public long getCreationMicros99thPercentile() {
+        return pool.getCreationTimes().getPercentile(99);
+    }
+
+    public long getCreationMicrosMax() {
+        return pool.getCreationTimes().getMax();
+    }
+
+    public long getValidationMicrosMean() {
+        return pool.getValidationTimes().getMean();
+    }
+
+    public long getValidationMicros99thPercentile() {
+        return pool.getValidationTimes().getPercentile(99);
+    }
+
+    public long getValidationMicrosMax() {
+        return pool.getValidationTimes().getMax();
+    }
+
     public void reset() throws Exception {
         pool.reset();
     }
 
+    public long getConnectionTestCount() {
+        return connectionTestCount.get();
+    }
+
+    public long getSkippedConnectionTestCount() {
+        return skippedConnectionTestCount.get();
+    }
+
+    public long getFailedConnectionTestCount() {
+        return failedConnectionTestCount.get();
+    }
+
+    void connectionTested(boolean successful, long durationNanos) {
+        connectionTestCount.incrementAndGet();
+        if (!successful)
+            failedConnectionTestCount.incrementAndGet();
+        XAPool currentPool = pool;
+        if (currentPool != null)
+            currentPool.getValidationTimes().recordNanos(durationNanos);
+    }
+
+    /**
+     * @return the pool-wide prepared statements statistics or null if the prepared statement cache is disabled.
+     */
+    StatementStatistics getStatementStatistics() {
+        return statementStatistics;
+    }
+
+    void connectionTestSkipped() {
+        skippedConnectionTestCount.incrementAndGet();
+    }
+
     public void unregister(XAResourceHolder xaResourceHolder) {
-        xaResourceHolderMap.remove(xaResourceHolder.getXAResource());
-        
+        ResourceRegistrar.unregisterXAResourceHolder(xaResourceHolder);
     }
 }
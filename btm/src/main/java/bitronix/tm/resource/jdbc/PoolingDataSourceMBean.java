@@ -30,9 +30,23 @@ public interface PoolingDataSourceMBean {
     public int getMaxPoolSize();
     public int getInPoolSize();
     public int getTotalPoolSize();
+    public int getActivePoolSize();
+    public int getWaitingCount();
+    public long getAcquisitionWaitMicrosMean();
+    public long getAcquisitionWaitMicros99thPercentile();
+    public long getAcquisitionWaitMicrosMax();
+    public long getCreationMicrosMean();
+    public long getCreationMicros99thPercentile();
+    public long getCreationMicrosMax();
+    public long getValidationMicrosMean();
+    public long getValidationMicros99thPercentile();
+    public long getValidationMicrosMax();
     public boolean isFailed();
     public void reset() throws Exception;
     public boolean isDisabled();
     public void setDisabled(boolean disabled);
+    public long getConnectionTestCount();
+    public long getSkippedConnectionTestCount();
+    public long getFailedConnectionTestCount();
 
 }
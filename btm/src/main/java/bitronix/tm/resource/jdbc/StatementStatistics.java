@@ -0,0 +1,130 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.resource.jdbc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bitronix.tm.resource.jdbc.LruStatementCache.CacheKey;
+
+/**
+ * Pool-wide count of how many times each statement had to be prepared because it was not found in the statement
+ * cache of the connection it was prepared on. It tells which statements are worth preparing in advance on new
+ * connections and how many statements the connections' caches need to hold to avoid preparing them again.
+ * <p>Only a bounded amount of distinct statements is tracked, statements first prepared after that limit has been
+ * reached are ignored.</p>
+ */
+final class StatementStatistics {
+
+    /**
+     * Statements prepared at least this many times pool-wide are considered part of the pool's working set.
+     */
+    private final static int RECURRING_THRESHOLD = 2;
+
+    private final ConcurrentHashMap<CacheKey, AtomicLong> prepareCounts = new ConcurrentHashMap<CacheKey, AtomicLong>();
+    private final AtomicInteger trackedCount = new AtomicInteger();
+    private final AtomicInteger recurringCount = new AtomicInteger();
+    private final int maxTrackedStatements;
+
+    StatementStatistics(int maxTrackedStatements) {
+        this.maxTrackedStatements = maxTrackedStatements;
+    }
+
+    /**
+     * Record that a statement has been prepared.
+     * @param key the key of the prepared statement.
+     * @return true if the statement was already prepared often enough to be part of the pool's working set.
+     */
+    boolean statementPrepared(CacheKey key) {
+        AtomicLong count = prepareCounts.get(key);
+        if (count == null) {
+            if (trackedCount.get() >= maxTrackedStatements)
+                return false;
+            count = new AtomicLong();
+            AtomicLong existing = prepareCounts.putIfAbsent(key, count);
+            if (existing != null)
+                count = existing;
+            else
+                trackedCount.incrementAndGet();
+        }
+
+        long previous = count.getAndIncrement();
+        if (previous + 1 == RECURRING_THRESHOLD)
+            recurringCount.incrementAndGet();
+        return previous >= RECURRING_THRESHOLD;
+    }
+
+    /**
+     * @return the amount of statements prepared often enough to be part of the pool's working set.
+     */
+    int getRecurringCount() {
+        return recurringCount.get();
+    }
+
+    /**
+     * @return the amount of distinct tracked statements.
+     */
+    int getTrackedCount() {
+        return trackedCount.get();
+    }
+
+    /**
+     * Get the keys of the statements prepared the most times, most prepared first.
+     * @param count the maximum amount of keys to return.
+     * @return the keys of the most prepared statements.
+     */
+    List<CacheKey> getMostPrepared(int count) {
+        List<PrepareCount> snapshot = new ArrayList<PrepareCount>(trackedCount.get());
+        for (Map.Entry<CacheKey, AtomicLong> entry : prepareCounts.entrySet()) {
+            snapshot.add(new PrepareCount(entry.getKey(), entry.getValue().get()));
+        }
+        Collections.sort(snapshot);
+
+        List<CacheKey> result = new ArrayList<CacheKey>(Math.min(count, snapshot.size()));
+        for (int i = 0; i < count && i < snapshot.size(); i++) {
+            result.add(snapshot.get(i).key);
+        }
+        return result;
+    }
+
+    /**
+     * Point in time prepare count of a statement, sorted from the most to the least prepared.
+     */
+    private static final class PrepareCount implements Comparable<PrepareCount> {
+        private final CacheKey key;
+        private final long count;
+
+        private PrepareCount(CacheKey key, long count) {
+            this.key = key;
+            this.count = count;
+        }
+
+        public int compareTo(PrepareCount other) {
+            return count > other.count ? -1 : (count == other.count ? 0 : 1);
+        }
+    }
+
+}
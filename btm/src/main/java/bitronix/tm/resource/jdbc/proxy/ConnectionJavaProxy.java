@@ -36,10 +36,15 @@ import javax.transaction.SystemException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import bitronix.tm.BitronixTransaction;
+import bitronix.tm.internal.ThreadContext;
+import bitronix.tm.internal.XAResourceHolderState;
 import bitronix.tm.resource.common.TransactionContextHelper;
 import bitronix.tm.resource.jdbc.JdbcPooledConnection;
 import bitronix.tm.resource.jdbc.LruStatementCache.CacheKey;
 import bitronix.tm.resource.jdbc.PooledConnectionProxy;
+import bitronix.tm.utils.MonotonicClock;
+import bitronix.tm.utils.Uid;
 
 /**
  * @author Brett Wooldridge
@@ -52,6 +57,10 @@ public class ConnectionJavaProxy extends JavaProxyBase<Connection> implements Po
     private JdbcPooledConnection jdbcPooledConnection;
     private boolean useStatementCache;
 
+    // the GTRID and branch this handle last enlisted its connection in, used to skip re-enlistment
+    private Uid enlistedGtrid;
+    private XAResourceHolderState enlistedXAResourceHolderState;
+
     public ConnectionJavaProxy() {
         // Default constructor
     }
@@ -63,6 +72,8 @@ public class ConnectionJavaProxy extends JavaProxyBase<Connection> implements Po
     void initialize(JdbcPooledConnection jdbcPooledConnection, Connection connection) {
         this.jdbcPooledConnection = jdbcPooledConnection;
         this.delegate = connection;
+        this.enlistedGtrid = null;
+        this.enlistedXAResourceHolderState = null;
 
         if (jdbcPooledConnection != null) {
             useStatementCache = jdbcPooledConnection.getPoolingDataSource().getPreparedStatementCacheSize() > 0;
@@ -94,6 +105,8 @@ public class ConnectionJavaProxy extends JavaProxyBase<Connection> implements Po
 
         jdbcPooledConnection.release();
         jdbcPooledConnection = null;
+        enlistedGtrid = null;
+        enlistedXAResourceHolderState = null;
     }
 
     public void commit() throws SQLException {
@@ -384,6 +397,9 @@ public class ConnectionJavaProxy extends JavaProxyBase<Connection> implements Po
     /**
      * Enlist this connection into the current transaction if automaticEnlistingEnabled = true for this resource.
      * If no transaction is running then this method does nothing.
+     * <p>As long as the branch this handle enlisted the connection in is neither ended nor timed out and belongs to
+     * the transaction of the thread's context, the enlistment is skipped without going through the transaction
+     * manager.</p>
      * @throws SQLException thrown when an error occurs during elistment.
      */
     private void enlistResource() throws SQLException {
@@ -391,8 +407,17 @@ public class ConnectionJavaProxy extends JavaProxyBase<Connection> implements Po
             throw new SQLException("connection handle already closed");
 
         if (jdbcPooledConnection.getPoolingDataSource().getAutomaticEnlistingEnabled()) {
+            if (enlistedGtrid != null) {
+                BitronixTransaction threadTransaction = ThreadContext.getThreadContext().getTransaction();
+                if (threadTransaction != null && enlistedGtrid.equals(threadTransaction.getResourceManager().getGtrid()) &&
+                        !enlistedXAResourceHolderState.isEnded() &&
+                        MonotonicClock.coarseTimeMillis() < enlistedXAResourceHolderState.getTransactionTimeoutTime())
+                    return;
+            }
+
             try {
-                TransactionContextHelper.enlistInCurrentTransaction(jdbcPooledConnection);
+                enlistedXAResourceHolderState = TransactionContextHelper.enlistInCurrentTransaction(jdbcPooledConnection);
+                enlistedGtrid = enlistedXAResourceHolderState == null ? null : enlistedXAResourceHolderState.getXid().getGlobalTransactionIdUid();
             } catch (SystemException ex) {
                 throw (SQLException) new SQLException("error enlisting " + this).initCause(ex);
             } catch (RollbackException ex) {
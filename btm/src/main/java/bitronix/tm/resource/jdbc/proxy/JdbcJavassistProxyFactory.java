@@ -62,8 +62,9 @@ public class JdbcJavassistProxyFactory implements JdbcProxyFactory {
     private Constructor<Statement> proxyStatementConstructor;
     private Constructor<CallableStatement> proxyCallableStatementConstructor;
     private Constructor<PreparedStatement> proxyPreparedStatementConstructor;
+    private Constructor<Connection> proxyLrcConnectionConstructor;
 
-    // For LRC we just use the standard Java Proxies
+    // The LRC XAConnection is only called when the physical connection is opened or closed, a standard Java Proxy is good enough
     private JdbcJavaProxyFactory lrcProxyFactory;
 
     JdbcJavassistProxyFactory() {
@@ -77,6 +78,7 @@ public class JdbcJavassistProxyFactory implements JdbcProxyFactory {
         createProxyStatementClass();
         createProxyCallableStatementClass();
         createProxyPreparedStatementClass();
+        createProxyLrcConnectionClass();
 
         lrcProxyFactory = new JdbcJavaProxyFactory();
 
@@ -128,7 +130,11 @@ public class JdbcJavassistProxyFactory implements JdbcProxyFactory {
 
     /** {@inheritDoc} */
     public Connection getProxyConnection(LrcXAResource xaResource, Connection connection) {
-        return lrcProxyFactory.getProxyConnection(xaResource, connection);
+        try {
+            return proxyLrcConnectionConstructor.newInstance(xaResource, connection);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
     }
 
     // ---------------------------------------------------------------
@@ -183,6 +189,18 @@ public class JdbcJavassistProxyFactory implements JdbcProxyFactory {
         }
     }
 
+    /**
+     * Create a proxy class: class LrcConnectionJavassistProxy extends LrcConnectionJavaProxy implements java.sql.Connection
+     */
+    private void createProxyLrcConnectionClass() {
+        try {
+            Class<Connection> proxyClass = generateProxyClass(Connection.class, LrcConnectionJavaProxy.class);
+            proxyLrcConnectionConstructor = proxyClass.getConstructor(new Class<?>[] {LrcXAResource.class, Connection.class});
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @SuppressWarnings("unchecked")
     private <T> Class<T> generateProxyClass(Class<T> primaryInterface, Class<?> superClass)
         throws NotFoundException, CannotCompileException, NoSuchMethodException, SecurityException {
@@ -52,7 +52,7 @@ public class LrcXAConnectionJavaProxy extends JavaProxyBase<Connection> {
 
     public LrcXAConnectionJavaProxy(Connection connection) {
         this.xaResource = new LrcXAResource(connection);
-        this.delegate = new JdbcJavaProxyFactory().getProxyConnection(xaResource, connection);
+        this.delegate = JdbcProxyFactory.INSTANCE.getProxyConnection(xaResource, connection);
     }
 
     public String toString() {
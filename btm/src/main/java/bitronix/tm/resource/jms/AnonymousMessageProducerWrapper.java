@@ -0,0 +1,147 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.resource.jms;
+
+import javax.jms.Destination;
+import javax.jms.InvalidDestinationException;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+
+/**
+ * {@link MessageProducerWrapper} bound to a destination which sends its messages through the single unidentified
+ * producer of its session instead of a producer of its own.
+ * <p>Producer attributes are kept by this wrapper and passed along with every message sent as the underlying
+ * producer is shared by all the destinations the session sends to.</p>
+ */
+public class AnonymousMessageProducerWrapper extends MessageProducerWrapper {
+
+    private final Destination destination;
+    private boolean disableMessageID = false;
+    private boolean disableMessageTimestamp = false;
+    private int deliveryMode = Message.DEFAULT_DELIVERY_MODE;
+    private int priority = Message.DEFAULT_PRIORITY;
+    private long timeToLive = Message.DEFAULT_TIME_TO_LIVE;
+
+    public AnonymousMessageProducerWrapper(Destination destination, DualSessionWrapper session, PoolingConnectionFactory poolingConnectionFactory) {
+        super(null, session, poolingConnectionFactory);
+        this.destination = destination;
+    }
+
+    public MessageProducer getMessageProducer() {
+        try {
+            return session.getAnonymousProducer();
+        } catch (JMSException ex) {
+            throw new IllegalStateException("error getting anonymous producer of " + session, ex);
+        }
+    }
+
+    private Destination getBoundDestination() throws JMSException {
+        if (destination == null)
+            throw new InvalidDestinationException("producer has not been created with a destination");
+        return destination;
+    }
+
+    public String toString() {
+        return "an AnonymousMessageProducerWrapper on " + destination + " of " + session;
+    }
+
+    /* MessageProducer with special XA semantics implementation */
+
+    public void send(Message message) throws JMSException {
+        doSend(getBoundDestination(), message, deliveryMode, priority, timeToLive);
+    }
+
+    public void send(Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+        doSend(getBoundDestination(), message, deliveryMode, priority, timeToLive);
+    }
+
+    public void send(Destination destination, Message message) throws JMSException {
+        send(destination, message, deliveryMode, priority, timeToLive);
+    }
+
+    public void send(Destination destination, Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+        if (this.destination != null)
+            throw new InvalidDestinationException("producer has been created with destination " + this.destination);
+        doSend(destination, message, deliveryMode, priority, timeToLive);
+    }
+
+    private void doSend(final Destination destination, final Message message, final int deliveryMode, final int priority, final long timeToLive) throws JMSException {
+        enlistResource();
+        final boolean disableMessageID = this.disableMessageID;
+        final boolean disableMessageTimestamp = this.disableMessageTimestamp;
+        session.send(new TransactionSendBuffer.PendingSend() {
+            void send() throws JMSException {
+                MessageProducer messageProducer = session.getAnonymousProducer();
+                messageProducer.setDisableMessageID(disableMessageID);
+                messageProducer.setDisableMessageTimestamp(disableMessageTimestamp);
+                messageProducer.send(destination, message, deliveryMode, priority, timeToLive);
+            }
+        });
+    }
+
+    /* producer attributes local to this wrapper */
+
+    public void setDisableMessageID(boolean value) throws JMSException {
+        this.disableMessageID = value;
+    }
+
+    public boolean getDisableMessageID() throws JMSException {
+        return disableMessageID;
+    }
+
+    public void setDisableMessageTimestamp(boolean value) throws JMSException {
+        this.disableMessageTimestamp = value;
+    }
+
+    public boolean getDisableMessageTimestamp() throws JMSException {
+        return disableMessageTimestamp;
+    }
+
+    public void setDeliveryMode(int deliveryMode) throws JMSException {
+        this.deliveryMode = deliveryMode;
+    }
+
+    public int getDeliveryMode() throws JMSException {
+        return deliveryMode;
+    }
+
+    public void setPriority(int defaultPriority) throws JMSException {
+        this.priority = defaultPriority;
+    }
+
+    public int getPriority() throws JMSException {
+        return priority;
+    }
+
+    public void setTimeToLive(long timeToLive) throws JMSException {
+        this.timeToLive = timeToLive;
+    }
+
+    public long getTimeToLive() throws JMSException {
+        return timeToLive;
+    }
+
+    public Destination getDestination() throws JMSException {
+        return destination;
+    }
+
+}
@@ -23,8 +23,10 @@ package bitronix.tm.resource.jms;
 import bitronix.tm.BitronixTransaction;
 import bitronix.tm.internal.BitronixRollbackSystemException;
 import bitronix.tm.internal.BitronixSystemException;
+import bitronix.tm.resource.ResourceRegistrar;
 import bitronix.tm.resource.common.*;
 import bitronix.tm.utils.Decoder;
+import bitronix.tm.utils.Scheduler;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -57,6 +59,11 @@ public class DualSessionWrapper extends AbstractXAResourceHolder implements Sess
     private Session session;
     private XAResource xaResource;
     private MessageListener listener;
+    private MessageProducer anonymousProducer;
+    private MessageProducer xaAnonymousProducer;
+    private TransactionSendBuffer sendBuffer;
+    private boolean releasing;
+    private boolean uncachedConsumers;
 
     //TODO: shouldn't producers/consumers/subscribers be separated between XA and non-XA session ?
     private final Map<MessageProducerConsumerKey, MessageProducer> messageProducers = new HashMap<MessageProducerConsumerKey, MessageProducer>();
@@ -77,6 +84,10 @@ public class DualSessionWrapper extends AbstractXAResourceHolder implements Sess
         return pooledConnection.getPoolingConnectionFactory();
     }
 
+    int getSessionPoolKey() {
+        return JmsPooledConnection.sessionPoolKey(transacted, acknowledgeMode);
+    }
+
     public Session getSession() throws JMSException {
         return getSession(false);
     }
@@ -121,6 +132,7 @@ public class DualSessionWrapper extends AbstractXAResourceHolder implements Sess
                 if (log.isDebugEnabled()) log.debug("get XA session registered message listener: " + listener);
             }
             xaResource = xaSession.getXAResource();
+            ResourceRegistrar.registerXAResourceHolder(this);
         }
         return xaSession.getSession();
     }
@@ -142,6 +154,9 @@ public class DualSessionWrapper extends AbstractXAResourceHolder implements Sess
 
         // delisting
         try {
+            // buffered messages must be sent while the session still is enlisted
+            if (sendBuffer != null)
+                sendBuffer.flush();
             TransactionContextHelper.delistFromCurrentTransaction(this);
         }
         catch (BitronixRollbackSystemException ex) {
@@ -152,6 +167,7 @@ public class DualSessionWrapper extends AbstractXAResourceHolder implements Sess
         }
         finally {
             // requeuing
+            releasing = true;
             try {
                 TransactionContextHelper.requeue(this, pooledConnection.getPoolingConnectionFactory());
             }
@@ -161,27 +177,35 @@ public class DualSessionWrapper extends AbstractXAResourceHolder implements Sess
                 // Too bad if this happens... See JdbcPooledConnection.release() as well.
                 throw (JMSException) new JMSException("error requeuing " + this).initCause(ex);
             }
+            finally {
+                releasing = false;
+            }
         }
 
     }
 
-    public Date getLastReleaseDate() {
-        return null;
+    public long getLastReleaseTime() {
+        return 0L;
     }
 
     /*
      * When the session is closed (directly or deferred) the action is to change its state to IN_POOL.
-     * There is no such state for JMS sessions, this just means that it has been closed -> force a
-     * state switch to CLOSED then clean up.
+     * The session is then kept open in its connection's session pool when it can safely be reused,
+     * otherwise force a state switch to CLOSED then clean up.
      */
     public void stateChanged(XAStatefulHolder source, int oldState, int newState) {
         if (newState == STATE_IN_POOL) {
-            setState(STATE_CLOSED);
+            // a session still ACCESSIBLE can only be pooled when its handle has been closed, not when a
+            // deferred release of a past transaction completes while the handle is still in use
+            boolean released = releasing || oldState == STATE_NOT_ACCESSIBLE;
+            if (!released || !prepareForReuse() || !pooledConnection.poolIdleSession(this))
+                setState(STATE_CLOSED);
         }
         else if (newState == STATE_CLOSED) {
             if (log.isDebugEnabled()) log.debug("session state changing to CLOSED, cleaning it up: " + this);
 
             if (xaSession != null) {
+                ResourceRegistrar.unregisterXAResourceHolder(this);
                 try {
                     xaSession.close();
                 } catch (JMSException ex) {
@@ -189,6 +213,7 @@ public class DualSessionWrapper extends AbstractXAResourceHolder implements Sess
                 }
                 xaSession = null;
                 xaResource = null;
+                xaAnonymousProducer = null;
             }
 
             if (session != null) {
@@ -198,6 +223,7 @@ public class DualSessionWrapper extends AbstractXAResourceHolder implements Sess
                     log.error("error closing session", ex);
                 }
                 session = null;
+                anonymousProducer = null;
             }
 
             Iterator<Entry<MessageProducerConsumerKey, MessageProducer>> it = messageProducers.entrySet().iterator();
@@ -230,23 +256,126 @@ public class DualSessionWrapper extends AbstractXAResourceHolder implements Sess
     public void stateChanging(XAStatefulHolder source, int currentState, int futureState) {
     }
 
+    /**
+     * Clean up the session state that must not leak to the next user of this session: consumers are closed as
+     * they could keep on receiving messages, uncommitted work of a locally transacted session is rolled back.
+     * @return true if the session can be reused, false if it must be closed.
+     */
+    private boolean prepareForReuse() {
+        if (listener != null) {
+            if (log.isDebugEnabled()) log.debug("not reusing session with a registered message listener: " + this);
+            return false;
+        }
+        if (session != null && !transacted && acknowledgeMode == Session.CLIENT_ACKNOWLEDGE) {
+            if (log.isDebugEnabled()) log.debug("not reusing non-XA session in CLIENT_ACKNOWLEDGE mode: " + this);
+            return false;
+        }
+        if (uncachedConsumers) {
+            if (log.isDebugEnabled()) log.debug("not reusing session with uncached consumers: " + this);
+            return false;
+        }
+
+        try {
+            if (session != null && transacted)
+                session.rollback();
+
+            for (MessageConsumer messageConsumer : messageConsumers.values()) {
+                ((MessageConsumerWrapper) messageConsumer).getMessageConsumer().close();
+            }
+            messageConsumers.clear();
+            for (TopicSubscriberWrapper topicSubscriber : topicSubscribers.values()) {
+                topicSubscriber.getMessageConsumer().close();
+            }
+            topicSubscribers.clear();
+            return true;
+        } catch (JMSException ex) {
+            log.warn("error cleaning up session, closing it instead of reusing it: " + this, ex);
+            return false;
+        }
+    }
+
     public MessageProducer createProducer(Destination destination) throws JMSException {
         MessageProducerConsumerKey key = new MessageProducerConsumerKey(destination);
         if (log.isDebugEnabled()) log.debug("looking for producer based on " + key);
         MessageProducerWrapper messageProducer = (MessageProducerWrapper) messageProducers.get(key);
         if (messageProducer == null) {
             if (log.isDebugEnabled()) log.debug("found no producer based on " + key + ", creating it");
-            messageProducer = new MessageProducerWrapper(getSession().createProducer(destination), this, pooledConnection.getPoolingConnectionFactory());
+            messageProducer = createProducerWrapper(destination);
 
             if (pooledConnection.getPoolingConnectionFactory().getCacheProducersConsumers()) {
                 if (log.isDebugEnabled()) log.debug("caching producer via key " + key);
                 messageProducers.put(key, messageProducer);
             }
         }
-        else if (log.isDebugEnabled()) log.debug("found producer based on " + key + ", recycling it: " + messageProducer);
+        else {
+            if (log.isDebugEnabled()) log.debug("found producer based on " + key + ", recycling it: " + messageProducer);
+            pooledConnection.getPoolingConnectionFactory().producerCreationAvoided();
+        }
         return messageProducer;
     }
 
+    private MessageProducerWrapper createProducerWrapper(Destination destination) throws JMSException {
+        PoolingConnectionFactory poolingConnectionFactory = pooledConnection.getPoolingConnectionFactory();
+        if (poolingConnectionFactory.getUseAnonymousProducers()) {
+            poolingConnectionFactory.producerCreationAvoided();
+            return new AnonymousMessageProducerWrapper(destination, this, poolingConnectionFactory);
+        }
+
+        poolingConnectionFactory.producerCreated();
+        return new MessageProducerWrapper(getSession().createProducer(destination), this, poolingConnectionFactory);
+    }
+
+    /**
+     * Execute a send operation of one of this session's producers, or buffer it until the transaction is about to
+     * complete when running in a global transaction and the sendBatchSize of the connection factory is set.
+     * @param pendingSend the send operation.
+     * @throws JMSException when sending or flushing buffered messages fails.
+     */
+    void send(TransactionSendBuffer.PendingSend pendingSend) throws JMSException {
+        int batchSize = getPoolingConnectionFactory().getSendBatchSize();
+        BitronixTransaction currentTransaction = batchSize > 0 ? TransactionContextHelper.currentTransaction() : null;
+        if (currentTransaction == null) {
+            pendingSend.send();
+            return;
+        }
+
+        if (sendBuffer == null || !sendBuffer.isFor(currentTransaction)) {
+            sendBuffer = new TransactionSendBuffer(this, currentTransaction);
+            currentTransaction.getSynchronizationScheduler().add(sendBuffer, Scheduler.ALWAYS_FIRST_POSITION);
+        }
+        if (sendBuffer.isCompleting()) {
+            // sent by a synchronization running after the buffer has been flushed
+            pendingSend.send();
+            return;
+        }
+        sendBuffer.add(pendingSend, batchSize);
+    }
+
+    /**
+     * Get the unidentified producer of the underlying session used by {@link AnonymousMessageProducerWrapper}s.
+     * Each of the XA and non-XA sessions gets its own, created on first use.
+     * @return the unidentified producer of the session to use in the current context.
+     * @throws JMSException when the producer cannot be created.
+     */
+    MessageProducer getAnonymousProducer() throws JMSException {
+        Session currentSession = getSession();
+        if (currentSession == session) {
+            if (anonymousProducer == null) {
+                if (log.isDebugEnabled()) log.debug("creating anonymous non-XA producer in " + this);
+                anonymousProducer = currentSession.createProducer(null);
+                getPoolingConnectionFactory().producerCreated();
+            }
+            return anonymousProducer;
+        }
+
+        if (xaAnonymousProducer == null) {
+            if (log.isDebugEnabled()) log.debug("creating anonymous XA producer in " + this);
+            xaAnonymousProducer = currentSession.createProducer(null);
+            getPoolingConnectionFactory().producerCreated();
+        }
+        return xaAnonymousProducer;
+    }
+
     public MessageConsumer createConsumer(Destination destination) throws JMSException {
         MessageProducerConsumerKey key = new MessageProducerConsumerKey(destination);
         if (log.isDebugEnabled()) log.debug("looking for consumer based on " + key);
@@ -254,6 +383,7 @@ public class DualSessionWrapper extends AbstractXAResourceHolder implements Sess
         if (messageConsumer == null) {
             if (log.isDebugEnabled()) log.debug("found no consumer based on " + key + ", creating it");
             messageConsumer = new MessageConsumerWrapper(getSession().createConsumer(destination), this, pooledConnection.getPoolingConnectionFactory());
+            uncachedConsumers |= !pooledConnection.getPoolingConnectionFactory().getCacheProducersConsumers();
 
             if (pooledConnection.getPoolingConnectionFactory().getCacheProducersConsumers()) {
                 if (log.isDebugEnabled()) log.debug("caching consumer via key " + key);
@@ -271,6 +401,7 @@ public class DualSessionWrapper extends AbstractXAResourceHolder implements Sess
         if (messageConsumer == null) {
             if (log.isDebugEnabled()) log.debug("found no consumer based on " + key + ", creating it");
             messageConsumer = new MessageConsumerWrapper(getSession().createConsumer(destination, messageSelector), this, pooledConnection.getPoolingConnectionFactory());
+            uncachedConsumers |= !pooledConnection.getPoolingConnectionFactory().getCacheProducersConsumers();
 
             if (pooledConnection.getPoolingConnectionFactory().getCacheProducersConsumers()) {
                 if (log.isDebugEnabled()) log.debug("caching consumer via key " + key);
@@ -288,6 +419,7 @@ public class DualSessionWrapper extends AbstractXAResourceHolder implements Sess
         if (messageConsumer == null) {
             if (log.isDebugEnabled()) log.debug("found no consumer based on " + key + ", creating it");
             messageConsumer = new MessageConsumerWrapper(getSession().createConsumer(destination, messageSelector, noLocal), this, pooledConnection.getPoolingConnectionFactory());
+            uncachedConsumers |= !pooledConnection.getPoolingConnectionFactory().getCacheProducersConsumers();
 
             if (pooledConnection.getPoolingConnectionFactory().getCacheProducersConsumers()) {
                 if (log.isDebugEnabled()) log.debug("caching consumer via key " + key);
@@ -305,6 +437,7 @@ public class DualSessionWrapper extends AbstractXAResourceHolder implements Sess
         if (topicSubscriber == null) {
             if (log.isDebugEnabled()) log.debug("found no durable subscriber based on " + key + ", creating it");
             topicSubscriber = new TopicSubscriberWrapper(getSession().createDurableSubscriber(topic, name), this, pooledConnection.getPoolingConnectionFactory());
+            uncachedConsumers |= !pooledConnection.getPoolingConnectionFactory().getCacheProducersConsumers();
 
             if (pooledConnection.getPoolingConnectionFactory().getCacheProducersConsumers()) {
                 if (log.isDebugEnabled()) log.debug("caching durable subscriber via key " + key);
@@ -322,6 +455,7 @@ public class DualSessionWrapper extends AbstractXAResourceHolder implements Sess
         if (topicSubscriber == null) {
             if (log.isDebugEnabled()) log.debug("found no durable subscriber based on " + key + ", creating it");
             topicSubscriber = new TopicSubscriberWrapper(getSession().createDurableSubscriber(topic, name, messageSelector, noLocal), this, pooledConnection.getPoolingConnectionFactory());
+            uncachedConsumers |= !pooledConnection.getPoolingConnectionFactory().getCacheProducersConsumers();
 
             if (pooledConnection.getPoolingConnectionFactory().getCacheProducersConsumers()) {
                 if (log.isDebugEnabled()) log.debug("caching durable subscriber via key " + key);
@@ -467,10 +601,14 @@ public class DualSessionWrapper extends AbstractXAResourceHolder implements Sess
     }
 
     public javax.jms.Queue createQueue(String queueName) throws JMSException {
+        if (pooledConnection.getPoolingConnectionFactory().getCacheProducersConsumers())
+            return pooledConnection.getQueue(queueName, getSession());
         return getSession().createQueue(queueName);
     }
 
     public Topic createTopic(String topicName) throws JMSException {
+        if (pooledConnection.getPoolingConnectionFactory().getCacheProducersConsumers())
+            return pooledConnection.getTopic(topicName, getSession());
         return getSession().createTopic(topicName);
     }
 
@@ -89,11 +89,13 @@ public class JmsConnectionHandle implements Connection {
     }
 
     public ExceptionListener getExceptionListener() throws JMSException {
-        return getXAConnection().getExceptionListener();
+        getXAConnection();
+        return pooledConnection.getApplicationExceptionListener();
     }
 
     public void setExceptionListener(ExceptionListener listener) throws JMSException {
-        getXAConnection().setExceptionListener(listener);
+        getXAConnection();
+        pooledConnection.setApplicationExceptionListener(listener);
     }
 
     public void start() throws JMSException {
@@ -32,6 +32,8 @@ import javax.jms.*;
 import javax.transaction.xa.XAResource;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Implementation of a JMS pooled connection wrapping vendor's {@link XAConnection} implementation.
@@ -46,17 +48,33 @@ public class JmsPooledConnection extends AbstractXAStatefulHolder implements Jms
     private volatile XAConnection xaConnection;
     private final PoolingConnectionFactory poolingConnectionFactory;
     private final Set<DualSessionWrapper> sessions = Collections.synchronizedSet(new HashSet<DualSessionWrapper>());
+    // reusable sessions bucketed by transacted / acknowledge mode, guarded by the sessions lock
+    private final Map<Integer, LinkedList<DualSessionWrapper>> idleSessions = new HashMap<Integer, LinkedList<DualSessionWrapper>>();
+    private final Map<Integer, LinkedList<DualSessionWrapper>> notAccessibleSessions = new HashMap<Integer, LinkedList<DualSessionWrapper>>();
+    // destination objects are not bound to the session that created them and can be shared by all sessions
+    private final ConcurrentMap<String, javax.jms.Queue> queues = new ConcurrentHashMap<String, javax.jms.Queue>();
+    private final ConcurrentMap<String, Topic> topics = new ConcurrentHashMap<String, Topic>();
 
     /* management */
     private final String jmxName;
-    private volatile Date acquisitionDate;
-    private volatile Date lastReleaseDate;
+    private volatile long acquisitionTime;
+    private volatile long lastReleaseTime;
+
+    /* connection testing */
+    private volatile long lastTestTime;
+    private volatile JMSException connectionFailure;
+    private volatile ExceptionListener applicationExceptionListener;
 
     protected JmsPooledConnection(PoolingConnectionFactory poolingConnectionFactory, XAConnection connection) {
         this.poolingConnectionFactory = poolingConnectionFactory;
         this.xaConnection = connection;
-        this.lastReleaseDate = new Date(MonotonicClock.currentTimeMillis());
+        this.lastReleaseTime = MonotonicClock.coarseTimeMillis();
         addStateChangeEventListener(new JmsPooledConnectionStateChangeListener());
+        try {
+            connection.setExceptionListener(new JmsPooledConnectionExceptionListener());
+        } catch (JMSException ex) {
+            if (log.isDebugEnabled()) log.debug("cannot register exception listener on " + connection + ", broken connections will only be detected when tested", ex);
+        }
         
         if (poolingConnectionFactory.getClassName().equals(LrcXAConnectionFactory.class.getName())) {
             if (log.isDebugEnabled()) log.debug("emulating XA for resource " + poolingConnectionFactory.getUniqueName() + " - changing twoPcOrderingPosition to ALWAYS_LAST_POSITION");
@@ -89,11 +107,29 @@ public class JmsPooledConnection extends AbstractXAStatefulHolder implements Jms
         if (xaConnection != null) {
             poolingConnectionFactory.unregister(this);
             setState(STATE_CLOSED);
+            closeIdleSessions();
+            queues.clear();
+            topics.clear();
             xaConnection.close();
         }
         xaConnection = null;
     }
 
+    private void closeIdleSessions() {
+        List<DualSessionWrapper> toClose = new ArrayList<DualSessionWrapper>();
+        synchronized (sessions) {
+            for (LinkedList<DualSessionWrapper> bucket : idleSessions.values()) {
+                toClose.addAll(bucket);
+            }
+            idleSessions.clear();
+        }
+
+        for (DualSessionWrapper dualSessionWrapper : toClose) {
+            if (log.isDebugEnabled()) log.debug("closing idle session " + dualSessionWrapper);
+            dualSessionWrapper.setState(XAResourceHolder.STATE_CLOSED);
+        }
+    }
+
     public List<XAResourceHolder> getXAResourceHolders() {
         synchronized (sessions) {
             return new ArrayList<XAResourceHolder>(sessions);
@@ -108,7 +144,7 @@ public class JmsPooledConnection extends AbstractXAStatefulHolder implements Jms
 
         if (oldState == STATE_IN_POOL) {
             if (log.isDebugEnabled()) log.debug("connection " + xaConnection + " was in state IN_POOL, testing it");
-            testXAConnection();
+            testXAConnectionIfNeeded();
         }
         else {
             if (log.isDebugEnabled()) log.debug("connection " + xaConnection + " was in state " + Decoder.decodeXAStatefulHolderState(oldState) + ", no need to test it");
@@ -118,20 +154,66 @@ public class JmsPooledConnection extends AbstractXAStatefulHolder implements Jms
         return new JmsConnectionHandle(this, xaConnection);
     }
 
-    private void testXAConnection() throws JMSException {
+    public void validate() throws Exception {
+        testXAConnection();
+    }
+
+    private void testXAConnectionIfNeeded() throws JMSException {
+        JMSException failure = connectionFailure;
+        if (failure != null)
+            throw (JMSException) new JMSException("connection of " + this + " has been reported broken").initCause(failure);
+
         if (!poolingConnectionFactory.getTestConnections()) {
             if (log.isDebugEnabled()) log.debug("not testing connection of " + this);
             return;
         }
 
+        int skipInterval = poolingConnectionFactory.getTestSkipInterval();
+        if (skipInterval > 0) {
+            long lastUsage = Math.max(lastReleaseTime, lastTestTime);
+            if (MonotonicClock.coarseTimeMillis() - lastUsage < skipInterval) {
+                if (log.isDebugEnabled()) log.debug("connection of " + this + " used or tested less than " + skipInterval + "ms ago, skipping test");
+                poolingConnectionFactory.connectionTestSkipped();
+                return;
+            }
+        }
+        testXAConnection();
+    }
+
+    private void testXAConnection() throws JMSException {
+        JMSException failure = connectionFailure;
+        if (failure != null)
+            throw (JMSException) new JMSException("connection of " + this + " has been reported broken").initCause(failure);
+
         if (log.isDebugEnabled()) log.debug("testing connection of " + this);
-        XASession xaSession = xaConnection.createXASession();
+        long before = System.nanoTime();
         try {
-            TemporaryQueue tq = xaSession.createTemporaryQueue();
-            tq.delete();
-        } finally {
-            xaSession.close();
+            XASession xaSession = xaConnection.createXASession();
+            try {
+                TemporaryQueue tq = xaSession.createTemporaryQueue();
+                tq.delete();
+            } finally {
+                xaSession.close();
+            }
+        } catch (JMSException ex) {
+            poolingConnectionFactory.connectionTested(false, System.nanoTime() - before);
+            throw ex;
         }
+        lastTestTime = MonotonicClock.coarseTimeMillis();
+        poolingConnectionFactory.connectionTested(true, System.nanoTime() - before);
+    }
+
+    ExceptionListener getApplicationExceptionListener() {
+        return applicationExceptionListener;
+    }
+
+    /**
+     * The pool keeps its own exception listener registered on the underlying connection to detect broken connections,
+     * the one set by the application is called after it until the connection is released to the pool.
+     * @param applicationExceptionListener the application's exception listener.
+     */
+    void setApplicationExceptionListener(ExceptionListener applicationExceptionListener) {
+        this.applicationExceptionListener = applicationExceptionListener;
     }
 
     protected void release() throws JMSException {
@@ -165,10 +247,17 @@ public class JmsPooledConnection extends AbstractXAStatefulHolder implements Jms
     }
 
     protected Session createSession(boolean transacted, int acknowledgeMode) throws JMSException {
-        DualSessionWrapper sessionHandle = getNotAccessibleSession();
+        int key = sessionPoolKey(transacted, acknowledgeMode);
+        DualSessionWrapper sessionHandle;
+        synchronized (sessions) {
+            if (log.isDebugEnabled()) log.debug(sessions.size() + " session(s) open from " + this);
+            sessionHandle = poll(notAccessibleSessions, key);
+            if (sessionHandle == null)
+                sessionHandle = poll(idleSessions, key);
+        }
 
         if (sessionHandle == null) {
-            if (log.isDebugEnabled()) log.debug("no session handle found in NOT_ACCESSIBLE state, creating new session");
+            if (log.isDebugEnabled()) log.debug("no session handle found in NOT_ACCESSIBLE or IN_POOL state, creating new session");
             sessionHandle = new DualSessionWrapper(this, transacted, acknowledgeMode);
             sessionHandle.addStateChangeEventListener(new JmsConnectionHandleStateChangeListener());
             synchronized (sessions) {
@@ -176,26 +265,86 @@ public class JmsPooledConnection extends AbstractXAStatefulHolder implements Jms
             }
         }
         else {
-            if (log.isDebugEnabled()) log.debug("found session handle in NOT_ACCESSIBLE state, recycling it: " + sessionHandle);
+            if (log.isDebugEnabled()) log.debug("found session handle in " + Decoder.decodeXAStatefulHolderState(sessionHandle.getState()) + " state, recycling it: " + sessionHandle);
             sessionHandle.setState(XAResourceHolder.STATE_ACCESSIBLE);
         }
 
         return sessionHandle;
     }
 
-     private DualSessionWrapper getNotAccessibleSession() {
+    /**
+     * Keep a released session open so that it can be handed out again by {@link #createSession(boolean, int)}.
+     * @param sessionHandle the session, in IN_POOL state.
+     * @return true if the session has been pooled, false if it must be closed because this connection is closed
+     *         or already keeps maxSessionsPerConnection sessions open.
+     */
+    boolean poolIdleSession(DualSessionWrapper sessionHandle) {
         synchronized (sessions) {
-            if (log.isDebugEnabled()) log.debug(sessions.size() + " session(s) open from " + this);
-            for (DualSessionWrapper sessionHandle : sessions) {
-                if (sessionHandle.getState() == XAResourceHolder.STATE_NOT_ACCESSIBLE)
-                    return sessionHandle;
-            }
+            int maxSessions = poolingConnectionFactory.getMaxSessionsPerConnection();
+            if (xaConnection == null || getState() == STATE_CLOSED || (maxSessions > 0 && sessions.size() > maxSessions))
+                return false;
+
+            add(idleSessions, sessionHandle);
+            if (log.isDebugEnabled()) log.debug("pooled idle session " + sessionHandle);
+            return true;
+        }
+    }
+
+    javax.jms.Queue getQueue(String queueName, Session session) throws JMSException {
+        javax.jms.Queue queue = queues.get(queueName);
+        if (queue == null) {
+            queue = session.createQueue(queueName);
+            if (queue == null)
+                return null;
+            javax.jms.Queue previous = queues.putIfAbsent(queueName, queue);
+            if (previous != null)
+                queue = previous;
+        }
+        return queue;
+    }
+
+    Topic getTopic(String topicName, Session session) throws JMSException {
+        Topic topic = topics.get(topicName);
+        if (topic == null) {
+            topic = session.createTopic(topicName);
+            if (topic == null)
+                return null;
+            Topic previous = topics.putIfAbsent(topicName, topic);
+            if (previous != null)
+                topic = previous;
+        }
+        return topic;
+    }
+
+    static int sessionPoolKey(boolean transacted, int acknowledgeMode) {
+        return (acknowledgeMode << 1) | (transacted ? 1 : 0);
+    }
+
+    private static DualSessionWrapper poll(Map<Integer, LinkedList<DualSessionWrapper>> buckets, int key) {
+        LinkedList<DualSessionWrapper> bucket = buckets.get(key);
+        if (bucket == null)
             return null;
+        return bucket.poll();
+    }
+
+    private static void add(Map<Integer, LinkedList<DualSessionWrapper>> buckets, DualSessionWrapper sessionHandle) {
+        Integer key = sessionHandle.getSessionPoolKey();
+        LinkedList<DualSessionWrapper> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new LinkedList<DualSessionWrapper>();
+            buckets.put(key, bucket);
         }
+        bucket.addLast(sessionHandle);
     }
 
-    public Date getLastReleaseDate() {
-        return lastReleaseDate;
+    private static void remove(Map<Integer, LinkedList<DualSessionWrapper>> buckets, DualSessionWrapper sessionHandle) {
+        LinkedList<DualSessionWrapper> bucket = buckets.get(sessionHandle.getSessionPoolKey());
+        if (bucket != null)
+            bucket.remove(sessionHandle);
+    }
+
+    public long getLastReleaseTime() {
+        return lastReleaseTime;
     }
 
     public String toString() {
@@ -212,7 +361,24 @@ public class JmsPooledConnection extends AbstractXAStatefulHolder implements Jms
     }
 
     public Date getAcquisitionDate() {
-        return acquisitionDate;
+        long acquisitionTime = this.acquisitionTime;
+        if (acquisitionTime == 0L)
+            return null;
+        return MonotonicClock.toDate(acquisitionTime);
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    public int getIdleSessionCount() {
+        synchronized (sessions) {
+            int count = 0;
+            for (LinkedList<DualSessionWrapper> bucket : idleSessions.values()) {
+                count += bucket.size();
+            }
+            return count;
+        }
     }
 
     public Collection<String> getTransactionGtridsCurrentlyHoldingThis() {
@@ -234,10 +400,11 @@ public class JmsPooledConnection extends AbstractXAStatefulHolder implements Jms
         public void stateChanged(XAStatefulHolder source, int oldState, int newState) {
             if (newState == STATE_IN_POOL) {
                 if (log.isDebugEnabled()) log.debug("requeued JMS connection of " + poolingConnectionFactory);
-                lastReleaseDate = new Date(MonotonicClock.currentTimeMillis());
+                lastReleaseTime = MonotonicClock.coarseTimeMillis();
+                applicationExceptionListener = null;
             }
             if (oldState == STATE_IN_POOL && newState == STATE_ACCESSIBLE) {
-                acquisitionDate = new Date(MonotonicClock.currentTimeMillis());
+                acquisitionTime = MonotonicClock.coarseTimeMillis();
             }
             if (newState == STATE_CLOSED) {
                 ManagementRegistrar.unregister(jmxName);
@@ -250,12 +417,18 @@ public class JmsPooledConnection extends AbstractXAStatefulHolder implements Jms
 
     /**
      * {@link JmsConnectionHandle} {@link bitronix.tm.resource.common.StateChangeListener}.
-     * When state changes to STATE_CLOSED, the session is removed from the list of opened sessions.
+     * When state changes to STATE_CLOSED, the session is removed from the list of opened sessions. Sessions in
+     * NOT_ACCESSIBLE state are indexed so that they can be recycled first.
      */
     private final class JmsConnectionHandleStateChangeListener implements StateChangeListener {
         public void stateChanged(XAStatefulHolder source, int oldState, int newState) {
-            if (newState == XAResourceHolder.STATE_CLOSED) {
-                synchronized (sessions) {
+            DualSessionWrapper sessionHandle = (DualSessionWrapper) source;
+            synchronized (sessions) {
+                if (newState == XAResourceHolder.STATE_NOT_ACCESSIBLE)
+                    add(notAccessibleSessions, sessionHandle);
+
+                if (newState == XAResourceHolder.STATE_CLOSED) {
+                    remove(idleSessions, sessionHandle);
                     sessions.remove(source);
                     if (log.isDebugEnabled()) log.debug("DualSessionWrapper has been closed, " + sessions.size() + " session(s) left open in pooled connection");
                 }
@@ -263,6 +436,27 @@ public class JmsPooledConnection extends AbstractXAStatefulHolder implements Jms
         }
 
         public void stateChanging(XAStatefulHolder source, int currentState, int futureState) {
+            // unindex before the state changes so that the session cannot be recycled twice
+            if (currentState == XAResourceHolder.STATE_NOT_ACCESSIBLE) {
+                synchronized (sessions) {
+                    remove(notAccessibleSessions, (DualSessionWrapper) source);
+                }
+            }
+        }
+    }
+
+    /**
+     * {@link ExceptionListener} registered on the {@link XAConnection}. It records that the connection is broken, so
+     * that it is closed rather than reused, then notifies the application's own listener.
+     */
+    private final class JmsPooledConnectionExceptionListener implements ExceptionListener {
+        public void onException(JMSException ex) {
+            log.warn("connection of " + JmsPooledConnection.this + " reported broken, it will be closed instead of being reused: " + ex.getMessage());
+            connectionFailure = ex;
+
+            ExceptionListener listener = applicationExceptionListener;
+            if (listener != null)
+                listener.onException(ex);
         }
     }
 
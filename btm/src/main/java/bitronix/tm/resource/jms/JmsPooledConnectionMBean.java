@@ -32,6 +32,8 @@ public interface JmsPooledConnectionMBean {
 
     String getStateDescription();
     Date getAcquisitionDate();
+    int getSessionCount();
+    int getIdleSessionCount();
     Collection<String> getTransactionGtridsCurrentlyHoldingThis();
 
 }
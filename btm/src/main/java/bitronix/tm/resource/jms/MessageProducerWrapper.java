@@ -75,23 +75,31 @@ public class MessageProducerWrapper implements MessageProducer {
     /* MessageProducer with special XA semantics implementation */
 
     public void send(Message message) throws JMSException {
-        enlistResource();
-        getMessageProducer().send(message);
+        // the send may be deferred, use the producer attributes as they are now
+        send(message, getDeliveryMode(), getPriority(), getTimeToLive());
     }
 
-    public void send(Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+    public void send(final Message message, final int deliveryMode, final int priority, final long timeToLive) throws JMSException {
         enlistResource();
-        getMessageProducer().send(message, deliveryMode, priority, timeToLive);
+        session.send(new TransactionSendBuffer.PendingSend() {
+            void send() throws JMSException {
+                getMessageProducer().send(message, deliveryMode, priority, timeToLive);
+            }
+        });
     }
 
     public void send(Destination destination, Message message) throws JMSException {
-        enlistResource();
-        getMessageProducer().send(destination, message);
+        // the send may be deferred, use the producer attributes as they are now
+        send(destination, message, getDeliveryMode(), getPriority(), getTimeToLive());
     }
 
-    public void send(Destination destination, Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+    public void send(final Destination destination, final Message message, final int deliveryMode, final int priority, final long timeToLive) throws JMSException {
         enlistResource();
-        getMessageProducer().send(destination, message, deliveryMode, priority, timeToLive);
+        session.send(new TransactionSendBuffer.PendingSend() {
+            void send() throws JMSException {
+                getMessageProducer().send(destination, message, deliveryMode, priority, timeToLive);
+            }
+        });
     }
 
     public void close() throws JMSException {
@@ -34,6 +34,7 @@ import javax.naming.*;
 import javax.transaction.xa.XAResource;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Implementation of a JMS {@link ConnectionFactory} wrapping vendor's {@link XAConnectionFactory} implementation.
@@ -52,6 +53,15 @@ public class PoolingConnectionFactory extends ResourceBean implements Connection
 
     private volatile boolean cacheProducersConsumers = true;
     private volatile boolean testConnections = false;
+    private volatile int testSkipInterval = 0;
+    private final transient AtomicLong connectionTestCount = new AtomicLong();
+    private final transient AtomicLong skippedConnectionTestCount = new AtomicLong();
+    private final transient AtomicLong failedConnectionTestCount = new AtomicLong();
+    private volatile int maxSessionsPerConnection = 0;
+    private volatile boolean useAnonymousProducers = false;
+    private volatile int sendBatchSize = 0;
+    private final transient AtomicLong producerCreationCount = new AtomicLong();
+    private final transient AtomicLong avoidedProducerCreationCount = new AtomicLong();
     private volatile String user;
     private volatile String password;
     private volatile JmsConnectionHandle recoveryConnectionHandle;
@@ -94,6 +104,84 @@ public class PoolingConnectionFactory extends ResourceBean implements Connection
         this.testConnections = testConnections;
     }
 
+    /**
+     * @return the amount of milliseconds during which a connection is not tested again.
+     */
+    public int getTestSkipInterval() {
+        return testSkipInterval;
+    }
+
+    /**
+     * When set, connections which were released to the pool or successfully tested less than this amount of
+     * milliseconds ago are not tested when acquired from the pool. Connections are tested on each acquisition when
+     * this is 0, the default. Connections reported broken by the JMS provider to the pool's exception listener are
+     * never reused, whatever this interval is.
+     * @param testSkipInterval the amount of milliseconds during which a connection is not tested again.
+     */
+    public void setTestSkipInterval(int testSkipInterval) {
+        this.testSkipInterval = testSkipInterval;
+    }
+
+    /**
+     * @return the maximum amount of sessions a pooled connection keeps open for reuse, 0 meaning no limit.
+     *         Sessions released while more than this amount is open are closed instead of being pooled.
+     */
+    public int getMaxSessionsPerConnection() {
+        return maxSessionsPerConnection;
+    }
+
+    /**
+     * @param maxSessionsPerConnection the maximum amount of sessions a pooled connection keeps open for reuse,
+     *        0 meaning no limit.
+     */
+    public void setMaxSessionsPerConnection(int maxSessionsPerConnection) {
+        this.maxSessionsPerConnection = maxSessionsPerConnection;
+    }
+
+    /**
+     * @return true if the sessions send all their messages through a single unidentified producer instead of
+     *         creating one producer per destination.
+     */
+    public boolean getUseAnonymousProducers() {
+        return useAnonymousProducers;
+    }
+
+    /**
+     * @param useAnonymousProducers true if the sessions should send all their messages through a single
+     *        unidentified producer instead of creating one producer per destination.
+     */
+    public void setUseAnonymousProducers(boolean useAnonymousProducers) {
+        this.useAnonymousProducers = useAnonymousProducers;
+    }
+
+    /**
+     * @return the amount of messages a session buffers when sending in a global transaction before handing them over
+     *         to the provider, 0 meaning messages are not buffered.
+     */
+    public int getSendBatchSize() {
+        return sendBatchSize;
+    }
+
+    /**
+     * Make sessions buffer the messages sent in a global transaction. Buffered messages are sent when the batch
+     * size is reached, when the session is closed or right before the transaction completes, in the order in which
+     * they have been sent. Messages must not be modified after having been sent as they may not have been handed
+     * over to the provider yet, for the same reason their JMSMessageID, JMSTimestamp and JMSDestination headers are
+     * only assigned when the buffer is flushed.
+     * @param sendBatchSize the amount of messages to buffer, 0 meaning messages are not buffered.
+     */
+    public void setSendBatchSize(int sendBatchSize) {
+        this.sendBatchSize = sendBatchSize;
+    }
+
+    void producerCreated() {
+        producerCreationCount.incrementAndGet();
+    }
+
+    void producerCreationAvoided() {
+        avoidedProducerCreationCount.incrementAndGet();
+    }
+
     public String getUser() {
         return user;
     }
@@ -120,6 +208,7 @@ public class PoolingConnectionFactory extends ResourceBean implements Connection
         try {
             ResourceRegistrar.register(this);
         } catch (RecoveryException ex) {
+            pool.close();
             pool = null;
             throw ex;
         }
@@ -239,15 +328,10 @@ public class PoolingConnectionFactory extends ResourceBean implements Connection
     }
 
     public XAResourceHolder findXAResourceHolder(XAResource xaResource) {
-        synchronized (xaStatefulHolders) {
-            for (JmsPooledConnection jmsPooledConnection : xaStatefulHolders) {
-                XAResourceHolder xaResourceHolder = jmsPooledConnection.getXAResourceHolderForXaResource(xaResource);
-                if (xaResourceHolder != null) {
-                    return xaResourceHolder;
-                }
-            }
-            return null;
-        }
+        XAResourceHolder xaResourceHolder = ResourceRegistrar.findRegisteredXAResourceHolder(xaResource);
+        if (xaResourceHolder != null && xaResourceHolder.getResourceBean() == this)
+            return xaResourceHolder;
+        return null;
     }
 
     /* Referenceable implementation */
@@ -276,6 +360,83 @@ public class PoolingConnectionFactory extends ResourceBean implements Connection
         return pool.totalPoolSize();
     }
 
+    public long getActivePoolSize() {
+        return pool.totalPoolSize() - pool.inPoolSize();
+    }
+
+    public long getWaitingCount() {
+        return pool.waitingCount();
+    }
+
+    public long getProducerCreationCount() {
+        return producerCreationCount.get();
+    }
+
+    public long getAvoidedProducerCreationCount() {
+        return avoidedProducerCreationCount.get();
+    }
+
+    public long getAcquisitionWaitMicrosMean() {
+        return pool.getAcquisitionWaitTimes().getMean();
+    }
+
+    public long getAcquisitionWaitMicros99thPercentile() {
+        return pool.getAcquisitionWaitTimes().getPercentile(99);
+    }
+
+    public long getAcquisitionWaitMicrosMax() {
+        return pool.getAcquisitionWaitTimes().getMax();
+    }
+
+    public long getCreationMicrosMean() {
+        return pool.getCreationTimes().getMean();
+    }
+
+    public long getCreationMicros99thPercentile() {
+        return pool.getCreationTimes().getPercentile(99);
+    }
+
+    public long getCreationMicrosMax() {
+        return pool.getCreationTimes().getMax();
+    }
+
+    public long getValidationMicrosMean() {
+        return pool.getValidationTimes().getMean();
+    }
+
+    public long getValidationMicros99thPercentile() {
+        return pool.getValidationTimes().getPercentile(99);
+    }
+
+    public long getValidationMicrosMax() {
+        return pool.getValidationTimes().getMax();
+    }
+
+    public long getConnectionTestCount() {
+        return connectionTestCount.get();
+    }
+
+    public long getSkippedConnectionTestCount() {
+        return skippedConnectionTestCount.get();
+    }
+
+    public long getFailedConnectionTestCount() {
+        return failedConnectionTestCount.get();
+    }
+
+    void connectionTested(boolean successful, long durationNanos) {
+        connectionTestCount.incrementAndGet();
+        if (!successful)
+            failedConnectionTestCount.incrementAndGet();
+        XAPool currentPool = pool;
+        if (currentPool != null)
+            currentPool.getValidationTimes().recordNanos(durationNanos);
+    }
+
+    void connectionTestSkipped() {
+        skippedConnectionTestCount.incrementAndGet();
+    }
+
     public void reset() throws Exception {
         pool.reset();
     }
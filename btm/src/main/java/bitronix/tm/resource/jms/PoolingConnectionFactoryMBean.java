@@ -30,6 +30,22 @@ public interface PoolingConnectionFactoryMBean {
     public int getMaxPoolSize();
     public long getInPoolSize();
     public long getTotalPoolSize();
+    public long getActivePoolSize();
+    public long getWaitingCount();
+    public long getProducerCreationCount();
+    public long getAvoidedProducerCreationCount();
+    public long getAcquisitionWaitMicrosMean();
+    public long getAcquisitionWaitMicros99thPercentile();
+    public long getAcquisitionWaitMicrosMax();
+    public long getCreationMicrosMean();
+    public long getCreationMicros99thPercentile();
+    public long getCreationMicrosMax();
+    public long getValidationMicrosMean();
+    public long getValidationMicros99thPercentile();
+    public long getValidationMicrosMax();
+    public long getConnectionTestCount();
+    public long getSkippedConnectionTestCount();
+    public long getFailedConnectionTestCount();
     public boolean isFailed();
     public void reset() throws Exception;
     public boolean isDisabled();
@@ -0,0 +1,136 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.resource.jms;
+
+import bitronix.tm.BitronixTransaction;
+import bitronix.tm.internal.BitronixRuntimeException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jms.JMSException;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Messages sent by a session within a global transaction, held back until either enough of them have been
+ * accumulated or the transaction is about to complete so that they reach the provider in a burst it can pipeline.
+ * <p>The buffer is registered as a {@link Synchronization} of the transaction and flushed during the
+ * <code>beforeCompletion</code> cycle, after all other synchronizations. The order in which the messages have been
+ * sent is preserved. If a flush fails the transaction is marked as rollback only, and when it happens during
+ * <code>beforeCompletion</code> the transaction is rolled back.</p>
+ */
+class TransactionSendBuffer implements Synchronization {
+
+    private final static Logger log = LoggerFactory.getLogger(TransactionSendBuffer.class);
+
+    /**
+     * A send operation which can be executed later.
+     */
+    static abstract class PendingSend {
+        abstract void send() throws JMSException;
+    }
+
+    private final DualSessionWrapper session;
+    private final BitronixTransaction transaction;
+    private final List<PendingSend> pendingSends = new ArrayList<PendingSend>();
+    private boolean completing = false;
+
+    TransactionSendBuffer(DualSessionWrapper session, BitronixTransaction transaction) {
+        this.session = session;
+        this.transaction = transaction;
+    }
+
+    boolean isFor(BitronixTransaction transaction) {
+        return this.transaction == transaction;
+    }
+
+    /**
+     * @return true once the transaction has started its completion, messages cannot be buffered anymore.
+     */
+    boolean isCompleting() {
+        return completing;
+    }
+
+    void add(PendingSend pendingSend, int batchSize) throws JMSException {
+        pendingSends.add(pendingSend);
+        if (pendingSends.size() >= batchSize)
+            flush();
+    }
+
+    /**
+     * Send all buffered messages in the order they have been sent.
+     * @throws JMSException if a message could not be sent, the transaction is then marked as rollback only.
+     */
+    void flush() throws JMSException {
+        if (pendingSends.isEmpty())
+            return;
+
+        if (log.isDebugEnabled()) log.debug("flushing " + pendingSends.size() + " buffered message(s) of " + session);
+        try {
+            for (PendingSend pendingSend : pendingSends) {
+                pendingSend.send();
+            }
+        } catch (JMSException ex) {
+            markRollbackOnly();
+            throw ex;
+        } catch (RuntimeException ex) {
+            markRollbackOnly();
+            throw ex;
+        } finally {
+            pendingSends.clear();
+        }
+    }
+
+    private void markRollbackOnly() {
+        try {
+            transaction.setRollbackOnly();
+        } catch (SystemException ex) {
+            log.warn("error marking " + transaction + " as rollback only after failing to send buffered messages", ex);
+        } catch (IllegalStateException ex) {
+            log.warn("error marking " + transaction + " as rollback only after failing to send buffered messages", ex);
+        }
+    }
+
+    public void beforeCompletion() {
+        completing = true;
+        try {
+            flush();
+        } catch (JMSException ex) {
+            throw new BitronixRuntimeException("error sending buffered messages of " + session, ex);
+        }
+    }
+
+    public void afterCompletion(int status) {
+        completing = true;
+        if (!pendingSends.isEmpty()) {
+            if (log.isDebugEnabled()) log.debug("discarding " + pendingSends.size() + " buffered message(s) of " + session);
+            pendingSends.clear();
+        }
+    }
+
+    public String toString() {
+        return "a TransactionSendBuffer with " + pendingSends.size() + " buffered message(s) of " + session;
+    }
+}
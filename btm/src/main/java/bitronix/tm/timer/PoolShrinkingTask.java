@@ -22,8 +22,6 @@ package bitronix.tm.timer;
 
 import bitronix.tm.resource.common.XAPool;
 
-import java.util.Date;
-
 /**
  * This task is used to notify a XA pool to close idle connections.
  *
@@ -33,7 +31,7 @@ public class PoolShrinkingTask extends Task {
 
     private final XAPool xaPool;
 
-    public PoolShrinkingTask(XAPool xaPool, Date executionTime, TaskScheduler scheduler) {
+    public PoolShrinkingTask(XAPool xaPool, long executionTime, TaskScheduler scheduler) {
         super(executionTime, scheduler);
         this.xaPool = xaPool;
     }
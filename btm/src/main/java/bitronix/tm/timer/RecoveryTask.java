@@ -22,11 +22,10 @@ package bitronix.tm.timer;
 
 import bitronix.tm.TransactionManagerServices;
 import bitronix.tm.recovery.Recoverer;
+import bitronix.tm.utils.MonotonicClock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Date;
-
 /**
  * This task is used to run the background recovery.
  *
@@ -38,7 +37,7 @@ public class RecoveryTask extends Task {
 
     private final Recoverer recoverer;
 
-    public RecoveryTask(Recoverer recoverer, Date executionTime, TaskScheduler scheduler) {
+    public RecoveryTask(Recoverer recoverer, long executionTime, TaskScheduler scheduler) {
         super(executionTime, scheduler);
         this.recoverer = recoverer;
     }
@@ -55,9 +54,9 @@ public class RecoveryTask extends Task {
         recovery.setPriority(Thread.NORM_PRIORITY -1);
         recovery.start();
 
-        Date nextExecutionDate = new Date(getExecutionTime().getTime() + (TransactionManagerServices.getConfiguration().getBackgroundRecoveryIntervalSeconds() * 1000L));
-        if (log.isDebugEnabled()) log.debug("rescheduling recovery for " + nextExecutionDate);
-        getTaskScheduler().scheduleRecovery(recoverer, nextExecutionDate);
+        long nextExecutionTime = getExecutionTime() + (TransactionManagerServices.getConfiguration().getBackgroundRecoveryIntervalSeconds() * 1000L);
+        if (log.isDebugEnabled()) log.debug("rescheduling recovery for " + MonotonicClock.toDate(nextExecutionTime));
+        getTaskScheduler().scheduleRecovery(recoverer, nextExecutionTime);
     }
 
     public String toString() {
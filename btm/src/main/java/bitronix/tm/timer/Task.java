@@ -20,7 +20,7 @@
  */
 package bitronix.tm.timer;
 
-import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Asbtract superclass of all timed tasks.
@@ -29,15 +29,26 @@ import java.util.Date;
  */
 public abstract class Task implements Comparable<Task> {
 
-    private final Date executionTime;
+    private final static AtomicLong sequenceGenerator = new AtomicLong();
+
+    private final long executionTime;
+    // tasks scheduled for the same time must not be considered equal by the sorted tasks set
+    private final long sequenceNumber = sequenceGenerator.incrementAndGet();
     private final TaskScheduler taskScheduler;
 
-    protected Task(Date executionTime, TaskScheduler scheduler) {
+    /**
+     * @param executionTime the {@link bitronix.tm.utils.MonotonicClock} time at which the task must be executed.
+     * @param scheduler the scheduler this task is queued in.
+     */
+    protected Task(long executionTime, TaskScheduler scheduler) {
         this.executionTime = executionTime;
         this.taskScheduler = scheduler;
     }
 
-    public Date getExecutionTime() {
+    /**
+     * @return the {@link bitronix.tm.utils.MonotonicClock} time at which the task must be executed.
+     */
+    public long getExecutionTime() {
         return executionTime;
     }
 
@@ -46,7 +57,11 @@ public abstract class Task implements Comparable<Task> {
     }
 
     public int compareTo(Task otherTask) {
-        return this.executionTime.compareTo(otherTask.executionTime);
+        if (this.executionTime != otherTask.executionTime)
+            return this.executionTime < otherTask.executionTime ? -1 : 1;
+        if (this.sequenceNumber != otherTask.sequenceNumber)
+            return this.sequenceNumber < otherTask.sequenceNumber ? -1 : 1;
+        return 0;
     }
 
     public abstract Object getObject();
@@ -30,7 +30,6 @@ import bitronix.tm.utils.Service;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Date;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.SortedSet;
@@ -115,17 +114,15 @@ public class TaskScheduler extends Thread implements Service {
     }
 
     /**
-     * Schedule a task that will mark the transaction as timed out at the specified date. If this method is called
-     * with the same transaction multiple times, the previous timeout date is dropped and replaced by the new one.
+     * Schedule a task that will mark the transaction as timed out at the specified time. If this method is called
+     * with the same transaction multiple times, the previous timeout time is dropped and replaced by the new one.
      * @param transaction the transaction to mark as timeout.
-     * @param executionTime the date at which the transaction must be marked.
+     * @param executionTime the {@link MonotonicClock} time at which the transaction must be marked.
      */
-    public void scheduleTransactionTimeout(BitronixTransaction transaction, Date executionTime) {
-        if (log.isDebugEnabled()) log.debug("scheduling transaction timeout task on " + transaction + " for " + executionTime);
+    public void scheduleTransactionTimeout(BitronixTransaction transaction, long executionTime) {
+        if (log.isDebugEnabled()) log.debug("scheduling transaction timeout task on " + transaction + " for " + MonotonicClock.toDate(executionTime));
         if (transaction == null)
             throw new IllegalArgumentException("expected a non-null transaction");
-        if (executionTime == null)
-            throw new IllegalArgumentException("expected a non-null execution date");
 
         TransactionTimeoutTask task = new TransactionTimeoutTask(transaction, executionTime, this);
         addTask(task);
@@ -146,16 +143,14 @@ public class TaskScheduler extends Thread implements Service {
     }
 
     /**
-     * Schedule a task that will run background recovery at the specified date.
+     * Schedule a task that will run background recovery at the specified time.
      * @param recoverer the recovery implementation to use.
-     * @param executionTime the date at which the transaction must be marked.
+     * @param executionTime the {@link MonotonicClock} time at which the recovery must run.
      */
-    public void scheduleRecovery(Recoverer recoverer, Date executionTime) {
-        if (log.isDebugEnabled()) log.debug("scheduling recovery task for " + executionTime);
+    public void scheduleRecovery(Recoverer recoverer, long executionTime) {
+        if (log.isDebugEnabled()) log.debug("scheduling recovery task for " + MonotonicClock.toDate(executionTime));
         if (recoverer == null)
             throw new IllegalArgumentException("expected a non-null recoverer");
-        if (executionTime == null)
-            throw new IllegalArgumentException("expected a non-null execution date");
 
         RecoveryTask task = new RecoveryTask(recoverer, executionTime, this);
         addTask(task);
@@ -175,14 +170,12 @@ public class TaskScheduler extends Thread implements Service {
 
     /**
      * Schedule a task that will tell a XA pool to close idle connections. The execution time will be provided by the
-     * XA pool itself via the {@link bitronix.tm.resource.common.XAPool#getNextShrinkDate()}.
+     * XA pool itself via the {@link bitronix.tm.resource.common.XAPool#getNextShrinkTime()}.
      * @param xaPool the XA pool to notify.
      */
     public void schedulePoolShrinking(XAPool xaPool) {
-        Date executionTime = xaPool.getNextShrinkDate();
-        if (log.isDebugEnabled()) log.debug("scheduling pool shrinking task on " + xaPool + " for " + executionTime);
-        if (executionTime == null)
-            throw new IllegalArgumentException("expected a non-null execution date");
+        long executionTime = xaPool.getNextShrinkTime();
+        if (log.isDebugEnabled()) log.debug("scheduling pool shrinking task on " + xaPool + " for " + MonotonicClock.toDate(executionTime));
 
         PoolShrinkingTask task = new PoolShrinkingTask(xaPool, executionTime, this);
         addTask(task);
@@ -255,23 +248,29 @@ public class TaskScheduler extends Thread implements Service {
             if (this.tasks.isEmpty())
                 return;
 
-            Set<Task> toRemove = new HashSet<Task>();
+            Set<Task> toRemove = null;
             for (Task task : tasks) {
-                if (task.getExecutionTime().compareTo(new Date(MonotonicClock.currentTimeMillis())) <= 0) {
-                    // if the execution time is now or in the past
-                    if (log.isDebugEnabled()) log.debug("running " + task);
-                    try {
-                        task.execute();
-                        if (log.isDebugEnabled()) log.debug("successfully ran " + task);
-                    } catch (Exception ex) {
-                        log.warn("error running " + task, ex);
-                    } finally {
-                        toRemove.add(task);
-                        if (log.isDebugEnabled()) log.debug("total task(s) still queued: " + tasks.size());
-                    }
-                } // if
+                if (task.getExecutionTime() > MonotonicClock.coarseTimeMillis()) {
+                    // tasks are sorted by execution time, none of the remaining ones is due yet
+                    break;
+                }
+
+                // the execution time is now or in the past
+                if (log.isDebugEnabled()) log.debug("running " + task);
+                try {
+                    task.execute();
+                    if (log.isDebugEnabled()) log.debug("successfully ran " + task);
+                } catch (Exception ex) {
+                    log.warn("error running " + task, ex);
+                } finally {
+                    if (toRemove == null)
+                        toRemove = new HashSet<Task>();
+                    toRemove.add(task);
+                    if (log.isDebugEnabled()) log.debug("total task(s) still queued: " + tasks.size());
+                }
             }
-            this.tasks.removeAll(toRemove);
+            if (toRemove != null)
+                this.tasks.removeAll(toRemove);
         } finally {
             unlock();
         }
@@ -25,7 +25,7 @@ import bitronix.tm.internal.BitronixSystemException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Date;
+import bitronix.tm.utils.MonotonicClock;
 
 /**
  * This task is used to mark a transaction as timed-out.
@@ -38,7 +38,7 @@ public class TransactionTimeoutTask extends Task {
 
     private final BitronixTransaction transaction;
 
-    public TransactionTimeoutTask(BitronixTransaction transaction, Date executionTime, TaskScheduler scheduler) {
+    public TransactionTimeoutTask(BitronixTransaction transaction, long executionTime, TaskScheduler scheduler) {
         super(executionTime, scheduler);
         this.transaction = transaction;
     }
@@ -57,7 +57,7 @@ public class TransactionTimeoutTask extends Task {
     }
 
     public String toString() {
-        return "a TransactionTimeoutTask on " + transaction + " scheduled for " + getExecutionTime();
+        return "a TransactionTimeoutTask on " + transaction + " scheduled for " + MonotonicClock.toDate(getExecutionTime());
     }
 
 }
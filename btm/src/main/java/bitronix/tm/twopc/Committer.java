@@ -80,6 +80,7 @@ public final class Committer extends AbstractPhaseEngine {
 
         this.interestedResources.clear();
         this.interestedResources.addAll(interestedResources);
+        this.committedResources.clear();
         this.onePhase = resourceManager.size() == 1;
 
         try {
@@ -118,6 +119,14 @@ public final class Committer extends AbstractPhaseEngine {
         transaction.setStatus(Status.STATUS_COMMITTED, committedAndNotInterestedUniqueNames);
     }
 
+    /**
+     * Forget about the resources of the last committed transaction so that this engine can be reused.
+     */
+    public void reset() {
+        interestedResources.clear();
+        committedResources.clear();
+    }
+
     private void throwException(String message, PhaseException phaseException, int totalResourceCount) throws HeuristicMixedException, HeuristicRollbackException {
         List<Exception> exceptions = phaseException.getExceptions();
         List<XAResourceHolderState> resources = phaseException.getResourceStates();
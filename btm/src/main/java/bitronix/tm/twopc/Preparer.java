@@ -96,6 +96,13 @@ public final class Preparer extends AbstractPhaseEngine {
         return Collections.unmodifiableList(preparedResources);
     }
 
+    /**
+     * Forget about the resources of the last prepared transaction so that this engine can be reused.
+     */
+    public void reset() {
+        preparedResources.clear();
+    }
+
     private void throwException(String message, PhaseException phaseException) throws BitronixRollbackException {
         List<Exception> exceptions = phaseException.getExceptions();
         List<XAResourceHolderState> resources = phaseException.getResourceStates();
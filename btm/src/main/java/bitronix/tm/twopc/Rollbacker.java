@@ -71,6 +71,7 @@ public final class Rollbacker extends AbstractPhaseEngine {
         transaction.setStatus(Status.STATUS_ROLLING_BACK);
         this.interestedResources.clear();
         this.interestedResources.addAll(interestedResources);
+        this.rolledbackResources.clear();
 
         try {
             executePhase(resourceManager, true);
@@ -103,6 +104,14 @@ public final class Rollbacker extends AbstractPhaseEngine {
         transaction.setStatus(Status.STATUS_ROLLEDBACK, rolledbackAndNotInterestedUniqueNames);
     }
 
+    /**
+     * Forget about the resources of the last rolled back transaction so that this engine can be reused.
+     */
+    public void reset() {
+        interestedResources.clear();
+        rolledbackResources.clear();
+    }
+
     private void throwException(String message, PhaseException phaseException, int totalResourceCount) throws HeuristicMixedException, HeuristicCommitException {
         List<Exception> exceptions = phaseException.getExceptions();
         List<XAResourceHolderState> resources = phaseException.getResourceStates();
@@ -0,0 +1,156 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free distribution of durations, recorded in microseconds.
+ * <p>Recorded values are counted in buckets which get wider as the values grow: values under 16 have a bucket of
+ * their own and every following power of two is split in 8 sub-buckets. Percentiles are thus reported with a
+ * precision of 12.5% in a constant amount of memory, whatever the range of the recorded values is. Recording a value
+ * only increments a few atomic counters so that it is cheap enough to be done on every pool access.</p>
+ */
+public final class LatencyHistogram {
+
+    private final static int SUB_BUCKET_BITS = 3;
+    private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private final static int LINEAR_BUCKETS = SUB_BUCKETS * 2;
+    private final static int BUCKET_COUNT = LINEAR_BUCKETS + (63 - (SUB_BUCKET_BITS + 1)) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a duration measured with {@link System#nanoTime()}.
+     * @param nanos the duration in nanoseconds.
+     */
+    public void recordNanos(long nanos) {
+        record(nanos / 1000L);
+    }
+
+    /**
+     * Record a duration.
+     * @param micros the duration in microseconds, negative values are recorded as 0.
+     */
+    public void record(long micros) {
+        if (micros < 0)
+            micros = 0;
+
+        buckets.incrementAndGet(bucketIndex(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        while (true) {
+            long currentMax = max.get();
+            if (micros <= currentMax || max.compareAndSet(currentMax, micros))
+                break;
+        }
+    }
+
+    /**
+     * @return the amount of recorded durations.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the mean of the recorded durations in microseconds or 0 if none was recorded.
+     */
+    public long getMean() {
+        long currentCount = count.get();
+        if (currentCount == 0)
+            return 0;
+        return sum.get() / currentCount;
+    }
+
+    /**
+     * @return the longest recorded duration in microseconds.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get the duration under which the specified percentage of the recorded durations fall. Concurrently recorded
+     * durations may or may not be taken into account.
+     * @param percentile the percentage, between 0 and 100.
+     * @return the highest value of the bucket containing the percentile in microseconds, capped by the longest
+     *         recorded duration or 0 if none was recorded.
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0)
+            return 0;
+
+        long threshold = Math.max(1, (long) Math.ceil(total * Math.min(percentile, 100.0) / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= threshold)
+                return Math.min(bucketHighestValue(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Forget all the recorded durations. Durations recorded concurrently may be partially forgotten.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    static int bucketIndex(long value) {
+        if (value < LINEAR_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - (SUB_BUCKET_BITS + 1)) * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketHighestValue(int index) {
+        if (index < LINEAR_BUCKETS)
+            return index;
+        int exponent = (index - LINEAR_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        long subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + subBucket * width + width - 1;
+    }
+
+    public String toString() {
+        return "a LatencyHistogram with " + getCount() + " value(s), mean=" + getMean() + "us, 50%=" + getPercentile(50) +
+                "us, 99%=" + getPercentile(99) + "us, max=" + getMax() + "us";
+    }
+
+}
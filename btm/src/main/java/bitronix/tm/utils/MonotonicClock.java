@@ -20,17 +20,29 @@
  */
 package bitronix.tm.utils;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Date;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A System.currentTimeMillis() replacement which guarantees monotonic time increment.
+ * <p>Besides the precise clock, a coarse clock can be started. It is backed by a background thread which refreshes
+ * a cached time at a configurable resolution so that reading it is nothing more than a volatile read. It is meant
+ * to be used where millisecond precision is not needed.</p>
  *
  * @author lorban
  */
 public final class MonotonicClock {
 
+    private final static Logger log = LoggerFactory.getLogger(MonotonicClock.class);
+
     private static final AtomicLong lastTime = new AtomicLong();
 
+    private static volatile long coarseTime;
+    private static volatile CoarseClockTicker ticker;
+
     private MonotonicClock() {
     }
 
@@ -47,4 +59,91 @@ public final class MonotonicClock {
         }
         return time;
     }
+
+    /**
+     * Return the current time in milliseconds as last sampled by the coarse clock. The returned value lags behind
+     * {@link #currentTimeMillis()} by at most the coarse clock resolution. When the coarse clock is not running this
+     * method is equivalent to {@link #currentTimeMillis()}.
+     * @return the current time in milliseconds, with the coarse clock resolution.
+     */
+    public static long coarseTimeMillis() {
+        if (ticker == null)
+            return currentTimeMillis();
+        return coarseTime;
+    }
+
+    /**
+     * Start the coarse clock background thread. If it is already running it is restarted with the new resolution.
+     * @param resolution the interval in milliseconds at which the coarse clock is refreshed. A value lower than 1
+     *        stops the coarse clock.
+     */
+    public static synchronized void startCoarseClock(int resolution) {
+        stopCoarseClock();
+        if (resolution < 1)
+            return;
+
+        if (log.isDebugEnabled()) log.debug("starting coarse clock with a resolution of " + resolution + "ms");
+        coarseTime = currentTimeMillis();
+        CoarseClockTicker newTicker = new CoarseClockTicker(resolution);
+        newTicker.start();
+        ticker = newTicker;
+    }
+
+    /**
+     * Stop the coarse clock background thread. {@link #coarseTimeMillis()} falls back to {@link #currentTimeMillis()}
+     * afterwards.
+     */
+    public static synchronized void stopCoarseClock() {
+        CoarseClockTicker oldTicker = ticker;
+        if (oldTicker == null)
+            return;
+
+        if (log.isDebugEnabled()) log.debug("stopping coarse clock");
+        ticker = null;
+        oldTicker.shutdown();
+    }
+
+    /**
+     * @return true if the coarse clock background thread is running, false otherwise.
+     */
+    public static boolean isCoarseClockRunning() {
+        return ticker != null;
+    }
+
+    /**
+     * Convert a time previously returned by {@link #currentTimeMillis()} into a wall-clock {@link Date}. This is only
+     * meant to be used for reporting, ie: by management beans.
+     * @param time a time previously returned by {@link #currentTimeMillis()}.
+     * @return the wall-clock date matching the specified time.
+     */
+    public static Date toDate(long time) {
+        return new Date(System.currentTimeMillis() - (currentTimeMillis() - time));
+    }
+
+    private static final class CoarseClockTicker extends Thread {
+        private final int resolution;
+        private volatile boolean active = true;
+
+        private CoarseClockTicker(int resolution) {
+            this.resolution = resolution;
+            setDaemon(true);
+            setName("bitronix-coarse-clock");
+        }
+
+        public void run() {
+            while (active) {
+                coarseTime = currentTimeMillis();
+                try {
+                    Thread.sleep(resolution);
+                } catch (InterruptedException ex) {
+                    // ignore, the active flag tells if we must stop
+                }
+            }
+        }
+
+        private void shutdown() {
+            active = false;
+            interrupt();
+        }
+    }
 }
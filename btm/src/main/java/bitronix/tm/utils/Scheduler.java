@@ -26,6 +26,14 @@ import java.util.*;
  * Positional object container. Objects can be added to a scheduler at a certain position (or priority) and can be
  * retrieved later on in their position + added order. All the objects of a scheduler can be iterated in order or
  * objects of a cetain position can be retrieved for iteration.
+ * <p>Schedulers hold the resources and synchronizations of a single transaction which almost always use a
+ * single or a handful of positions. The positions are thus kept in a small sorted array which is scanned linearly,
+ * the sorted sets of positions are cached until the positions change and the lists of emptied positions are kept
+ * for reuse.</p>
+ * <p>A scheduler is mostly used by the thread running the transaction it belongs to but it can also be read by
+ * other threads, like the transaction timeout task or management clients. Its methods and its iterators' methods
+ * are thus synchronized on the scheduler, a cheap and uncontended lock in the common case. Iterating with an iterator
+ * is not atomic, threads other than the one using the scheduler should read a {@link #snapshot()} instead.</p>
  *
  * @author lorban
  */
@@ -35,25 +43,36 @@ public class Scheduler<T> implements Iterable<T> {
     public static final Integer ALWAYS_FIRST_POSITION = Integer.MIN_VALUE;
     public static final Integer ALWAYS_LAST_POSITION = Integer.MAX_VALUE;
 
-    private List<Integer> keys = new ArrayList<Integer>();
-    private Map<Integer, List<T>> objects = new TreeMap<Integer, List<T>>();
+    private static final int INITIAL_POSITIONS_CAPACITY = 4;
+
+    private static final Scheduler<Object> EMPTY_SCHEDULER = new Scheduler<Object>() {
+        public synchronized void add(Object obj, Integer position) {
+            throw new UnsupportedOperationException("cannot add objects to the empty scheduler");
+        }
+    };
+
+    // positions sorted in ascending order, the objects of positions[i] are in buckets[i].
+    // Lists of buckets at index >= positionCount are empty and kept for reuse.
+    private int[] positions = new int[INITIAL_POSITIONS_CAPACITY];
+    private List<T>[] buckets = newBuckets(INITIAL_POSITIONS_CAPACITY);
+    private int positionCount = 0;
     private int size = 0;
 
+    // cached positions views, they are valid as long as the positions they have been built from did not change
+    private int[] cachedPositions = new int[0];
+    private SortedSet<Integer> naturalOrderPositions = Collections.unmodifiableSortedSet(new TreeSet<Integer>());
+    private SortedSet<Integer> reverseOrderPositions = Collections.unmodifiableSortedSet(new TreeSet<Integer>(Collections.reverseOrder()));
+
 
     public Scheduler() {
     }
 
     public synchronized void add(T obj, Integer position) {
-        List<T> list = objects.get(position);
-        if (list == null) {
-            if (!keys.contains(position)) {
-                keys.add(position);
-                Collections.sort(keys);
-            }
-            list = new ArrayList<T>();
-            objects.put(position, list);
-        }
-        list.add(obj);
+        int pos = position;
+        int index = indexOf(pos);
+        if (index < 0)
+            index = insertPosition(-(index + 1), pos);
+        buckets[index].add(obj);
         size++;
     }
 
@@ -69,18 +88,51 @@ public class Scheduler<T> implements Iterable<T> {
         throw new NoSuchElementException("no such element: " + obj);
     }
 
+    /**
+     * Remove all objects from this scheduler.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < positionCount; i++) {
+            buckets[i].clear();
+        }
+        positionCount = 0;
+        size = 0;
+    }
+
+    /**
+     * Get the shared, always empty scheduler. Adding objects to it is not supported.
+     * @return the empty scheduler.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Scheduler<T> emptyScheduler() {
+        return (Scheduler<T>) EMPTY_SCHEDULER;
+    }
+
+    /**
+     * Get the positions in natural order. The returned set cannot be modified and does not reflect later changes
+     * made to this scheduler.
+     * @return the positions in natural order.
+     */
     public synchronized SortedSet<Integer> getNaturalOrderPositions() {
-        return new TreeSet<Integer>(objects.keySet());
+        refreshPositionsViews();
+        return naturalOrderPositions;
     }
 
+    /**
+     * Get the positions in reverse order. The returned set cannot be modified and does not reflect later changes
+     * made to this scheduler.
+     * @return the positions in reverse order.
+     */
     public synchronized SortedSet<Integer> getReverseOrderPositions() {
-        TreeSet<Integer> result = new TreeSet<Integer>(Collections.reverseOrder());
-        result.addAll(getNaturalOrderPositions());
-        return result;
+        refreshPositionsViews();
+        return reverseOrderPositions;
     }
 
     public synchronized List<T> getByNaturalOrderForPosition(Integer position) {
-        return objects.get(position);
+        int index = indexOf(position);
+        if (index < 0)
+            return null;
+        return buckets[index];
     }
 
     public synchronized List<T> getByReverseOrderForPosition(Integer position) {
@@ -97,12 +149,118 @@ public class Scheduler<T> implements Iterable<T> {
         return new SchedulerNaturalOrderIterator();
     }
 
-    public Iterator<T> reverseIterator() {
+    public synchronized Iterator<T> reverseIterator() {
         return new SchedulerReverseOrderIterator();
     }
 
-    public String toString() {
-        return "a Scheduler with " + size() + " object(s) in " + getNaturalOrderPositions().size() + " position(s)";
+    /**
+     * Get a copy of all the objects in natural order, taken atomically.
+     * @return a list of all the objects in natural order which does not reflect later changes made to this scheduler.
+     */
+    public synchronized List<T> snapshot() {
+        List<T> result = new ArrayList<T>(size);
+        for (int i = 0; i < positionCount; i++) {
+            result.addAll(buckets[i]);
+        }
+        return result;
+    }
+
+    public synchronized String toString() {
+        return "a Scheduler with " + size + " object(s) in " + positionCount + " position(s)";
+    }
+
+    /*
+    * Internal impl
+    */
+
+    @SuppressWarnings("unchecked")
+    private static <T> List<T>[] newBuckets(int capacity) {
+        return new List[capacity];
+    }
+
+    /**
+     * Linear search of a position, the amount of positions being tiny.
+     * @return the index of the position if it exists or (-(insertion point) - 1) if it does not.
+     */
+    private int indexOf(int position) {
+        int[] positions = this.positions;
+        int count = Math.min(positionCount, positions.length);
+        for (int i = 0; i < count; i++) {
+            int current = positions[i];
+            if (current == position)
+                return i;
+            if (current > position)
+                return -(i + 1);
+        }
+        return -(count + 1);
+    }
+
+    private int insertPosition(int index, int position) {
+        if (positionCount == positions.length) {
+            int newCapacity = positions.length * 2;
+            int[] newPositions = new int[newCapacity];
+            List<T>[] newBuckets = newBuckets(newCapacity);
+            System.arraycopy(positions, 0, newPositions, 0, positionCount);
+            System.arraycopy(buckets, 0, newBuckets, 0, positionCount);
+            positions = newPositions;
+            buckets = newBuckets;
+        }
+
+        // reuse the list of a previously emptied position if there is one
+        List<T> bucket = buckets[positionCount];
+        if (bucket == null)
+            bucket = new ArrayList<T>();
+
+        System.arraycopy(positions, index, positions, index + 1, positionCount - index);
+        System.arraycopy(buckets, index, buckets, index + 1, positionCount - index);
+        positions[index] = position;
+        buckets[index] = bucket;
+        positionCount++;
+        return index;
+    }
+
+    private void removePosition(int index) {
+        List<T> emptiedBucket = buckets[index];
+        int moved = positionCount - index - 1;
+        System.arraycopy(positions, index + 1, positions, index, moved);
+        System.arraycopy(buckets, index + 1, buckets, index, moved);
+        positionCount--;
+        buckets[positionCount] = emptiedBucket;
+    }
+
+    private void refreshPositionsViews() {
+        if (cachedPositions.length == positionCount) {
+            boolean same = true;
+            for (int i = 0; i < positionCount; i++) {
+                if (cachedPositions[i] != positions[i]) {
+                    same = false;
+                    break;
+                }
+            }
+            if (same)
+                return;
+        }
+
+        int[] snapshot = new int[positionCount];
+        System.arraycopy(positions, 0, snapshot, 0, positionCount);
+
+        TreeSet<Integer> natural = new TreeSet<Integer>();
+        TreeSet<Integer> reverse = new TreeSet<Integer>(Collections.reverseOrder());
+        for (int position : snapshot) {
+            natural.add(position);
+            reverse.add(position);
+        }
+
+        naturalOrderPositions = Collections.unmodifiableSortedSet(natural);
+        reverseOrderPositions = Collections.unmodifiableSortedSet(reverse);
+        cachedPositions = snapshot;
+    }
+
+    private List<T> bucketAt(int index) {
+        List<T>[] buckets = this.buckets;
+        if (index < 0 || index >= positionCount || index >= buckets.length)
+            return null;
+        return buckets[index];
     }
 
     /**
@@ -127,9 +285,7 @@ public class Scheduler<T> implements Iterable<T> {
                 if (objectsOfCurrentKey.size() == 0) {
                     // there are no more objects in the current position's list -> remove it
                     nextKeyIndex--;
-                    Integer key = Scheduler.this.keys.get(nextKeyIndex);
-                    Scheduler.this.keys.remove(nextKeyIndex);
-                    Scheduler.this.objects.remove(key);
+                    removePosition(nextKeyIndex);
                     objectsOfCurrentKey = null;
                 }
                 Scheduler.this.size--;
@@ -141,10 +297,11 @@ public class Scheduler<T> implements Iterable<T> {
                 if (objectsOfCurrentKey == null || objectsOfCurrentKeyIndex >= objectsOfCurrentKey.size()) {
                     // we reached the end of the current position's list
 
-                    if (nextKeyIndex < Scheduler.this.keys.size()) {
+                    List<T> nextObjects = bucketAt(nextKeyIndex);
+                    if (nextObjects != null) {
                         // there is another position after this one
-                        Integer currentKey = Scheduler.this.keys.get(nextKeyIndex++);
-                        objectsOfCurrentKey = Scheduler.this.objects.get(currentKey);
+                        nextKeyIndex++;
+                        objectsOfCurrentKey = nextObjects;
                         objectsOfCurrentKeyIndex = 0;
                         return true;
                     } else {
@@ -176,9 +333,7 @@ public class Scheduler<T> implements Iterable<T> {
         private int objectsOfCurrentKeyIndex;
 
         private SchedulerReverseOrderIterator() {
-            synchronized (Scheduler.this) {
-                this.nextKeyIndex = Scheduler.this.keys.size() -1;
-            }
+            this.nextKeyIndex = Scheduler.this.positionCount -1;
         }
 
         public void remove() {
@@ -190,9 +345,7 @@ public class Scheduler<T> implements Iterable<T> {
                 objectsOfCurrentKey.remove(objectsOfCurrentKeyIndex);
                 if (objectsOfCurrentKey.size() == 0) {
                     // there are no more objects in the current position's list -> remove it
-                    Integer key = Scheduler.this.keys.get(nextKeyIndex+1);
-                    Scheduler.this.keys.remove(nextKeyIndex+1);
-                    Scheduler.this.objects.remove(key);
+                    removePosition(nextKeyIndex+1);
                     objectsOfCurrentKey = null;
                 }
                 Scheduler.this.size--;
@@ -204,10 +357,11 @@ public class Scheduler<T> implements Iterable<T> {
                 if (objectsOfCurrentKey == null || objectsOfCurrentKeyIndex >= objectsOfCurrentKey.size()) {
                     // we reached the end of the current position's list
 
-                    if (nextKeyIndex >= 0) {
+                    List<T> nextObjects = bucketAt(nextKeyIndex);
+                    if (nextObjects != null) {
                         // there is another position after this one
-                        Integer currentKey = Scheduler.this.keys.get(nextKeyIndex--);
-                        objectsOfCurrentKey = Scheduler.this.objects.get(currentKey);
+                        nextKeyIndex--;
+                        objectsOfCurrentKey = nextObjects;
                         objectsOfCurrentKeyIndex = 0;
                         return true;
                     } else {
@@ -54,6 +54,24 @@ public final class Uid {
         return result;
     }
 
+    /**
+     * Check if a GTRID has been generated by the specified server without copying any part of it.
+     * @param array the GTRID's bytes.
+     * @param serverId the server ID to look for.
+     * @return true if the GTRID starts with the server ID, false otherwise or if the GTRID does not contain any.
+     */
+    public static boolean hasServerId(byte[] array, byte[] serverId) {
+        int serverIdLength = array.length - 4 - 8; // - sequence - timestamp
+        if (serverIdLength < 1 || serverIdLength != serverId.length)
+            return false;
+
+        for (int i = 0; i < serverIdLength; i++) {
+            if (array[i] != serverId[i])
+                return false;
+        }
+        return true;
+    }
+
     public long extractTimestamp() {
         return Encoder.bytesToLong(array, array.length - 4 - 8); // - sequence - timestamp
     }
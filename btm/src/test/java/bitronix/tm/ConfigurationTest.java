@@ -96,14 +96,14 @@ public class ConfigurationTest extends TestCase {
 
     public void testToString() {
         final String expectation = "a Configuration with [allowMultipleLrc=false, asynchronous2Pc=false," +
-                " backgroundRecoveryInterval=1, backgroundRecoveryIntervalSeconds=60, conservativeJournaling=false, currentNodeOnlyRecovery=true," +
+                " backgroundRecoveryInterval=1, backgroundRecoveryIntervalSeconds=60, coarseClockResolution=0, conservativeJournaling=false, currentNodeOnlyRecovery=true," +
                 " debugZeroResourceTransaction=false, defaultTransactionTimeout=60, disableJmx=false," +
                 " exceptionAnalyzer=null, filterLogStatus=false," +
                 " forceBatchingEnabled=true, forcedWriteEnabled=true, gracefulShutdownInterval=10, jdbcProxyFactoryClass=auto," +
                 " jndiTransactionSynchronizationRegistryName=java:comp/TransactionSynchronizationRegistry," +
                 " jndiUserTransactionName=java:comp/UserTransaction, journal=disk," +
                 " logPart1Filename=target/btm1.tlog, logPart2Filename=target/btm2.tlog, maxLogSizeInMb=2," +
-                " resourceConfigurationFilename=null, serverId=null, skipCorruptedLogs=false, synchronousJmxRegistration=false," +
+                " recoveryConcurrency=1, recoveryResourceTimeout=0, recoveryStreaming=false, recycleTransactionHelpers=false, resourceConfigurationFilename=null, resourceInitializationConcurrency=1, serverId=null, skipCorruptedLogs=false, synchronousJmxRegistration=false," +
                 " warnAboutZeroResourceTransaction=true]";
 
         assertEquals(expectation, new Configuration().toString());
@@ -0,0 +1,234 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm;
+
+import bitronix.tm.internal.TransactionStatusChangeListener;
+import bitronix.tm.mock.resource.jdbc.MockitoXADataSource;
+import bitronix.tm.resource.jdbc.PoolingDataSource;
+import bitronix.tm.utils.Scheduler;
+import junit.framework.TestCase;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class TransactionRecyclingTest extends TestCase {
+
+    private static final int THREAD_COUNT = 8;
+    private static final int ITERATION_COUNT = 250;
+
+    private PoolingDataSource pds1;
+    private PoolingDataSource pds2;
+    private BitronixTransactionManager tm;
+
+    protected void setUp() throws Exception {
+        TransactionManagerServices.getConfiguration().setJournal("null").setGracefulShutdownInterval(2).setRecycleTransactionHelpers(true);
+
+        pds1 = createDataSource("recycling-pds1");
+        pds2 = createDataSource("recycling-pds2");
+
+        tm = TransactionManagerServices.getTransactionManager();
+    }
+
+    protected void tearDown() throws Exception {
+        pds1.close();
+        pds2.close();
+        tm.shutdown();
+    }
+
+    private static PoolingDataSource createDataSource(String uniqueName) {
+        PoolingDataSource pds = new PoolingDataSource();
+        pds.setClassName(MockitoXADataSource.class.getName());
+        pds.setUniqueName(uniqueName);
+        pds.setMinPoolSize(1);
+        pds.setMaxPoolSize(THREAD_COUNT);
+        pds.setAllowLocalTransactions(true);
+        pds.init();
+        return pds;
+    }
+
+    public void testHelpersAreRecycledOnSameThread() throws Exception {
+        tm.begin();
+        BitronixTransaction tx1 = tm.getCurrentTransaction();
+        Scheduler<Synchronization> scheduler1 = tx1.getSynchronizationScheduler();
+        Connection c = pds1.getConnection();
+        c.createStatement();
+        c.close();
+        tm.commit();
+
+        assertEquals(Status.STATUS_COMMITTED, tx1.getStatus());
+        assertEquals(0, tx1.getSynchronizationScheduler().size());
+        assertEquals(0, tx1.getResourceManager().size());
+        assertTrue(tx1.getEnlistedResourcesUniqueNames().isEmpty());
+
+        tm.begin();
+        BitronixTransaction tx2 = tm.getCurrentTransaction();
+        assertSame(scheduler1, tx2.getSynchronizationScheduler());
+        // only the ClearContextSynchronization registered by begin()
+        assertEquals(1, tx2.getSynchronizationScheduler().size());
+        assertEquals(0, tx2.getResourceManager().size());
+        tm.rollback();
+
+        // the completed transaction must not see the state of the one reusing its helpers
+        tm.begin();
+        BitronixTransaction tx3 = tm.getCurrentTransaction();
+        assertSame(scheduler1, tx3.getSynchronizationScheduler());
+        c = pds2.getConnection();
+        c.createStatement();
+        assertEquals(0, tx1.getResourceManager().size());
+        assertEquals(0, tx2.getResourceManager().size());
+        assertEquals(1, tx3.getResourceManager().size());
+        c.close();
+        tm.commit();
+    }
+
+    public void testHelpersAreNotSharedAcrossThreads() throws Exception {
+        tm.begin();
+        final Scheduler<Synchronization> mainThreadScheduler = tm.getCurrentTransaction().getSynchronizationScheduler();
+        tm.commit();
+
+        final List<Object> otherThreadSchedulers = new ArrayList<Object>();
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    tm.begin();
+                    otherThreadSchedulers.add(tm.getCurrentTransaction().getSynchronizationScheduler());
+                    tm.commit();
+                } catch (Exception ex) {
+                    otherThreadSchedulers.add(ex);
+                }
+            }
+        };
+        t.start();
+        t.join();
+
+        assertEquals(1, otherThreadSchedulers.size());
+        assertNotSame(mainThreadScheduler, otherThreadSchedulers.get(0));
+
+        tm.begin();
+        assertSame(mainThreadScheduler, tm.getCurrentTransaction().getSynchronizationScheduler());
+        tm.commit();
+    }
+
+    public void testNoStateLeakUnderStress() throws Exception {
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        Thread[] threads = new Thread[THREAD_COUNT];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread("recycling-" + i) {
+                public void run() {
+                    try {
+                        for (int j = 0; j < ITERATION_COUNT; j++) {
+                            runTransaction(j);
+                        }
+                    } catch (Throwable ex) {
+                        failures.add(ex);
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (!failures.isEmpty()) {
+            Throwable failure = failures.get(0);
+            AssertionError error = new AssertionError(failures.size() + " thread(s) failed, first failure: " + failure);
+            error.initCause(failure);
+            throw error;
+        }
+        assertEquals(0, tm.getInFlightTransactionCount());
+    }
+
+    private void runTransaction(int iteration) throws Exception {
+        tm.begin();
+        BitronixTransaction tx = tm.getCurrentTransaction();
+
+        assertEquals("leaked synchronization(s) in " + tx, 1, tx.getSynchronizationScheduler().size());
+        assertEquals("leaked resource(s) in " + tx, 0, tx.getResourceManager().size());
+
+        CountingSynchronization synchronization = new CountingSynchronization();
+        tx.registerSynchronization(synchronization);
+        CountingListener listener = new CountingListener();
+        tx.addTransactionStatusChangeListener(listener);
+
+        Set<String> expectedNames = new HashSet<String>();
+        Connection c1 = pds1.getConnection();
+        c1.createStatement();
+        expectedNames.add(pds1.getUniqueName());
+        if (iteration % 2 == 1) {
+            Connection c2 = pds2.getConnection();
+            c2.createStatement();
+            expectedNames.add(pds2.getUniqueName());
+            c2.close();
+        }
+        c1.close();
+
+        assertEquals(expectedNames, new HashSet<String>(tx.getEnlistedResourcesUniqueNames()));
+        assertEquals(expectedNames.size(), tx.getResourceManager().size());
+
+        boolean rollback = iteration % 3 == 0;
+        if (rollback)
+            tm.rollback();
+        else
+            tm.commit();
+
+        assertEquals(rollback ? Status.STATUS_ROLLEDBACK : Status.STATUS_COMMITTED, tx.getStatus());
+        assertEquals(rollback ? 0 : 1, synchronization.beforeCompletionCount);
+        assertEquals(1, synchronization.afterCompletionCount);
+        assertEquals(rollback ? Status.STATUS_ROLLEDBACK : Status.STATUS_COMMITTED, listener.lastStatus);
+        // ROLLING_BACK + ROLLEDBACK or PREPARING + PREPARED + COMMITTING + COMMITTED
+        assertEquals(rollback ? 2 : 4, listener.statusChangeCount);
+        assertEquals(0, tx.getResourceManager().size());
+    }
+
+    private static class CountingSynchronization implements Synchronization {
+        private int beforeCompletionCount;
+        private int afterCompletionCount;
+
+        public void beforeCompletion() {
+            beforeCompletionCount++;
+        }
+
+        public void afterCompletion(int status) {
+            afterCompletionCount++;
+        }
+    }
+
+    private static class CountingListener implements TransactionStatusChangeListener {
+        private int statusChangeCount;
+        private int lastStatus = Status.STATUS_NO_TRANSACTION;
+
+        public void statusChanged(int oldStatus, int newStatus) {
+            statusChangeCount++;
+            lastStatus = newStatus;
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.internal;
+
+import bitronix.tm.resource.common.ResourceBean;
+import bitronix.tm.resource.common.XAResourceHolder;
+import bitronix.tm.utils.UidGenerator;
+import junit.framework.TestCase;
+
+import javax.transaction.xa.XAResource;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests the indexes {@link XAResourceManager} keeps of its enlisted resources.
+ */
+public class XAResourceManagerTest extends TestCase {
+
+    private XAResourceManager resourceManager;
+
+    protected void setUp() throws Exception {
+        resourceManager = new XAResourceManager(UidGenerator.generateUid());
+    }
+
+    public void testFindReturnsMostRecentEnlistment() throws Exception {
+        XAResource xaResource = mock(XAResource.class);
+
+        XAResourceHolderState first = enlist(xaResource, "resource1");
+        first.end(XAResource.TMSUCCESS);
+        XAResourceHolderState second = enlist(xaResource, "resource1");
+
+        assertEquals(2, resourceManager.size());
+        assertFalse(first.getXid().equals(second.getXid()));
+        assertSame(second, resourceManager.findXAResourceHolderState(xaResource));
+    }
+
+    public void testFindAfterJoin() throws Exception {
+        XAResource xaResource = mock(XAResource.class);
+        when(xaResource.isSameRM(xaResource)).thenReturn(true);
+
+        XAResourceHolderState first = enlist(xaResource, "resource1");
+        first.end(XAResource.TMSUCCESS);
+        XAResourceHolderState second = enlist(xaResource, "resource1");
+
+        assertEquals(1, resourceManager.size());
+        assertEquals(first.getXid(), second.getXid());
+        verify(xaResource).start(second.getXid(), XAResource.TMJOIN);
+        assertSame(second, resourceManager.findXAResourceHolderState(xaResource));
+    }
+
+    public void testFindUnknownResource() throws Exception {
+        assertNull(resourceManager.findXAResourceHolderState(mock(XAResource.class)));
+
+        enlist(mock(XAResource.class), "resource1");
+        assertNull(resourceManager.findXAResourceHolderState(mock(XAResource.class)));
+    }
+
+    public void testIsSameRMCalledOncePerProducerPair() throws Exception {
+        XAResource xaResource1 = mock(XAResource.class);
+        XAResource xaResource2 = mock(XAResource.class);
+        XAResource xaResource3 = mock(XAResource.class);
+
+        enlist(xaResource1, "resource1").end(XAResource.TMSUCCESS);
+        enlist(xaResource2, "resource1").end(XAResource.TMSUCCESS);
+        enlist(xaResource3, "resource1").end(XAResource.TMSUCCESS);
+
+        // xaResource2 is not the same RM, the other resources of the producer must not be asked
+        enlist(xaResource1, "resource1").end(XAResource.TMSUCCESS);
+        verify(xaResource1).isSameRM(xaResource2);
+        verify(xaResource1, never()).isSameRM(xaResource3);
+
+        // the answer for this pair of producers is now cached
+        enlist(xaResource2, "resource1").end(XAResource.TMSUCCESS);
+        verify(xaResource2, never()).isSameRM(xaResource1);
+        verify(xaResource2, never()).isSameRM(xaResource3);
+
+        assertEquals(5, resourceManager.size());
+    }
+
+    public void testJoinAcrossProducers() throws Exception {
+        XAResource xaResource1 = mock(XAResource.class);
+        XAResource xaResource2 = mock(XAResource.class);
+        when(xaResource1.isSameRM(xaResource2)).thenReturn(true);
+
+        XAResourceHolderState state2 = enlist(xaResource2, "resource2");
+        state2.end(XAResource.TMSUCCESS);
+        enlist(xaResource1, "resource1").end(XAResource.TMSUCCESS);
+
+        XAResourceHolderState joined = enlist(xaResource1, "resource1");
+        assertEquals(state2.getXid(), joined.getXid());
+        assertEquals(2, resourceManager.size());
+        assertSame(joined, resourceManager.findXAResourceHolderState(xaResource1));
+        // the joined branch replaces the previous enlistment
+        assertNull(resourceManager.findXAResourceHolderState(xaResource2));
+    }
+
+    public void testClearXAResourceHolderStatesClearsIndexes() throws Exception {
+        XAResource xaResource1 = mock(XAResource.class);
+        XAResource xaResource2 = mock(XAResource.class);
+
+        enlist(xaResource1, "resource1").end(XAResource.TMSUCCESS);
+        enlist(xaResource2, "resource1").end(XAResource.TMSUCCESS);
+        enlist(xaResource1, "resource1").end(XAResource.TMSUCCESS);
+        verify(xaResource1).isSameRM(xaResource2);
+
+        resourceManager.clearXAResourceHolderStates();
+        assertEquals(0, resourceManager.size());
+        assertNull(resourceManager.findXAResourceHolderState(xaResource1));
+        assertNull(resourceManager.findXAResourceHolderState(xaResource2));
+
+        // the cached isSameRM() result must be forgotten as well
+        enlist(xaResource1, "resource1").end(XAResource.TMSUCCESS);
+        enlist(xaResource2, "resource1").end(XAResource.TMSUCCESS);
+        enlist(xaResource1, "resource1");
+        verify(xaResource1, times(2)).isSameRM(xaResource2);
+    }
+
+    public void testReleaseClearsIndexes() throws Exception {
+        XAResource xaResource = mock(XAResource.class);
+        enlist(xaResource, "resource1");
+
+        resourceManager.release();
+        assertEquals(0, resourceManager.size());
+        assertNull(resourceManager.findXAResourceHolderState(xaResource));
+    }
+
+    private XAResourceHolderState enlist(XAResource xaResource, String uniqueName) throws Exception {
+        XAResourceHolder xaResourceHolder = mock(XAResourceHolder.class);
+        when(xaResourceHolder.getXAResource()).thenReturn(xaResource);
+
+        ResourceBean bean = new ResourceBean() {};
+        bean.setUniqueName(uniqueName);
+
+        XAResourceHolderState xaResourceHolderState = new XAResourceHolderState(xaResourceHolder, bean);
+        resourceManager.enlist(xaResourceHolderState);
+        return xaResourceHolderState;
+    }
+
+}
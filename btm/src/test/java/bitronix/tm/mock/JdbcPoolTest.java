@@ -20,16 +20,24 @@
  */
 package bitronix.tm.mock;
 
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
 import bitronix.tm.TransactionManagerServices;
 import bitronix.tm.mock.resource.jdbc.MockitoXADataSource;
 import bitronix.tm.recovery.RecoveryException;
 import bitronix.tm.resource.ResourceConfigurationException;
 import bitronix.tm.resource.common.XAPool;
+import bitronix.tm.resource.common.XAStatefulHolder;
+import bitronix.tm.resource.jdbc.JdbcPooledConnection;
+import bitronix.tm.resource.jdbc.LruStatementCache;
+import bitronix.tm.resource.jdbc.PooledConnectionProxy;
 import bitronix.tm.resource.jdbc.PoolingDataSource;
 import junit.framework.TestCase;
 
 import javax.sql.DataSource;
 import javax.sql.XADataSource;
+import javax.transaction.Transaction;
 import javax.transaction.TransactionManager;
 
 import org.slf4j.Logger;
@@ -41,8 +49,16 @@ import java.lang.reflect.Method;
 import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -59,16 +75,59 @@ public class JdbcPoolTest extends TestCase {
 
         MockitoXADataSource.setStaticCloseXAConnectionException(null);
         MockitoXADataSource.setStaticGetXAConnectionException(null);
+        MockitoXADataSource.setStaticGetXAConnectionError(null);
 
-        pds = new PoolingDataSource();
-        pds.setMinPoolSize(1);
-        pds.setMaxPoolSize(2);
+        replaceDataSource(1, 2);
         pds.setMaxIdleTime(1);
+        pds.init();
+    }
+
+    /**
+     * Close the current data source, if any, and replace it with an uninitialized one of the specified size that
+     * tests can configure further before calling init().
+     */
+    private void replaceDataSource(int minPoolSize, int maxPoolSize) {
+        if (pds != null)
+            pds.close();
+
+        pds = new PoolingDataSource();
+        pds.setMinPoolSize(minPoolSize);
+        pds.setMaxPoolSize(maxPoolSize);
         pds.setClassName(MockitoXADataSource.class.getName());
         pds.setUniqueName("pds");
         pds.setAllowLocalTransactions(true);
         pds.setAcquisitionTimeout(1);
-        pds.init();
+    }
+
+    private XAPool getPool() throws Exception {
+        Field poolField = pds.getClass().getDeclaredField("pool");
+        poolField.setAccessible(true);
+        return (XAPool) poolField.get(pds);
+    }
+
+    /**
+     * Wait until the background tasks the pool submitted so far have completed: all the threads of the pool's
+     * executor must meet at a barrier queued behind them.
+     */
+    private static void awaitBackgroundTasks(XAPool pool) throws Exception {
+        Field executorField = XAPool.class.getDeclaredField("backgroundExecutor");
+        executorField.setAccessible(true);
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) executorField.get(pool);
+
+        int threads = executor.getMaximumPoolSize();
+        final CyclicBarrier barrier = new CyclicBarrier(threads + 1);
+        for (int i = 0; i < threads; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        barrier.await();
+                    } catch (Exception ex) {
+                        log.error("background tasks barrier broken", ex);
+                    }
+                }
+            });
+        }
+        barrier.await(5, TimeUnit.SECONDS);
     }
 
 
@@ -79,29 +138,15 @@ public class JdbcPoolTest extends TestCase {
     }
 
     public void testObjectProperties() throws Exception {
-        pds.close();
-
-        pds = new PoolingDataSource();
-        pds.setUniqueName("pds");
-        pds.setClassName(MockitoXADataSource.class.getName());
-        pds.setMinPoolSize(1);
-        pds.setMaxPoolSize(1);
+        replaceDataSource(1, 1);
         pds.getDriverProperties().put("uselessThing", new Object());
         pds.init();
     }
 
     public void testInitFailure() throws Exception {
         if (log.isDebugEnabled()) { log.debug("*** Starting testInitFailure"); }
-        pds.close();
-
-        pds = new PoolingDataSource();
-        pds.setMinPoolSize(0);
-        pds.setMaxPoolSize(2);
+        replaceDataSource(0, 2);
         pds.setMaxIdleTime(1);
-        pds.setClassName(MockitoXADataSource.class.getName());
-        pds.setUniqueName("pds");
-        pds.setAllowLocalTransactions(true);
-        pds.setAcquisitionTimeout(1);
 
         TransactionManagerServices.getTransactionManager().begin();
 
@@ -141,9 +186,7 @@ public class JdbcPoolTest extends TestCase {
 
     public void testPoolGrowth() throws Exception {
         if (log.isDebugEnabled()) { log.debug("*** Starting testPoolGrowth"); }
-        Field poolField = pds.getClass().getDeclaredField("pool");
-        poolField.setAccessible(true);
-        XAPool pool = (XAPool) poolField.get(pds);
+        XAPool pool = getPool();
 
         assertEquals(1, pool.inPoolSize());
         assertEquals(1, pool.totalPoolSize());
@@ -169,11 +212,322 @@ public class JdbcPoolTest extends TestCase {
         assertEquals(2, pool.totalPoolSize());
     }
 
+    public void testThreadAffinity() throws Exception {
+        if (log.isDebugEnabled()) { log.debug("*** Starting testThreadAffinity"); }
+        XAPool pool = getPool();
+
+        Connection c1 = pds.getConnection();
+        Connection c2 = pds.getConnection();
+        Object pooledConnection2 = ((PooledConnectionProxy) c2).getPooledConnection();
+        c2.close();
+        c1.close();
+        assertEquals(2, pool.inPoolSize());
+
+        // the connection last acquired by this thread is handed out again even if it is not the first one in the pool
+        Connection c3 = pds.getConnection();
+        assertSame(pooledConnection2, ((PooledConnectionProxy) c3).getPooledConnection());
+        c3.close();
+        assertEquals(2, pool.inPoolSize());
+        assertEquals(2, pool.totalPoolSize());
+    }
+
+    public void testConcurrentAcquisition() throws Exception {
+        if (log.isDebugEnabled()) { log.debug("*** Starting testConcurrentAcquisition"); }
+        final XAPool pool = getPool();
+
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 200; j++) {
+                            Connection c = pds.getConnection();
+                            assertTrue(pool.totalPoolSize() <= 2);
+                            c.close();
+                        }
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals("errors: " + errors, 0, errors.size());
+        assertEquals(pool.totalPoolSize(), pool.inPoolSize());
+        assertTrue(pool.totalPoolSize() <= 2);
+    }
+
+    public void testPrefillWatermark() throws Exception {
+        if (log.isDebugEnabled()) { log.debug("*** Starting testPrefillWatermark"); }
+        replaceDataSource(1, 3);
+        pds.setPrefillWatermark(1);
+        pds.setMaxConcurrentCreations(2);
+        pds.init();
+
+        XAPool pool = getPool();
+        // registering the resource ran recovery which took the only connection and made the pool go under the watermark
+        awaitBackgroundTasks(pool);
+        assertEquals(2, pool.inPoolSize());
+        assertEquals(2, pool.totalPoolSize());
+
+        Connection c1 = pds.getConnection();
+        awaitBackgroundTasks(pool);
+        assertEquals(1, pool.inPoolSize());
+        assertEquals(2, pool.totalPoolSize());
+
+        // taking the last available connection makes the pool go under the watermark
+        Connection c2 = pds.getConnection();
+        awaitBackgroundTasks(pool);
+        assertEquals(1, pool.inPoolSize());
+        assertEquals(3, pool.totalPoolSize());
+
+        // the pool is at its max size, it cannot grow anymore
+        Connection c3 = pds.getConnection();
+        awaitBackgroundTasks(pool);
+        assertEquals(0, pool.inPoolSize());
+        assertEquals(3, pool.totalPoolSize());
+
+        c1.close();
+        c2.close();
+        c3.close();
+        assertEquals(3, pool.inPoolSize());
+    }
+
+    public void testBackgroundCreationFailure() throws Exception {
+        if (log.isDebugEnabled()) { log.debug("*** Starting testBackgroundCreationFailure"); }
+        replaceDataSource(0, 2);
+        pds.setAcquisitionTimeout(10);
+        pds.init();
+
+        // registering the resource ran recovery which left one connection in the pool, take it
+        Connection c1 = pds.getConnection();
+
+        MockitoXADataSource.setStaticGetXAConnectionException(new SQLException("creating a new connection does not work"));
+        long before = System.currentTimeMillis();
+        try {
+            pds.getConnection();
+            fail("expected SQLException");
+        } catch (SQLException ex) {
+            assertEquals("creating a new connection does not work", ex.getCause().getMessage());
+        }
+        // the borrower must not wait for the acquisition timeout when the pool cannot grow
+        assertTrue(System.currentTimeMillis() - before < 5000);
+
+        MockitoXADataSource.setStaticGetXAConnectionException(null);
+        pds.getConnection().close();
+        c1.close();
+    }
+
+    public void testBackgroundCreationError() throws Exception {
+        if (log.isDebugEnabled()) { log.debug("*** Starting testBackgroundCreationError"); }
+        replaceDataSource(0, 2);
+        pds.setAcquisitionTimeout(10);
+        pds.init();
+
+        // registering the resource ran recovery which left one connection in the pool, take it
+        Connection c1 = pds.getConnection();
+
+        // more failures than creator threads: none of them must be leaked
+        MockitoXADataSource.setStaticGetXAConnectionError(new NoClassDefFoundError("driver class missing"));
+        for (int i = 0; i < 3; i++) {
+            long before = System.currentTimeMillis();
+            try {
+                pds.getConnection();
+                fail("expected NoClassDefFoundError");
+            } catch (NoClassDefFoundError ex) {
+                assertEquals("driver class missing", ex.getMessage());
+            }
+            // the borrower must not wait for the acquisition timeout when the pool cannot grow
+            assertTrue(System.currentTimeMillis() - before < 5000);
+        }
+
+        MockitoXADataSource.setStaticGetXAConnectionError(null);
+        pds.getConnection().close();
+        c1.close();
+        assertEquals(2, getPool().totalPoolSize());
+    }
+
+    public void testParallelWarmUp() throws Exception {
+        if (log.isDebugEnabled()) { log.debug("*** Starting testParallelWarmUp"); }
+        replaceDataSource(5, 6);
+        pds.setMaxConcurrentCreations(3);
+
+        MockitoXADataSource.setStaticGetXAConnectionException(new SQLException("not yet started"));
+        try {
+            pds.init();
+            fail("expected ResourceConfigurationException");
+        } catch (ResourceConfigurationException ex) {
+            assertEquals(SQLException.class, ex.getCause().getClass());
+            assertEquals("not yet started", ex.getCause().getMessage());
+        }
+
+        MockitoXADataSource.setStaticGetXAConnectionException(null);
+        pds.init();
+
+        XAPool pool = getPool();
+        assertEquals(5, pool.totalPoolSize());
+        assertEquals(5, pool.inPoolSize());
+    }
+
+    public void testCloseStopsBackgroundThreads() throws Exception {
+        if (log.isDebugEnabled()) { log.debug("*** Starting testCloseStopsBackgroundThreads"); }
+        replaceDataSource(5, 6);
+        pds.setMaxConcurrentCreations(3);
+
+        MockitoXADataSource.setStaticGetXAConnectionException(new SQLException("not yet started"));
+        try {
+            pds.init();
+            fail("expected ResourceConfigurationException");
+        } catch (ResourceConfigurationException ex) {
+            assertEquals("not yet started", ex.getCause().getMessage());
+        }
+        assertEquals(Collections.EMPTY_LIST, poolThreadNames("pds"));
+
+        MockitoXADataSource.setStaticGetXAConnectionException(null);
+        pds.init();
+        assertFalse(poolThreadNames("pds").isEmpty());
+
+        pds.close();
+        assertEquals(Collections.EMPTY_LIST, poolThreadNames("pds"));
+    }
+
+    private static List<String> poolThreadNames(String uniqueName) throws InterruptedException {
+        List<String> names = new ArrayList<String>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (!thread.getName().startsWith("bitronix-pool-" + uniqueName + "-"))
+                continue;
+            // a worker of a terminated executor can still be exiting
+            thread.join(100);
+            if (thread.isAlive())
+                names.add(thread.getName() + java.util.Arrays.asList(thread.getStackTrace()));
+        }
+        return names;
+    }
+
+    public void testFifoWaitingAndStatistics() throws Exception {
+        if (log.isDebugEnabled()) { log.debug("*** Starting testFifoWaitingAndStatistics"); }
+        replaceDataSource(1, 1);
+        pds.setAcquisitionTimeout(10);
+        pds.init();
+
+        XAPool pool = getPool();
+        assertEquals(1, pool.getCreationTimes().getCount());
+        long acquisitionCount = pool.getAcquisitionWaitTimes().getCount();
+
+        Connection c1 = pds.getConnection();
+        assertEquals(1, pds.getActivePoolSize());
+        assertEquals(0, pds.getInPoolSize());
+
+        final List<String> servedBorrowers = Collections.synchronizedList(new ArrayList<String>());
+        long firstWaitingTime = 0L;
+        Thread[] borrowers = new Thread[3];
+        for (int i = 0; i < borrowers.length; i++) {
+            borrowers[i] = new Thread("borrower" + i) {
+                public void run() {
+                    try {
+                        Connection c = pds.getConnection();
+                        servedBorrowers.add(getName());
+                        c.close();
+                    } catch (Exception ex) {
+                        log.error("borrower failed", ex);
+                    }
+                }
+            };
+            borrowers[i].start();
+            // make sure the borrowers start waiting in order
+            awaitWaitingCount(i + 1);
+            if (i == 0)
+                firstWaitingTime = System.nanoTime();
+        }
+
+        long releaseTime = System.nanoTime();
+        c1.close();
+        for (Thread borrower : borrowers) {
+            borrower.join();
+        }
+
+        assertEquals(Arrays.asList("borrower0", "borrower1", "borrower2"), servedBorrowers);
+        assertEquals(0, pds.getWaitingCount());
+        assertEquals(0, pds.getActivePoolSize());
+        assertEquals(1, pds.getTotalPoolSize());
+
+        // the borrowers which had to wait are recorded along with the one which did not, the first borrower waited
+        // at least while the other ones were started
+        assertEquals(acquisitionCount + 4, pool.getAcquisitionWaitTimes().getCount());
+        assertTrue(pds.getAcquisitionWaitMicrosMax() >= (releaseTime - firstWaitingTime) / 1000L);
+        assertEquals(pds.getAcquisitionWaitMicrosMax(), pds.getAcquisitionWaitMicros99thPercentile());
+        assertEquals(pds.getAcquisitionWaitMicrosMax(), pool.getAcquisitionWaitTimes().getMax());
+    }
+
+    /**
+     * Wait until the specified amount of borrowers are blocked waiting for a connection. The pool offers no way to
+     * be notified of that so its waiting count is polled.
+     */
+    private void awaitWaitingCount(int expected) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pds.getWaitingCount() != expected && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+        assertEquals(expected, pds.getWaitingCount());
+    }
+
+    public void testPreparedStatementWarmUpAndAdaptiveCacheSize() throws Exception {
+        if (log.isDebugEnabled()) { log.debug("*** Starting testPreparedStatementWarmUpAndAdaptiveCacheSize"); }
+        replaceDataSource(1, 3);
+        pds.setPreparedStatementCacheSize(10);
+        pds.setPreparedStatementWarmUpCount(2);
+        pds.setAdaptivePreparedStatementCacheSize(true);
+        pds.init();
+
+        Connection c1 = pds.getConnection();
+        Connection c2 = pds.getConnection();
+        c1.prepareStatement("SELECT a").close();
+        c2.prepareStatement("SELECT a").close();
+        c1.prepareStatement("SELECT b").close();
+        c1.prepareStatement("SELECT c").close();
+        c2.prepareStatement("SELECT c").close();
+
+        // the new connection prepares the two most prepared statements in advance and only has room for them
+        Connection c3 = pds.getConnection();
+        JdbcPooledConnection pc3 = (JdbcPooledConnection) ((PooledConnectionProxy) c3).getPooledConnection();
+        assertEquals(2, pc3.getPreparedStatementCacheSize());
+        assertEquals(2, getStatementCacheMaxSize(pc3));
+
+        // a statement used once does not make the cache grow, the least recently used one is evicted instead
+        c3.prepareStatement("SELECT d").close();
+        assertEquals(2, getStatementCacheMaxSize(pc3));
+        assertEquals(1, pc3.getPreparedStatementCacheEvictionCount());
+
+        // a statement already prepared by other connections does
+        c1.prepareStatement("SELECT e").close();
+        c2.prepareStatement("SELECT e").close();
+        c3.prepareStatement("SELECT e").close();
+        assertEquals(4, getStatementCacheMaxSize(pc3));
+        assertEquals(1, pc3.getPreparedStatementCacheEvictionCount());
+
+        long hitsBefore = pc3.getPreparedStatementCacheHitCount();
+        c3.prepareStatement("SELECT e").close();
+        assertEquals(hitsBefore + 1, pc3.getPreparedStatementCacheHitCount());
+
+        c1.close();
+        c2.close();
+        c3.close();
+    }
+
+    private static int getStatementCacheMaxSize(JdbcPooledConnection pooledConnection) throws Exception {
+        Field statementsCacheField = JdbcPooledConnection.class.getDeclaredField("statementsCache");
+        statementsCacheField.setAccessible(true);
+        return ((LruStatementCache) statementsCacheField.get(pooledConnection)).getMaxSize();
+    }
+
     public void testPoolShrink() throws Exception {
         if (log.isDebugEnabled()) { log.debug("*** Starting testPoolShrink"); }
-        Field poolField = pds.getClass().getDeclaredField("pool");
-        poolField.setAccessible(true);
-        XAPool pool = (XAPool) poolField.get(pds);
+        XAPool pool = getPool();
 
         assertEquals(1, pool.inPoolSize());
         assertEquals(1, pool.totalPoolSize());
@@ -201,9 +555,7 @@ public class JdbcPoolTest extends TestCase {
     public void testPoolShrinkErrorHandling() throws Exception {
         if (log.isDebugEnabled()) { log.debug("*** Starting testPoolShrinkErrorHandling"); }
 
-        Field poolField = pds.getClass().getDeclaredField("pool");
-        poolField.setAccessible(true);
-        XAPool pool = (XAPool) poolField.get(pds);
+        XAPool pool = getPool();
 
         pds.setMinPoolSize(0);
         pds.reset();
@@ -233,9 +585,7 @@ public class JdbcPoolTest extends TestCase {
     public void testPoolReset() throws Exception {
         if (log.isDebugEnabled()) { log.debug("*** Starting testPoolReset"); }
 
-        Field poolField = pds.getClass().getDeclaredField("pool");
-        poolField.setAccessible(true);
-        XAPool pool = (XAPool) poolField.get(pds);
+        XAPool pool = getPool();
 
         assertEquals(1, pool.inPoolSize());
         assertEquals(1, pool.totalPoolSize());
@@ -259,9 +609,7 @@ public class JdbcPoolTest extends TestCase {
 
     public void testPoolResetErrorHandling() throws Exception {
         if (log.isDebugEnabled()) { log.debug("*** Starting testPoolResetErrorHandling"); }
-        Field poolField = pds.getClass().getDeclaredField("pool");
-        poolField.setAccessible(true);
-        XAPool pool = (XAPool) poolField.get(pds);
+        XAPool pool = getPool();
 
         pds.setMinPoolSize(0);
         pds.reset();
@@ -398,6 +746,156 @@ public class JdbcPoolTest extends TestCase {
         }
     }
 
+    public void testConnectionTestSkipInterval() throws Exception {
+        if (log.isDebugEnabled()) { log.debug("*** Starting testConnectionTestSkipInterval"); }
+        Connection c1 = pds.getConnection();
+        stubTestQuery(c1, null);
+        c1.close();
+        pds.setTestQuery("SELECT 1");
+
+        Connection c2 = pds.getConnection();
+        c2.close();
+        assertEquals(1, pds.getConnectionTestCount());
+        assertEquals(0, pds.getSkippedConnectionTestCount());
+
+        // the connection has just been released, it does not need to be tested again
+        pds.setTestSkipInterval(60000);
+        Connection c3 = pds.getConnection();
+        c3.close();
+        assertEquals(1, pds.getConnectionTestCount());
+        assertEquals(1, pds.getSkippedConnectionTestCount());
+        assertEquals(0, pds.getFailedConnectionTestCount());
+    }
+
+    public void testTestConnectionsOnRelease() throws Exception {
+        if (log.isDebugEnabled()) { log.debug("*** Starting testTestConnectionsOnRelease"); }
+        XAPool pool = getPool();
+        pds.setTestConnectionsOnRelease(true);
+        pds.setTestSkipInterval(60000);
+
+        Connection c1 = pds.getConnection();
+        stubTestQuery(c1, null);
+        pds.setTestQuery("SELECT 1");
+        c1.close();
+        awaitBackgroundTasks(pool);
+        assertEquals(1, pool.inPoolSize());
+        assertEquals(1, pds.getConnectionTestCount());
+
+        // a connection failing its test is closed instead of being put back in the pool
+        Connection c2 = pds.getConnection();
+        JdbcPooledConnection pooledConnection = (JdbcPooledConnection) ((PooledConnectionProxy) c2).getPooledConnection();
+        stubTestQuery(c2, new SQLException("connection is dead"));
+        c2.close();
+        awaitBackgroundTasks(pool);
+        assertEquals(XAStatefulHolder.STATE_CLOSED, pooledConnection.getState());
+        assertEquals(2, pds.getConnectionTestCount());
+        assertEquals(1, pds.getFailedConnectionTestCount());
+
+        // the pool grows back to its minimum size, the creation has been requested by the background tester
+        awaitBackgroundTasks(pool);
+        assertEquals(1, pool.inPoolSize());
+        Connection c3 = pds.getConnection();
+        assertNotSame(pooledConnection, ((PooledConnectionProxy) c3).getPooledConnection());
+        c3.close();
+    }
+
+    public void testIdleConnectionTest() throws Exception {
+        if (log.isDebugEnabled()) { log.debug("*** Starting testIdleConnectionTest"); }
+        replaceDataSource(1, 1);
+        pds.setMaxIdleTime(60);
+        pds.setIdleConnectionTestInterval(1);
+        pds.setTestQuery("SELECT 1");
+        pds.setTestSkipInterval(60000);
+        pds.init();
+
+        XAPool pool = getPool();
+
+        Connection c1 = pds.getConnection();
+        JdbcPooledConnection pooledConnection = (JdbcPooledConnection) ((PooledConnectionProxy) c1).getPooledConnection();
+        stubTestQuery(c1, null);
+        c1.close();
+
+        pool.shrink();
+        assertEquals(0, pds.getConnectionTestCount());
+
+        // make the connection look idle for the whole test interval
+        Field lastReleaseTimeField = JdbcPooledConnection.class.getDeclaredField("lastReleaseTime");
+        lastReleaseTimeField.setAccessible(true);
+        lastReleaseTimeField.setLong(pooledConnection, pooledConnection.getLastReleaseTime() - 1000L);
+        pool.shrink();
+        assertEquals(1, pds.getConnectionTestCount());
+        assertEquals(1, pool.inPoolSize());
+    }
+
+    private static void stubTestQuery(Connection handle, SQLException failure) throws Exception {
+        JdbcPooledConnection pooledConnection = (JdbcPooledConnection) ((PooledConnectionProxy) handle).getPooledConnection();
+        Field connectionField = JdbcPooledConnection.class.getDeclaredField("connection");
+        connectionField.setAccessible(true);
+        Connection connection = (Connection) connectionField.get(pooledConnection);
+
+        if (failure != null) {
+            when(connection.prepareStatement("SELECT 1")).thenThrow(failure);
+        }
+        else {
+            PreparedStatement statement = mock(PreparedStatement.class);
+            ResultSet resultSet = mock(ResultSet.class);
+            when(statement.executeQuery()).thenReturn(resultSet);
+            when(connection.prepareStatement("SELECT 1")).thenReturn(statement);
+        }
+    }
+
+    public void testRecycleOnlyInEnlistingTransaction() throws Exception {
+        if (log.isDebugEnabled()) { log.debug("*** Starting testRecycleOnlyInEnlistingTransaction"); }
+        TransactionManager tm = TransactionManagerServices.getTransactionManager();
+        tm.begin();
+
+        Connection c1 = pds.getConnection();
+        c1.createStatement();
+        Object pooledConnection1 = ((PooledConnectionProxy) c1).getPooledConnection();
+        c1.close();
+
+        Transaction tx1 = tm.suspend();
+        tm.begin();
+
+        // the NOT_ACCESSIBLE connection belongs to the suspended transaction, it must not be recycled here
+        Connection c2 = pds.getConnection();
+        c2.createStatement();
+        assertNotSame(pooledConnection1, ((PooledConnectionProxy) c2).getPooledConnection());
+        c2.close();
+        tm.commit();
+
+        tm.resume(tx1);
+        Connection c3 = pds.getConnection();
+        c3.createStatement();
+        assertSame(pooledConnection1, ((PooledConnectionProxy) c3).getPooledConnection());
+        c3.close();
+        tm.commit();
+    }
+
+    public void testRecycleWhenMadeNotAccessibleOutsideItsTransaction() throws Exception {
+        if (log.isDebugEnabled()) { log.debug("*** Starting testRecycleWhenMadeNotAccessibleOutsideItsTransaction"); }
+        TransactionManager tm = TransactionManagerServices.getTransactionManager();
+        tm.begin();
+
+        Connection c1 = pds.getConnection();
+        c1.createStatement();
+        JdbcPooledConnection pooledConnection1 = (JdbcPooledConnection) ((PooledConnectionProxy) c1).getPooledConnection();
+
+        // the connection must be indexed under the transaction it is enlisted in, not the one of the current thread
+        Transaction tx1 = tm.suspend();
+        pooledConnection1.setState(XAStatefulHolder.STATE_NOT_ACCESSIBLE);
+        tm.resume(tx1);
+
+        Connection c2 = pds.getConnection();
+        c2.createStatement();
+        assertSame(pooledConnection1, ((PooledConnectionProxy) c2).getPooledConnection());
+        c2.close();
+        c1.close();
+        tm.commit();
+
+        assertEquals(XAStatefulHolder.STATE_IN_POOL, pooledConnection1.getState());
+    }
+
     public void testPoolNotStartingTransactionManager() throws Exception {
         if (log.isDebugEnabled()) { log.debug("*** Starting testPoolNotStartingTransactionManager"); }
         // make sure TM is not running
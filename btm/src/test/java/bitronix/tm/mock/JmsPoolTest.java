@@ -20,20 +20,39 @@
  */
 package bitronix.tm.mock;
 
+import bitronix.tm.BitronixTransactionManager;
 import bitronix.tm.TransactionManagerServices;
 import bitronix.tm.mock.resource.jms.MockXAConnectionFactory;
 import bitronix.tm.recovery.RecoveryException;
+import bitronix.tm.resource.ResourceRegistrar;
 import bitronix.tm.resource.common.XAPool;
+import bitronix.tm.resource.common.XAResourceHolder;
+import bitronix.tm.resource.jms.DualSessionWrapper;
+import bitronix.tm.resource.jms.JmsConnectionHandle;
+import bitronix.tm.resource.jms.JmsPooledConnection;
+import bitronix.tm.resource.jms.MessageProducerWrapper;
 import bitronix.tm.resource.jms.PoolingConnectionFactory;
 import junit.framework.TestCase;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 
 import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.ExceptionListener;
+import javax.jms.InvalidDestinationException;
 import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
 import javax.jms.Session;
 import javax.jms.Queue;
 import javax.jms.MessageProducer;
+import javax.jms.XAConnection;
+import javax.transaction.RollbackException;
+import javax.transaction.xa.XAResource;
 import java.lang.reflect.Field;
 
+import static org.mockito.Mockito.*;
+
 /**
  *
  * @author lorban
@@ -144,6 +163,218 @@ public class JmsPoolTest extends TestCase {
         assertFalse(TransactionManagerServices.isTransactionManagerRunning());
     }
 
+    public void testSessionPooling() throws Exception {
+        Connection c = pcf.createConnection();
+        JmsPooledConnection pooledConnection = ((JmsConnectionHandle) c).getPooledConnection();
+
+        Session s1 = c.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        s1.createProducer(s1.createQueue("q")).send(s1.createTextMessage("test"));
+        s1.close();
+        assertEquals(1, pooledConnection.getSessionCount());
+        assertEquals(1, pooledConnection.getIdleSessionCount());
+
+        // sessions are only recycled for the same transacted / acknowledge mode
+        Session s2 = c.createSession(true, Session.AUTO_ACKNOWLEDGE);
+        assertNotSame(s1, s2);
+        Session s3 = c.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        assertSame(s1, s3);
+        assertEquals(0, pooledConnection.getIdleSessionCount());
+        s2.close();
+        s3.close();
+        assertEquals(2, pooledConnection.getIdleSessionCount());
+
+        // sessions are reused across transactions
+        TransactionManagerServices.getTransactionManager().begin();
+        Session s4 = c.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        assertSame(s1, s4);
+        s4.createProducer(s4.createQueue("q")).send(s4.createTextMessage("test"));
+        s4.close();
+        assertEquals(XAResourceHolder.STATE_NOT_ACCESSIBLE, ((DualSessionWrapper) s4).getState());
+        TransactionManagerServices.getTransactionManager().commit();
+        assertEquals(XAResourceHolder.STATE_IN_POOL, ((DualSessionWrapper) s4).getState());
+        assertEquals(2, pooledConnection.getIdleSessionCount());
+
+        // no more sessions than maxSessionsPerConnection are kept open
+        pcf.setMaxSessionsPerConnection(2);
+        Session s5 = c.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        Session s6 = c.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        assertEquals(3, pooledConnection.getSessionCount());
+        s5.close();
+        s6.close();
+        assertEquals(2, pooledConnection.getSessionCount());
+        assertEquals(2, pooledConnection.getIdleSessionCount());
+
+        // sessions with a message listener are not reused
+        Session s7 = c.createSession(true, Session.AUTO_ACKNOWLEDGE);
+        s7.setMessageListener(new MessageListener() {
+            public void onMessage(Message message) {
+            }
+        });
+        s7.close();
+        assertEquals(XAResourceHolder.STATE_CLOSED, ((DualSessionWrapper) s7).getState());
+        assertEquals(1, pooledConnection.getIdleSessionCount());
+
+        c.close();
+
+        // idle sessions are closed with their connection
+        pcf.close();
+        assertEquals(0, pooledConnection.getSessionCount());
+        assertEquals(XAResourceHolder.STATE_CLOSED, ((DualSessionWrapper) s1).getState());
+    }
+
+    public void testAnonymousProducers() throws Exception {
+        pcf.setUseAnonymousProducers(true);
+        Connection c = pcf.createConnection();
+
+        Session s1 = c.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        Session s2 = c.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        // destinations are cached connection-wide
+        assertSame(s1.createQueue("q"), s2.createQueue("q"));
+
+        Queue q1 = mock(Queue.class);
+        when(q1.getQueueName()).thenReturn("q1");
+        Queue q2 = mock(Queue.class);
+        when(q2.getQueueName()).thenReturn("q2");
+
+        MessageProducer p1 = s1.createProducer(q1);
+        MessageProducer p2 = s1.createProducer(q2);
+        assertSame(p1, s1.createProducer(q1));
+        assertSame(q1, p1.getDestination());
+        p1.setPriority(9);
+
+        Message message = s1.createTextMessage("test");
+        p1.send(message);
+        p2.send(message);
+
+        MessageProducer anonymousProducer = ((MessageProducerWrapper) p1).getMessageProducer();
+        assertSame(anonymousProducer, ((MessageProducerWrapper) p2).getMessageProducer());
+        verify(anonymousProducer).send(q1, message, Message.DEFAULT_DELIVERY_MODE, 9, Message.DEFAULT_TIME_TO_LIVE);
+        verify(anonymousProducer).send(q2, message, Message.DEFAULT_DELIVERY_MODE, Message.DEFAULT_PRIORITY, Message.DEFAULT_TIME_TO_LIVE);
+
+        try {
+            p1.send(q2, message);
+            fail("expected InvalidDestinationException");
+        } catch (InvalidDestinationException ex) {
+            // expected
+        }
+
+        assertEquals(1, pcf.getProducerCreationCount());
+        assertEquals(3, pcf.getAvoidedProducerCreationCount());
+
+        s1.close();
+        s2.close();
+        c.close();
+    }
+
+    public void testBufferedSends() throws Exception {
+        pcf.setSendBatchSize(3);
+        BitronixTransactionManager tm = TransactionManagerServices.getTransactionManager();
+        Connection c = pcf.createConnection();
+
+        tm.begin();
+        Session s = c.createSession(true, 0);
+        Queue q = s.createQueue("q");
+        MessageProducer p = s.createProducer(q);
+        MessageProducer producer = ((MessageProducerWrapper) p).getMessageProducer();
+        Message m1 = mock(Message.class);
+        Message m2 = mock(Message.class);
+        Message m3 = mock(Message.class);
+        Message m4 = mock(Message.class);
+
+        when(producer.getDeliveryMode()).thenReturn(DeliveryMode.PERSISTENT);
+        when(producer.getPriority()).thenReturn(4);
+        when(producer.getTimeToLive()).thenReturn(0L);
+        p.send(m1);
+        // the producer attributes in effect when sending are used, not the ones in effect when the buffer is flushed
+        when(producer.getPriority()).thenReturn(9);
+        p.send(m2);
+        verify(producer, never()).send(any(Message.class), anyInt(), anyInt(), anyLong());
+
+        // the batch size is reached
+        p.send(m3);
+        p.send(m4);
+        InOrder inOrder = inOrder(producer);
+        inOrder.verify(producer).send(m1, DeliveryMode.PERSISTENT, 4, 0L);
+        inOrder.verify(producer).send(m2, DeliveryMode.PERSISTENT, 9, 0L);
+        inOrder.verify(producer).send(m3, DeliveryMode.PERSISTENT, 9, 0L);
+        verify(producer, never()).send(eq(m4), anyInt(), anyInt(), anyLong());
+
+        // the remaining messages are sent before the transaction completes
+        tm.commit();
+        verify(producer).send(m4, DeliveryMode.PERSISTENT, 9, 0L);
+
+        // failing to send the buffered messages fails the transaction
+        tm.begin();
+        doThrow(new JMSException("send failed")).when(producer).send(m1, DeliveryMode.PERSISTENT, 9, 0L);
+        p.send(m1);
+        try {
+            tm.commit();
+            fail("expected RollbackException");
+        } catch (RollbackException ex) {
+            // expected
+        }
+
+        s.close();
+        c.close();
+    }
+
+    public void testConnectionTesting() throws Exception {
+        pcf.setTestConnections(true);
+        pcf.setTestSkipInterval(60000);
+        pcf.setAcquisitionInterval(0);
+
+        // connections released less than testSkipInterval ago are not tested
+        Connection c = pcf.createConnection();
+        c.close();
+        c = pcf.createConnection();
+        c.close();
+        assertEquals(0, pcf.getConnectionTestCount());
+        assertEquals(2, pcf.getSkippedConnectionTestCount());
+
+        pcf.setTestSkipInterval(0);
+        c = pcf.createConnection();
+        XAConnection xaConnection = ((JmsConnectionHandle) c).getXAConnection();
+        assertEquals(1, pcf.getConnectionTestCount());
+        assertEquals(0, pcf.getFailedConnectionTestCount());
+
+        // the application's exception listener is chained after the pool's one
+        ExceptionListener applicationListener = mock(ExceptionListener.class);
+        c.setExceptionListener(applicationListener);
+        assertSame(applicationListener, c.getExceptionListener());
+        ArgumentCaptor<ExceptionListener> poolListener = ArgumentCaptor.forClass(ExceptionListener.class);
+        verify(xaConnection).setExceptionListener(poolListener.capture());
+
+        JMSException failure = new JMSException("connection broken");
+        poolListener.getValue().onException(failure);
+        verify(applicationListener).onException(failure);
+        c.close();
+
+        // the broken connection is closed instead of being reused
+        c = pcf.createConnection();
+        assertNotSame(xaConnection, ((JmsConnectionHandle) c).getXAConnection());
+        assertNull(c.getExceptionListener());
+        verify(xaConnection).close();
+        c.close();
+    }
+
+    public void testXAResourceHolderIndex() throws Exception {
+        Connection c = pcf.createConnection();
+        DualSessionWrapper s = (DualSessionWrapper) c.createSession(true, 0);
+        s.getSession(true);
+
+        XAResource xaResource = s.getXAResource();
+        assertSame(s, ResourceRegistrar.findXAResourceHolder(xaResource));
+        assertSame(s, pcf.findXAResourceHolder(xaResource));
+
+        // idle sessions stay open and indexed until their connection is closed
+        s.close();
+        c.close();
+        assertSame(s, ResourceRegistrar.findXAResourceHolder(xaResource));
+
+        pcf.close();
+        assertNull(ResourceRegistrar.findXAResourceHolder(xaResource));
+    }
+
     public void testPoolShrink() throws Exception {
         Field poolField = pcf.getClass().getDeclaredField("pool");
         poolField.setAccessible(true);
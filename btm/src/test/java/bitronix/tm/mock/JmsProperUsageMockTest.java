@@ -111,7 +111,9 @@ public class JmsProperUsageMockTest extends AbstractMockJmsTest {
 
         ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
         ObjectInputStream ois = new ObjectInputStream(bais);
-        poolingConnectionFactory1 = (PoolingConnectionFactory) ois.readObject();
+        // keep the original instance so that tearDown closes and unregisters it
+        PoolingConnectionFactory deserialized = (PoolingConnectionFactory) ois.readObject();
         ois.close();
+        assertEquals(poolingConnectionFactory1.getUniqueName(), deserialized.getUniqueName());
     }
 }
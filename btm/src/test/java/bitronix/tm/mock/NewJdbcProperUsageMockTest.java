@@ -629,6 +629,44 @@ public class NewJdbcProperUsageMockTest extends AbstractMockJdbcTest {
         assertEquals(DATASOURCE2_NAME, ((ConnectionQueuedEvent) orderedEvents.get(i++)).getPooledConnectionImpl().getPoolingDataSource().getUniqueName());
     }
 
+    public void testStatementCreationAcrossTransactions() throws Exception {
+        Thread.currentThread().setName("testStatementCreationAcrossTransactions");
+        BitronixTransactionManager tm = TransactionManagerServices.getTransactionManager();
+
+        tm.begin();
+        Connection connection1 = poolingDataSource1.getConnection();
+        connection1.createStatement();
+        connection1.prepareStatement("");
+        connection1.createStatement();
+        tm.commit();
+
+        tm.begin();
+        connection1.createStatement();
+        connection1.createStatement();
+        Transaction tx = tm.suspend();
+        tm.resume(tx);
+        connection1.prepareStatement("");
+        connection1.createStatement();
+        tm.commit();
+
+        connection1.close();
+
+        // check flow
+        List orderedEvents = EventRecorder.getOrderedEvents();
+        log.info(EventRecorder.dumpToString());
+
+        List<Integer> startFlags = new ArrayList<Integer>();
+        int commitCount = 0;
+        for (Object event : orderedEvents) {
+            if (event instanceof XAResourceStartEvent)
+                startFlags.add(((XAResourceStartEvent) event).getFlag());
+            if (event instanceof XAResourceCommitEvent)
+                commitCount++;
+        }
+        assertEquals(Arrays.asList(XAResource.TMNOFLAGS, XAResource.TMNOFLAGS, XAResource.TMJOIN), startFlags);
+        assertEquals(2, commitCount);
+    }
+
     public void testLooseWorkingCaseOutsideOutside() throws Exception {
         Thread.currentThread().setName("testLooseWorkingCaseOutsideOutside");
         if (log.isDebugEnabled()) log.debug("*** getting TM");
@@ -22,6 +22,9 @@ package bitronix.tm.mock.resource;
 
 import javax.transaction.xa.*;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import bitronix.tm.internal.BitronixXAException;
 import bitronix.tm.mock.events.*;
 import bitronix.tm.mock.resource.jdbc.*;
@@ -43,6 +46,9 @@ public class MockXAResource implements XAResource {
     private RuntimeException prepareRuntimeException;
     private XAException recoverException;
     private long recoveryDelay;
+    private CountDownLatch recoveryLatch;
+    private CountDownLatch commitLatch;
+    private final AtomicInteger recoverCount = new AtomicInteger();
 
     public MockXAResource(MockitoXADataSource xads) {
         this.xads = xads;
@@ -52,6 +58,40 @@ public class MockXAResource implements XAResource {
         this.recoveryDelay = recoveryDelay;
     }
 
+    /**
+     * Make recover() block until the latch is released, ignoring interrupts like a driver blocked in I/O.
+     */
+    public void setRecoveryLatch(CountDownLatch recoveryLatch) {
+        this.recoveryLatch = recoveryLatch;
+    }
+
+    /**
+     * Make commit() block until the latch is released, ignoring interrupts like a driver blocked in I/O.
+     */
+    public void setCommitLatch(CountDownLatch commitLatch) {
+        this.commitLatch = commitLatch;
+    }
+
+    public int getRecoverCount() {
+        return recoverCount.get();
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        if (latch == null)
+            return;
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
     public void setPrepareRc(int prepareRc) {
         this.prepareRc = prepareRc;
     }
@@ -84,6 +124,8 @@ public class MockXAResource implements XAResource {
     }
 
     public Xid[] recover(int flag) throws XAException {
+        recoverCount.incrementAndGet();
+        awaitUninterruptibly(recoveryLatch);
         if (recoveryDelay > 0) {
             try {
                 Thread.sleep(recoveryDelay);
@@ -139,6 +181,7 @@ public class MockXAResource implements XAResource {
     }
 
     public void commit(Xid xid, boolean b) throws XAException {
+        awaitUninterruptibly(commitLatch);
         getEventRecorder().addEvent(new XAResourceCommitEvent(this, commitException, xid, b));
         if (commitException != null)
             throw commitException;
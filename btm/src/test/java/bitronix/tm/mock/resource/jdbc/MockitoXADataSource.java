@@ -51,6 +51,7 @@ public class MockitoXADataSource implements XADataSource {
     private SQLException getXAConnectionException;
     private static SQLException staticGetXAConnectionException;
     private static SQLException staticCloseXAConnectionException;
+    private static Error staticGetXAConnectionError;
 
     public int getLoginTimeout() throws SQLException {
         return 0;
@@ -69,6 +70,8 @@ public class MockitoXADataSource implements XADataSource {
     public XAConnection getXAConnection() throws SQLException {
         if (staticGetXAConnectionException != null)
             throw staticGetXAConnectionException;
+        if (staticGetXAConnectionError != null)
+            throw staticGetXAConnectionError;
         if (getXAConnectionException != null)
             throw getXAConnectionException;
 
@@ -166,6 +169,10 @@ public class MockitoXADataSource implements XADataSource {
         staticCloseXAConnectionException = ex;
     }
 
+    public static void setStaticGetXAConnectionError(Error error) {
+        staticGetXAConnectionError = error;
+    }
+
     public static Connection createMockConnection() throws SQLException {
         // Setup mock connection
         final Connection mockConnection = mock(Connection.class);
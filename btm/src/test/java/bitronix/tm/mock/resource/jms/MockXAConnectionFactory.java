@@ -58,6 +58,8 @@ public class MockXAConnectionFactory implements XAConnectionFactory {
     	    	when(mockXASession.createQueue(anyString())).thenReturn(queue);
     	    	Topic topic = mock(Topic.class);
     	    	when(mockXASession.createTopic(anyString())).thenReturn(topic);
+    	    	TemporaryQueue temporaryQueue = mock(TemporaryQueue.class);
+    	    	when(mockXASession.createTemporaryQueue()).thenReturn(temporaryQueue);
     	    	MockXAResource mockXAResource = new MockXAResource(null);
     			when(mockXASession.getXAResource()).thenReturn(mockXAResource);    			
     	    	Answer<Session> sessionAnswer = new Answer<Session>() {
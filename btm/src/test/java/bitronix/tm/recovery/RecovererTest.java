@@ -24,6 +24,7 @@ import java.io.File;
 import java.lang.reflect.*;
 import java.sql.Connection;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.transaction.Status;
@@ -159,6 +160,96 @@ public class RecovererTest extends TestCase {
         assertEquals(0, xaResource.recover(XAResource.TMSTARTRSCAN | XAResource.TMENDRSCAN).length);
     }
 
+    /**
+     * Create many XIDs on the resource, some of them in the journal and some of them generated by another node
+     * -> recoverer commits the ones in the journal, rolls back the others and leaves the foreign ones alone.
+     * @throws Exception
+     */
+    public void testRecoverManyXids() throws Exception {
+        recoverManyXids();
+    }
+
+    /**
+     * Same as testRecoverManyXids but with XIDs committed and rolled back as they are recovered.
+     * @throws Exception
+     */
+    public void testStreamingRecoverManyXids() throws Exception {
+        TransactionManagerServices.getConfiguration().setRecoveryStreaming(true);
+        try {
+            recoverManyXids();
+        } finally {
+            TransactionManagerServices.getConfiguration().setRecoveryStreaming(false);
+        }
+    }
+
+    private void recoverManyXids() throws Exception {
+        final int count = 2000;
+        Set names = new HashSet();
+        names.add(pds.getUniqueName());
+
+        for (int i = 0; i < count; i++) {
+            Uid gtrid = UidGenerator.generateUid();
+            xaResource.addInDoubtXid(new MockXid(0, gtrid.getArray(), BitronixXid.FORMAT_ID));
+            xaResource.addInDoubtXid(new MockXid(1, gtrid.getArray(), BitronixXid.FORMAT_ID));
+            if (i % 2 == 0)
+                journal.log(Status.STATUS_COMMITTING, gtrid, names);
+        }
+
+        byte[] foreignGtrid = UidGenerator.generateUid().getArray();
+        foreignGtrid[0] = (byte) (foreignGtrid[0] + 1);
+        xaResource.addInDoubtXid(new MockXid(0, foreignGtrid, BitronixXid.FORMAT_ID));
+
+        TransactionManagerServices.getRecoverer().run();
+
+        assertNull(TransactionManagerServices.getRecoverer().getCompletionException());
+        assertEquals(count / 2, TransactionManagerServices.getRecoverer().getCommittedCount());
+        assertEquals(count, TransactionManagerServices.getRecoverer().getRolledbackCount());
+        assertEquals(1, xaResource.recover(XAResource.TMSTARTRSCAN | XAResource.TMENDRSCAN).length);
+    }
+
+    public void testMetrics() throws Exception {
+        RecoveryMetrics.clear();
+
+        Xid committingXid = new MockXid(0, UidGenerator.generateUid().getArray(), BitronixXid.FORMAT_ID);
+        xaResource.addInDoubtXid(committingXid);
+        byte[] abortedGtrid = UidGenerator.generateUid().getArray();
+        xaResource.addInDoubtXid(new MockXid(0, abortedGtrid, BitronixXid.FORMAT_ID));
+        xaResource.addInDoubtXid(new MockXid(1, abortedGtrid, BitronixXid.FORMAT_ID));
+
+        Set names = new HashSet();
+        names.add(pds.getUniqueName());
+        journal.log(Status.STATUS_COMMITTING, new Uid(committingXid.getGlobalTransactionId()), names);
+        TransactionManagerServices.getRecoverer().run();
+
+        ResourceRecoveryMetrics metrics = RecoveryMetrics.getResourceMetrics(pds.getUniqueName());
+        assertEquals(1, metrics.getScanCount());
+        assertEquals(3, metrics.getRecoveredXidCount());
+        assertEquals(3, metrics.getLastScanRecoveredXidCount());
+        assertEquals(1, metrics.getMatchedXidCount());
+        assertEquals(2, metrics.getUnmatchedXidCount());
+        assertEquals(1, metrics.getCommitTimes().getCount());
+        assertEquals(2, metrics.getRollbackTimes().getCount());
+        assertEquals(1, TransactionManagerServices.getRecoverer().getDanglingRecordsCount());
+        assertEquals(1, TransactionManagerServices.getRecoverer().getMaxDanglingRecordsCount());
+
+        TransactionManagerServices.getRecoverer().run();
+
+        assertEquals(2, metrics.getScanCount());
+        assertEquals(3, metrics.getRecoveredXidCount());
+        assertEquals(0, metrics.getLastScanRecoveredXidCount());
+        assertEquals(0, TransactionManagerServices.getRecoverer().getDanglingRecordsCount());
+        assertEquals(1, TransactionManagerServices.getRecoverer().getMaxDanglingRecordsCount());
+
+        metrics.reset();
+        assertEquals(0, metrics.getScanCount());
+        assertEquals(0, metrics.getMatchedXidCount());
+
+        // the metrics are forgotten when the resource gets closed
+        pds.close();
+        assertNotSame(metrics, RecoveryMetrics.getResourceMetrics(pds.getUniqueName()));
+        RecoveryMetrics.clear();
+    }
+
     /**
      * Create 3 XIDs on the resource that are in the journal -> recoverer commits them.
      * @throws Exception
@@ -247,6 +338,130 @@ public class RecovererTest extends TestCase {
         assertEquals(0, xaResource.recover(XAResource.TMSTARTRSCAN | XAResource.TMENDRSCAN).length);
     }
 
+    public void testSlowResourceDoesNotHoldBackRecovery() throws Exception {
+        byte[] gtrid = UidGenerator.generateUid().getArray();
+        xaResource.addInDoubtXid(new MockXid(0, gtrid, BitronixXid.FORMAT_ID));
+        xaResource.addInDoubtXid(new MockXid(1, gtrid, BitronixXid.FORMAT_ID));
+
+        PoolingDataSource slowPds = createDataSource("slow-mock-xads");
+        getMockXAResource(slowPds).setRecoveryDelay(5000);
+
+        TransactionManagerServices.getConfiguration().setRecoveryConcurrency(2).setRecoveryResourceTimeout(1);
+        try {
+            long before = MonotonicClock.currentTimeMillis();
+            TransactionManagerServices.getRecoverer().run();
+            long duration = MonotonicClock.currentTimeMillis() - before;
+
+            assertTrue("recovery took " + duration + "ms", duration < 4000);
+            assertNull(TransactionManagerServices.getRecoverer().getCompletionException());
+            assertEquals(2, TransactionManagerServices.getRecoverer().getRolledbackCount());
+            assertEquals(0, xaResource.recover(XAResource.TMSTARTRSCAN | XAResource.TMENDRSCAN).length);
+            assertTrue(slowPds.isFailed());
+            assertFalse(pds.isFailed());
+        } finally {
+            TransactionManagerServices.getConfiguration().setRecoveryConcurrency(1).setRecoveryResourceTimeout(0);
+            slowPds.close();
+        }
+    }
+
+    public void testCommitTimeoutDoesNotAbortRecovery() throws Exception {
+        Xid abortedXid = new MockXid(0, UidGenerator.generateUid().getArray(), BitronixXid.FORMAT_ID);
+        xaResource.addInDoubtXid(abortedXid);
+
+        PoolingDataSource slowPds = createDataSource("slow-mock-xads");
+        MockXAResource slowXaResource = getMockXAResource(slowPds);
+        CountDownLatch commitLatch = new CountDownLatch(1);
+        slowXaResource.setCommitLatch(commitLatch);
+
+        // both resources have a branch of the same dangling transaction, only the slow one blocks when committing it
+        byte[] gtrid = UidGenerator.generateUid().getArray();
+        xaResource.addInDoubtXid(new MockXid(1, gtrid, BitronixXid.FORMAT_ID));
+        slowXaResource.addInDoubtXid(new MockXid(2, gtrid, BitronixXid.FORMAT_ID));
+        Set names = new HashSet();
+        names.add(pds.getUniqueName());
+        names.add(slowPds.getUniqueName());
+        journal.log(Status.STATUS_COMMITTING, new Uid(gtrid), names);
+
+        TransactionManagerServices.getConfiguration().setRecoveryConcurrency(2).setRecoveryResourceTimeout(1);
+        try {
+            TransactionManagerServices.getRecoverer().run();
+
+            assertNull(TransactionManagerServices.getRecoverer().getCompletionException());
+            assertEquals(1, TransactionManagerServices.getRecoverer().getCommittedCount());
+            assertEquals(1, TransactionManagerServices.getRecoverer().getRolledbackCount());
+            assertEquals(0, xaResource.recover(XAResource.TMSTARTRSCAN | XAResource.TMENDRSCAN).length);
+            assertTrue(slowPds.isFailed());
+            assertFalse(pds.isFailed());
+        } finally {
+            commitLatch.countDown();
+            joinRecoveryThreads();
+            TransactionManagerServices.getConfiguration().setRecoveryConcurrency(1).setRecoveryResourceTimeout(0);
+            slowPds.close();
+        }
+    }
+
+    public void testTimedOutResourceSkippedUntilItsTaskCompletes() throws Exception {
+        PoolingDataSource slowPds = createDataSource("slow-mock-xads");
+        MockXAResource slowXaResource = getMockXAResource(slowPds);
+        slowXaResource.addInDoubtXid(new MockXid(0, UidGenerator.generateUid().getArray(), BitronixXid.FORMAT_ID));
+        CountDownLatch recoveryLatch = new CountDownLatch(1);
+        slowXaResource.setRecoveryLatch(recoveryLatch);
+
+        TransactionManagerServices.getConfiguration().setRecoveryConcurrency(2).setRecoveryResourceTimeout(1);
+        try {
+            TransactionManagerServices.getRecoverer().run();
+            assertTrue(slowPds.isFailed());
+            assertEquals(1, slowXaResource.getRecoverCount());
+
+            // the timed out task ignored the interrupt and still is running, the resource must not be recovered again
+            TransactionManagerServices.getRecoverer().run();
+            assertNull(TransactionManagerServices.getRecoverer().getCompletionException());
+            assertEquals(1, slowXaResource.getRecoverCount());
+
+            // once it completed, the resource is recovered again (its failed pool got reset with a new connection)
+            recoveryLatch.countDown();
+            joinRecoveryThreads();
+            MockXAResource resetXaResource = getMockXAResource(slowPds);
+
+            TransactionManagerServices.getRecoverer().run();
+            assertNull(TransactionManagerServices.getRecoverer().getCompletionException());
+            assertTrue(resetXaResource.getRecoverCount() > 0);
+            assertFalse(slowPds.isFailed());
+            assertEquals(0, resetXaResource.recover(XAResource.TMSTARTRSCAN | XAResource.TMENDRSCAN).length);
+        } finally {
+            recoveryLatch.countDown();
+            TransactionManagerServices.getConfiguration().setRecoveryConcurrency(1).setRecoveryResourceTimeout(0);
+            slowPds.close();
+        }
+    }
+
+    private static PoolingDataSource createDataSource(String uniqueName) {
+        PoolingDataSource poolingDataSource = new PoolingDataSource();
+        poolingDataSource.setClassName(MockitoXADataSource.class.getName());
+        poolingDataSource.setUniqueName(uniqueName);
+        poolingDataSource.setMinPoolSize(1);
+        poolingDataSource.setMaxPoolSize(1);
+        poolingDataSource.init();
+        return poolingDataSource;
+    }
+
+    private static MockXAResource getMockXAResource(PoolingDataSource poolingDataSource) throws Exception {
+        Connection connection = poolingDataSource.getConnection();
+        MockXAResource mockXAResource = (MockXAResource) ((PooledConnectionProxy) connection).getPooledConnection().getXAResource();
+        connection.close();
+        return mockXAResource;
+    }
+
+    /**
+     * Wait for the threads of the recoveries already run to terminate, which they do once their task completed.
+     */
+    private static void joinRecoveryThreads() throws InterruptedException {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("bitronix-recovery-"))
+                thread.join(5000);
+        }
+    }
+
     public void testRecoverMissingResource() throws Exception {
         final Xid xid0 = new MockXid(0, UidGenerator.generateUid().getArray(), BitronixXid.FORMAT_ID);
         xaResource.addInDoubtXid(xid0);
@@ -305,11 +520,13 @@ public class RecovererTest extends TestCase {
         pds.setMaxPoolSize(2);
         BitronixTransactionManager btm = TransactionManagerServices.getTransactionManager();
         final Recoverer recoverer = TransactionManagerServices.getRecoverer();
+        Uid gtrid;
 
         try {
             btm.begin();
 
             BitronixTransaction tx = btm.getCurrentTransaction();
+            gtrid = tx.getResourceManager().getGtrid();
             tx.addTransactionStatusChangeListener(new TransactionStatusChangeListener() {
                 public void statusChanged(int oldStatus, int newStatus) {
                     if (newStatus != Status.STATUS_COMMITTING)
@@ -342,7 +559,8 @@ public class RecovererTest extends TestCase {
         List events = EventRecorder.getOrderedEvents();
         for (int i = 0; i < events.size(); i++) {
             Event event = (Event) events.get(i);
-            if (event instanceof JournalLogEvent) {
+            // transactions of other test classes can have been logged in the same journal, only count this one
+            if (event instanceof JournalLogEvent && ((JournalLogEvent) event).getGtrid().equals(gtrid)) {
                 if (((JournalLogEvent) event).getStatus() == Status.STATUS_COMMITTED)
                     committedCount++;
             }
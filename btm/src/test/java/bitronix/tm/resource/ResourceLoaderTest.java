@@ -26,6 +26,7 @@ import java.util.*;
 import javax.sql.XADataSource;
 
 import junit.framework.TestCase;
+import bitronix.tm.TransactionManagerServices;
 import bitronix.tm.mock.resource.jdbc.MockitoXADataSource;
 import bitronix.tm.mock.resource.jms.MockXAConnectionFactory;
 import bitronix.tm.resource.jdbc.PoolingDataSource;
@@ -237,4 +238,39 @@ public class ResourceLoaderTest extends TestCase {
         PoolingDataSource pds = (PoolingDataSource) loader.getResources().get("some.also.other.unique.Name");
         assertFalse(pds.getUseTmJoin());
     }
+
+    public void testParallelInitialization() throws Exception {
+        ResourceLoader loader = new ResourceLoader();
+
+        Properties p = new Properties();
+        for (int i = 0; i < 4; i++) {
+            p.setProperty("resource.ds" + i + ".className", MockitoXADataSource.class.getName());
+            p.setProperty("resource.ds" + i + ".uniqueName", "parallel.dataSource" + i);
+            p.setProperty("resource.ds" + i + ".minPoolSize", "2");
+            p.setProperty("resource.ds" + i + ".maxPoolSize", "5");
+        }
+        // a second entry using an already configured unique name is skipped
+        p.setProperty("resource.ds4.className", MockitoXADataSource.class.getName());
+        p.setProperty("resource.ds4.uniqueName", "parallel.dataSource0");
+
+        TransactionManagerServices.getConfiguration().setResourceInitializationConcurrency(3);
+        try {
+            assertEquals(0, loader.initXAResourceProducers(p));
+        } finally {
+            TransactionManagerServices.getConfiguration().setResourceInitializationConcurrency(1);
+        }
+
+        assertEquals(4, loader.getResources().size());
+        assertEquals(4, loader.getInitializationTimes().size());
+        for (int i = 0; i < 4; i++) {
+            String uniqueName = "parallel.dataSource" + i;
+            assertSame(loader.getResources().get(uniqueName), ResourceRegistrar.get(uniqueName));
+            assertTrue(loader.getInitializationTimes().get(uniqueName) >= 0);
+        }
+
+        loader.shutdown();
+        assertEquals(0, loader.getResources().size());
+        assertEquals(0, loader.getInitializationTimes().size());
+        assertNull(ResourceRegistrar.get("parallel.dataSource0"));
+    }
 }
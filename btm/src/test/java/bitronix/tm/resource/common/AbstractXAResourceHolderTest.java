@@ -20,16 +20,22 @@
  */
 package bitronix.tm.resource.common;
 
+import bitronix.tm.BitronixXid;
 import bitronix.tm.internal.XAResourceHolderState;
 import bitronix.tm.utils.Uid;
 import bitronix.tm.utils.UidGenerator;
 import junit.framework.TestCase;
 
 import javax.transaction.xa.XAResource;
-import java.util.Date;
+import java.lang.reflect.Field;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  *
@@ -37,11 +43,13 @@ import java.util.Map;
  */
 public class AbstractXAResourceHolderTest extends TestCase {
 
-    public void testStatesForGtridIterationOrder() throws Exception {
-        final ResourceBean resourceBean = new ResourceBean() {
-        };
+    private ResourceBean resourceBean;
+    private AbstractXAResourceHolder xaResourceHolder;
 
-        AbstractXAResourceHolder xaResourceHolder = new AbstractXAResourceHolder() {
+    protected void setUp() throws Exception {
+        resourceBean = new ResourceBean() {
+        };
+        xaResourceHolder = new AbstractXAResourceHolder() {
             public XAResource getXAResource() {
                 return null;
             }
@@ -61,16 +69,18 @@ public class AbstractXAResourceHolderTest extends TestCase {
             public void close() throws Exception {
             }
 
-            public Date getLastReleaseDate() {
-                return null;
+            public long getLastReleaseTime() {
+                return 0L;
             }
         };
+    }
 
+    public void testStatesForGtridIterationOrder() throws Exception {
         Uid gtrid = UidGenerator.generateUid();
 
-        XAResourceHolderState state1 = new XAResourceHolderState(xaResourceHolder, resourceBean);
-        XAResourceHolderState state2 = new XAResourceHolderState(xaResourceHolder, resourceBean);
-        XAResourceHolderState state3 = new XAResourceHolderState(xaResourceHolder, resourceBean);
+        XAResourceHolderState state1 = newState();
+        XAResourceHolderState state2 = newState();
+        XAResourceHolderState state3 = newState();
 
         xaResourceHolder.putXAResourceHolderState(UidGenerator.generateXid(gtrid), state1);
         xaResourceHolder.putXAResourceHolderState(UidGenerator.generateXid(gtrid), state2);
@@ -89,4 +99,169 @@ public class AbstractXAResourceHolderTest extends TestCase {
         assertSame(state3, statesForGtridIt.next());
         assertFalse(statesForGtridIt.hasNext());
     }
+
+    public void testSingleTransactionStaysInline() throws Exception {
+        Uid gtrid = UidGenerator.generateUid();
+        BitronixXid xid1 = UidGenerator.generateXid(gtrid);
+        BitronixXid xid2 = UidGenerator.generateXid(gtrid);
+
+        xaResourceHolder.putXAResourceHolderState(xid1, newState());
+        xaResourceHolder.putXAResourceHolderState(xid2, newState());
+        assertEquals(2, xaResourceHolder.getXAResourceHolderStateCountForGtrid(gtrid));
+        assertNull(getOverflowStates());
+
+        xaResourceHolder.removeXAResourceHolderState(xid1);
+        xaResourceHolder.removeXAResourceHolderState(xid2);
+        assertFalse(xaResourceHolder.isExistXAResourceHolderStatesForGtrid(gtrid));
+        assertNull(getOverflowStates());
+    }
+
+    public void testOverflow() throws Exception {
+        Uid gtrid1 = UidGenerator.generateUid();
+        Uid gtrid2 = UidGenerator.generateUid();
+        Uid gtrid3 = UidGenerator.generateUid();
+        BitronixXid xid1 = UidGenerator.generateXid(gtrid1);
+        BitronixXid xid2 = UidGenerator.generateXid(gtrid2);
+        BitronixXid xid3 = UidGenerator.generateXid(gtrid3);
+        XAResourceHolderState state2 = newState();
+
+        xaResourceHolder.putXAResourceHolderState(xid1, newState());
+        xaResourceHolder.putXAResourceHolderState(xid2, state2);
+        assertNotNull(getOverflowStates());
+
+        // the inline slot is reused once freed while the overflowing GTRID stays where it is
+        xaResourceHolder.removeXAResourceHolderState(xid1);
+        xaResourceHolder.putXAResourceHolderState(xid3, newState());
+        xaResourceHolder.putXAResourceHolderState(UidGenerator.generateXid(gtrid2), newState());
+
+        assertFalse(xaResourceHolder.isExistXAResourceHolderStatesForGtrid(gtrid1));
+        assertEquals(2, xaResourceHolder.getXAResourceHolderStateCountForGtrid(gtrid2));
+        assertEquals(1, xaResourceHolder.getXAResourceHolderStateCountForGtrid(gtrid3));
+        assertSame(state2, xaResourceHolder.getXAResourceHolderStatesForGtrid(gtrid2).get(xid2.getBranchQualifierUid()));
+
+        Set<String> expectedGtrids = new HashSet<String>();
+        expectedGtrids.add(gtrid2.toString());
+        expectedGtrids.add(gtrid3.toString());
+        assertEquals(expectedGtrids, xaResourceHolder.getXAResourceHolderStateGtrids());
+
+        xaResourceHolder.removeXAResourceHolderState(xid3);
+        assertFalse(xaResourceHolder.isExistXAResourceHolderStatesForGtrid(gtrid3));
+        assertEquals(2, xaResourceHolder.getXAResourceHolderStateCountForGtrid(gtrid2));
+    }
+
+    public void testConcurrentReadsDuringUpdates() throws Exception {
+        final Uid gtrid = UidGenerator.generateUid();
+        xaResourceHolder.putXAResourceHolderState(UidGenerator.generateXid(gtrid), newState());
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread() {
+                public void run() {
+                    while (running.get()) {
+                        int count = xaResourceHolder.getXAResourceHolderStateCountForGtrid(gtrid);
+                        if (count != 1)
+                            failure.set("found " + count + " state(s) of the stable GTRID");
+                    }
+                }
+            };
+            readers[i].start();
+        }
+
+        for (int i = 0; i < 10000; i++) {
+            BitronixXid otherXid = UidGenerator.generateXid(UidGenerator.generateUid());
+            xaResourceHolder.putXAResourceHolderState(otherXid, newState());
+            xaResourceHolder.removeXAResourceHolderState(otherXid);
+        }
+        running.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertNull(failure.get(), failure.get());
+        assertEquals(1, xaResourceHolder.getXAResourceHolderStateCountForGtrid(gtrid));
+    }
+
+    public void testConcurrentEnlistAndDelist() throws Exception {
+        final int threadCount = 4;
+        final CyclicBarrier barrier = new CyclicBarrier(threadCount);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        barrier.await();
+                        for (int j = 0; j < 2000; j++) {
+                            String error = enlistAndDelist();
+                            if (error != null) {
+                                failure.set(error);
+                                return;
+                            }
+                        }
+                    } catch (Exception ex) {
+                        failure.set(ex.toString());
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNull(failure.get(), failure.get());
+        assertTrue(xaResourceHolder.getXAResourceHolderStateGtrids().isEmpty());
+    }
+
+    private String enlistAndDelist() {
+        Uid gtrid = UidGenerator.generateUid();
+        BitronixXid xid1 = UidGenerator.generateXid(gtrid);
+        BitronixXid xid2 = UidGenerator.generateXid(gtrid);
+        XAResourceHolderState state1 = newState();
+        XAResourceHolderState state2 = newState();
+
+        xaResourceHolder.putXAResourceHolderState(xid1, state1);
+        xaResourceHolder.putXAResourceHolderState(xid2, state2);
+
+        Map<Uid, XAResourceHolderState> states = xaResourceHolder.getXAResourceHolderStatesForGtrid(gtrid);
+        if (states == null || states.size() != 2)
+            return "found " + states + " instead of the 2 enlisted states";
+        if (states.get(xid1.getBranchQualifierUid()) != state1 || states.get(xid2.getBranchQualifierUid()) != state2)
+            return "found " + states + " instead of " + state1 + " and " + state2;
+
+        CountingVisitor visitor = new CountingVisitor();
+        xaResourceHolder.acceptVisitorForXAResourceHolderStates(gtrid, visitor);
+        if (visitor.count != 2)
+            return "visited " + visitor.count + " state(s) instead of 2";
+
+        xaResourceHolder.removeXAResourceHolderState(xid1);
+        if (xaResourceHolder.getXAResourceHolderStateCountForGtrid(gtrid) != 1)
+            return "found " + xaResourceHolder.getXAResourceHolderStateCountForGtrid(gtrid) + " state(s) after delisting 1 of 2";
+        xaResourceHolder.removeXAResourceHolderState(xid2);
+        if (xaResourceHolder.isExistXAResourceHolderStatesForGtrid(gtrid))
+            return "found states of a fully delisted GTRID";
+        return null;
+    }
+
+    private XAResourceHolderState newState() {
+        return new XAResourceHolderState(xaResourceHolder, resourceBean);
+    }
+
+    private Object getOverflowStates() throws Exception {
+        Field field = AbstractXAResourceHolder.class.getDeclaredField("overflowStates");
+        field.setAccessible(true);
+        return field.get(xaResourceHolder);
+    }
+
+    private static class CountingVisitor implements XAResourceHolderStateVisitor {
+        private int count;
+
+        public boolean visit(XAResourceHolderState xaResourceHolderState) {
+            count++;
+            return true;
+        }
+    }
+
 }
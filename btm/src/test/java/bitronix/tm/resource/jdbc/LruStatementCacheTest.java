@@ -0,0 +1,131 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.resource.jdbc;
+
+import static org.mockito.Mockito.mock;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import bitronix.tm.resource.jdbc.LruStatementCache.CacheKey;
+
+public class LruStatementCacheTest extends TestCase {
+
+    private final List<Object> evicted = new ArrayList<Object>();
+
+    private LruStatementCache createCache(int maxSize) {
+        LruStatementCache cache = new LruStatementCache(maxSize);
+        cache.addEvictionListener(new LruEvictionListener() {
+            public void onEviction(Object value) {
+                evicted.add(value);
+            }
+        });
+        return cache;
+    }
+
+    public void testCacheKeys() throws Exception {
+        assertEquals(new CacheKey("SELECT 1"), new CacheKey("SELECT 1"));
+        assertEquals(new CacheKey("SELECT 1").hashCode(), new CacheKey("SELECT 1").hashCode());
+        assertEquals(new CacheKey("SELECT 1", new String[] {"a", "b"}), new CacheKey("SELECT 1", new String[] {"a", "b"}));
+        assertEquals(new CacheKey("SELECT 1", new int[] {1, 2}).hashCode(), new CacheKey("SELECT 1", new int[] {1, 2}).hashCode());
+        assertEquals(new CacheKey("SELECT 1"), new CacheKey("SELECT 1", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY));
+
+        assertFalse(new CacheKey("SELECT 1").equals(new CacheKey("SELECT 2")));
+        assertFalse(new CacheKey("SELECT 1", new String[] {"a"}).equals(new CacheKey("SELECT 1", new String[] {"b"})));
+        assertFalse(new CacheKey("SELECT 1", Statement.RETURN_GENERATED_KEYS).equals(new CacheKey("SELECT 1")));
+        assertFalse(new CacheKey("SELECT 1", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, ResultSet.HOLD_CURSORS_OVER_COMMIT)
+                .equals(new CacheKey("SELECT 1", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)));
+    }
+
+    public void testHitsAndMisses() throws Exception {
+        LruStatementCache cache = createCache(10);
+        PreparedStatement stmt = mock(PreparedStatement.class);
+
+        assertNull(cache.get(new CacheKey("SELECT 1")));
+        assertSame(stmt, cache.put(new CacheKey("SELECT 1"), stmt));
+        assertSame(stmt, cache.get(new CacheKey("SELECT 1")));
+        assertNull(cache.get(new CacheKey("SELECT 2")));
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(1, cache.size());
+
+        // returning the statement to the cache gives back the cached instance
+        assertSame(stmt, cache.put(new CacheKey("SELECT 1"), mock(PreparedStatement.class)));
+        assertSame(stmt, cache.put(new CacheKey("SELECT 1"), mock(PreparedStatement.class)));
+        assertEquals(1, cache.size());
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+    public void testSecondChanceEviction() throws Exception {
+        LruStatementCache cache = createCache(2);
+        PreparedStatement stmt1 = mock(PreparedStatement.class);
+        PreparedStatement stmt2 = mock(PreparedStatement.class);
+        PreparedStatement stmt3 = mock(PreparedStatement.class);
+
+        cache.put(new CacheKey("SELECT 1"), stmt1);
+        cache.put(new CacheKey("SELECT 1"), stmt1);
+        cache.put(new CacheKey("SELECT 2"), stmt2);
+        cache.put(new CacheKey("SELECT 2"), stmt2);
+
+        // the oldest statement has been used recently, it gets a second chance
+        assertSame(stmt1, cache.get(new CacheKey("SELECT 1")));
+        cache.put(new CacheKey("SELECT 1"), stmt1);
+
+        cache.put(new CacheKey("SELECT 3"), stmt3);
+
+        assertEquals(Arrays.asList(new Object[] {stmt2}), evicted);
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(2, cache.size());
+        assertSame(stmt1, cache.get(new CacheKey("SELECT 1")));
+        assertNull(cache.get(new CacheKey("SELECT 2")));
+    }
+
+    public void testStatementsInUseAreNotEvicted() throws Exception {
+        LruStatementCache cache = createCache(1);
+        PreparedStatement stmt1 = mock(PreparedStatement.class);
+        PreparedStatement stmt2 = mock(PreparedStatement.class);
+        PreparedStatement stmt3 = mock(PreparedStatement.class);
+
+        cache.put(new CacheKey("SELECT 1"), stmt1);
+        cache.put(new CacheKey("SELECT 2"), stmt2);
+        assertEquals(0, evicted.size());
+        assertEquals(2, cache.size());
+
+        // once returned to the cache the statement can be evicted
+        cache.put(new CacheKey("SELECT 1"), stmt1);
+        cache.put(new CacheKey("SELECT 3"), stmt3);
+        assertEquals(Arrays.asList(new Object[] {stmt1}), evicted);
+        assertEquals(2, cache.size());
+
+        cache.clear();
+        assertEquals(3, evicted.size());
+        assertTrue(evicted.containsAll(Arrays.asList(new Object[] {stmt2, stmt3})));
+        assertEquals(0, cache.size());
+        assertNull(cache.get(new CacheKey("SELECT 2")));
+    }
+
+}
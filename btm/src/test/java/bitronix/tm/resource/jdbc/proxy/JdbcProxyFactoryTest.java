@@ -0,0 +1,165 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.resource.jdbc.proxy;
+
+import bitronix.tm.resource.jdbc.lrc.LrcXAResource;
+import junit.framework.TestCase;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks that the available JDBC proxy factories behave identically.
+ */
+public class JdbcProxyFactoryTest extends TestCase {
+
+    private Map<String, JdbcProxyFactory> factories;
+
+    protected void setUp() throws Exception {
+        factories = new LinkedHashMap<String, JdbcProxyFactory>();
+        factories.put("java", new JdbcJavaProxyFactory());
+        factories.put("cglib", new JdbcCglibProxyFactory());
+        // generated class names are fixed, the javassist factory can only be instantiated once per classloader
+        if (JdbcProxyFactory.INSTANCE instanceof JdbcJavassistProxyFactory)
+            factories.put("javassist", JdbcProxyFactory.INSTANCE);
+        else
+            factories.put("javassist", new JdbcJavassistProxyFactory());
+    }
+
+    public void testJavassistProxiesDoNotUseReflection() throws Exception {
+        JdbcProxyFactory factory = factories.get("javassist");
+        CountingHandler handler = new CountingHandler();
+
+        PreparedStatement statement = factory.getProxyPreparedStatement(null, handler.newProxy(PreparedStatement.class), null);
+        assertFalse(Proxy.isProxyClass(statement.getClass()));
+        assertTrue(statement instanceof PreparedStatementJavaProxy);
+
+        Connection physicalConnection = handler.newProxy(Connection.class);
+        Connection connection = factory.getProxyConnection(new LrcXAResource(physicalConnection), physicalConnection);
+        assertFalse(Proxy.isProxyClass(connection.getClass()));
+        assertTrue(connection instanceof LrcConnectionJavaProxy);
+    }
+
+    public void testInterceptionPointsAreKept() throws Exception {
+        for (Map.Entry<String, JdbcProxyFactory> entry : factories.entrySet()) {
+            String name = entry.getKey();
+            JdbcProxyFactory factory = entry.getValue();
+            CountingHandler handler = new CountingHandler();
+
+            PreparedStatement statement = factory.getProxyPreparedStatement(null, handler.newProxy(PreparedStatement.class), null);
+            statement.setInt(1, 0);
+            assertEquals(name, 1, handler.getCount());
+
+            Connection physicalConnection = handler.newProxy(Connection.class);
+            Connection connection = factory.getProxyConnection(new LrcXAResource(physicalConnection), physicalConnection);
+            connection.clearWarnings();
+            assertEquals(name, 2, handler.getCount());
+            connection.close();
+            assertEquals(name, 3, handler.getCount());
+            assertTrue(name, connection.isClosed());
+            assertEquals(name, 3, handler.getCount());
+        }
+    }
+
+    public void testFactoriesBehaveIdentically() throws Exception {
+        List<String> expectedCalls = null;
+        for (Map.Entry<String, JdbcProxyFactory> entry : factories.entrySet()) {
+            String name = entry.getKey();
+            CountingHandler handler = new CountingHandler();
+            PreparedStatement statement = entry.getValue().getProxyPreparedStatement(null, handler.newProxy(PreparedStatement.class), null);
+
+            statement.setString(1, "foo");
+            statement.setInt(2, 42);
+            assertEquals(name, 7, statement.executeUpdate());
+            try {
+                statement.execute();
+                fail(name + " proxy factory: expected SQLException");
+            } catch (SQLException ex) {
+                assertSame(name, handler.getFailure(), ex);
+            }
+
+            if (expectedCalls == null)
+                expectedCalls = handler.getCalls();
+            else
+                assertEquals(name, expectedCalls, handler.getCalls());
+        }
+        assertEquals(Arrays.asList("setString[1, foo]", "setInt[2, 42]", "executeUpdate", "execute"), expectedCalls);
+    }
+
+    public void testLrcXAConnectionUsesConfiguredFactory() throws Exception {
+        CountingHandler handler = new CountingHandler();
+        Connection physicalConnection = handler.newProxy(Connection.class);
+
+        Connection expected = JdbcProxyFactory.INSTANCE.getProxyConnection(new LrcXAResource(physicalConnection), physicalConnection);
+        Connection connection = new LrcXAConnectionJavaProxy(physicalConnection).getConnection();
+        assertEquals(expected.getClass(), connection.getClass());
+    }
+
+    /**
+     * Delegate recording the calls it receives. executeUpdate() returns 7 and execute() throws a SQLException.
+     */
+    private static class CountingHandler implements InvocationHandler {
+        private final List<String> calls = new ArrayList<String>();
+        private final SQLException failure = new SQLException("execute failed");
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class)
+                return method.invoke(this, args);
+            calls.add(args == null ? method.getName() : method.getName() + Arrays.asList(args));
+            if (method.getName().equals("executeUpdate"))
+                return 7;
+            if (method.getName().equals("execute"))
+                throw failure;
+            Class<?> returnType = method.getReturnType();
+            if (returnType == boolean.class)
+                return Boolean.FALSE;
+            if (returnType.isPrimitive() && returnType != void.class)
+                return 0;
+            return null;
+        }
+
+        public int getCount() {
+            return calls.size();
+        }
+
+        public List<String> getCalls() {
+            return calls;
+        }
+
+        public SQLException getFailure() {
+            return failure;
+        }
+
+        <T> T newProxy(Class<T> clazz) {
+            return clazz.cast(Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {clazz}, this));
+        }
+    }
+
+}
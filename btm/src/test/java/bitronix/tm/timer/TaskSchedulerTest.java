@@ -26,7 +26,6 @@ import junit.framework.TestCase;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Date;
 import java.util.List;
 
 
@@ -53,7 +52,7 @@ public class TaskSchedulerTest extends TestCase {
 
     public void testRecoveryTask() throws Exception {
         Recoverer recoverer = new Recoverer();
-        ts.scheduleRecovery(recoverer, new Date());
+        ts.scheduleRecovery(recoverer, MonotonicClock.currentTimeMillis());
         assertEquals(1, ts.countTasksQueued());
         Thread.sleep(1100);
         assertEquals(1, ts.countTasksQueued());
@@ -67,9 +66,9 @@ public class TaskSchedulerTest extends TestCase {
     public void testTaskOrdering() throws Exception {
         List<SimpleTask> result = Collections.synchronizedList(new ArrayList<SimpleTask>());
 
-        ts.addTask(new SimpleTask(new Date(MonotonicClock.currentTimeMillis() + 100), ts, 0, result));
-        ts.addTask(new SimpleTask(new Date(MonotonicClock.currentTimeMillis() + 200), ts, 1, result));
-        ts.addTask(new SimpleTask(new Date(MonotonicClock.currentTimeMillis() + 300), ts, 2, result));
+        ts.addTask(new SimpleTask(MonotonicClock.currentTimeMillis() + 100, ts, 0, result));
+        ts.addTask(new SimpleTask(MonotonicClock.currentTimeMillis() + 200, ts, 1, result));
+        ts.addTask(new SimpleTask(MonotonicClock.currentTimeMillis() + 300, ts, 2, result));
 
         ts.join(1000);
 
@@ -78,12 +77,25 @@ public class TaskSchedulerTest extends TestCase {
         assertEquals(2, result.get(2).getObject());
     }
 
+    public void testTasksWithSameExecutionTime() throws Exception {
+        List<SimpleTask> result = Collections.synchronizedList(new ArrayList<SimpleTask>());
+
+        long executionTime = MonotonicClock.currentTimeMillis() + 100;
+        ts.addTask(new SimpleTask(executionTime, ts, 0, result));
+        ts.addTask(new SimpleTask(executionTime, ts, 1, result));
+        assertEquals(2, ts.countTasksQueued());
+
+        ts.join(1000);
+
+        assertEquals(2, result.size());
+    }
+
     private static class SimpleTask extends Task {
 
         private final Object obj;
         private final List<SimpleTask> result;
 
-        protected SimpleTask(Date executionTime, TaskScheduler scheduler, Object obj, List<SimpleTask> result) {
+        protected SimpleTask(long executionTime, TaskScheduler scheduler, Object obj, List<SimpleTask> result) {
             super(executionTime, scheduler);
             this.obj = obj;
             this.result = result;
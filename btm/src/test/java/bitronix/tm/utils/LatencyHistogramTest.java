@@ -0,0 +1,98 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.utils;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+
+public class LatencyHistogramTest extends TestCase {
+
+    public void testBuckets() throws Exception {
+        for (long value = 0; value < 100000; value++) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertTrue(value <= LatencyHistogram.bucketHighestValue(index));
+            if (index > 0)
+                assertTrue(value > LatencyHistogram.bucketHighestValue(index - 1));
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.bucketHighestValue(LatencyHistogram.bucketIndex(Long.MAX_VALUE)));
+    }
+
+    public void testPercentiles() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(99));
+        assertEquals(0, histogram.getMean());
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500, histogram.getMean());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(1000, histogram.getPercentile(100));
+
+        // values are reported with a 12.5% precision
+        long median = histogram.getPercentile(50);
+        assertTrue("median is " + median, median >= 500 && median <= 500 * 1.125);
+        long p99 = histogram.getPercentile(99);
+        assertTrue("99th percentile is " + p99, p99 >= 990 && p99 <= 1000);
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(50));
+    }
+
+    public void testConcurrentRecording() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final int threadCount = 8;
+        final int valuesPerThread = 10000;
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    for (int j = 0; j < valuesPerThread; j++) {
+                        histogram.recordNanos(j * 1000L);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(threadCount * valuesPerThread, histogram.getCount());
+        assertEquals(valuesPerThread - 1, histogram.getMax());
+        assertEquals(valuesPerThread - 1, histogram.getPercentile(100));
+        assertEquals((valuesPerThread - 1) / 2, histogram.getMean());
+    }
+
+}
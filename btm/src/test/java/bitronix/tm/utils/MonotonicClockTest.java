@@ -0,0 +1,113 @@
+/*
+ * Bitronix Transaction Manager
+ *
+ * Copyright (c) 2010, Bitronix Software.
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution; if not, write to:
+ * Free Software Foundation, Inc.
+ * 51 Franklin Street, Fifth Floor
+ * Boston, MA 02110-1301 USA
+ */
+package bitronix.tm.utils;
+
+import junit.framework.TestCase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MonotonicClockTest extends TestCase {
+
+    private final static Logger log = LoggerFactory.getLogger(MonotonicClockTest.class);
+
+    private static final int THREAD_COUNT = 128;
+    private static final int CALLS_PER_THREAD = 20000;
+
+    protected void tearDown() throws Exception {
+        MonotonicClock.stopCoarseClock();
+    }
+
+    public void testCoarseClockFallsBackToPreciseClock() throws Exception {
+        assertFalse(MonotonicClock.isCoarseClockRunning());
+        long before = MonotonicClock.currentTimeMillis();
+        long coarse = MonotonicClock.coarseTimeMillis();
+        long after = MonotonicClock.currentTimeMillis();
+        assertTrue(before <= coarse);
+        assertTrue(coarse <= after);
+    }
+
+    public void testCoarseClockResolution() throws Exception {
+        MonotonicClock.startCoarseClock(10);
+        assertTrue(MonotonicClock.isCoarseClockRunning());
+
+        long start = MonotonicClock.coarseTimeMillis();
+        Thread.sleep(100);
+        long coarse = MonotonicClock.coarseTimeMillis();
+        long precise = MonotonicClock.currentTimeMillis();
+
+        assertTrue("coarse clock did not advance", coarse > start);
+        assertTrue("coarse clock is ahead of the precise clock", coarse <= precise);
+        // leave plenty of room for a loaded machine
+        assertTrue("coarse clock lags too much: " + (precise - coarse) + "ms", precise - coarse < 1000);
+
+        MonotonicClock.stopCoarseClock();
+        assertFalse(MonotonicClock.isCoarseClockRunning());
+    }
+
+    public void testContention() throws Exception {
+        long preciseTime = runContended(false);
+        MonotonicClock.startCoarseClock(10);
+        long coarseTime = runContended(true);
+
+        if (log.isDebugEnabled()) log.debug(THREAD_COUNT + " threads calling the clock " + CALLS_PER_THREAD + " times each: precise=" +
+                (preciseTime / 1000000) + "ms, coarse=" + (coarseTime / 1000000) + "ms");
+    }
+
+    private long runContended(final boolean coarse) throws Exception {
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch endLatch = new CountDownLatch(THREAD_COUNT);
+        final AtomicInteger nonMonotonicCount = new AtomicInteger();
+
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        startLatch.await();
+                        long last = 0L;
+                        for (int j = 0; j < CALLS_PER_THREAD; j++) {
+                            long now = coarse ? MonotonicClock.coarseTimeMillis() : MonotonicClock.currentTimeMillis();
+                            if (now < last)
+                                nonMonotonicCount.incrementAndGet();
+                            last = now;
+                        }
+                    } catch (InterruptedException ex) {
+                        // ignore
+                    } finally {
+                        endLatch.countDown();
+                    }
+                }
+            };
+            t.start();
+        }
+
+        long start = System.nanoTime();
+        startLatch.countDown();
+        endLatch.await();
+        long totalTime = System.nanoTime() - start;
+
+        assertEquals(0, nonMonotonicCount.get());
+        return totalTime;
+    }
+
+}
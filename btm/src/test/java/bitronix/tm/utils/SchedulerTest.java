@@ -28,6 +28,8 @@ import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  *
@@ -262,6 +264,139 @@ public class SchedulerTest extends TestCase {
         }
     }
 
+    public void testManyPositions() {
+        Scheduler<String> scheduler = new Scheduler<String>();
+
+        scheduler.add("last", Scheduler.ALWAYS_LAST_POSITION);
+        scheduler.add("5", 5);
+        scheduler.add("first", Scheduler.ALWAYS_FIRST_POSITION);
+        scheduler.add("-5", -5);
+        scheduler.add("0", Scheduler.DEFAULT_POSITION);
+        scheduler.add("10", 10);
+        scheduler.add("-10", -10);
+        scheduler.add("0bis", Scheduler.DEFAULT_POSITION);
+
+        assertEquals("a Scheduler with 8 object(s) in 7 position(s)", scheduler.toString());
+
+        StringBuilder sb = new StringBuilder();
+        for (String s : scheduler) {
+            sb.append(s).append(' ');
+        }
+        assertEquals("first -10 -5 0 0bis 5 10 last ", sb.toString());
+
+        sb = new StringBuilder();
+        Iterator<String> it = scheduler.reverseIterator();
+        while (it.hasNext()) {
+            sb.append(it.next()).append(' ');
+        }
+        assertEquals("last 10 5 0 0bis -5 -10 first ", sb.toString());
+
+        assertEquals(Scheduler.ALWAYS_FIRST_POSITION, scheduler.getNaturalOrderPositions().first());
+        assertEquals(Scheduler.ALWAYS_LAST_POSITION, scheduler.getReverseOrderPositions().first());
+        assertNull(scheduler.getByNaturalOrderForPosition(1));
+    }
+
+    public void testPositionsAreCached() {
+        Scheduler<String> scheduler = new Scheduler<String>();
+        scheduler.add("a", Scheduler.DEFAULT_POSITION);
+
+        Set<Integer> natural = scheduler.getNaturalOrderPositions();
+        Set<Integer> reverse = scheduler.getReverseOrderPositions();
+        assertSame(natural, scheduler.getNaturalOrderPositions());
+        assertSame(reverse, scheduler.getReverseOrderPositions());
+
+        try {
+            natural.add(1);
+            fail("expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException ex) {
+            // expected
+        }
+
+        // adding an object to an existing position does not change the positions
+        scheduler.add("b", Scheduler.DEFAULT_POSITION);
+        assertSame(natural, scheduler.getNaturalOrderPositions());
+
+        scheduler.add("c", 1);
+        Set<Integer> newNatural = scheduler.getNaturalOrderPositions();
+        assertNotSame(natural, newNatural);
+        assertEquals(2, newNatural.size());
+        assertEquals(1, natural.size());
+
+        // going back to the same positions after removal does not rebuild the views
+        scheduler.remove("c");
+        Set<Integer> afterRemoval = scheduler.getNaturalOrderPositions();
+        assertEquals(1, afterRemoval.size());
+        scheduler.clear();
+        scheduler.add("d", Scheduler.DEFAULT_POSITION);
+        assertSame(afterRemoval, scheduler.getNaturalOrderPositions());
+    }
+
+    public void testClear() {
+        Scheduler<String> scheduler = new Scheduler<String>();
+        scheduler.add("a", Scheduler.DEFAULT_POSITION);
+        scheduler.add("b", Scheduler.ALWAYS_LAST_POSITION);
+        List<String> defaultPositionObjects = scheduler.getByNaturalOrderForPosition(Scheduler.DEFAULT_POSITION);
+
+        scheduler.clear();
+        assertEquals(0, scheduler.size());
+        assertEquals(0, scheduler.getNaturalOrderPositions().size());
+        assertFalse(scheduler.iterator().hasNext());
+        assertFalse(scheduler.reverseIterator().hasNext());
+
+        scheduler.add("c", Scheduler.DEFAULT_POSITION);
+        assertEquals("a Scheduler with 1 object(s) in 1 position(s)", scheduler.toString());
+        assertEquals("c", scheduler.iterator().next());
+        // the list of the emptied position has been reused
+        assertEquals(1, defaultPositionObjects.size());
+
+        try {
+            scheduler.remove("a");
+            fail("expected NoSuchElementException");
+        } catch (NoSuchElementException ex) {
+            // expected
+        }
+    }
+
+    public void testConcurrentReads() throws Exception {
+        final Scheduler<Integer> scheduler = new Scheduler<Integer>();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        Thread reader = new Thread() {
+            public void run() {
+                try {
+                    while (running.get()) {
+                        // the objects are their own positions and are added from the last one to the first one:
+                        // a snapshot must always hold consecutive positions ending with the last one
+                        List<Integer> snapshot = scheduler.snapshot();
+                        for (int i = 0; i < snapshot.size(); i++) {
+                            if (snapshot.get(i) != 8 - snapshot.size() + i)
+                                throw new AssertionError("inconsistent snapshot " + snapshot);
+                        }
+
+                        if (scheduler.getNaturalOrderPositions().size() > 8)
+                            throw new AssertionError("too many positions " + scheduler.getNaturalOrderPositions());
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        reader.start();
+
+        for (int i = 0; i < 20000 && failure.get() == null; i++) {
+            // objects are added in a different order than their positions to make the positions array shift
+            for (int position = 7; position >= 0; position--) {
+                scheduler.add(position, position);
+            }
+            scheduler.clear();
+        }
+        running.set(false);
+        reader.join();
+
+        assertNull(String.valueOf(failure.get()), failure.get());
+    }
+
     private static int counter = 0;
     private static int incCounter() {
         return counter++;
@@ -114,4 +114,15 @@ public class UidGeneratorTest extends TestCase {
         assertEquals(Encoder.bytesToInt(sequence, 0), uid.extractSequence());
     }
 
+    public void testHasServerId() throws Exception {
+        byte[] serverId = "my-server-id".getBytes();
+        byte[] uidArray = new byte[serverId.length + 8 + 4];
+        System.arraycopy(serverId, 0, uidArray, 0, serverId.length);
+
+        assertTrue(Uid.hasServerId(uidArray, serverId));
+        assertFalse(Uid.hasServerId(uidArray, "my-server-ie".getBytes()));
+        assertFalse(Uid.hasServerId(uidArray, "my-server".getBytes()));
+        assertFalse(Uid.hasServerId(new byte[8 + 4], serverId));
+    }
+
 }